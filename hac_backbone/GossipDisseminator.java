@@ -0,0 +1,243 @@
+package hac_backbone;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Infection-style dissemination of membership between P2P nodes. Rather
+ * than updating every known node each round, a gossiping node updates a
+ * small random fan-out of nodes, growing with the logarithm of the
+ * network size, so traffic grows as O(n log n) rather than O(n^2).
+ *
+ * Whenever a node learns something new about another node (it joined, or
+ * came back online), a rumor about it is started. Each rumor is
+ * piggybacked on the next gossip packets sent, up to a retransmit limit
+ * of RETRANSMIT_MULTIPLIER * log2(n) packets, after which it is dropped.
+ * Nodes receiving a rumor that is new to them spread it in turn, so a
+ * change reaches every node within O(log n) rounds with high probability,
+ * and every rumor stops being sent after a bounded number of packets.
+ *
+ * Rumors are kept in arrays indexed by the entry id of the node they
+ * are about (see MembershipTable).
+ */
+public class GossipDisseminator {
+
+	// Fewest nodes updated each round, for small networks
+	private static final int MIN_FANOUT = 3;
+
+	// Retransmit limit of a rumor, as a multiple of log2(n)
+	private static final int RETRANSMIT_MULTIPLIER = 3;
+
+	// Most rumors carried by a single packet, so it fits one datagram
+	public static final int MAX_RUMORS = (PacketFragmenter.MAX_DATAGRAM_LENGTH -
+			HACPacket.HEADER_LENGTH) / HACPacket.CHANGE_LENGTH;
+
+	private Random random;
+
+	// Per entry id: number of packets the rumor is still to be sent on
+	// (0 if none), and the rumor's node and kind
+	private int[] remaining;
+	private long[] rumorKeys;
+	private byte[] rumorOps;
+
+	// Entry ids with a rumor still to be sent, oldest rumor first
+	private int[] rumors;
+	private int rumorCount;
+
+	// Reusable arrays holding the rumors of the packet being encoded
+	private long[] packetKeys;
+	private byte[] packetOps;
+
+	public GossipDisseminator()
+	{
+		this(new Random());
+	}
+
+	/**
+	 * Creates a disseminator choosing targets with the given generator
+	 * @param random generator of random targets
+	 */
+	public GossipDisseminator(Random random)
+	{
+		this.random = random;
+		remaining = new int[16];
+		rumorKeys = new long[16];
+		rumorOps = new byte[16];
+		rumors = new int[16];
+		packetKeys = new long[MAX_RUMORS];
+		packetOps = new byte[MAX_RUMORS];
+	}
+
+	/**
+	 * Returns the number of nodes to update each round
+	 * @param members number of nodes in the network
+	 * @return fan-out of a round
+	 */
+	public static int fanout(int members)
+	{
+		return Math.max(MIN_FANOUT, log2(members));
+	}
+
+	/**
+	 * Returns the number of packets a rumor is sent on
+	 * @param members number of nodes in the network
+	 * @return retransmit limit of a rumor
+	 */
+	public static int retransmitLimit(int members)
+	{
+		return RETRANSMIT_MULTIPLIER * Math.max(1, log2(members));
+	}
+
+	/**
+	 * Returns log2 of a count, rounded up
+	 * @param count count, at least zero
+	 * @return ceiling of log2(count + 1)
+	 */
+	private static int log2(int count)
+	{
+		return 32 - Integer.numberOfLeadingZeros(count);
+	}
+
+	/**
+	 * Starts (or restarts) a rumor about a node
+	 * @param id entry id of the node
+	 * @param node key of the node
+	 * @param op kind of rumor (see MembershipJournal)
+	 * @param members number of nodes in the network
+	 */
+	public void spread(int id, long node, byte op, int members)
+	{
+		if (id >= remaining.length)
+		{
+			int capacity = Math.max(id + 1, remaining.length * 2);
+			remaining = Arrays.copyOf(remaining, capacity);
+			rumorKeys = Arrays.copyOf(rumorKeys, capacity);
+			rumorOps = Arrays.copyOf(rumorOps, capacity);
+		}
+
+		if (remaining[id] == 0)
+		{
+			if (rumorCount == rumors.length)
+			{
+				rumors = Arrays.copyOf(rumors, rumors.length * 2);
+			}
+			rumors[rumorCount++] = id;
+		}
+
+		remaining[id] = retransmitLimit(members);
+		rumorKeys[id] = node;
+		rumorOps[id] = op;
+	}
+
+	/**
+	 * Takes the rumors to be piggybacked on the next packet, newest
+	 * first, counting the packet against each rumor's retransmit limit.
+	 * The rumors are held in getPacketOps and getPacketKeys. Must be
+	 * called under the same lock as spread, until the rumors are copied
+	 * @return number of rumors for the packet
+	 */
+	public int takeRumors()
+	{
+		int taken = 0;
+		for (int rumor = rumorCount - 1; rumor >= 0 && taken < MAX_RUMORS; rumor--)
+		{
+			int id = rumors[rumor];
+			packetKeys[taken] = rumorKeys[id];
+			packetOps[taken] = rumorOps[id];
+			taken++;
+			remaining[id]--;
+		}
+
+		// Drop rumors that reached their retransmit limit
+		int kept = 0;
+		for (int rumor = 0; rumor < rumorCount; rumor++)
+		{
+			if (remaining[rumors[rumor]] > 0)
+			{
+				rumors[kept++] = rumors[rumor];
+			}
+		}
+		rumorCount = kept;
+
+		return taken;
+	}
+
+	/**
+	 * Returns the kinds of the rumors taken for the packet
+	 * @return rumor kinds, filled up to the count returned by takeRumors
+	 */
+	public byte[] getPacketOps()
+	{
+		return packetOps;
+	}
+
+	/**
+	 * Returns the nodes of the rumors taken for the packet
+	 * @return rumor nodes, filled up to the count returned by takeRumors
+	 */
+	public long[] getPacketKeys()
+	{
+		return packetKeys;
+	}
+
+	/**
+	 * Returns the number of rumors still being spread
+	 * @return rumor count
+	 */
+	public int getRumorCount()
+	{
+		return rumorCount;
+	}
+
+	/**
+	 * Chooses the nodes to update this round: a random sample, without
+	 * repeats, of fanout(n) members of the table other than the local node
+	 * @param table snapshot of the membership holding all nodes
+	 * @param localNode key of the local node
+	 * @param targets array receiving the indexes (in table order) of the
+	 *        chosen nodes, at least fanout(table.size()) long
+	 * @return number of nodes chosen
+	 */
+	public int selectTargets(MembershipSnapshot table, long localNode, int[] targets)
+	{
+		int candidates = table.size();
+		int count = Math.min(fanout(candidates), candidates);
+
+		// Floyd's sampling of count distinct indexes out of candidates
+		int chosen = 0;
+		for (int bound = candidates - count; bound < candidates; bound++)
+		{
+			int index = random.nextInt(bound + 1);
+			for (int previous = 0; previous < chosen; previous++)
+			{
+				if (targets[previous] == index)
+				{
+					index = bound;
+					break;
+				}
+			}
+			targets[chosen++] = index;
+		}
+
+		// The local node is never a target
+		int kept = 0;
+		for (int target = 0; target < chosen; target++)
+		{
+			if (table.getMember(targets[target]) != localNode)
+			{
+				targets[kept++] = targets[target];
+			}
+		}
+
+		return kept;
+	}
+
+	/**
+	 * Drops every rumor
+	 */
+	public void clear()
+	{
+		Arrays.fill(remaining, 0);
+		rumorCount = 0;
+	}
+}
@@ -1,19 +1,20 @@
 package hac_backbone;
 
-import java.awt.Dimension;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.SocketException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.StringTokenizer;
 import java.util.Timer;
 import java.util.TimerTask;
-import javax.swing.*;
-import javax.swing.table.DefaultTableModel;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * 
@@ -28,99 +29,609 @@ import javax.swing.table.DefaultTableModel;
  */
 public class HAC {
 
-	// Socket for communication between nodes
-	private DatagramSocket HACSocket = null;
-	
-	// Elements for node reporting GUI
-	private DefaultTableModel nodeModel;
-	private JTable nodeTable;
-	private JScrollPane nodeListScrollPane;
-	private JFrame nodeListWindow;
-	private String[] columnNames = {"IP Address",
-									"Port Number",
-									"Status"};
+	// Endpoint for communication between nodes, on the transport of the
+	// node's host or on UDP (see HACTransport). The endpoint is
+	// non-blocking; a standalone node waits for packets on a private
+	// poller so that receives may time out
+	private HACEndpoint HACChannel = null;
+	private HACPoller receivePoller;
+	private HACTransport transport;
+	
+	// Multicast group a server publishes its updates to, as a node key
+	// (-1 if updates are only unicast), the endpoint on which the group's
+	// packets are received (null if the group is not joined), and the
+	// membership version last published to the group
+	private long multicastGroup;
+	private HACEndpoint groupChannel;
+	private long groupVersion;
+	
+	// Reports if this client dropped a server packet based on a version it
+	// never applied, so it should acknowledge its version at once
+	private volatile boolean repairRequested;
+	
+	// Clock every time of the node is read from, and the source of its
+	// random choices, both provided by its transport
+	private HACClock clock;
+	private Random random;
+	
+	// Observers told of changes to the node, such as the GUI-based node
+	// list (see HACNodeWindow), which is only attached unless headless
+	private CopyOnWriteArrayList<HACNodeObserver> observers;
+	
+	// Runtime metrics of the node (see HACMetrics)
+	private HACMetrics metrics;
+	
+	// System property which, set to true, runs nodes without the GUI.
+	// Nodes also run headless under java.awt.headless or without a display
+	public static final String HEADLESS_PROPERTY = "hac.headless";
+	
+	// System property naming a directory in which nodes persist their
+	// membership, server and term, so they recover them on restart (see
+	// enablePersistence)
+	public static final String STORE_PROPERTY = "hac.store";
+	
+	// Persisted membership of the node, null unless persistence is enabled
+	private MembershipStore store;
 	
 	// Constants to refer to the configuration of current node
 	// Determines if a node is a server or otherwise, and provides
 	// additional functions depending on the configuration selection
 	public static final int SERVER = 1;
 	public static final int CLIENT_P2P = 0;
-	private static int configuration;
+	private int configuration;
+	
+	// Constants to refer to the wire format used when sending packets.
+	// TEXT only sends the original "\r\n" separated format, BINARY always
+	// sends HACPacket's format, and NEGOTIATE sends text until a peer reports
+	// that it accepts binary packets (for rolling upgrades of a network)
+	public static final int FORMAT_TEXT = 0;
+	public static final int FORMAT_NEGOTIATE = 1;
+	public static final int FORMAT_BINARY = 2;
+	private int wireFormat;
+	
+	// Reusable buffer for encoding and object for decoding binary packets
+	private ByteBuffer sendBuffer;
+	private HACPacket incomingBinaryPacket;
+	
+	// Binary packets encoded once per round of updateAllNodes and sent to
+	// every receiver they apply to, keyed by the membership version they
+	// are based on (SNAPSHOT_BASE for a full snapshot). Buffers are kept
+	// from round to round
+	private static final int ROUND_PACKET_SLOTS = 8;
+	private static final long SNAPSHOT_BASE = -1;
+	private long[] roundBases;
+	private ByteBuffer[] roundPackets;
+	private int roundPacketCount;
+	
+	// Largest UDP payload that may be received
+	private static final int MAX_RECEIVE_LENGTH = 65507;
+	
+	// Reusable direct buffer for receiving packets. Packets are parsed in
+	// place, so receiving a binary heartbeat allocates nothing. Hosted
+	// nodes share the buffer of their host
+	private ByteBuffer receiveBuffer;
+	
+	// Host whose loop receives packets for this node, null if the node
+	// receives its own packets (see HACNodeHost)
+	private HACNodeHost host;
+	private HACNodeHost.ScheduledTask hostedListTask;
+	
+	// Splits binary packets too large for one datagram into fragments and
+	// reassembles received fragments (see PacketFragmenter)
+	private PacketFragmenter fragmenter;
+	private ByteBuffer fragmentBuffer;
+	private int nextMessageId;
+	
+	// Versioned view of the membership, published by a server node and
+	// received from the server by client nodes (see MembershipJournal)
+	private MembershipJournal membership;
+	
+	// Key of the server whose membership versions are currently applied
+	// (-1 if none)
+	private long versionSource;
 	
 	private String localIP;
 	private int localPort;
-	private String remoteIP;
 	
-	// Number of total nodes and currently active nodes in network
-	private int totalNodes;
-	private int activeNodes;
+	// Key of the current remote (server) node, -1 if none is known
+	private long remoteNode;
+	
+	// Times at which a packet was last received from any node and from a
+	// server, in milliseconds
+	private volatile long lastPacketReceived;
+	private volatile long lastServerContact;
+	
+	// Start of the role switch in progress (clock.nanoTime, 0 if none) and
+	// the duration of the last completed role switch, in nanoseconds
+	private long roleSwitchStarted;
+	private long lastRoleSwitchTime;
+	
+	// Key (packed IP and port) of the local node
+	private long localNode;
+	
+	// Holds all nodes in network, keyed by their IP and port addresses,
+	// and differentiates between active and inactive nodes. The table is
+	// only changed while holding its lock, by the thread receiving
+	// packets, the failure detector or the node's role, and each batch of
+	// changes publishes a snapshot of it. Every other read, from the
+	// getters, the GUI, failover or the role's rounds, iterates the last
+	// published snapshot without locking (see getMembershipSnapshot)
+	private MembershipTable memberTable;
+	
+	// Spreads membership rumors to a random few nodes each round when
+	// gossip is enabled on a P2P node, null otherwise (see GossipDisseminator)
+	private GossipDisseminator gossip;
+	private int[] gossipTargets;
+	
+	// Per-node information, indexed by the node's entry id in memberTable,
+	// written while holding the table's lock and read at the ids of a
+	// snapshot. Holds the highest binary format version each node speaks
+	// (0 if it only accepts text packets) and, on a server node, the
+	// membership version each client last acknowledged,
+	// if each client receives the multicast group, and if a client is to
+	// be sent an update by unicast on the next round: a new client, or a
+	// client of the group that missed a version
+	private byte[] peerVersions;
+	private long[] acknowledgedVersions;
+	private boolean[] multicastMember;
+	private boolean[] updatePending;
+	
+	// Reports, on a server, if a node is to be sent every region digest
+	// held on the next round, as it came online (see sendDigest)
+	private boolean[] digestsPending;
 	
-	// Holds the IP and port addresses of all nodes in network,
-	// and differentiates between active and inactive nodes
-	private List<String> totalNodeList;
-	private List<Integer> totalPortList;
-	private List<String> activeNodeList;
-	private List<Integer> activePortList;
+	// Positions, in the snapshot being served, of the nodes found pending
+	// an update or digests by updatePendingNodes, reused each round
+	private int[] pendingUpdates;
+	private int[] pendingDigests;
 	
-	// Timer and Task to update GUI with all currently active
-	// and inactive nodes
+	// Timer and Task to detect failed nodes and update GUI with all
+	// currently active and inactive nodes
 	private Timer activeListTimer;
 	private TimerTask clearActiveListTask;
 	
-	// Time at which timer's task will first execute
-	private static final int STARTTIME = 30 *
-			1000;
-	// Interval at which timer's task will execute after initial delay
-	private static final int UPDATEINTERVAL = 30 *
-			1000;
+	// Decides which nodes are online from the arrival times of their
+	// packets (see PhiAccrualDetector)
+	private PhiAccrualDetector detector;
+	
+	// Derives the heartbeat period of the node from the bandwidth budget,
+	// the size of the membership and the observed loss rate (see
+	// HeartbeatScheduler)
+	private HeartbeatScheduler scheduler;
+	
+	// Sends health probes over the node's channel and collects their
+	// answers (see HealthProber). Probes and election packets are encoded
+	// into a buffer of their own
+	private HealthProber prober;
+	private ByteBuffer controlBuffer;
+	
+	// Election term of the node: the highest term of any server heard
+	// from, or the term this node serves in. A client asked by another to
+	// take over from a lost server is told so through electionRequested
+	private volatile long term;
+	private volatile boolean electionRequested;
+	
+	// In a hierarchical network, the server of the tier above this node's
+	// server (announced to clients with the server, see setParent), -1 if
+	// none is known. Nodes of the tier above hold the digest of each
+	// region, keyed by the node linking the region to the tier, and the
+	// node linking a region numbers its own digests (see sendDigest)
+	private volatile long parentNode;
+	private HashMap<Long, RegionDigest> digests;
+	private RegionDigest ownDigest;
+	private ByteBuffer digestBuffer;
+	private long digestRound;
+	
+	// Origins of the digests held, in ascending order, and the digest of
+	// each, listed anew only once the digests held change
+	private long[] digestOrigins;
+	private RegionDigest[] digestEntries;
+	private int digestCount;
+	private boolean digestsListed;
+	
+	// Digests to send, queued holding the table's lock and sent once it is
+	// released (see flushDigests): the receiver, origin and digest of
+	// each. The queue is swapped with the one being sent, so neither is
+	// allocated again once grown. Digests are encoded and sent holding the
+	// digest lock, which is taken before the table's
+	private long[] queuedReceivers;
+	private long[] queuedOrigins;
+	private RegionDigest[] queuedDigests;
+	private volatile int queuedCount;
+	private long[] sendingReceivers;
+	private long[] sendingOrigins;
+	private RegionDigest[] sendingDigests;
+	private Object digestLock;
+	
+	// Reports if the state of any node changed since the GUI was updated
+	private volatile boolean nodeListChanged;
+	
+	// Reports if this server received a packet from a server outranking it
+	// since its role last checked (see takeExclusivityLost)
+	private volatile boolean exclusivityLost;
+	
+	// Bytes sent by the last announcement of this server to every node,
+	// 0 before the first, which set the interval between announcements
+	// (see getAnnouncementInterval)
+	private volatile long lastAnnouncementBytes;
+	
+	// Bytes of the periodic packets of the last round of this server (see
+	// updateAllNodes), 0 before the first. Along with the encoded length
+	// of the last update this node sent, and of the last delta a client
+	// received from its server, they price a round of the cluster (see
+	// roundBytes)
+	private volatile long serverRoundBytes;
+	private volatile int sentUpdateLength;
+	private volatile int serverUpdateLength;
+	
+	// Interval at which timer's task checks for failed nodes
+	private static final int DETECTIONINTERVAL = 1000;
+	// Lower bound of the deviation of the intervals between packets, low
+	// enough that a server announcing itself every few hundred milliseconds
+	// is deemed lost about a second after its last announcement
+	private static final int MINHEARTBEATDEVIATION = 150;
 	
 	/**
 	 * Initializes all values necessary for operation of a node,
 	 * including initialization of a socket, generation of node lists,
-	 * and establishing the config type of the node.
+	 * and establishing the config type of the node. The GUI-based node
+	 * list is attached unless nodes run headless (see isHeadless).
 	 * @param localIP local IP address of the node
 	 * @param localPort local port address of the node
 	 * @param config configuration type of the current node (server or client/P2P)
 	 */
 	public HAC(String localIP, int localPort, int config)
 	{
+		this(localIP, localPort, config, null);
+	}
+	
+	/**
+	 * Initializes a node as above, whose packets are received and whose
+	 * periodic tasks are run by the loop of a host rather than by
+	 * threads of its own
+	 * @param localIP local IP address of the node
+	 * @param localPort local port address of the node
+	 * @param config configuration type of the current node (server or client/P2P)
+	 * @param host host running the node, or null for a standalone node
+	 */
+	HAC(String localIP, int localPort, int config, HACNodeHost host)
+	{
+		observers = new CopyOnWriteArrayList<>();
+		metrics = new HACMetrics(this);
 		try
 		{
-			HACSocket = new DatagramSocket(localPort);
+			this.host = host;
+			
+			transport = host == null ? new UdpTransport() : host.getTransport();
+			clock = transport.getClock();
+			random = transport.newRandom();
+			HACChannel = transport.open(localIP, localPort);
 
 			this.localIP = localIP;
 			this.localPort = localPort;
-			this.remoteIP = null;
+			this.remoteNode = -1;
+			localNode = HACPacket.packNode(HACPacket.toAddress(localIP), localPort);
 			
-			totalNodes = 0;
-			activeNodes = 0;
+			memberTable = new MembershipTable();
+			peerVersions = new byte[16];
+			acknowledgedVersions = new long[16];
+			multicastMember = new boolean[16];
+			updatePending = new boolean[16];
+			digestsPending = new boolean[16];
+			pendingUpdates = new int[16];
+			pendingDigests = new int[16];
+			digests = new HashMap<>();
+			digestBuffer = ByteBuffer.allocateDirect(1024);
+			digestOrigins = new long[16];
+			digestEntries = new RegionDigest[16];
+			queuedReceivers = new long[16];
+			queuedOrigins = new long[16];
+			queuedDigests = new RegionDigest[16];
+			sendingReceivers = new long[16];
+			sendingOrigins = new long[16];
+			sendingDigests = new RegionDigest[16];
+			digestLock = new Object();
+			parentNode = -1;
+			multicastGroup = -1;
 			
-			totalNodeList = new ArrayList<>();
-			totalPortList = new ArrayList<>();
-			activeNodeList = new ArrayList<>();
-			activePortList = new ArrayList<>();
+			wireFormat = FORMAT_NEGOTIATE;
+			sendBuffer = ByteBuffer.allocateDirect(1024);
+			incomingBinaryPacket = new HACPacket();
+			receiveBuffer = host == null ? ByteBuffer.allocateDirect(MAX_RECEIVE_LENGTH) :
+					host.getReceiveBuffer();
+			fragmenter = new PacketFragmenter();
+			fragmentBuffer = ByteBuffer.allocateDirect(PacketFragmenter.MAX_DATAGRAM_LENGTH);
+			roundBases = new long[ROUND_PACKET_SLOTS];
+			roundPackets = new ByteBuffer[ROUND_PACKET_SLOTS];
+			nextMessageId = 0;
+			
+			membership = new MembershipJournal();
+			versionSource = -1;
+			scheduler = new HeartbeatScheduler();
+			sentUpdateLength = HACPacket.HEADER_LENGTH;
+			serverUpdateLength = HACPacket.HEADER_LENGTH;
+			
+			// Until intervals are measured, nodes are assumed to send once
+			// per heartbeat period
+			detector = new PhiAccrualDetector(getHeartbeatPeriod(), MINHEARTBEATDEVIATION);
+			prober = new HealthProber(this, localNode);
+			controlBuffer = ByteBuffer.allocateDirect(Math.max(HACPacket.PROBE_LENGTH,
+					HACPacket.PARENT_ANNOUNCE_LENGTH));
 			
 			if (config == SERVER)
 			{
 				configuration = SERVER;
+				term = 1;
 			}
 			else
 			{
 				configuration = CLIENT_P2P;
-				
-				// Initializes and starts timer to update GUI-based node list
-				activeListTimer = new Timer();
-				clearActiveListTask = new Helper();
-				activeListTimer.schedule(clearActiveListTask, STARTTIME, UPDATEINTERVAL);
 			}
+			startActiveListTask();
+			
+			// Recover the persisted membership, if a store is configured.
+			// A node whose store cannot be opened runs without one
+			String storeDirectory = System.getProperty(STORE_PROPERTY);
+			if (storeDirectory != null)
+			{
+				try
+				{
+					enablePersistence(Paths.get(storeDirectory));
+				}
+				catch (IOException ioe)
+				{
+					ioe.printStackTrace();
+				}
+			}
+			
+			// Creates GUI-based node list on screen, unless headless
+			if (!isHeadless())
+			{
+				attachWindow();
+			}
+			
+			// Packets are received once the host's loop picks up the endpoint
+			if (host != null)
+			{
+				host.registerEndpoint(HACChannel, this);
+			}
+			else
+			{
+				receivePoller = transport.openPoller();
+				receivePoller.register(HACChannel, this);
+			}
+			
+			metrics.export();
+		}
+		catch (IOException ioe)
+		{
+			ioe.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Persists the membership of the node in the given directory, in a
+	 * store named after the node (see MembershipStore). Nodes, the server
+	 * and the term held by the store are recovered first: the nodes are
+	 * added to the table, offline until heard from, and a client takes
+	 * the recovered server as its server, so it may report to it at once
+	 * rather than wait to hear from a server. Each later change to the
+	 * membership, server or term is committed to the store
+	 * @param directory directory holding the store
+	 * @throws IOException if the store cannot be opened
+	 */
+	public void enablePersistence(Path directory) throws IOException
+	{
+		MembershipStore opened = new MembershipStore(directory,
+				"hac-" + localIP + "-" + localPort);
+		synchronized (memberTable)
+		{
+			if (store != null)
+			{
+				store.close();
+			}
+			store = opened;
+			
+			MembershipSnapshot recovered = store.getMembers();
+			for (int node = 0; node < recovered.size(); node++)
+			{
+				addMember(recovered.getMember(node));
+			}
+			term = Math.max(term, store.getTerm());
+			if (configuration != SERVER && remoteNode < 0 && store.getServer() != localNode)
+			{
+				remoteNode = store.getServer();
+			}
+			endMembershipBatch();
+		}
+	}
+	
+	/**
+	 * Ends a batch of changes made holding the table's lock: publishes a
+	 * snapshot of the table and commits it, the server (this node, if it
+	 * serves) and the term to the store, if persistence is enabled. A store that cannot be
+	 * written is closed, and the node runs on without persistence
+	 */
+	private void endMembershipBatch()
+	{
+		MembershipSnapshot members = memberTable.publish();
+		if (store == null)
+		{
+			return;
+		}
+		
+		try
+		{
+			store.commit(members, term, configuration == SERVER ? localNode : remoteNode);
+		}
+		catch (IOException ioe)
+		{
+			ioe.printStackTrace();
+			closeStore();
+		}
+	}
+	
+	/**
+	 * Closes the store, if persistence is enabled. Must be called holding
+	 * the table's lock
+	 */
+	private void closeStore()
+	{
+		if (store == null)
+		{
+			return;
+		}
+		
+		try
+		{
+			store.close();
+		}
+		catch (IOException ioe)
+		{
+			ioe.printStackTrace();
+		}
+		store = null;
+	}
+	
+	/**
+	 * Initializes and starts timer to detect failed nodes and update
+	 * GUI-based node list
+	 */
+	private void startActiveListTask()
+	{
+		clearActiveListTask = new Helper();
+		if (host == null)
+		{
+			activeListTimer = new Timer();
+			activeListTimer.schedule(clearActiveListTask, DETECTIONINTERVAL,
+					DETECTIONINTERVAL);
+		}
+		else
+		{
+			hostedListTask = host.schedule(clearActiveListTask, DETECTIONINTERVAL,
+					DETECTIONINTERVAL);
+		}
+	}
+	
+	/**
+	 * Stops the timer updating the GUI-based node list, if running
+	 */
+	private void stopActiveListTask()
+	{
+		if (activeListTimer != null)
+		{
+			activeListTimer.cancel();
+			activeListTimer.purge();
+			activeListTimer = null;
+		}
+		if (hostedListTask != null)
+		{
+			hostedListTask.cancel();
+			hostedListTask = null;
+		}
+		clearActiveListTask = null;
+	}
+	
+	/**
+	 * Switches the node between the server and client/P2P roles in place,
+	 * keeping its channel, port and known nodes. Membership versions are
+	 * reset, as versions published by different servers are not comparable.
+	 * A node becoming server watches every node reported online, so nodes
+	 * that never report to it are deemed failed
+	 * @param config new configuration type (server or client/P2P)
+	 */
+	public void setConfiguration(int config)
+	{
+		if (config != SERVER)
+		{
+			config = CLIENT_P2P;
+		}
+		if (config == configuration)
+		{
+			return;
+		}
+		
+		synchronized (memberTable)
+		{
+			configuration = config;
+			membership.clear();
+			versionSource = -1;
+			groupVersion = 0;
+			Arrays.fill(acknowledgedVersions, 0);
+			Arrays.fill(updatePending, false);
+			detector.clear();
 			
-			// Creates GUI-based node list on screen
-			createActiveNodeWindow();
+			if (config == SERVER)
+			{
+				// Serve in a term newer than that of any server heard from
+				term++;
+				electionRequested = false;
+				exclusivityLost = false;
+				
+				long now = clock.currentTimeMillis();
+				for (int node = 0; node < memberTable.liveCount(); node++)
+				{
+					long member = memberTable.getLiveMember(node);
+					if (member != localNode)
+					{
+						detector.expect(memberTable.idOf(member), now);
+					}
+				}
+			}
+			endMembershipBatch();
 		}
-		catch (SocketException se)
+		
+		for (HACNodeObserver observer : observers)
+		{
+			observer.configurationChanged(this, config);
+		}
+	}
+	
+	/**
+	 * Returns the configuration type of the node
+	 * @return SERVER or CLIENT_P2P
+	 */
+	public int getConfiguration()
+	{
+		return configuration;
+	}
+	
+	/**
+	 * Marks the start of a role switch, such as when the loss of the
+	 * server is detected
+	 */
+	public void beginRoleSwitch()
+	{
+		roleSwitchStarted = clock.nanoTime();
+		metrics.failovers.increment();
+	}
+	
+	/**
+	 * Marks the end of the role switch in progress, once the node is
+	 * operating in its new role
+	 * @return duration of the role switch in milliseconds, or -1 if no
+	 *         role switch was in progress
+	 */
+	public long endRoleSwitch()
+	{
+		if (roleSwitchStarted == 0)
 		{
-			se.printStackTrace();
+			return -1;
 		}
+		
+		lastRoleSwitchTime = clock.nanoTime() - roleSwitchStarted;
+		roleSwitchStarted = 0;
+		metrics.failoverTimes.record(lastRoleSwitchTime / 1000000);
+		return lastRoleSwitchTime / 1000000;
+	}
+	
+	/**
+	 * Returns the duration of the last completed role switch
+	 * @return role switch duration in nanoseconds, 0 if none completed
+	 */
+	public long getLastRoleSwitchTime()
+	{
+		return lastRoleSwitchTime;
 	}
 	
 	/**
@@ -128,67 +639,45 @@ public class HAC {
 	 * Packet consists of packet length, sender's configuration (server or 
 	 * client/P2P), the number of total nodes, the number of active nodes,
 	 * and the lists of both the total nodes (IPs and ports) and the
-	 * active nodes connected to the network. Packet is filled with the
-	 * data of a String in order to transport data between nodes.
+	 * active nodes connected to the network. Packet is sent in the binary
+	 * format (see HACPacket) if the receiver accepts it, otherwise it is
+	 * filled with the data of a String in order to transport data between nodes.
+	 * Binary packets from a server only carry the membership changes made
+	 * since the version the receiver last acknowledged, or a full snapshot
+	 * if the receiver is too far behind. Binary packets larger than a single
+	 * datagram are split into fragments (see PacketFragmenter).
 	 * @param receiverIP IP address of the receiving node
 	 * @param receiverPort port address of the receiving node
 	 */
 	public void updateNode(String receiverIP, int receiverPort)
+	{
+		long receiver = HACPacket.packNode(HACPacket.toAddress(receiverIP), receiverPort);
+		updateNode(receiver, memberTable.getSnapshot().idOf(receiver));
+	}
+	
+	/**
+	 * Sends an update packet to a node (see updateNode)
+	 * @param receiver key of the receiving node
+	 * @param id entry id of the receiving node, -1 if it is not known
+	 */
+	private void updateNode(long receiver, int id)
 	{
 		try
 		{
-			// Loads configuration, total node, and active node info into String
-			String packetInfo = Integer.toString(configuration) + "\r\n" +
-                    Integer.toString(totalNodes) + "\r\n" +
-		            Integer.toString(activeNodes) + "\r\n";
-			
-			if (configuration == SERVER)
+			ByteBuffer packet;
+			boolean binary = sendsBinaryTo(id);
+			if (binary)
 			{
-				// Add IPs of all nodes to packet's initial String
-				for (int node = 0; node < totalNodes; node++)
-				{
-					packetInfo = packetInfo +
-							totalNodeList.get(node) + "\r\n";
-				}
-	
-				// Add ports of all nodes
-				for (int port = 0; port < totalNodes; port++)
-				{
-					packetInfo = packetInfo +
-							Integer.toString(totalPortList.get(port)) + "\r\n";
-				}
-	
-				// Add IPs of all ACTIVE nodes
-				for (int node = 0; node < activeNodes; node++)
-				{
-					packetInfo = packetInfo +
-							activeNodeList.get(node) + "\r\n";
-				}
-	
-				// Add ports of all ACTIVE nodes
-				for (int port = 0; port < activeNodes; port++)
-				{
-					packetInfo = packetInfo +
-							Integer.toString(activePortList.get(port)) + "\r\n";
-				}
+				encodeBinaryPacket(deltaBaseFor(id));
+				sendBuffer.flip();
+				packet = sendBuffer;
 			}
-
-			// Get length of the packet and store it in packet String
-			int packetLength = packetInfo.getBytes().length;
-			packetInfo = Integer.toString(packetLength) + "\r\n" + 
-			             packetInfo;
-
-			// Get binary data of packet String
-			byte[] packetData = packetInfo.getBytes();
-			
-			// Create address variable of remote node
-			InetAddress remote = InetAddress.getByName(receiverIP);
-	
-			// Create a UDP packet using the packet information and receivers information
-			// and send packet to recipient.
-			DatagramPacket informNodesPacket = new DatagramPacket(packetData,
-					packetData.length, remote, receiverPort);
-			HACSocket.send(informNodesPacket);
+			else
+			{
+				packet = ByteBuffer.wrap(encodeTextPacket());
+			}
+			sentUpdateLength = packet.remaining();
+			sendPacket(packet, binary, receiver);
 		}
 		catch (IOException ioe)
 		{
@@ -197,371 +686,2415 @@ public class HAC {
 	}
 	
 	/**
-	 * Receives HAC-protocol structured packet from socket, assuming one was
-	 * sent by a remote node. Contains information such as packet length,
-	 * the sender's configuration setting, the number of total nodes and 
-	 * active nodes in the network, and list of all total nodes and all
-	 * active nodes, if applicable. Received packet is taken is as a String
-	 * and tokenized accordingly.
-	 * @return server exclusivity. If the packet was received and parsed
-	 *         successfully (intervention by no other servers), then true
-	 *         is returned. If there are two or more servers active at once,
-	 *         false is returned for the servers that are intended to close.
+	 * Sends an update packet to every known node, as a server does each
+	 * round (see updateNode). Each packet is encoded once per round and
+	 * the same bytes are sent to every receiver it applies to: the text
+	 * packet, the full snapshot, and the delta from each version
+	 * acknowledged by receivers. Receivers are walked by key, so no
+	 * address is parsed per send and a round takes time linear in the
+	 * number of nodes and the size of the packets. Gossiping nodes
+	 * piggyback different rumors on each packet, so they encode a packet
+	 * per receiver. A server with a multicast group (see
+	 * joinMulticastGroup) publishes the round's changes once to the group
+	 * instead, and only sends to the nodes that do not receive it
 	 */
-	public boolean receiveUpdatePacket()
+	public void updateAllNodes()
 	{
-		try
+		MembershipSnapshot members = memberTable.getSnapshot();
+		if (configuration != SERVER && gossip != null)
 		{
-			// Allocate memory to hold new packet
-			byte[] incomingData = new byte[1024];
-			
-			// Create an empty UDP packet and receive packet from wire
-			DatagramPacket incomingPacket = new DatagramPacket(incomingData,
-					incomingData.length);
-			HACSocket.receive(incomingPacket);
-												
-			// Retrieve the sender's IP and port address from packet
-			String sendingIP = incomingPacket.getAddress().getHostAddress();
-			int sendingPort = incomingPacket.getPort();
-			
-			// Create tokenizer to parse packet String
-			String packetInfo = new String(incomingPacket.getData());
-			StringTokenizer tokenizer = new StringTokenizer(packetInfo, "\r\n");
-			
-			@SuppressWarnings("unused")
-			// Packet length is unused in this implementation, may be utilized in
-			// future variations
-			int packetLength = Integer.parseInt(tokenizer.nextToken());
-			
-			// Parse out the configuration setting of the sender
-			int senderConfig = Integer.parseInt(tokenizer.nextToken());
-			
-			if (configuration == SERVER &&
-					senderConfig == SERVER)
+			for (int node = 0; node < members.size(); node++)
 			{
-				// If two servers are active, close the server whose IP address
-				// is lower on the node list
-				if (sendingIP.compareTo(localIP) < 0)
-				{
-					return false; // NO server exclusivity
-				}
+				updateNode(members.getMember(node), members.getId(node));
 			}
-			
-			// If receiving a packet from a server
-			if (senderConfig == SERVER)
+			return;
+		}
+		
+		ByteBuffer textPacket = null;
+		roundPacketCount = 0;
+		
+		// Receivers of binary packets, the group counting as one, the
+		// newest base of the deltas sent and their length, and the bytes
+		// of text packets sent (see serverRoundBytes)
+		long binaryReceivers = 0;
+		long newestBase = SNAPSHOT_BASE;
+		int deltaLength = HACPacket.HEADER_LENGTH;
+		long textBytes = 0;
+		
+		boolean multicast = publishesToGroup();
+		if (multicast)
+		{
+			publishToGroup();
+			binaryReceivers++;
+		}
+		
+		for (int node = 0; node < members.size(); node++)
+		{
+			long receiver = members.getMember(node);
+			int id = members.getId(node);
+			try
 			{
-				// Set remote IP as server's IP
-				remoteIP = sendingIP;
-				
-				// Parse total and active nodes from packet
-				totalNodes = Integer.parseInt(tokenizer.nextToken());
-				activeNodes = Integer.parseInt(tokenizer.nextToken());
-				
-				// List to hold updated total node information
-				List<String> newTotalNodeIPs = new ArrayList<>();
-				List<Integer> newTotalNodePorts = new ArrayList<>();
-				
-				// Parse IPs of all nodes into temporary list
-				for (int i = 0; i < totalNodes; i++)
+				if (multicast && receivesGroup(id))
 				{
-					String nodeIP = tokenizer.nextToken();
-					newTotalNodeIPs.add(nodeIP);
+					continue;
 				}
-				
-				// Copy temporary IP list to permanent IP list
-				totalNodeList = new ArrayList<>(newTotalNodeIPs);
-				
-				// Parse ports of all nodes into temporary list
-				for (int i = 0; i < totalNodes; i++)
+				if (sendsBinaryTo(id))
 				{
-					int nodePort = Integer.parseInt(tokenizer.nextToken());
-					newTotalNodePorts.add(nodePort);
+					long base = deltaBaseFor(id);
+					ByteBuffer packet = roundPacket(base);
+					if (base > newestBase)
+					{
+						newestBase = base;
+						deltaLength = packet.remaining();
+					}
+					binaryReceivers++;
+					sendPacket(packet, true, receiver);
 				}
-				
-				// Copy temporary port list to permanent port list
-				totalPortList = new ArrayList<>(newTotalNodePorts);
-				
-				// Parse IPs of active nodes into temporary list
-				for (int i = 0; i < activeNodes; i++)
+				else
 				{
-					String nodeIP = tokenizer.nextToken();
-					activeNodeList.add(nodeIP);
+					if (textPacket == null)
+					{
+						textPacket = ByteBuffer.wrap(encodeTextPacket());
+					}
+					textPacket.rewind();
+					textBytes += HeartbeatScheduler.datagramBytes(textPacket.remaining());
+					sendPacket(textPacket, false, receiver);
 				}
-				
-				// Parse ports of active nodes into temporary list
-				for (int i = 0; i < activeNodes; i++)
+			}
+			catch (IOException ioe)
+			{
+				ioe.printStackTrace();
+			}
+		}
+		
+		// Snapshots are only sent to nodes that joined or fell behind, so
+		// every binary receiver is priced at the delta sent to nodes that
+		// are up to date
+		serverRoundBytes = binaryReceivers * HeartbeatScheduler.datagramBytes(deltaLength) +
+				textBytes + refreshDigests(members);
+	}
+	
+	/**
+	 * Resends, on a server holding region digests (see sendDigest), one
+	 * digest to each node of the tier per round: a different one to each
+	 * node, and to each node every round. Relayed digests are only sent
+	 * once, so a node that missed one holds every digest again within as
+	 * many rounds as there are regions, at the cost of one packet per
+	 * node per round. The digests are queued digest by digest, so each is
+	 * encoded once, and sent once the table's lock is released
+	 * @param members snapshot of the nodes of the tier
+	 * @return bytes of the digests sent (see HeartbeatScheduler.datagramBytes)
+	 */
+	private long refreshDigests(MembershipSnapshot members)
+	{
+		long bytes = 0;
+		synchronized (memberTable)
+		{
+			listDigests();
+			if (digestCount == 0)
+			{
+				return 0;
+			}
+			digestRound++;
+			
+			// The node at index node is sent the digest at index
+			// (digestRound + node) % digestCount
+			for (int digest = 0; digest < digestCount; digest++)
+			{
+				long origin = digestOrigins[digest];
+				long digestBytes = HeartbeatScheduler.datagramBytes(
+						HACPacket.encodedDigestLength(digestEntries[digest].region.size()));
+				for (int node = Math.floorMod(digest - digestRound, digestCount);
+						node < members.size(); node += digestCount)
 				{
-					int nodePort = Integer.parseInt(tokenizer.nextToken());
-					activePortList.add(nodePort);
+					long receiver = members.getMember(node);
+					if (receiver != localNode && receiver != origin &&
+							versionFor(members.getId(node)) >= HACPacket.DIGEST_VERSION)
+					{
+						queueDigest(receiver, origin, digestEntries[digest]);
+						bytes += digestBytes;
+					}
 				}
 			}
-			
-			// If sender's IP address and port number are not in list of active nodes,
-			// then add it and report the extra node
-			if (!activeNodeList.contains(sendingIP) ||
-				 activeNodeList.contains(sendingIP) && !activePortList.contains(sendingPort))
+		}
+		
+		flushDigests();
+		return bytes;
+	}
+	
+	/**
+	 * Reports if this node publishes its updates to a multicast group: it
+	 * is a server with a group, and sends binary packets
+	 * @return true if updates are published to the group
+	 */
+	private boolean publishesToGroup()
+	{
+		return configuration == SERVER && multicastGroup >= 0 && wireFormat != FORMAT_TEXT;
+	}
+	
+	/**
+	 * Reports if a node receives the multicast group of this server: it
+	 * joined the group, and speaks the current version, which the group's
+	 * packets carry
+	 * @param id entry id of the node, -1 if it is not known
+	 * @return true if the node is updated through the group
+	 */
+	private boolean receivesGroup(int id)
+	{
+		return id >= 0 && multicastMember[id] && versionFor(id) == HACPacket.VERSION;
+	}
+	
+	/**
+	 * Publishes the membership to the multicast group once: the changes
+	 * made since the version last published to the group, or a full
+	 * snapshot if no delta is possible. Members that missed a version drop
+	 * the delta and acknowledge their own version at once, and are resent
+	 * what they missed by unicast (see updatePendingNodes)
+	 */
+	private void publishToGroup()
+	{
+		// Ensure there is a published version to describe
+		if (membership.getVersion() == 0)
+		{
+			publishMembership();
+		}
+		
+		long base = membership.canDeltaFrom(groupVersion) ? groupVersion : SNAPSHOT_BASE;
+		try
+		{
+			sendPacket(roundPacket(base), true, multicastGroup);
+			groupVersion = membership.getVersion();
+			metrics.multicastPackets.increment();
+		}
+		catch (IOException ioe)
+		{
+			ioe.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Sends an update, by unicast, to each node that should not wait for
+	 * the next update interval: nodes that first reported to this server,
+	 * so they hear from it within a round of joining, and members of the
+	 * multicast group that acknowledged an older version than the one
+	 * published, which are resent the versions they missed. Nodes that
+	 * came online are also sent every region digest held (see sendDigest).
+	 * The pending nodes are collected under the table's lock, as the
+	 * receive thread marks them, and sent to outside it. Servers should
+	 * call this each round
+	 * @return number of nodes sent an update
+	 */
+	public int updatePendingNodes()
+	{
+		if (configuration != SERVER)
+		{
+			return 0;
+		}
+		
+		MembershipSnapshot members;
+		int updatedNodes = 0;
+		int digestNodes = 0;
+		synchronized (memberTable)
+		{
+			members = memberTable.getSnapshot();
+			if (pendingUpdates.length < members.size())
+			{
+				pendingUpdates = new int[Math.max(members.size(), pendingUpdates.length * 2)];
+				pendingDigests = new int[pendingUpdates.length];
+			}
+			
+			for (int node = 0; node < members.size(); node++)
+			{
+				int id = members.getId(node);
+				if (digestsPending[id])
+				{
+					digestsPending[id] = false;
+					pendingDigests[digestNodes++] = node;
+				}
+				if (updatePending[id])
+				{
+					updatePending[id] = false;
+					pendingUpdates[updatedNodes++] = node;
+				}
+			}
+		}
+		
+		for (int pending = 0; pending < digestNodes; pending++)
+		{
+			int node = pendingDigests[pending];
+			if (versionFor(members.getId(node)) >= HACPacket.DIGEST_VERSION)
+			{
+				queueDigests(members.getMember(node));
+			}
+		}
+		for (int pending = 0; pending < updatedNodes; pending++)
+		{
+			int node = pendingUpdates[pending];
+			int id = members.getId(node);
+			if (publishesToGroup() && receivesGroup(id))
+			{
+				metrics.multicastRepairs.increment();
+			}
+			updateNode(members.getMember(node), id);
+		}
+		flushDigests();
+		
+		return updatedNodes;
+	}
+	
+	/**
+	 * Joins a multicast group. As a server, the node publishes each
+	 * round's update once to the group rather than to every node (see
+	 * updateAllNodes); as a client, it receives the group's packets along
+	 * with its own, and tells its server so. Every node of a cluster should
+	 * join the same group, so the group survives a failover. Nodes that do
+	 * not join, or only accept text packets, are still updated by unicast
+	 * @param groupIP IP address of the multicast group
+	 * @param groupPort port the group's packets are sent to
+	 * @throws IOException if the group cannot be joined
+	 */
+	public void joinMulticastGroup(String groupIP, int groupPort) throws IOException
+	{
+		leaveMulticastGroup();
+		
+		HACEndpoint joined = transport.openGroup(groupIP, groupPort, localIP, localPort);
+		if (host != null)
+		{
+			host.registerEndpoint(joined, this);
+		}
+		else
+		{
+			receivePoller.register(joined, this);
+		}
+		
+		groupChannel = joined;
+		groupVersion = 0;
+		multicastGroup = HACPacket.packNode(HACPacket.toAddress(groupIP), groupPort);
+	}
+	
+	/**
+	 * Leaves the multicast group, if one was joined. Updates are unicast
+	 * to every node from then on
+	 */
+	public void leaveMulticastGroup()
+	{
+		multicastGroup = -1;
+		if (groupChannel != null)
+		{
+			try
+			{
+				groupChannel.close();
+			}
+			catch (IOException ioe)
+			{
+				ioe.printStackTrace();
+			}
+			groupChannel = null;
+		}
+	}
+	
+	/**
+	 * Reports if the node joined a multicast group
+	 * @return true if a group was joined
+	 */
+	public boolean isMulticastEnabled()
+	{
+		return multicastGroup >= 0;
+	}
+	
+	/**
+	 * Reports, once, if this client dropped a server packet because it
+	 * missed a version, meaning it should send its server an update at
+	 * once so the server resends what it missed
+	 * @return true if the client should update its server now
+	 */
+	public boolean takeRepairRequest()
+	{
+		if (repairRequested)
+		{
+			repairRequested = false;
+			return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Returns the binary packet of this round based on the given version,
+	 * encoding it the first time it is asked for. If more versions are
+	 * asked for than there are slots, the packet is encoded again into
+	 * the send buffer
+	 * @param baseVersion version acknowledged by the receiver, or
+	 *        SNAPSHOT_BASE
+	 * @return packet, from its first byte
+	 */
+	private ByteBuffer roundPacket(long baseVersion)
+	{
+		for (int slot = 0; slot < roundPacketCount; slot++)
+		{
+			if (roundBases[slot] == baseVersion)
+			{
+				roundPackets[slot].rewind();
+				return roundPackets[slot];
+			}
+		}
+		
+		encodeBinaryPacket(baseVersion);
+		sendBuffer.flip();
+		if (roundPacketCount == ROUND_PACKET_SLOTS)
+		{
+			return sendBuffer;
+		}
+		
+		// Keep a copy of the packet for the other receivers of the round
+		int slot = roundPacketCount++;
+		ByteBuffer packet = roundPackets[slot];
+		if (packet == null || packet.capacity() < sendBuffer.remaining())
+		{
+			packet = ByteBuffer.allocateDirect(Math.max(sendBuffer.remaining(),
+					packet == null ? 0 : packet.capacity() * 2));
+			roundPackets[slot] = packet;
+		}
+		packet.clear();
+		packet.put(sendBuffer);
+		packet.flip();
+		roundBases[slot] = baseVersion;
+		return packet;
+	}
+	
+	/**
+	 * Sends an encoded update packet to a node. Binary packets are
+	 * labelled with the version the node speaks (see labelFor), and those
+	 * larger than a single datagram are split into fragments (see
+	 * PacketFragmenter).
+	 * Like the network itself, a non-blocking send drops the datagram if
+	 * the socket's buffer is full
+	 * @param packet buffer holding the packet from index zero
+	 * @param binary true if the packet is in the binary format
+	 * @param receiver key of the receiving node
+	 * @throws IOException if the packet cannot be sent
+	 */
+	private void sendPacket(ByteBuffer packet, boolean binary, long receiver) throws IOException
+	{
+		int packetLength = packet.remaining();
+		int version = binary ? labelFor(receiver) : 0;
+		if (binary)
+		{
+			HACPacket.setVersion(packet, version);
+		}
+		
+		int fragments = PacketFragmenter.fragmentCount(packetLength);
+		if (binary && fragments > 1)
+		{
+			if (fragments > PacketFragmenter.MAX_FRAGMENTS)
+			{
+				throw new IOException("Packet of " + packetLength +
+						" bytes exceeds the largest fragmented message");
+			}
+			
+			// Send each fragment of the packet as its own datagram. Digests
+			// are sent from the thread receiving them as well as the round's,
+			// so the fragment buffer is locked
+			synchronized (fragmentBuffer)
+			{
+				int messageId = nextMessageId++;
+				for (int fragment = 0; fragment < fragments; fragment++)
+				{
+					fragmentBuffer.clear();
+					PacketFragmenter.writeFragment(fragmentBuffer, packet,
+							packetLength, messageId, fragment, fragments);
+					fragmentBuffer.flip();
+					HACPacket.setVersion(fragmentBuffer, version);
+					metrics.recordSent(HACChannel.send(fragmentBuffer, receiver));
+				}
+			}
+			return;
+		}
+		
+		metrics.recordSent(HACChannel.send(packet, receiver));
+	}
+	
+	/**
+	 * Sends a single probe packet (see HealthProber). Probes are sent from
+	 * the thread that asks for them, so they use a buffer of their own
+	 * @param type TYPE_PING, TYPE_ACK or TYPE_PING_REQ
+	 * @param sequence probe sequence number
+	 * @param target key of the probed node
+	 * @param receiver key of the node the probe is sent to
+	 */
+	void sendProbe(byte type, int sequence, long target, long receiver)
+	{
+		synchronized (controlBuffer)
+		{
+			controlBuffer.clear();
+			HACPacket.encodeProbe(controlBuffer, type, configuration,
+					HACPacket.FLAG_BINARY_CAPABLE, term, sequence, target);
+			sendControlPacket(receiver);
+		}
+	}
+	
+	/**
+	 * Sends a LEADER or ELECTION packet
+	 * @param type TYPE_LEADER or TYPE_ELECTION
+	 * @param packetTerm term announced, or asked for
+	 * @param node key of the announced server, or of the lost one
+	 * @param receiver key of the node the packet is sent to
+	 */
+	private void sendAnnouncement(byte type, long packetTerm, long node, long receiver)
+	{
+		synchronized (controlBuffer)
+		{
+			controlBuffer.clear();
+			HACPacket.encodeAnnouncement(controlBuffer, type, configuration,
+					HACPacket.FLAG_BINARY_CAPABLE, packetTerm, node,
+					type == HACPacket.TYPE_LEADER ? parentNode : -1);
+			sendControlPacket(receiver);
+		}
+	}
+	
+	/**
+	 * Sends the packet encoded into the control buffer. Must be called
+	 * holding the buffer's lock
+	 * @param receiver key of the node the packet is sent to
+	 */
+	private void sendControlPacket(long receiver)
+	{
+		try
+		{
+			controlBuffer.flip();
+			HACPacket.setVersion(controlBuffer, labelFor(receiver));
+			metrics.recordSent(HACChannel.send(controlBuffer, receiver));
+		}
+		catch (IOException ioe)
+		{
+			ioe.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Announces this server, and its term, to a node. Announcements are
+	 * small enough to be sent far more often than updates, so clients
+	 * notice a lost server quickly. Nodes that do not accept binary
+	 * packets are only sent updates
+	 * @param receiverIP IP address of the receiving node
+	 * @param receiverPort port address of the receiving node
+	 */
+	public void announceLeader(String receiverIP, int receiverPort)
+	{
+		long receiver = HACPacket.packNode(HACPacket.toAddress(receiverIP), receiverPort);
+		if (configuration == SERVER && sendsBinaryTo(memberTable.getSnapshot().idOf(receiver)))
+		{
+			sendAnnouncement(HACPacket.TYPE_LEADER, term, localNode, receiver);
+		}
+	}
+	
+	/**
+	 * Announces this server, and its term, to every node accepting binary
+	 * packets (see announceLeader). The announcement is encoded once and
+	 * the same bytes are sent to each node. A server with a multicast
+	 * group sends it once to the group, and only to the nodes that do not
+	 * receive the group. Servers should call this once per announcement
+	 * interval (see getAnnouncementInterval)
+	 */
+	public void announceLeaderToAll()
+	{
+		if (configuration != SERVER)
+		{
+			return;
+		}
+		
+		synchronized (controlBuffer)
+		{
+			controlBuffer.clear();
+			HACPacket.encodeAnnouncement(controlBuffer, HACPacket.TYPE_LEADER, configuration,
+					HACPacket.FLAG_BINARY_CAPABLE, term, localNode, parentNode);
+			controlBuffer.flip();
+			
+			long datagrams = 0;
+			boolean multicast = publishesToGroup();
+			if (multicast)
+			{
+				datagrams++;
+				try
+				{
+					metrics.recordSent(HACChannel.send(controlBuffer, multicastGroup));
+				}
+				catch (IOException ioe)
+				{
+					ioe.printStackTrace();
+				}
+			}
+			
+			MembershipSnapshot members = memberTable.getSnapshot();
+			for (int node = 0; node < members.size(); node++)
+			{
+				int id = members.getId(node);
+				if (sendsBinaryTo(id) && !(multicast && receivesGroup(id)))
+				{
+					datagrams++;
+					controlBuffer.rewind();
+					HACPacket.setVersion(controlBuffer, versionFor(id));
+					try
+					{
+						metrics.recordSent(HACChannel.send(controlBuffer, members.getMember(node)));
+					}
+					catch (IOException ioe)
+					{
+						ioe.printStackTrace();
+					}
+				}
+			}
+			lastAnnouncementBytes = datagrams *
+					HeartbeatScheduler.datagramBytes(controlBuffer.limit());
+		}
+	}
+	
+	/**
+	 * Returns the interval between the announcements of this server to
+	 * every node (see announceLeaderToAll): as short as the bandwidth
+	 * budget left by heartbeats allows, so a server announcing once to a
+	 * multicast group announces far more often than one announcing to
+	 * every node in turn (see HeartbeatScheduler.getAnnouncementInterval)
+	 * @return interval in milliseconds
+	 */
+	public long getAnnouncementInterval()
+	{
+		return scheduler.getAnnouncementInterval(roundBytes(), announcementBytes());
+	}
+	
+	/**
+	 * Asks a node to take over from the lost server in the next term,
+	 * once this node found it to be the first live node
+	 * @param receiverIP IP address of the node to become server
+	 * @param receiverPort port address of the node to become server
+	 */
+	public void requestElection(String receiverIP, int receiverPort)
+	{
+		sendAnnouncement(HACPacket.TYPE_ELECTION, term + 1, remoteNode,
+				HACPacket.packNode(HACPacket.toAddress(receiverIP), receiverPort));
+	}
+	
+	/**
+	 * Returns the election term of the node
+	 * @return highest term of any server heard from, or the term served in
+	 */
+	public long getTerm()
+	{
+		return term;
+	}
+	
+	/**
+	 * Sets the server of the tier above this node's server in a
+	 * hierarchical network (see hac_client_server.HACRegion). A server
+	 * names it in its announcements, so whichever client takes over from
+	 * it knows which server to link the region to
+	 * @param parentIP IP address of the server of the tier above, or null
+	 *        if none is known
+	 * @param parentPort port number of the server of the tier above
+	 */
+	public void setParent(String parentIP, int parentPort)
+	{
+		parentNode = parentIP == null ? -1 :
+				HACPacket.packNode(HACPacket.toAddress(parentIP), parentPort);
+	}
+	
+	/**
+	 * Returns IP of the server of the tier above, as set on a server or
+	 * announced by it to its clients
+	 * @return IP address of the server of the tier above, null if unknown
+	 */
+	public String getParentIP()
+	{
+		long parent = parentNode;
+		return parent < 0 ? null : HACPacket.toDottedQuad(HACPacket.addressOf(parent));
+	}
+	
+	/**
+	 * Returns port of the server of the tier above
+	 * @return port number of the server of the tier above, 0 if unknown
+	 */
+	public int getParentPort()
+	{
+		long parent = parentNode;
+		return parent < 0 ? 0 : HACPacket.portOf(parent);
+	}
+	
+	/**
+	 * Reports the membership of a region to the tier above, from the node
+	 * of that tier linking the region to it. The digest is numbered anew
+	 * whenever a different snapshot is given, and sent to this node's
+	 * server, which keeps it and relays it once to every other node of
+	 * the tier; a server keeps and relays its own. Every node of the tier
+	 * thus holds the digest of every region (see getGlobalSnapshot), while
+	 * the tier's membership only holds the nodes linking the regions.
+	 * Digests are sent once, so should be sent again about once per
+	 * heartbeat period; a digest already held is not relayed again, but
+	 * the server resends the digests it holds over its rounds (see
+	 * updateAllNodes). Nodes speaking a version older than
+	 * HACPacket.DIGEST_VERSION are sent no digests
+	 * @param region snapshot of the region's membership
+	 */
+	public void sendDigest(MembershipSnapshot region)
+	{
+		synchronized (memberTable)
+		{
+			if (ownDigest == null || region != ownDigest.region)
+			{
+				ownDigest = new RegionDigest(ownDigest == null ? 1 : ownDigest.sequence + 1, region);
+			}
+			
+			if (configuration == SERVER)
+			{
+				storeDigest(localNode, ownDigest);
+			}
+			else if (remoteNode >= 0 && labelFor(remoteNode) >= HACPacket.DIGEST_VERSION)
+			{
+				queueDigest(remoteNode, localNode, ownDigest);
+			}
+		}
+		
+		flushDigests();
+	}
+	
+	/**
+	 * Withdraws the digest of this node's region, once the node no longer
+	 * links the region to the tier above
+	 */
+	public void withdrawDigest()
+	{
+		sendDigest(MembershipSnapshot.EMPTY);
+	}
+	
+	/**
+	 * Handles a decoded DIGEST packet sent to this server by a node of its
+	 * tier, or relayed by this node's server. Digests are only data: they
+	 * do not count as heartbeats of the sender
+	 * @param sendingNode key of the sender
+	 */
+	private void handleDigest(long sendingNode)
+	{
+		if (configuration != SERVER && sendingNode != remoteNode)
+		{
+			return;
+		}
+		
+		long origin = incomingBinaryPacket.getDigestOrigin();
+		long sequence = incomingBinaryPacket.getMembershipVersion();
+		RegionDigest held = digests.get(origin);
+		if (origin == localNode || (held != null && held.sequence == sequence))
+		{
+			return;
+		}
+		
+		// Copy the region out of the reused packet
+		int size = incomingBinaryPacket.getTotalNodes();
+		long[] members = Arrays.copyOf(incomingBinaryPacket.getTotalKeys(), size);
+		byte[] states = new byte[size];
+		int live = 0;
+		for (int node = 0; node < size; node++)
+		{
+			if (incomingBinaryPacket.isActive(node))
+			{
+				states[node] = MembershipTable.ACTIVE;
+				live++;
+			}
+		}
+		storeDigest(origin, new RegionDigest(sequence,
+				new MembershipSnapshot(members, new int[size], states, live)));
+	}
+	
+	/**
+	 * Digest of a region held by a node of the tier above (see sendDigest)
+	 */
+	private static class RegionDigest
+	{
+		// Sequence number of the digest, and the region's membership
+		final long sequence;
+		final MembershipSnapshot region;
+		
+		RegionDigest(long sequence, MembershipSnapshot region)
+		{
+			this.sequence = sequence;
+			this.region = region;
+		}
+	}
+	
+	/**
+	 * Keeps the digest of a region, unless it is already held, and on a
+	 * server queues it for every node of the tier other than its origin.
+	 * Must be called holding the table's lock
+	 * @param origin key of the node linking the region to the tier
+	 * @param digest digest of the region
+	 */
+	private void storeDigest(long origin, RegionDigest digest)
+	{
+		RegionDigest held = digests.get(origin);
+		if (held != null && held.sequence == digest.sequence)
+		{
+			return;
+		}
+		digests.put(origin, digest);
+		digestsListed = false;
+		
+		if (configuration != SERVER)
+		{
+			return;
+		}
+		
+		MembershipSnapshot members = memberTable.getSnapshot();
+		for (int node = 0; node < members.size(); node++)
+		{
+			long receiver = members.getMember(node);
+			if (receiver != origin && receiver != localNode &&
+					versionFor(members.getId(node)) >= HACPacket.DIGEST_VERSION)
+			{
+				queueDigest(receiver, origin, digest);
+			}
+		}
+	}
+	
+	/**
+	 * Queues every region digest held by this server for a node of its
+	 * tier, other than the node's own
+	 * @param receiver key of the node
+	 */
+	private void queueDigests(long receiver)
+	{
+		synchronized (memberTable)
+		{
+			listDigests();
+			for (int digest = 0; digest < digestCount; digest++)
+			{
+				if (digestOrigins[digest] != receiver)
+				{
+					queueDigest(receiver, digestOrigins[digest], digestEntries[digest]);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Lists the origins of the digests held in ascending order, and the
+	 * digest of each, unless they are already listed. Must be called
+	 * holding the table's lock
+	 */
+	private void listDigests()
+	{
+		if (digestsListed)
+		{
+			return;
+		}
+		
+		if (digestOrigins.length < digests.size())
+		{
+			int capacity = Math.max(digests.size(), digestOrigins.length * 2);
+			digestOrigins = new long[capacity];
+			digestEntries = new RegionDigest[capacity];
+		}
+		
+		digestCount = 0;
+		for (long origin : digests.keySet())
+		{
+			digestOrigins[digestCount++] = origin;
+		}
+		Arrays.sort(digestOrigins, 0, digestCount);
+		for (int digest = 0; digest < digestCount; digest++)
+		{
+			digestEntries[digest] = digests.get(digestOrigins[digest]);
+		}
+		Arrays.fill(digestEntries, digestCount, digestEntries.length, null);
+		digestsListed = true;
+	}
+	
+	/**
+	 * Queues a digest to be sent to a node once the table's lock is
+	 * released (see flushDigests). Must be called holding the table's lock
+	 * @param receiver key of the node the digest is sent to
+	 * @param origin key of the node linking the region to the tier
+	 * @param digest digest of the region
+	 */
+	private void queueDigest(long receiver, long origin, RegionDigest digest)
+	{
+		int count = queuedCount;
+		if (count == queuedReceivers.length)
+		{
+			queuedReceivers = Arrays.copyOf(queuedReceivers, count * 2);
+			queuedOrigins = Arrays.copyOf(queuedOrigins, count * 2);
+			queuedDigests = Arrays.copyOf(queuedDigests, count * 2);
+		}
+		
+		queuedReceivers[count] = receiver;
+		queuedOrigins[count] = origin;
+		queuedDigests[count] = digest;
+		queuedCount = count + 1;
+	}
+	
+	/**
+	 * Encodes and sends the queued digests without holding the table's
+	 * lock, so digests, fragmented as they may be, never hold up the
+	 * handling of packets. A digest is encoded once for the receivers
+	 * queued one after another. Does nothing if called holding the
+	 * table's lock; the digests are then sent by the next call
+	 */
+	private void flushDigests()
+	{
+		if (queuedCount == 0 || Thread.holdsLock(memberTable))
+		{
+			return;
+		}
+		
+		synchronized (digestLock)
+		{
+			while (true)
+			{
+				// Take the queue, leaving the sent one to be filled
+				int count;
+				synchronized (memberTable)
+				{
+					count = queuedCount;
+					if (count == 0)
+					{
+						return;
+					}
+					
+					long[] receivers = sendingReceivers;
+					long[] origins = sendingOrigins;
+					RegionDigest[] queued = sendingDigests;
+					sendingReceivers = queuedReceivers;
+					sendingOrigins = queuedOrigins;
+					sendingDigests = queuedDigests;
+					queuedReceivers = receivers;
+					queuedOrigins = origins;
+					queuedDigests = queued;
+					queuedCount = 0;
+				}
+				
+				RegionDigest encoded = null;
+				long encodedOrigin = -1;
+				for (int digest = 0; digest < count; digest++)
+				{
+					if (sendingDigests[digest] != encoded || sendingOrigins[digest] != encodedOrigin)
+					{
+						encoded = sendingDigests[digest];
+						encodedOrigin = sendingOrigins[digest];
+						encodeDigest(encodedOrigin, encoded.sequence, encoded.region);
+					}
+					sendDigestPacket(sendingReceivers[digest]);
+				}
+				Arrays.fill(sendingDigests, 0, count, null);
+			}
+		}
+	}
+	
+	/**
+	 * Encodes a digest packet into the digest buffer. Must be called
+	 * holding the digest lock
+	 * @param origin key of the node linking the region to the tier
+	 * @param sequence sequence number of the digest
+	 * @param region snapshot of the region's membership
+	 */
+	private void encodeDigest(long origin, long sequence, MembershipSnapshot region)
+	{
+		int length = HACPacket.encodedDigestLength(region.size());
+		if (digestBuffer.capacity() < length)
+		{
+			digestBuffer = ByteBuffer.allocateDirect(length);
+		}
+		
+		digestBuffer.clear();
+		HACPacket.encodeDigest(digestBuffer, configuration, HACPacket.FLAG_BINARY_CAPABLE,
+				term, sequence, origin, region);
+		digestBuffer.flip();
+	}
+	
+	/**
+	 * Sends the digest packet encoded into the digest buffer, fragmented
+	 * if needed. Must be called holding the digest lock
+	 * @param receiver key of the node the digest is sent to
+	 */
+	private void sendDigestPacket(long receiver)
+	{
+		try
+		{
+			digestBuffer.rewind();
+			sendPacket(digestBuffer, true, receiver);
+		}
+		catch (IOException ioe)
+		{
+			ioe.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Returns the membership of every region of a hierarchical network
+	 * known to this node of the tier above them: the digest of each
+	 * region linked by an online node of the tier, and of this node's own
+	 * region, merged into a single snapshot. Digests of nodes that left
+	 * the tier are dropped
+	 * @return snapshot of the nodes of every region, whose ids are
+	 *         unspecified
+	 */
+	public MembershipSnapshot getGlobalSnapshot()
+	{
+		MembershipTable global = new MembershipTable();
+		synchronized (memberTable)
+		{
+			if (ownDigest != null)
+			{
+				addDigest(global, ownDigest.region);
+			}
+			
+			MembershipSnapshot tier = memberTable.getSnapshot();
+			Iterator<Map.Entry<Long, RegionDigest>> held = digests.entrySet().iterator();
+			while (held.hasNext())
+			{
+				Map.Entry<Long, RegionDigest> digest = held.next();
+				int state = tier.stateOf(digest.getKey());
+				if (digest.getKey() == localNode || state == MembershipTable.DEAD)
+				{
+					continue;
+				}
+				if (state < 0)
+				{
+					held.remove();
+					digestsListed = false;
+					continue;
+				}
+				addDigest(global, digest.getValue().region);
+			}
+		}
+		
+		return global.publish();
+	}
+	
+	/**
+	 * Adds the nodes of a region's digest to a table, online if the
+	 * digest reports them online
+	 * @param global table merging every digest
+	 * @param region snapshot of the region's membership
+	 */
+	private static void addDigest(MembershipTable global, MembershipSnapshot region)
+	{
+		for (int node = 0; node < region.size(); node++)
+		{
+			long member = region.getMember(node);
+			global.add(member);
+			if (region.getState(node) != MembershipTable.DEAD)
+			{
+				global.setState(member, MembershipTable.ACTIVE);
+			}
+		}
+	}
+	
+	/**
+	 * Reports, once, if this server received a packet from a server that
+	 * outranks it since the last call, meaning it should step down and
+	 * become a client of that server (see getRemoteIP)
+	 * @return true if this server lost its exclusivity
+	 */
+	public boolean takeExclusivityLost()
+	{
+		if (exclusivityLost)
+		{
+			exclusivityLost = false;
+			return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Reports, once, if another node asked this client to take over from
+	 * the lost server
+	 * @return true if this node should become the server
+	 */
+	public boolean takeElectionRequest()
+	{
+		if (electionRequested)
+		{
+			electionRequested = false;
+			return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Starts a probe round of every known node at once, over the node's
+	 * own channel (see HealthProber). The round may be awaited, which must
+	 * not be done from the loop of the node's host, as answers are
+	 * received by that loop
+	 * @param timeout time, in milliseconds, after which nodes that have not
+	 *        answered are deemed unreachable
+	 * @return the round, holding a result for each node in total node order
+	 */
+	public HealthProber.ProbeRound probeNodes(long timeout)
+	{
+		MembershipSnapshot members = memberTable.getSnapshot();
+		int total = members.size();
+		long[] targets = new long[total];
+		for (int node = 0; node < total; node++)
+		{
+			targets[node] = members.getMember(node);
+		}
+		
+		return prober.probe(targets, total, timeout);
+	}
+	
+	/**
+	 * Probes every known node at once and waits for the results
+	 * @param timeout time, in milliseconds, after which nodes that have not
+	 *        answered are deemed unreachable
+	 * @return the ended round
+	 */
+	public HealthProber.ProbeRound probeNodesAndWait(long timeout)
+	{
+		if (host != null && host.inLoop())
+		{
+			throw new IllegalStateException("Probes cannot be awaited on the host's loop");
+		}
+		
+		return probeNodes(timeout).await();
+	}
+	
+	/**
+	 * Reports if a node answered a probe round
+	 * @param round probe round
+	 * @param ipAddress IP address of the node
+	 * @param port port number of the node
+	 * @return true if the node answered the round
+	 */
+	public boolean isReachable(HealthProber.ProbeRound round, String ipAddress, int port)
+	{
+		return round.isReachable(HACPacket.packNode(HACPacket.toAddress(ipAddress), port));
+	}
+	
+	/**
+	 * Builds the text form of an update packet, consisting of "\r\n"
+	 * separated decimal values and IP addresses
+	 * @return binary data of the packet String
+	 */
+	private byte[] encodeTextPacket()
+	{
+		MembershipSnapshot members = memberTable.getSnapshot();
+		int totalNodes = members.size();
+		int activeNodes = members.liveCount();
+		
+		// Loads configuration, total node, and active node info into String.
+		// The lists are appended to a single builder, so the packet takes
+		// time linear in the number of nodes
+		StringBuilder packetInfo = new StringBuilder();
+		packetInfo.append(configuration).append("\r\n")
+				.append(totalNodes).append("\r\n")
+				.append(activeNodes).append("\r\n");
+		
+		if (configuration == SERVER)
+		{
+			// Add IPs of all nodes to packet's initial String
+			for (int node = 0; node < totalNodes; node++)
+			{
+				appendAddress(packetInfo, members.getMember(node)).append("\r\n");
+			}
+
+			// Add ports of all nodes
+			for (int port = 0; port < totalNodes; port++)
+			{
+				packetInfo.append(HACPacket.portOf(members.getMember(port))).append("\r\n");
+			}
+
+			// Add IPs of all ACTIVE nodes
+			for (int node = 0; node < activeNodes; node++)
+			{
+				appendAddress(packetInfo, members.getLiveMember(node)).append("\r\n");
+			}
+
+			// Add ports of all ACTIVE nodes
+			for (int port = 0; port < activeNodes; port++)
+			{
+				packetInfo.append(HACPacket.portOf(members.getLiveMember(port))).append("\r\n");
+			}
+		}
+
+		// Get length of the packet and store it in front of the packet.
+		// Every character of the packet is ASCII
+		int packetLength = packetInfo.length();
+		packetInfo.insert(0, "\r\n").insert(0, packetLength);
+		
+		// Advertise that binary packets are accepted, and the term of this
+		// node. Older nodes stop tokenizing before this token and ignore it
+		if (wireFormat != FORMAT_TEXT)
+		{
+			packetInfo.append(HACPacket.TEXT_CAPABILITY_TOKEN).append("\r\n");
+			packetInfo.append(term).append("\r\n");
+		}
+
+		// Get binary data of packet String
+		return packetInfo.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	/**
+	 * Appends the dotted-quad IP address of a node to a builder
+	 * @param builder builder to append to
+	 * @param node key of the node
+	 * @return the builder
+	 */
+	private static StringBuilder appendAddress(StringBuilder builder, long node)
+	{
+		int address = HACPacket.addressOf(node);
+		return builder.append(address >>> 24).append('.')
+				.append((address >>> 16) & 0xFF).append('.')
+				.append((address >>> 8) & 0xFF).append('.')
+				.append(address & 0xFF);
+	}
+	
+	/**
+	 * Builds the binary form of an update packet (see HACPacket) in the
+	 * reusable send buffer, leaving its position at the end of the packet.
+	 * A server sends the changes made since the
+	 * version the receiver last acknowledged, or a full snapshot of the
+	 * published membership if no delta is possible. A client sends the
+	 * version it last applied as its acknowledgement, and whether it
+	 * receives the server's multicast group.
+	 * @param baseVersion version the delta of a server is based on, or
+	 *        SNAPSHOT_BASE (see deltaBaseFor)
+	 */
+	private void encodeBinaryPacket(long baseVersion)
+	{
+		int flags = HACPacket.FLAG_BINARY_CAPABLE;
+		if (groupChannel != null)
+		{
+			flags |= HACPacket.FLAG_MULTICAST_MEMBER;
+		}
+		
+		// Ask the nodes reported to for their server until one is heard from
+		if (configuration != SERVER && lastServerContact == 0)
+		{
+			flags |= HACPacket.FLAG_SEEKING_SERVER;
+		}
+		
+		if (configuration == SERVER)
+		{
+			if (baseVersion != SNAPSHOT_BASE)
+			{
+				ensureSendCapacity(HACPacket.encodedDeltaLength(membership, baseVersion));
+				HACPacket.encodeDelta(sendBuffer, configuration, flags, term,
+						membership, baseVersion);
+			}
+			else
+			{
+				MembershipSnapshot view = membership.getSnapshot();
+				ensureSendCapacity(HACPacket.encodedLength(configuration,
+						view.size(), view.liveCount()));
+				HACPacket.encodeUpdate(sendBuffer, configuration, flags, term,
+						membership.getVersion(), view.size(), view.liveCount(), view);
+			}
+		}
+		else if (gossip != null)
+		{
+			// Piggyback the rumors still being spread. Rumors are started by
+			// the thread receiving packets, holding the table's lock, so
+			// they are taken, and copied into the packet, holding it too
+			synchronized (memberTable)
+			{
+				MembershipSnapshot members = memberTable.getSnapshot();
+				int rumors = gossip.takeRumors();
+				ensureSendCapacity(HACPacket.encodedGossipLength(rumors));
+				HACPacket.encodeGossip(sendBuffer, configuration, flags, term,
+						members.size(), members.liveCount(),
+						gossip.getPacketOps(), gossip.getPacketKeys(), rumors);
+			}
+		}
+		else
+		{
+			MembershipSnapshot members = memberTable.getSnapshot();
+			ensureSendCapacity(HACPacket.encodedLength(configuration,
+					members.size(), members.liveCount()));
+			HACPacket.encodeUpdate(sendBuffer, configuration, flags, term,
+					membership.getVersion(), members.size(),
+					members.liveCount(), null);
+		}
+	}
+	
+	/**
+	 * Returns the version a server's delta to a node is based on: the
+	 * version the node last acknowledged, if a delta from it is possible.
+	 * Publishes a first version if none was published yet
+	 * @param id entry id of the receiving node, -1 if it is not known
+	 * @return base version, or SNAPSHOT_BASE if a full snapshot is to be
+	 *         sent (always on nodes that are not servers)
+	 */
+	private long deltaBaseFor(int id)
+	{
+		if (configuration != SERVER)
+		{
+			return SNAPSHOT_BASE;
+		}
+		
+		// Ensure there is a published version to describe
+		if (membership.getVersion() == 0)
+		{
+			publishMembership();
+		}
+		
+		long acknowledged = id < 0 ? 0 : acknowledgedVersions[id];
+		return membership.canDeltaFrom(acknowledged) ? acknowledged : SNAPSHOT_BASE;
+	}
+	
+	/**
+	 * Clears the send buffer, growing it first if it cannot hold a
+	 * packet of the requested length
+	 * @param packetLength length of the packet to be encoded
+	 */
+	private void ensureSendCapacity(int packetLength)
+	{
+		if (sendBuffer.capacity() < packetLength)
+		{
+			sendBuffer = ByteBuffer.allocateDirect(packetLength);
+		}
+		
+		sendBuffer.clear();
+	}
+	
+	/**
+	 * Publishes the current total and active nodes as a new
+	 * membership version, if they differ from the last published
+	 * version. Servers should call this once per update round, before
+	 * updating each node, so that all nodes are sent the same version.
+	 * @return true if a new version was published
+	 */
+	public boolean publishMembership()
+	{
+		synchronized (memberTable)
+		{
+			return membership.publish(memberTable);
+		}
+	}
+	
+	/**
+	 * Applies a versioned binary packet from a server to the membership
+	 * view. Snapshots older than the current version and deltas that do
+	 * not start at the current version (reordered, duplicated or following
+	 * a lost packet) are dropped; the next acknowledgement sent to the
+	 * server makes it resend what is missing. A dropped delta of a newer
+	 * version asks the client role to send that acknowledgement at once
+	 * (see takeRepairRequest).
+	 * @param source key of the server the packet was received from
+	 * @param packet decoded server packet
+	 * @return true if the packet was applied
+	 */
+	private boolean applyVersionedPacket(long source, HACPacket packet)
+	{
+		// Versions from different servers are not comparable, start over
+		if (source != versionSource)
+		{
+			membership.clear();
+			versionSource = source;
+		}
+		
+		long localVersion = membership.getVersion();
+		long packetVersion = packet.getMembershipVersion();
+		
+		if (packet.getType() == HACPacket.TYPE_DELTA)
+		{
+			if (localVersion == 0 ||
+					packet.getBaseVersion() != localVersion ||
+					packetVersion < localVersion)
+			{
+				if (packetVersion > localVersion)
+				{
+					repairRequested = true;
+				}
+				return false;
+			}
+			
+			for (int change = 0; change < packet.getChangeCount(); change++)
+			{
+				membership.applyChange(packet.getChangeOp(change),
+						packet.getChangeKey(change));
+			}
+			membership.setVersion(packetVersion);
+			return true;
+		}
+		
+		if (packetVersion < localVersion)
+		{
+			return false;
+		}
+		
+		membership.applySnapshot(packetVersion, packet);
+		return true;
+	}
+	
+	/**
+	 * Reports if a packet sent to the requested receiver should use the
+	 * binary format, based on the wire format of this node and what the
+	 * receiver has advertised
+	 * @param id entry id of the receiving node, -1 if it is not known
+	 * @return true if binary format should be used
+	 */
+	private boolean sendsBinaryTo(int id)
+	{
+		return versionFor(id) != 0;
+	}
+	
+	/**
+	 * Returns the binary format version of the packets sent to a node: the
+	 * highest version both the node and this node speak
+	 * @param id entry id of the receiving node, -1 if it is not known
+	 * @return format version, or 0 if the node is sent text packets
+	 */
+	private int versionFor(int id)
+	{
+		if (wireFormat == FORMAT_NEGOTIATE)
+		{
+			return id >= 0 ? peerVersions[id] : 0;
+		}
+		
+		return wireFormat == FORMAT_BINARY ? HACPacket.VERSION : 0;
+	}
+	
+	/**
+	 * Returns the version a binary packet sent to a node is labelled with
+	 * (see HACPacket.setVersion): the node's own, or the current version
+	 * if it is not known, as for a multicast group
+	 * @param receiver key of the receiving node
+	 * @return format version from HACPacket.MIN_VERSION to HACPacket.VERSION
+	 */
+	private int labelFor(long receiver)
+	{
+		int version = versionFor(memberTable.getSnapshot().idOf(receiver));
+		return version == 0 ? HACPacket.VERSION : version;
+	}
+	
+	/**
+	 * Receives HAC-protocol structured packet from socket, assuming one was
+	 * sent by a remote node. Contains information such as packet length,
+	 * the sender's configuration setting, the number of total nodes and 
+	 * active nodes in the network, and list of all total nodes and all
+	 * active nodes, if applicable. The packet is received into a reusable
+	 * buffer and parsed in place. Packets of a hosted node are received by
+	 * its host instead.
+	 * @return server exclusivity. If the packet was received and parsed
+	 *         successfully (intervention by no other servers), then true
+	 *         is returned. If there are two or more servers active at once,
+	 *         false is returned for the servers that are intended to close.
+	 */
+	public boolean receiveUpdatePacket()
+	{
+		return receiveUpdatePacket(0);
+	}
+	
+	/**
+	 * Receives and parses a packet as above, waiting for at most the given
+	 * time. Lets the caller check for cancellation between receives
+	 * @param timeout longest time to wait in milliseconds, 0 to wait
+	 *        until a packet is received
+	 * @return server exclusivity, as above. If no packet was received in
+	 *         time, true is returned
+	 */
+	public boolean receiveUpdatePacket(long timeout)
+	{
+		if (host != null)
+		{
+			throw new IllegalStateException("Packets of a hosted node are received by its host");
+		}
+		
+		try
+		{
+			// Receive packet from wire into the reusable buffer, waiting on the
+			// poller until one is available
+			long deadline = clock.currentTimeMillis() + timeout;
+			long sender;
+			while ((sender = receiveNext()) < 0)
+			{
+				if (timeout == 0)
+				{
+					receivePoller.select(0);
+				}
+				else
+				{
+					long remaining = deadline - clock.currentTimeMillis();
+					if (remaining <= 0)
+					{
+						return true; // No packet in time
+					}
+					receivePoller.select(remaining);
+				}
+				
+				// Only the node's own endpoints are registered
+				while (receivePoller.nextReady() != null)
+				{
+				}
+			}
+			receiveBuffer.flip();
+			
+			return receivePacket(sender, receiveBuffer);
+		}
+		catch (IOException ioe)
+		{
+			ioe.printStackTrace();
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Receives and parses every packet waiting on the non-blocking channel
+	 * of a hosted node, up to a limit
+	 * @param limit largest number of packets to receive
+	 * @return number of packets received
+	 */
+	int receiveAvailable(int limit)
+	{
+		int received = 0;
+		try
+		{
+			while (received < limit)
+			{
+				long sender = receiveNext();
+				if (sender < 0)
+				{
+					break;
+				}
+				receiveBuffer.flip();
+				received++;
+				
+				// A hosted server that loses exclusivity keeps running until its
+				// role checks takeExclusivityLost
+				receivePacket(sender, receiveBuffer);
+			}
+		}
+		catch (IOException ioe)
+		{
+			ioe.printStackTrace();
+		}
+		
+		return received;
+	}
+	
+	/**
+	 * Receives the next waiting packet into the receive buffer, from the
+	 * node's own endpoint or else from its multicast group. Packets this
+	 * node sent to its own group are dropped
+	 * @return key of the sender, or -1 if no packet was waiting
+	 * @throws IOException if an endpoint fails to receive
+	 */
+	private long receiveNext() throws IOException
+	{
+		receiveBuffer.clear();
+		long sender = HACChannel.receive(receiveBuffer);
+		if (sender < 0 && groupChannel != null)
+		{
+			do
+			{
+				receiveBuffer.clear();
+				sender = groupChannel.receive(receiveBuffer);
+			}
+			while (sender == localNode);
+		}
+		
+		return sender;
+	}
+	
+	/**
+	 * Handles a received packet, recording a loss of server exclusivity
+	 * for the node's role (see takeExclusivityLost). The packet's changes
+	 * to the membership are made holding the table's lock and published
+	 * as a single snapshot; digests it queues are sent after. Package
+	 * private so tests may drive the receive path without a socket
+	 * @param sendingNode key of the sender
+	 * @param incomingBuffer buffer holding the received packet
+	 * @return server exclusivity, as returned by receiveUpdatePacket
+	 */
+	boolean receivePacket(long sendingNode, ByteBuffer incomingBuffer)
+	{
+		boolean exclusive = true;
+		synchronized (memberTable)
+		{
+			// A packet that fails to be handled is dropped, keeping the
+			// receiving task, or the host, running
+			try
+			{
+				exclusive = handlePacket(sendingNode, incomingBuffer);
+			}
+			catch (RuntimeException re)
+			{
+				re.printStackTrace();
+			}
+			endMembershipBatch();
+		}
+		// Digests relayed by the packet are sent once the lock is released
+		flushDigests();
+		if (!exclusive)
+		{
+			exclusivityLost = true;
+		}
+		
+		return exclusive;
+	}
+	
+	/**
+	 * Parses a received packet and updates the nodes of the network
+	 * accordingly. Binary packets are decoded directly from the buffer;
+	 * text packets are tokenized as a String.
+	 * @param sendingNode key of the sender
+	 * @param incomingBuffer buffer holding the received packet
+	 * @return server exclusivity, as returned by receiveUpdatePacket
+	 */
+	private boolean handlePacket(long sendingNode, ByteBuffer incomingBuffer)
+	{
+		lastPacketReceived = clock.currentTimeMillis();
+		metrics.recordReceived(incomingBuffer.remaining());
+		
+		int senderConfig;
+		
+		// Highest binary format version the sender speaks (0 if it only
+		// accepts text packets), its election term (-1 if its packets carry
+		// none), the membership version it acknowledged (-1 if none), and if
+		// it receives the multicast group
+		int senderVersion = 0;
+		long senderTerm = -1;
+		long senderAcknowledged = -1;
+		boolean senderMulticast = false;
+		
+		// Hold fragments until the whole packet has been received
+		if (PacketFragmenter.isFragment(incomingBuffer))
+		{
+			incomingBuffer = fragmenter.accept(sendingNode, incomingBuffer,
+					lastPacketReceived);
+			if (incomingBuffer == null)
+			{
+				return true;
+			}
+		}
+		
+		int receivedLength = incomingBuffer.remaining();
+		boolean binaryPacket = HACPacket.isBinary(incomingBuffer);
+		if (binaryPacket)
+		{
+			// Drop malformed or truncated binary packets
+			if (!incomingBinaryPacket.decode(incomingBuffer))
+			{
+				metrics.parseFailures.increment();
+				return true;
+			}
+			
+			if (HACPacket.isAnnouncement(incomingBinaryPacket.getType()))
+			{
+				return handleAnnouncement(sendingNode);
+			}
+			
+			if (incomingBinaryPacket.getType() == HACPacket.TYPE_DIGEST)
+			{
+				handleDigest(sendingNode);
+				return true;
+			}
+			
+			// Probes are answered without touching the membership. Any probe
+			// still shows that a known sender is online, and the version it
+			// speaks
+			if (HACPacket.isProbe(incomingBinaryPacket.getType()))
+			{
+				int known = memberTable.idOf(sendingNode);
+				if (known >= 0)
+				{
+					detector.heartbeat(known, lastPacketReceived);
+					reportActive(known, sendingNode);
+					recordVersion(known, incomingBinaryPacket.getFormatVersion());
+				}
+				prober.handle(incomingBinaryPacket.getType(), sendingNode,
+						incomingBinaryPacket.getProbeSequence(),
+						incomingBinaryPacket.getProbeTarget(), lastPacketReceived);
+				return true;
+			}
+			
+			// Sender of a binary packet speaks its version in return
+			senderVersion = incomingBinaryPacket.getFormatVersion();
+			senderTerm = incomingBinaryPacket.getTerm();
+			senderMulticast =
+					(incomingBinaryPacket.getFlags() & HACPacket.FLAG_MULTICAST_MEMBER) != 0;
+			senderConfig = incomingBinaryPacket.getConfig();
+			
+			// Record the membership version acknowledged by a client
+			if (configuration == SERVER && senderConfig != SERVER &&
+					incomingBinaryPacket.getFormatVersion() >= 2)
+			{
+				senderAcknowledged = incomingBinaryPacket.getMembershipVersion();
+			}
+		}
+		else
+		{
+			// A text packet cut short or holding a field that cannot be
+			// read is dropped, like a malformed binary packet
+			try
+			{
+				// Create tokenizer to parse packet String
+				byte[] packetBytes = new byte[incomingBuffer.remaining()];
+				incomingBuffer.get(packetBytes);
+				String packetInfo = new String(packetBytes);
+				StringTokenizer tokenizer = new StringTokenizer(packetInfo, "\r\n");
+				
+				@SuppressWarnings("unused")
+				// Packet length is unused in this implementation, may be utilized in
+				// future variations
+				int packetLength = Integer.parseInt(tokenizer.nextToken());
+				
+				// Parse out the configuration setting of the sender
+				senderConfig = Integer.parseInt(tokenizer.nextToken());
+				
+				// Parse total and active nodes from packet
+				int packetTotalNodes = Integer.parseInt(tokenizer.nextToken());
+				int packetActiveNodes = Integer.parseInt(tokenizer.nextToken());
+				
+				// If receiving a packet from a server, parse node lists
+				if (senderConfig == SERVER)
+				{
+					// Each node takes an address and a port token
+					if (packetTotalNodes < 0 || packetActiveNodes < 0 ||
+							2L * (packetTotalNodes + packetActiveNodes) > tokenizer.countTokens())
+					{
+						throw new IllegalArgumentException("bad node counts");
+					}
+					
+					long[] newTotalNodes = new long[packetTotalNodes];
+					long[] newActiveNodes = new long[packetActiveNodes];
+					
+					// Parse IPs, then ports, of all nodes
+					for (int i = 0; i < packetTotalNodes; i++)
+					{
+						newTotalNodes[i] = HACPacket.packNode(
+								HACPacket.toAddress(tokenizer.nextToken()), 0);
+					}
+					for (int i = 0; i < packetTotalNodes; i++)
+					{
+						newTotalNodes[i] |= parsePort(tokenizer.nextToken());
+					}
+					
+					// Parse IPs, then ports, of active nodes
+					for (int i = 0; i < packetActiveNodes; i++)
+					{
+						newActiveNodes[i] = HACPacket.packNode(
+								HACPacket.toAddress(tokenizer.nextToken()), 0);
+					}
+					for (int i = 0; i < packetActiveNodes; i++)
+					{
+						newActiveNodes[i] |= parsePort(tokenizer.nextToken());
+					}
+					
+					// Text packets are unversioned
+					if (configuration != SERVER)
+					{
+						versionSource = -1;
+						membership.applySnapshot(0, newTotalNodes, packetTotalNodes,
+								newActiveNodes, packetActiveNodes);
+					}
+				}
+				
+				// If the sender advertises binary support, record its version
+				// and its term
+				senderVersion = tokenizer.hasMoreTokens() ?
+						HACPacket.advertisedVersion(tokenizer.nextToken()) : 0;
+				if (senderVersion > 0 && tokenizer.hasMoreTokens())
+				{
+					senderTerm = Long.parseLong(tokenizer.nextToken());
+				}
+			}
+			catch (NoSuchElementException | IllegalArgumentException e)
+			{
+				// NumberFormatException is an IllegalArgumentException
+				metrics.parseFailures.increment();
+				return true;
+			}
+		}
+		
+		// Once a term is known, a server packet carrying none, from a text
+		// node or spoofed, is dropped, so it can neither re-point this node
+		// nor make it step down past the election
+		if (senderConfig == SERVER && senderTerm < 0 && term > 0)
+		{
+			return true;
+		}
+		
+		// Point a client that reported to this node before hearing from any
+		// server at this node's server
+		if (binaryPacket && configuration != SERVER && senderConfig != SERVER &&
+				(incomingBinaryPacket.getFlags() & HACPacket.FLAG_SEEKING_SERVER) != 0)
+		{
+			redirectToServer(sendingNode);
+		}
+		
+		if (configuration == SERVER &&
+				senderConfig == SERVER)
+		{
+			// If two servers are active, close the server of the older term,
+			// or within a term the one whose IP address is lower on the node list
+			if (outranks(senderTerm, sendingNode))
+			{
+				// Report the remaining server, to become its client
+				term = Math.max(term, senderTerm);
+				remoteNode = sendingNode;
+				return false; // NO server exclusivity
+			}
+		}
+		
+		// If receiving a packet from a server, unless a newer server has
+		// since been elected
+		if (senderConfig == SERVER && (senderTerm < 0 || senderTerm >= term))
+		{
+			// Set remote node as server
+			term = Math.max(term, senderTerm);
+			remoteNode = sendingNode;
+			lastServerContact = lastPacketReceived;
+			
+			// Apply a binary packet to the membership view, unless it is stale.
+			// A server keeps its own view, which it publishes to its clients
+			if (binaryPacket && configuration != SERVER)
+			{
+				if (incomingBinaryPacket.getType() == HACPacket.TYPE_DELTA)
+				{
+					serverUpdateLength = receivedLength;
+				}
+				if (incomingBinaryPacket.getFormatVersion() >= 2)
+				{
+					applyVersionedPacket(sendingNode, incomingBinaryPacket);
+				}
+				else
+				{
+					versionSource = -1;
+					membership.applySnapshot(0, incomingBinaryPacket);
+				}
+			}
+			
+			// Copy total and active node information from the view
+			if (configuration != SERVER)
+			{
+				copyMembershipView(sendingNode);
+			}
+		}
+		
+		// Add the sender to the nodes of the network if it is not
+		// yet known, and report it as active. A server updates a client
+		// that first reports to it on its next round
+		boolean joined = memberTable.idOf(sendingNode) < 0;
+		int sender = addMember(sendingNode);
+		if (joined && configuration == SERVER && senderConfig != SERVER)
+		{
+			updatePending[sender] = true;
+		}
+		
+		// Count the sender's packets lost from the gap since its last one
+		double meanInterval = detector.meanInterval(sender);
+		long interval = detector.heartbeat(sender, lastPacketReceived);
+		if (interval >= 0)
+		{
+			metrics.heartbeatIntervals.record(interval);
+			scheduler.recordInterval(interval, meanInterval);
+		}
+		reportActive(sender, sendingNode);
+		
+		// Apply the rumors piggybacked on a gossip packet
+		if (binaryPacket && incomingBinaryPacket.getType() == HACPacket.TYPE_GOSSIP)
+		{
+			for (int rumor = 0; rumor < incomingBinaryPacket.getChangeCount(); rumor++)
+			{
+				long node = incomingBinaryPacket.getChangeKey(rumor);
+				if (node != localNode &&
+						incomingBinaryPacket.getChangeOp(rumor) == MembershipJournal.ACTIVE)
+				{
+					// A rumor reviving a node counts as a heartbeat from it
+					int id = addMember(node);
+					if (memberTable.stateOf(node) != MembershipTable.ACTIVE)
+					{
+						detector.heartbeat(id, lastPacketReceived);
+					}
+					reportActive(id, node);
+				}
+			}
+		}
+		
+		recordVersion(sender, senderVersion);
+		if (binaryPacket)
+		{
+			multicastMember[sender] = senderMulticast;
+		}
+		if (senderAcknowledged >= 0)
+		{
+			acknowledgedVersions[sender] = senderAcknowledged;
+			
+			// A member of the group that is behind missed a published version
+			if (senderMulticast && multicastGroup >= 0 &&
+					senderAcknowledged < membership.getVersion())
+			{
+				updatePending[sender] = true;
+			}
+		}
+		
+		// If packet was received and parsed successfully, and another server was not
+		// located, report as such.
+		return true;
+	}
+	
+	/**
+	 * Records the highest binary format version a node speaks. Nodes
+	 * speaking too old a version are sent text packets. Must be called
+	 * holding the table's lock
+	 * @param id entry id of the node
+	 * @param version version shown by the node, 0 if none
+	 */
+	private void recordVersion(int id, int version)
+	{
+		if (version >= HACPacket.MIN_VERSION)
+		{
+			peerVersions[id] = (byte) Math.min(version, HACPacket.VERSION);
+		}
+	}
+	
+	/**
+	 * Reads the port number of a node from a text packet
+	 * @param token token holding the port
+	 * @return port number
+	 * @throws IllegalArgumentException if the token is not a port number,
+	 *         so the packet is dropped rather than corrupting node keys
+	 */
+	private static int parsePort(String token)
+	{
+		int port = Integer.parseInt(token);
+		if (port < 0 || port > 0xFFFF)
+		{
+			throw new IllegalArgumentException("invalid port " + port);
+		}
+		
+		return port;
+	}
+	
+	/**
+	 * Handles a decoded LEADER or ELECTION packet. A LEADER packet of the
+	 * current or a newer term makes a client re-point at the announced
+	 * server, and makes a server of an older term step down. An ELECTION
+	 * packet asks a client of the lost server to take over from it
+	 * @param sendingNode key of the sender
+	 * @return server exclusivity, as returned by receiveUpdatePacket
+	 */
+	private boolean handleAnnouncement(long sendingNode)
+	{
+		int known = memberTable.idOf(sendingNode);
+		if (known >= 0)
+		{
+			double meanInterval = detector.meanInterval(known);
+			scheduler.recordInterval(detector.heartbeat(known, lastPacketReceived), meanInterval);
+			reportActive(known, sendingNode);
+		}
+		
+		long packetTerm = incomingBinaryPacket.getTerm();
+		long node = incomingBinaryPacket.getAnnouncedNode();
+		
+		if (incomingBinaryPacket.getType() == HACPacket.TYPE_ELECTION)
+		{
+			if (configuration != SERVER && node == remoteNode && packetTerm > term)
+			{
+				electionRequested = true;
+			}
+			return true;
+		}
+		
+		// Ignore servers deposed by a newer term
+		if (packetTerm < term || node == localNode)
+		{
+			return true;
+		}
+		
+		if (configuration == SERVER)
+		{
+			if (!outranks(packetTerm, node))
+			{
+				return true;
+			}
+			
+			// Step down, to become a client of the announced server
+			term = packetTerm;
+			remoteNode = node;
+			followParent();
+			return false;
+		}
+		
+		term = packetTerm;
+		remoteNode = node;
+		lastServerContact = lastPacketReceived;
+		followParent();
+		return true;
+	}
+	
+	/**
+	 * Announces this node's server to a client that reported to this node
+	 * before hearing from any server, such as a node joining a tier
+	 * through one of its seed nodes. Only a server heard from within the
+	 * time in which a failure is detected is announced
+	 * @param receiver key of the client
+	 */
+	private void redirectToServer(long receiver)
+	{
+		if (remoteNode >= 0 && remoteNode != receiver &&
+				lastPacketReceived - lastServerContact < getDetectionTimeout())
+		{
+			sendAnnouncement(HACPacket.TYPE_LEADER, term, remoteNode, receiver);
+		}
+	}
+	
+	/**
+	 * Records the server of the tier above named by a decoded LEADER
+	 * packet of this node's server, if it names one
+	 */
+	private void followParent()
+	{
+		long parent = incomingBinaryPacket.getParentNode();
+		if (parent >= 0)
+		{
+			parentNode = parent;
+		}
+	}
+	
+	/**
+	 * Reports if another server outranks this one: it serves in a newer
+	 * term, or in the same term and is lower on the node list. Servers
+	 * carrying no term are never heard from once a term is known
+	 * @param serverTerm term of the other server
+	 * @param server key of the other server
+	 * @return true if this server should step down
+	 */
+	private boolean outranks(long serverTerm, long server)
+	{
+		if (serverTerm == term)
+		{
+			return server < localNode;
+		}
+		
+		return serverTerm > term;
+	}
+	
+	/**
+	 * Reports a node as active. If gossip is enabled and the node was not
+	 * already active, a rumor is started so other nodes learn of it
+	 * @param id entry id of the node
+	 * @param node key of the node
+	 */
+	private void reportActive(int id, long node)
+	{
+		if (memberTable.setState(node, MembershipTable.ACTIVE))
+		{
+			nodeListChanged = true;
+			if (configuration == SERVER && !digests.isEmpty())
+			{
+				digestsPending[id] = true;
+			}
+			if (gossip != null)
+			{
+				gossip.spread(id, node, MembershipJournal.ACTIVE, memberTable.size());
+			}
+		}
+	}
+	
+	/**
+	 * Updates the state of every watched node from its suspicion level:
+	 * nodes whose phi reaches the suspect threshold are SUSPECT (still
+	 * reported online), and those reaching the failure threshold are DEAD.
+	 * Nodes are revived as soon as a packet is received from them. The
+	 * changes of a pass are published as a single snapshot
+	 * @return true if the state of any node changed
+	 */
+	public boolean detectFailures()
+	{
+		long now = clock.currentTimeMillis();
+		boolean changed = false;
+		synchronized (memberTable)
+		{
+			MembershipSnapshot members = memberTable.getSnapshot();
+			for (int node = 0; node < members.size(); node++)
+			{
+				long member = members.getMember(node);
+				int id = members.getId(node);
+				if (member == localNode || !detector.isWatched(id))
+				{
+					continue;
+				}
+				
+				// Only lower the state, packets raise it again
+				int state = detector.stateOf(id, now);
+				if (state < members.getState(node))
+				{
+					changed |= memberTable.setState(member, state);
+				}
+			}
+			endMembershipBatch();
+		}
+		
+		if (changed)
+		{
+			nodeListChanged = true;
+		}
+		return changed;
+	}
+	
+	/**
+	 * Updates the membership table to match the view received from the
+	 * server. Nodes are updated in place rather than the table being
+	 * rebuilt, so information held per node (such as binary support) is
+	 * kept and nothing is allocated unless nodes join or leave.
+	 * @param server key of the server the view was received from
+	 */
+	private void copyMembershipView(long server)
+	{
+		MembershipTable view = membership.getView();
+		
+		// Remove nodes no longer in the view, other than the server itself
+		for (int member = memberTable.size() - 1; member >= 0; member--)
+		{
+			long node = memberTable.getMember(member);
+			if (node != server && !view.contains(node))
+			{
+				memberTable.remove(node);
+				nodeListChanged = true;
+			}
+		}
+		
+		// Add nodes that joined, and copy the state of every node
+		for (int member = 0; member < view.size(); member++)
+		{
+			long node = view.getMember(member);
+			addMember(node);
+			if (memberTable.setState(node, view.stateOf(node) != MembershipTable.DEAD ?
+					MembershipTable.ACTIVE : MembershipTable.DEAD))
+			{
+				nodeListChanged = true;
+			}
+		}
+	}
+	
+	/**
+	 * Reports the states of all nodes to every observer of the node,
+	 * such as the GUI-based node list
+	 */
+	public void reportActiveNodes()
+	{
+		for (HACNodeObserver observer : observers)
+		{
+			observer.nodeListChanged(this);
+		}
+	}
+	
+	/**
+	 * Attaches an observer to the node
+	 * @param observer observer to be told of changes to the node
+	 */
+	public void addObserver(HACNodeObserver observer)
+	{
+		observers.add(observer);
+	}
+	
+	/**
+	 * Detaches an observer from the node
+	 * @param observer observer to be detached
+	 */
+	public void removeObserver(HACNodeObserver observer)
+	{
+		observers.remove(observer);
+	}
+	
+	/**
+	 * Reports if nodes run without the GUI: if the hac.headless or
+	 * java.awt.headless property is true, or if no display is available
+	 * on a Unix-like host
+	 * @return true if no window is attached to new nodes
+	 */
+	public static boolean isHeadless()
+	{
+		if (Boolean.getBoolean(HEADLESS_PROPERTY) || Boolean.getBoolean("java.awt.headless"))
+		{
+			return true;
+		}
+		
+		String os = System.getProperty("os.name", "").toLowerCase();
+		if (os.contains("win") || os.contains("mac"))
+		{
+			return false;
+		}
+		
+		return System.getenv("DISPLAY") == null && System.getenv("WAYLAND_DISPLAY") == null;
+	}
+	
+	/**
+	 * Attaches the GUI-based node list to the node. The window is loaded
+	 * by name, so headless nodes never load any Swing class
+	 */
+	private void attachWindow()
+	{
+		try
+		{
+			Class.forName("hac_backbone.HACNodeWindow")
+					.getMethod("attach", HAC.class).invoke(null, this);
+		}
+		catch (ReflectiveOperationException roe)
+		{
+			roe.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Used for Debugging ONLY!
+	 * Reports the number of total nodes and active nodes in the network,
+	 * as well as the IP and port addresses of all active nodes
+	 */
+	public void reportActiveNodesAndPorts()
+	{
+		System.out.println("Currently Active Nodes:");
+		MembershipSnapshot members = memberTable.getSnapshot();
+		for (int node = 0; node < members.liveCount(); node++)
+		{
+			long member = members.getLiveMember(node);
+			System.out.println(members.size());
+			System.out.println(members.liveCount());
+			System.out.println(HACPacket.toDottedQuad(HACPacket.addressOf(member)));
+			System.out.println(HACPacket.portOf(member));
+		}
+	}
+	
+	/**
+	 * Nodes are always held in ascending numerical order of IP address,
+	 * then port (see MembershipTable), so the node lists no longer need
+	 * sorting. Retained for callers written against earlier versions.
+	 * @deprecated node lists are always sorted
+	 */
+	@Deprecated
+	public void sortNodeAndPortLists()
+	{
+	}
+	
+	/**
+	 * Clears active node and port lists and sets active node
+	 * value to zero. Online status is otherwise decided by the
+	 * failure detector (see detectFailures)
+	 */
+	public void clearActiveNodes()
+	{
+		synchronized (memberTable)
+		{
+			memberTable.setAllDead();
+			endMembershipBatch();
+		}
+	}
+	
+	/**
+	 * Clears total and active node and port lists and sets
+	 * node values to zero 
+	 */
+	public void clearAllNodes()
+	{
+		synchronized (memberTable)
+		{
+			memberTable.clear();
+			endMembershipBatch();
+			membership.clear();
+			versionSource = -1;
+			digests.clear();
+			digestsListed = false;
+			if (gossip != null)
 			{
-				activeNodeList.add(sendingIP);
-				activePortList.add(sendingPort);
-				activeNodes++;
-						
-				// If sender's IP address and port number are not in list of total
-				// nodes, then addit and report extra node
-				if (!totalNodeList.contains(sendingIP) ||
-					 totalNodeList.contains(sendingIP) && !totalPortList.contains(sendingPort))
-				{
-					totalNodeList.add(sendingIP);
-					totalPortList.add(sendingPort);
-					totalNodes++;
-				}
-				else if (senderConfig == SERVER)
-				{
-					// If receiving information from a server node, increment totalNodes
-					// as servers do NOT report themselves in total or active node lists
-					// (IP and port information received via embedded packet info)
-					totalNodes++;
-				}
+				gossip.clear();
 			}
-			
-			// Sort both total and active IP/port lists
-			this.sortNodeAndPortLists();
-		}
-		catch (IOException ioe)
-		{
-			ioe.printStackTrace();
 		}
-		
-		// If packet was received and parsed successfully, and another server was not
-		// located, report as such.
-		return true;
 	}
 	
 	/**
-	 * Clears GUI-based node list and fill it with information about all
-	 * nodes connected to the network and inform user if the node is active
-	 * or not (Online/Offline)
+	 * Shuts down a node by closing current socket and
+	 * removing all GUI components from screen. Also
+	 * terminates any active timers 
 	 */
-	public void reportActiveNodes()
+	public void terminateNode()
 	{
-		// Clear all previous information from table
-		if (nodeModel.getRowCount() > 0)
+		leaveMulticastGroup();
+		try
 		{
-			for (int rows = nodeModel.getRowCount() - 1; rows > -1; rows--)
+			HACChannel.close();
+			if (receivePoller != null)
 			{
-				nodeModel.removeRow(rows);
+				receivePoller.close();
 			}
 		}
+		catch (IOException ioe)
+		{
+			ioe.printStackTrace();
+		}
 		
-		// tracks the number of nodes that are currently offline
-		int offlineNodes = 0;
-		
-		// Report all nodes as active or inactive
-		for (int node = 0; node < totalNodes; node++)
+		stopActiveListTask();
+		metrics.unexport();
+		synchronized (memberTable)
 		{
-			// If a node is located in the active node list, report it as active
-			if (activeNodeList.contains(totalNodeList.get(node)) &&
-				activePortList.get(node - offlineNodes).equals(totalPortList.get(node)))
-			{	
-				// If the current node is associated with the local machine, 
-				// report as such
-				if (localIP.compareTo(totalNodeList.get(node)) == 0 &&
-					localPort == totalPortList.get(node))
-				{
-					Object[] currentNodeInfo = {totalNodeList.get(node),
-							                    totalPortList.get(node),
-	                                            "Online - Local"};
-
-					nodeModel.addRow(currentNodeInfo);
-				}
-				else
-				{
-					Object[] currentNodeInfo = {totalNodeList.get(node),
-												totalPortList.get(node),
-						                        "Online"};
-				
-					nodeModel.addRow(currentNodeInfo);
-				}
-			}
-			// If a node is NOT in the active node list, but is in total node list,
-			// report it as inactive
-			else
-			{
-				Object[] currentNodeInfo = {totalNodeList.get(node),
-											totalPortList.get(node),
-											"Offline"};
-				
-				nodeModel.addRow(currentNodeInfo);
-				
-				// Report that this node is currently offline
-				offlineNodes++;
-			}			
+			closeStore();
 		}
 		
-		// Update GUI-based node list
-		nodeTable.setModel(nodeModel);
+		for (HACNodeObserver observer : observers)
+		{
+			observer.nodeTerminated(this);
+		}
+		observers.clear();
 	}
 	
 	/**
-	 * Used for Debugging ONLY!
-	 * Reports the number of total nodes and active nodes in the network,
-	 * as well as the IP and port addresses of all active nodes
+	 * Adds requested IP address and port number to total
+	 * node list
+	 * @param ipAddress IP address to be added to list
+	 * @param port port number to be added to list
 	 */
-	public void reportActiveNodesAndPorts()
+	public void addNodeToTotalNodes(String ipAddress, int port)
 	{
-		System.out.println("Currently Active Nodes:");
-		for (int node = 0; node < activeNodes; node++)
+		synchronized (memberTable)
 		{
-			System.out.println(totalNodes);
-			System.out.println(activeNodes);
-			System.out.println(activeNodeList.get(node));
-			System.out.println(activePortList.get(node));
+			addMember(HACPacket.packNode(HACPacket.toAddress(ipAddress), port));
+			endMembershipBatch();
 		}
 	}
 	
 	/**
-	 * Sorts both total and active node lists (and their respective
-	 * port lists) in ascending order. Utilizes bubble sort
+	 * Adds and removes nodes of the total node list as a single batch,
+	 * such as the changes to a configuration file reloaded while the
+	 * node runs. Nodes already known are kept with their state, and the
+	 * local node is never removed
+	 * @param added keys of the nodes to be added
+	 * @param removed keys of the nodes to be removed
 	 */
-	public void sortNodeAndPortLists()
+	public void updateTotalNodes(long[] added, long[] removed)
 	{
-		// Sort total node list
-		for (int node = 0; node < totalNodes; node++)
+		synchronized (memberTable)
 		{
-			for (int secNode = 0; secNode < totalNodes - node - 1; secNode++)
+			for (long node : removed)
 			{
-				// If current node in list is larger than next node in list, swap them
-				if (totalNodeList.get(secNode).compareTo(totalNodeList.get(secNode + 1)) > 0)
-				{
-					Collections.swap(totalNodeList, secNode, secNode + 1);
-					Collections.swap(totalPortList, secNode, secNode + 1);
-				}
-				// If port of current node in list is larger than next port of the node, swap them
-				else if (totalNodeList.get(secNode).compareTo(totalNodeList.get(secNode + 1)) == 0 &&
-						 totalPortList.get(secNode) > totalPortList.get(secNode + 1))
+				if (node != localNode && memberTable.remove(node))
 				{
-					Collections.swap(totalPortList, secNode, secNode + 1);
+					nodeListChanged = true;
 				}
 			}
+			for (long node : added)
+			{
+				addMember(node);
+			}
+			endMembershipBatch();
 		}
-		
-		// Sort active node list
-		for (int node = 0; node < activeNodes; node++)
+	}
+	
+	/**
+	 * Adds a node to the membership table if it is not yet known,
+	 * resetting the per-node information kept for its entry id. Must be
+	 * called holding the table's lock
+	 * @param node key of the node to be added
+	 * @return entry id of the node
+	 */
+	private int addMember(long node)
+	{
+		int id = memberTable.idOf(node);
+		if (id < 0)
 		{
-			for (int secNode = 0; secNode < activeNodes - node - 1; secNode++)
+			id = memberTable.add(node);
+			if (id >= peerVersions.length)
 			{
-				// If current node in list is larger than next node in list, swap them
-				if (activeNodeList.get(secNode).compareTo(activeNodeList.get(secNode + 1)) > 0)
-				{
-					Collections.swap(activeNodeList, secNode, secNode + 1);
-					Collections.swap(activePortList, secNode, secNode + 1);
-				}
-				// If port of current node in list is larger than next port of the node, swap them
-				else if (activeNodeList.get(secNode).compareTo(activeNodeList.get(secNode + 1)) == 0 &&
-						 activePortList.get(secNode) > activePortList.get(secNode + 1))
-				{
-					Collections.swap(activePortList, secNode, secNode + 1);
-				}
+				int capacity = Math.max(id + 1, peerVersions.length * 2);
+				peerVersions = Arrays.copyOf(peerVersions, capacity);
+				acknowledgedVersions = Arrays.copyOf(acknowledgedVersions, capacity);
+				multicastMember = Arrays.copyOf(multicastMember, capacity);
+				updatePending = Arrays.copyOf(updatePending, capacity);
+				digestsPending = Arrays.copyOf(digestsPending, capacity);
 			}
+			
+			peerVersions[id] = 0;
+			acknowledgedVersions[id] = 0;
+			multicastMember[id] = false;
+			updatePending[id] = false;
+			digestsPending[id] = false;
+			detector.reset(id);
+			nodeListChanged = true;
 		}
+		
+		return id;
 	}
 	
 	/**
-	 * Generates a GUI-based table used to report all nodes connected
-	 * to the network, and reports their information and if they are
-	 * connected or not connected
+	 * Enables or disables gossip on a P2P node. A gossiping node updates
+	 * only a random few nodes each round (see gossipRound), spreading what
+	 * it learns of other nodes as rumors piggybacked on its packets.
+	 * Gossip packets are only sent to nodes accepting binary packets
+	 * @param enabled true to gossip
 	 */
-	private void createActiveNodeWindow()
+	public void setGossipEnabled(boolean enabled)
 	{
-		// Generate table model
-		nodeModel = new DefaultTableModel(columnNames, 0);
-		
-		// Generates table with current table model (empty table)
-		nodeTable = new JTable(nodeModel);
-		nodeTable.setPreferredScrollableViewportSize(new Dimension(500, 150));
-		nodeTable.setFillsViewportHeight(true);
-		
-		// Place new table in frame component
-		nodeListScrollPane = new JScrollPane(nodeTable);
-		
-		// Report nodes IP, and if it is a server, in the frame's header
-		if (configuration == SERVER)
+		if (enabled && gossip == null)
 		{
-			nodeListWindow = new JFrame("Active Nodes for Server: " + localIP);
+			gossip = new GossipDisseminator(random);
+			gossipTargets = new int[GossipDisseminator.fanout(memberTable.getSnapshot().size())];
 		}
-		else
+		else if (!enabled)
 		{
-			nodeListWindow = new JFrame("Active Nodes for: " + localIP);
+			gossip = null;
+			gossipTargets = null;
 		}
-		nodeListWindow.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-		
-		// Place GUI on the screen
-		nodeListScrollPane.setOpaque(true);
-		nodeListWindow.setContentPane(nodeListScrollPane);
-		
-		nodeListWindow.pack();
-		nodeListWindow.setVisible(true);
 	}
 	
 	/**
-	 * Clears active node and port lists and sets active node
-	 * value to zero
+	 * Reports if gossip is enabled on the node
+	 * @return true if the node gossips
 	 */
-	public void clearActiveNodes()
+	public boolean isGossipEnabled()
 	{
-		activeNodes = 0;
-		activeNodeList.clear();
-		activePortList.clear();
+		return gossip != null;
 	}
 	
 	/**
-	 * Clears total and active node and port lists and sets
-	 * node values to zero 
+	 * Runs one round of gossip, updating a random fan-out of the known
+	 * nodes (see GossipDisseminator.fanout)
 	 */
-	public void clearAllNodes()
+	public void gossipRound()
 	{
-		totalNodes = 0;
-		totalNodeList.clear();
-		totalPortList.clear();
-		activeNodes = 0;
-		activeNodeList.clear();
-		activePortList.clear();
+		if (gossip == null)
+		{
+			throw new IllegalStateException("Gossip is not enabled");
+		}
+		
+		MembershipSnapshot members = memberTable.getSnapshot();
+		int fanout = GossipDisseminator.fanout(members.size());
+		if (gossipTargets.length < fanout)
+		{
+			gossipTargets = new int[fanout];
+		}
+		
+		int targets = gossip.selectTargets(members, localNode, gossipTargets);
+		for (int target = 0; target < targets; target++)
+		{
+			updateNode(members.getMember(gossipTargets[target]),
+					members.getId(gossipTargets[target]));
+		}
 	}
 	
 	/**
-	 * Shuts down a node by closing current socket and
-	 * removing all GUI components from screen. Also
-	 * terminates any active timers 
+	 * Sets the wire format used when sending packets to other nodes
+	 * (FORMAT_TEXT, FORMAT_NEGOTIATE or FORMAT_BINARY). Packets of
+	 * either format are always accepted when received
+	 * @param format wire format to be used
 	 */
-	public void terminateNode()
+	public void setWireFormat(int format)
 	{
-		HACSocket.close();
-		
-		if (configuration == CLIENT_P2P)
+		if (format != FORMAT_TEXT && format != FORMAT_NEGOTIATE &&
+				format != FORMAT_BINARY)
 		{
-			activeListTimer.cancel();
-			activeListTimer.purge();
-			activeListTimer = null;
-			clearActiveListTask = null;
+			throw new IllegalArgumentException("Unknown wire format: " + format);
 		}
 		
-		nodeListWindow.dispose();
-		nodeModel = null;
-		nodeTable = null;
-		nodeListScrollPane = null;
-		nodeListWindow = null;
+		wireFormat = format;
 	}
 	
 	/**
-	 * Adds requested IP address and port number to total
-	 * node list
-	 * @param ipAddress IP address to be added to list
-	 * @param port port number to be added to list
+	 * Returns the wire format used when sending packets to other nodes
+	 * @return wire format of the current node
 	 */
-	public void addNodeToTotalNodes(String ipAddress, int port)
+	public int getWireFormat()
 	{
-		totalNodeList.add(ipAddress);
-		totalPortList.add(port);
-		totalNodes++;
+		return wireFormat;
 	}
 	
 	/**
@@ -570,7 +3103,12 @@ public class HAC {
 	 */
 	public String getRemoteIP()
 	{
-		return remoteIP;
+		if (remoteNode < 0)
+		{
+			return null;
+		}
+		
+		return HACPacket.toDottedQuad(HACPacket.addressOf(remoteNode));
 	}
 	
 	/**
@@ -579,8 +3117,167 @@ public class HAC {
 	 */
 	public int getRemotePort()
 	{
-		int portIndex = activeNodeList.indexOf(remoteIP);
-		return activePortList.get(portIndex);
+		return remoteNode < 0 ? 0 : HACPacket.portOf(remoteNode);
+	}
+	
+	/**
+	 * Returns the time at which a packet was last received from any node
+	 * @return time in milliseconds, 0 if no packet has been received
+	 */
+	public long getLastPacketReceived()
+	{
+		return lastPacketReceived;
+	}
+	
+	/**
+	 * Returns the time at which a packet was last received from a server
+	 * @return time in milliseconds, 0 if no server has been heard from
+	 */
+	public long getLastServerContact()
+	{
+		return lastServerContact;
+	}
+	
+	/**
+	 * Sets the suspicion levels (phi) at which nodes are suspected and
+	 * deemed failed. Higher levels detect failures later but make fewer
+	 * mistakes on lossy networks (see PhiAccrualDetector)
+	 * @param suspect phi at which a node is suspected
+	 * @param failure phi at which a node is deemed failed
+	 */
+	public void setFailureThresholds(double suspect, double failure)
+	{
+		detector.setThresholds(suspect, failure);
+	}
+	
+	/**
+	 * Returns the suspicion level (phi) at which nodes are deemed failed
+	 * @return failure threshold
+	 */
+	public double getFailureThreshold()
+	{
+		return detector.getFailureThreshold();
+	}
+	
+	/**
+	 * Returns the current suspicion level (phi) of a node, rising the
+	 * longer the node stays silent compared to its usual intervals
+	 * @param ipAddress IP address of the node
+	 * @param port port number of the node
+	 * @return phi, 0 if no packets were received from the node
+	 */
+	public double getSuspicionLevel(String ipAddress, int port)
+	{
+		int id = memberTable.getSnapshot().idOf(
+				HACPacket.packNode(HACPacket.toAddress(ipAddress), port));
+		return id < 0 ? 0 : detector.phi(id, clock.currentTimeMillis());
+	}
+	
+	/**
+	 * Returns the index (in the total node list) of the node to take over
+	 * as server once the current server is lost. Every client picks the
+	 * same node: the first node in order, other than the lost server,
+	 * that was active in the last membership received from the server.
+	 * Picking from the membership needs no reachability checks, so the
+	 * choice takes no time. If no such node is known, the first node
+	 * other than the lost server is picked
+	 * @return index of the new server, or -1 if no other node is known
+	 */
+	public int getFailoverNode()
+	{
+		return getFailoverNode(memberTable.getSnapshot(), null);
+	}
+	
+	/**
+	 * Returns the index of the node to take over as server, as above,
+	 * skipping nodes that did not answer a probe round. If no node
+	 * answered, the choice is made as if no probes were sent
+	 * @param reachable probe round of the known nodes, or null
+	 * @return index of the new server, or -1 if no other node is known
+	 */
+	public int getFailoverNode(HealthProber.ProbeRound reachable)
+	{
+		return getFailoverNode(memberTable.getSnapshot(), reachable);
+	}
+	
+	/**
+	 * Returns the index, in a snapshot of the membership, of the node to
+	 * take over as server (see getFailoverNode). Callers reading the
+	 * chosen node's address should read it from the same snapshot
+	 * @param members snapshot of the membership (see getMembershipSnapshot)
+	 * @param reachable probe round of the known nodes, or null
+	 * @return index of the new server in the snapshot, or -1 if no other
+	 *         node is known
+	 */
+	public int getFailoverNode(MembershipSnapshot members, HealthProber.ProbeRound reachable)
+	{
+		MembershipSnapshot view = membership.getSnapshot();
+		int fallback = -1;
+		int reachableFallback = -1;
+		for (int node = 0; node < members.size(); node++)
+		{
+			long member = members.getMember(node);
+			if (member == remoteNode)
+			{
+				continue;
+			}
+			boolean answered = reachable == null || reachable.isReachable(member);
+			if (answered && view.stateOf(member) > MembershipTable.DEAD)
+			{
+				return node;
+			}
+			if (answered && reachableFallback < 0)
+			{
+				reachableFallback = node;
+			}
+			if (fallback < 0)
+			{
+				fallback = node;
+			}
+		}
+		
+		if (reachableFallback >= 0)
+		{
+			return reachableFallback;
+		}
+		if (reachable != null && reachable.getReachableCount() == 0)
+		{
+			return getFailoverNode(members, null);
+		}
+		
+		return fallback;
+	}
+	
+	/**
+	 * Returns the index of the local node in the total node list
+	 * @return index of the local node, or -1 if it is not in the list
+	 */
+	public int getLocalNodeIndex()
+	{
+		return getLocalNodeIndex(memberTable.getSnapshot());
+	}
+	
+	/**
+	 * Returns the index of the local node in a snapshot of the membership
+	 * @param members snapshot of the membership (see getMembershipSnapshot)
+	 * @return index of the local node, or -1 if it is not in the snapshot
+	 */
+	public int getLocalNodeIndex(MembershipSnapshot members)
+	{
+		return members.indexOf(localNode);
+	}
+	
+	/**
+	 * Returns an immutable snapshot of the nodes known to this node and
+	 * their states, as last published by the threads changing them. The
+	 * getters indexing the node lists each read the latest snapshot, so
+	 * a caller iterating the lists should read a single snapshot instead,
+	 * whose counts and indexes always agree. Never blocks
+	 * @return snapshot of the membership
+	 */
+	public MembershipSnapshot getMembershipSnapshot()
+	{
+		return memberTable.getSnapshot();
 	}
 	
 	/**
@@ -589,7 +3286,7 @@ public class HAC {
 	 */
 	public int getTotalNodeCount()
 	{
-		return totalNodes;
+		return memberTable.getSnapshot().size();
 	}
 	
 	/**
@@ -598,7 +3295,7 @@ public class HAC {
 	 */
 	public int getActiveNodeCount()
 	{
-		return activeNodes;
+		return memberTable.getSnapshot().liveCount();
 	}
 	
 	/**
@@ -608,7 +3305,181 @@ public class HAC {
 	 */
 	public String getNodeAddress(int index)
 	{
-		return totalNodeList.get(index);
+		return memberTable.getSnapshot().getAddress(index);
+	}
+	
+	/**
+	 * Returns the state of requested element of total node list
+	 * @param index index of the node
+	 * @return MembershipTable.ACTIVE, SUSPECT or DEAD
+	 */
+	public int getNodeState(int index)
+	{
+		return memberTable.getSnapshot().getState(index);
+	}
+	
+	/**
+	 * Returns the mean time between packets received from a node
+	 * @param id entry id of the node (see MembershipSnapshot.getId)
+	 * @return mean interval in milliseconds, 0 if none was measured
+	 */
+	double getMeanHeartbeatInterval(int id)
+	{
+		return detector.meanInterval(id);
+	}
+	
+	/**
+	 * Returns the bytes the cluster sends in a round of heartbeats, as
+	 * seen by this node (see HeartbeatScheduler.datagramBytes): each
+	 * client reports to the server, which updates every client (once for
+	 * every member of a multicast group) with the packets of its last
+	 * round, digests included, or, as seen by a client, with the last
+	 * delta it received; each peer updates every other peer, or a few
+	 * with gossip, with packets as long as the last it sent
+	 * @return bytes per round
+	 */
+	private long roundBytes()
+	{
+		int size = memberTable.getSnapshot().size();
+		long nodes = Math.max(1, size);
+		long update = HeartbeatScheduler.datagramBytes(sentUpdateLength);
+		if (gossip != null)
+		{
+			return nodes * GossipDisseminator.fanout(size) * update;
+		}
+		if (configuration != SERVER && remoteNode < 0)
+		{
+			return nodes * Math.max(1, nodes - 1) * update;
+		}
+		
+		long reports = nodes * HeartbeatScheduler.datagramBytes(HACPacket.HEADER_LENGTH);
+		if (configuration == SERVER && serverRoundBytes > 0)
+		{
+			return reports + serverRoundBytes;
+		}
+		return reports + (multicastGroup >= 0 ? 1 : nodes) *
+				HeartbeatScheduler.datagramBytes(serverUpdateLength);
+	}
+	
+	/**
+	 * Returns the bytes a server of the cluster sends to announce itself
+	 * to every node once (see announceLeaderToAll), as measured by the
+	 * last announcement of this server or, before it and as seen by a
+	 * client, one announcement to every node, or to the multicast group
+	 * @return bytes per announcement round, 0 between peers
+	 */
+	private long announcementBytes()
+	{
+		if (configuration == SERVER && lastAnnouncementBytes > 0)
+		{
+			return lastAnnouncementBytes;
+		}
+		if (configuration != SERVER && remoteNode < 0)
+		{
+			return 0;
+		}
+		
+		int length = parentNode < 0 ? HACPacket.ANNOUNCE_LENGTH :
+				HACPacket.PARENT_ANNOUNCE_LENGTH;
+		long nodes = Math.max(1, memberTable.getSnapshot().size());
+		return (multicastGroup >= 0 ? 1 : nodes) * HeartbeatScheduler.datagramBytes(length);
+	}
+	
+	/**
+	 * Returns the heartbeat period of the node, derived from the cluster's
+	 * bandwidth budget, the bytes of its periodic packets and the observed
+	 * loss rate (see HeartbeatScheduler). Clients and peers send a heartbeat,
+	 * and a server updates every node, once per period
+	 * @return period in milliseconds
+	 */
+	public long getHeartbeatPeriod()
+	{
+		return scheduler.getPeriod(roundBytes(), announcementBytes());
+	}
+	
+	/**
+	 * Returns the time until the node's next heartbeat: the heartbeat
+	 * period with bounded jitter
+	 * @return interval in milliseconds
+	 */
+	public long nextHeartbeatInterval()
+	{
+		return scheduler.nextInterval(roundBytes(), announcementBytes(), random);
+	}
+	
+	/**
+	 * Returns the time without packets after which a node sending once
+	 * per heartbeat period should be deemed failed
+	 * @return timeout in milliseconds
+	 */
+	public long getDetectionTimeout()
+	{
+		return scheduler.getDetectionTimeout(roundBytes(), announcementBytes());
+	}
+	
+	/**
+	 * Returns the scheduler deriving the heartbeat period of the node,
+	 * whose budget and target detection time may be changed
+	 * @return heartbeat scheduler of the node
+	 */
+	public HeartbeatScheduler getHeartbeatScheduler()
+	{
+		return scheduler;
+	}
+	
+	/**
+	 * Returns the clock the node reads every time from
+	 * @return clock of the node's transport
+	 */
+	public HACClock getClock()
+	{
+		return clock;
+	}
+	
+	/**
+	 * Returns the source of the node's random choices, seeded by the
+	 * node's transport
+	 * @return random generator of the node
+	 */
+	public Random getRandom()
+	{
+		return random;
+	}
+	
+	/**
+	 * Returns the runtime metrics of the node
+	 * @return metrics of the node
+	 */
+	public HACMetrics getMetrics()
+	{
+		return metrics;
+	}
+	
+	/**
+	 * Returns the key of the node itself
+	 * @return key of the local node
+	 */
+	long getLocalNodeKey()
+	{
+		return localNode;
+	}
+	
+	/**
+	 * Returns the IP address the node was created with
+	 * @return local IP address
+	 */
+	public String getLocalIP()
+	{
+		return localIP;
+	}
+	
+	/**
+	 * Returns the port number the node was created with
+	 * @return local port number
+	 */
+	public int getLocalPort()
+	{
+		return localPort;
 	}
 	
 	/**
@@ -618,7 +3489,7 @@ public class HAC {
 	 */
 	public int getNodePort(int index)
 	{
-		return totalPortList.get(index);
+		return memberTable.getSnapshot().getPort(index);
 	}
 	
 	/**
@@ -628,7 +3499,8 @@ public class HAC {
 	 */
 	public String getActiveNodeAddress(int index)
 	{
-		return activeNodeList.get(index);
+		return HACPacket.toDottedQuad(HACPacket.addressOf(
+				memberTable.getSnapshot().getLiveMember(index)));
 	}
 	
 	/**
@@ -638,12 +3510,12 @@ public class HAC {
 	 */
 	public int getActivePortAddress(int index)
 	{
-		return activePortList.get(index);
+		return HACPacket.portOf(memberTable.getSnapshot().getLiveMember(index));
 	}
 	
 	/**
-	 * Extends TimerTask, used to periodically update GUI-based
-	 * node list, sort node lists, and reset active nodes
+	 * Extends TimerTask, used to periodically detect failed nodes and
+	 * update GUI-based node list when any node changed
 	 * @author Colby Bratton and Paul Ramberg
 	 *
 	 */
@@ -651,9 +3523,14 @@ public class HAC {
 	{
 		public void run()
 		{
-			sortNodeAndPortLists();
-			reportActiveNodes();
-			clearActiveNodes();
+			detector.setFirstHeartbeatEstimate(getHeartbeatPeriod());
+			detectFailures();
+			prober.poll(clock.currentTimeMillis());
+			if (nodeListChanged)
+			{
+				nodeListChanged = false;
+				reportActiveNodes();
+			}
 		}
 	}
 }
@@ -0,0 +1,38 @@
+package hac_backbone;
+
+/**
+ * Source of the time seen by HAC nodes and by the host running them.
+ * Nodes read every timestamp (packet arrivals, failure detection, probe
+ * deadlines, role switch times) from the clock of their transport, so
+ * that a simulated network (see SimulatedNetwork) may run them on a
+ * virtual clock, faster than real time.
+ */
+public interface HACClock {
+
+	// Clock of the running system
+	HACClock SYSTEM = new HACClock()
+	{
+		public long currentTimeMillis()
+		{
+			return System.currentTimeMillis();
+		}
+
+		public long nanoTime()
+		{
+			return System.nanoTime();
+		}
+	};
+
+	/**
+	 * Returns the current time
+	 * @return time in milliseconds
+	 */
+	long currentTimeMillis();
+
+	/**
+	 * Returns a high resolution time, only meaningful when compared with
+	 * another reading of the same clock
+	 * @return time in nanoseconds
+	 */
+	long nanoTime();
+}
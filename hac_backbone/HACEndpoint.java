@@ -0,0 +1,33 @@
+package hac_backbone;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Local address of a node on a transport, sending and receiving its
+ * datagrams. Endpoints never block: a datagram that cannot be sent at
+ * once is dropped, as the network itself may drop it, and a receive
+ * returns at once if no datagram is waiting (see HACPoller to wait for
+ * one). Nodes are addressed by their keys (see HACPacket.packNode).
+ */
+public interface HACEndpoint extends Closeable {
+
+	/**
+	 * Sends the remaining bytes of a buffer as a single datagram
+	 * @param packet buffer holding the datagram
+	 * @param receiver key of the receiving node
+	 * @return number of bytes sent, 0 if the datagram was dropped locally
+	 * @throws IOException if the endpoint is closed or the send fails
+	 */
+	int send(ByteBuffer packet, long receiver) throws IOException;
+
+	/**
+	 * Receives a waiting datagram into a buffer, at its position. A
+	 * datagram larger than the buffer's remaining space is truncated
+	 * @param buffer buffer to receive the datagram into
+	 * @return key of the sending node, or -1 if no datagram was waiting
+	 * @throws IOException if the endpoint is closed or the receive fails
+	 */
+	long receive(ByteBuffer buffer) throws IOException;
+}
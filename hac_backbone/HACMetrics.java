@@ -0,0 +1,375 @@
+package hac_backbone;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Runtime metrics of a HAC node: packets and bytes sent and received,
+ * parse failures, role switches, multicast updates and the unicast
+ * repairs they needed, the size of the membership, and
+ * histograms of heartbeat inter-arrival times, failure detection times
+ * and role switch times. Counters are striped (LongAdder), so recording
+ * on the receive and send paths adds no contention.
+ *
+ * Metrics are exported as an MBean if the hac.metrics.jmx property is
+ * true, and on a local HTTP endpoint in the Prometheus text format if
+ * the hac.metrics.port property is set (see HACMetricsServer).
+ */
+public class HACMetrics implements HACMetricsMBean {
+
+	// System properties enabling the exports
+	public static final String JMX_PROPERTY = "hac.metrics.jmx";
+	public static final String PORT_PROPERTY = "hac.metrics.port";
+
+	// Node the metrics are of, read for membership gauges
+	private HAC node;
+
+	LongAdder packetsSent;
+	LongAdder packetsReceived;
+	LongAdder bytesSent;
+	LongAdder bytesReceived;
+	LongAdder parseFailures;
+	LongAdder failovers;
+	LongAdder multicastPackets;
+	LongAdder multicastRepairs;
+
+	MetricHistogram heartbeatIntervals;
+	MetricHistogram detectionTimes;
+	MetricHistogram failoverTimes;
+
+	// Name the MBean is registered under, null if not registered
+	private ObjectName objectName;
+
+	/**
+	 * Creates the metrics of a node
+	 * @param node node the metrics are of
+	 */
+	HACMetrics(HAC node)
+	{
+		this.node = node;
+		packetsSent = new LongAdder();
+		packetsReceived = new LongAdder();
+		bytesSent = new LongAdder();
+		bytesReceived = new LongAdder();
+		parseFailures = new LongAdder();
+		failovers = new LongAdder();
+		multicastPackets = new LongAdder();
+		multicastRepairs = new LongAdder();
+		heartbeatIntervals = new MetricHistogram();
+		detectionTimes = new MetricHistogram();
+		failoverTimes = new MetricHistogram();
+	}
+
+	/**
+	 * Records a datagram sent
+	 * @param bytes length of the datagram
+	 */
+	void recordSent(int bytes)
+	{
+		packetsSent.increment();
+		bytesSent.add(bytes);
+	}
+
+	/**
+	 * Records a datagram received
+	 * @param bytes length of the datagram
+	 */
+	void recordReceived(int bytes)
+	{
+		packetsReceived.increment();
+		bytesReceived.add(bytes);
+	}
+
+	/**
+	 * Records the time taken to detect the loss of a server, from the
+	 * last packet received from it
+	 * @param millis detection time in milliseconds
+	 */
+	public void recordDetection(long millis)
+	{
+		detectionTimes.record(Math.max(0, millis));
+	}
+
+	/**
+	 * Exports the metrics as enabled by the system properties
+	 */
+	void export()
+	{
+		if (Boolean.getBoolean(JMX_PROPERTY))
+		{
+			try
+			{
+				objectName = new ObjectName("hac_backbone:type=HACNode,name=" +
+						ObjectName.quote(getNodeLabel()));
+				ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+			}
+			catch (JMException jme)
+			{
+				jme.printStackTrace();
+				objectName = null;
+			}
+		}
+
+		Integer port = Integer.getInteger(PORT_PROPERTY);
+		if (port != null)
+		{
+			HACMetricsServer.register(this, port);
+		}
+	}
+
+	/**
+	 * Stops exporting the metrics
+	 */
+	void unexport()
+	{
+		if (objectName != null)
+		{
+			try
+			{
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			}
+			catch (JMException jme)
+			{
+				jme.printStackTrace();
+			}
+			objectName = null;
+		}
+
+		HACMetricsServer.unregister(this);
+	}
+
+	/**
+	 * Returns the label identifying the node
+	 * @return IP address and port of the node
+	 */
+	String getNodeLabel()
+	{
+		return HACPacket.toDottedQuad(HACPacket.addressOf(node.getLocalNodeKey())) + ":" +
+				HACPacket.portOf(node.getLocalNodeKey());
+	}
+
+	/**
+	 * Returns the number of datagrams sent
+	 * @return datagrams sent
+	 */
+	public long getPacketsSent()
+	{
+		return packetsSent.sum();
+	}
+
+	/**
+	 * Returns the number of datagrams received
+	 * @return datagrams received
+	 */
+	public long getPacketsReceived()
+	{
+		return packetsReceived.sum();
+	}
+
+	/**
+	 * Returns the number of bytes sent
+	 * @return bytes sent
+	 */
+	public long getBytesSent()
+	{
+		return bytesSent.sum();
+	}
+
+	/**
+	 * Returns the number of bytes received
+	 * @return bytes received
+	 */
+	public long getBytesReceived()
+	{
+		return bytesReceived.sum();
+	}
+
+	/**
+	 * Returns the number of received packets dropped as malformed
+	 * @return parse failures
+	 */
+	public long getParseFailures()
+	{
+		return parseFailures.sum();
+	}
+
+	/**
+	 * Returns the number of role switches begun
+	 * @return role switches
+	 */
+	public long getFailovers()
+	{
+		return failovers.sum();
+	}
+
+	/**
+	 * Returns the number of updates published to a multicast group
+	 * @return multicast updates
+	 */
+	public long getMulticastPackets()
+	{
+		return multicastPackets.sum();
+	}
+
+	/**
+	 * Returns the number of updates resent by unicast to members of a
+	 * multicast group that missed a version
+	 * @return unicast repairs
+	 */
+	public long getMulticastRepairs()
+	{
+		return multicastRepairs.sum();
+	}
+
+	/**
+	 * Returns the number of nodes known to the node
+	 * @return total node count
+	 */
+	public int getTotalNodes()
+	{
+		return node.getTotalNodeCount();
+	}
+
+	/**
+	 * Returns the number of nodes deemed online
+	 * @return active node count
+	 */
+	public int getActiveNodes()
+	{
+		return node.getActiveNodeCount();
+	}
+
+	/**
+	 * Returns the mean time between packets received from the same node
+	 * @return mean interval in milliseconds
+	 */
+	public double getHeartbeatIntervalMean()
+	{
+		return heartbeatIntervals.getMean();
+	}
+
+	/**
+	 * Returns the mean time taken to detect the loss of a server
+	 * @return mean detection time in milliseconds
+	 */
+	public double getDetectionTimeMean()
+	{
+		return detectionTimes.getMean();
+	}
+
+	/**
+	 * Returns the mean duration of a role switch
+	 * @return mean duration in milliseconds
+	 */
+	public double getFailoverTimeMean()
+	{
+		return failoverTimes.getMean();
+	}
+
+	/**
+	 * Appends the metrics of every node in the Prometheus text format,
+	 * each metric family once, with a series per node
+	 * @param out text being built
+	 * @param nodes metrics of the nodes to be written
+	 */
+	static void writePrometheus(StringBuilder out, List<HACMetrics> nodes)
+	{
+		writeFamily(out, nodes, "hac_packets_sent_total", "counter",
+				"Datagrams sent", metrics -> metrics.getPacketsSent());
+		writeFamily(out, nodes, "hac_packets_received_total", "counter",
+				"Datagrams received", metrics -> metrics.getPacketsReceived());
+		writeFamily(out, nodes, "hac_bytes_sent_total", "counter",
+				"Bytes sent", metrics -> metrics.getBytesSent());
+		writeFamily(out, nodes, "hac_bytes_received_total", "counter",
+				"Bytes received", metrics -> metrics.getBytesReceived());
+		writeFamily(out, nodes, "hac_parse_failures_total", "counter",
+				"Received packets dropped as malformed", metrics -> metrics.getParseFailures());
+		writeFamily(out, nodes, "hac_failovers_total", "counter",
+				"Role switches begun", metrics -> metrics.getFailovers());
+		writeFamily(out, nodes, "hac_multicast_packets_total", "counter",
+				"Updates published to a multicast group", metrics -> metrics.getMulticastPackets());
+		writeFamily(out, nodes, "hac_multicast_repairs_total", "counter",
+				"Updates resent by unicast to multicast members that missed a version",
+				metrics -> metrics.getMulticastRepairs());
+		writeFamily(out, nodes, "hac_nodes", "gauge",
+				"Nodes known", metrics -> metrics.getTotalNodes());
+		writeFamily(out, nodes, "hac_active_nodes", "gauge",
+				"Nodes deemed online", metrics -> metrics.getActiveNodes());
+
+		// Mean heartbeat interval of each known node, as seen by each node
+		out.append("# HELP hac_node_heartbeat_interval_mean_ms Mean time between packets of a node\n");
+		out.append("# TYPE hac_node_heartbeat_interval_mean_ms gauge\n");
+		for (HACMetrics metrics : nodes)
+		{
+			String label = metrics.getNodeLabel();
+			HAC node = metrics.node;
+			MembershipSnapshot members = node.getMembershipSnapshot();
+			for (int member = 0; member < members.size(); member++)
+			{
+				double mean = node.getMeanHeartbeatInterval(members.getId(member));
+				if (mean > 0)
+				{
+					out.append("hac_node_heartbeat_interval_mean_ms{node=\"").append(label)
+							.append("\",peer=\"").append(members.getAddress(member)).append(':')
+							.append(members.getPort(member)).append("\"} ").append(mean)
+							.append('\n');
+				}
+			}
+		}
+
+		writeHistogram(out, nodes, "hac_heartbeat_interval_ms",
+				"Time between packets received from the same node",
+				metrics -> metrics.heartbeatIntervals);
+		writeHistogram(out, nodes, "hac_detection_time_ms",
+				"Time from the last packet of a lost server until its loss was detected",
+				metrics -> metrics.detectionTimes);
+		writeHistogram(out, nodes, "hac_failover_time_ms",
+				"Duration of role switches", metrics -> metrics.failoverTimes);
+	}
+
+	/**
+	 * Appends a counter or gauge family
+	 * @param out text being built
+	 * @param nodes metrics of the nodes
+	 * @param name metric name
+	 * @param type counter or gauge
+	 * @param help description of the metric
+	 * @param value reads the value of the metric from the metrics of a node
+	 */
+	private static void writeFamily(StringBuilder out, List<HACMetrics> nodes, String name,
+			String type, String help, ToLongFunction<HACMetrics> value)
+	{
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		for (HACMetrics metrics : nodes)
+		{
+			out.append(name).append("{node=\"").append(metrics.getNodeLabel()).append("\"} ")
+					.append(value.applyAsLong(metrics)).append('\n');
+		}
+	}
+
+	/**
+	 * Appends a histogram family
+	 * @param out text being built
+	 * @param nodes metrics of the nodes
+	 * @param name metric name
+	 * @param help description of the metric
+	 * @param histogram reads the histogram from the metrics of a node
+	 */
+	private static void writeHistogram(StringBuilder out, List<HACMetrics> nodes, String name,
+			String help, Function<HACMetrics, MetricHistogram> histogram)
+	{
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" histogram\n");
+		for (HACMetrics metrics : nodes)
+		{
+			histogram.apply(metrics).writePrometheus(out, name,
+					"node=\"" + metrics.getNodeLabel() + "\"");
+		}
+	}
+}
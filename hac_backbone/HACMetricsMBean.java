@@ -0,0 +1,75 @@
+package hac_backbone;
+
+/**
+ * Management interface of the metrics of a HAC node, as exported over
+ * JMX (see HACMetrics). Durations are in milliseconds.
+ */
+public interface HACMetricsMBean {
+
+	/**
+	 * @return number of datagrams sent
+	 */
+	long getPacketsSent();
+
+	/**
+	 * @return number of datagrams received
+	 */
+	long getPacketsReceived();
+
+	/**
+	 * @return number of bytes sent
+	 */
+	long getBytesSent();
+
+	/**
+	 * @return number of bytes received
+	 */
+	long getBytesReceived();
+
+	/**
+	 * @return number of received packets dropped as malformed
+	 */
+	long getParseFailures();
+
+	/**
+	 * @return number of role switches begun, such as failovers
+	 */
+	long getFailovers();
+
+	/**
+	 * @return number of updates published to a multicast group
+	 */
+	long getMulticastPackets();
+
+	/**
+	 * @return number of updates resent by unicast to multicast members
+	 *         that missed a version
+	 */
+	long getMulticastRepairs();
+
+	/**
+	 * @return number of nodes known to the node
+	 */
+	int getTotalNodes();
+
+	/**
+	 * @return number of nodes deemed online
+	 */
+	int getActiveNodes();
+
+	/**
+	 * @return mean time between packets received from the same node
+	 */
+	double getHeartbeatIntervalMean();
+
+	/**
+	 * @return mean time from the last packet of a lost server until its
+	 *         loss was detected
+	 */
+	double getDetectionTimeMean();
+
+	/**
+	 * @return mean duration of a role switch
+	 */
+	double getFailoverTimeMean();
+}
@@ -0,0 +1,93 @@
+package hac_backbone;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Local HTTP endpoint serving the metrics of every node of the JVM at
+ * /metrics, in the Prometheus text format. The endpoint only listens on
+ * the loopback address, and is started by the first node registered
+ * with it (see HACMetrics).
+ */
+public class HACMetricsServer {
+
+	// Path the metrics are served on
+	public static final String PATH = "/metrics";
+
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	// Metrics of the registered nodes
+	private static final CopyOnWriteArrayList<HACMetrics> nodes =
+			new CopyOnWriteArrayList<>();
+
+	private static HttpServer server;
+
+	private HACMetricsServer() {}
+
+	/**
+	 * Serves the metrics of a node, starting the endpoint if needed
+	 * @param metrics metrics of the node
+	 * @param port port of the endpoint, on the loopback address
+	 */
+	static synchronized void register(HACMetrics metrics, int port)
+	{
+		nodes.addIfAbsent(metrics);
+		if (server != null)
+		{
+			return;
+		}
+
+		try
+		{
+			server = HttpServer.create(
+					new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+			server.createContext(PATH, HACMetricsServer::serve);
+			server.start();
+		}
+		catch (IOException ioe)
+		{
+			ioe.printStackTrace();
+			server = null;
+		}
+	}
+
+	/**
+	 * Stops serving the metrics of a node, stopping the endpoint once no
+	 * node is left
+	 * @param metrics metrics of the node
+	 */
+	static synchronized void unregister(HACMetrics metrics)
+	{
+		nodes.remove(metrics);
+		if (nodes.isEmpty() && server != null)
+		{
+			server.stop(0);
+			server = null;
+		}
+	}
+
+	/**
+	 * Answers a scrape with the metrics of every registered node
+	 * @param exchange HTTP request and response
+	 * @throws IOException if the response cannot be sent
+	 */
+	private static void serve(HttpExchange exchange) throws IOException
+	{
+		StringBuilder text = new StringBuilder(4096);
+		HACMetrics.writePrometheus(text, nodes);
+		byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+
+		exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+		exchange.sendResponseHeaders(200, body.length);
+		try (OutputStream out = exchange.getResponseBody())
+		{
+			out.write(body);
+		}
+	}
+}
@@ -0,0 +1,382 @@
+package hac_backbone;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Event loop hosting any number of HAC nodes on a single thread. The
+ * endpoint of every hosted node is non-blocking and registered on one
+ * poller; each time an endpoint is readable, several datagrams are drained
+ * from it before moving on to the next. Periodic work of the hosted nodes
+ * (sending updates, refreshing the node list) is scheduled on the same
+ * loop, so hosting hundreds of nodes does not need a thread per socket.
+ *
+ * The host runs on a transport (see HACTransport), UDP unless given, and
+ * schedules its work on the transport's clock. On a simulated network
+ * the loop moves the virtual clock straight to the next delivery or task,
+ * so runFor runs a whole cluster faster than real time.
+ *
+ * Hosted nodes are only touched by the loop thread. Work submitted from
+ * other threads (registration, scheduling) is queued and picked up on the
+ * loop's next wakeup.
+ */
+public class HACNodeHost implements Runnable {
+
+	// Largest number of datagrams drained from one channel per wakeup, so a
+	// busy node cannot starve the others
+	private static final int MAX_DATAGRAMS_PER_WAKEUP = 16;
+
+	// Transport of the hosted nodes, its clock, and the poller waiting
+	// for datagrams on every hosted node's endpoint
+	private HACTransport transport;
+	private HACClock clock;
+	private HACPoller poller;
+
+	// Largest UDP payload that may be received
+	private static final int MAX_RECEIVE_LENGTH = 65507;
+
+	// Receive buffer shared by all hosted nodes, as only the loop receives
+	private ByteBuffer receiveBuffer;
+
+	// Work submitted from any thread, run on the loop thread
+	private ConcurrentLinkedQueue<Runnable> submitted;
+
+	// Scheduled tasks, next task to run at the head
+	private PriorityQueue<ScheduledTask> tasks;
+
+	// Used to order tasks scheduled for the same time
+	private long nextSequence;
+
+	private volatile boolean running;
+	private Thread loopThread;
+
+	/**
+	 * Creates a host of UDP nodes with its own selector. The host does
+	 * nothing until run (or started on its own thread)
+	 * @throws IOException if the selector cannot be opened
+	 */
+	public HACNodeHost() throws IOException
+	{
+		this(new UdpTransport());
+	}
+
+	/**
+	 * Creates a host of nodes on the given transport
+	 * @param transport transport of the hosted nodes
+	 * @throws IOException if the transport's poller cannot be opened
+	 */
+	public HACNodeHost(HACTransport transport) throws IOException
+	{
+		this.transport = transport;
+		clock = transport.getClock();
+		poller = transport.openPoller();
+		receiveBuffer = ByteBuffer.allocateDirect(MAX_RECEIVE_LENGTH);
+		submitted = new ConcurrentLinkedQueue<>();
+		tasks = new PriorityQueue<>();
+		running = true;
+	}
+
+	/**
+	 * Creates a HAC node hosted by this host
+	 * @param localIP local IP address of the node
+	 * @param localPort local port address of the node
+	 * @param config configuration type of the node (server or client/P2P)
+	 * @return hosted node
+	 */
+	public HAC register(String localIP, int localPort, int config)
+	{
+		return new HAC(localIP, localPort, config, this);
+	}
+
+	/**
+	 * Registers the endpoint of a hosted node for reading
+	 * @param endpoint endpoint of the node
+	 * @param node node to which received packets are passed
+	 */
+	void registerEndpoint(HACEndpoint endpoint, HAC node)
+	{
+		execute(() ->
+		{
+			try
+			{
+				poller.register(endpoint, node);
+			}
+			catch (IOException ioe)
+			{
+				ioe.printStackTrace();
+			}
+		});
+	}
+
+	/**
+	 * Returns the transport of the hosted nodes
+	 * @return transport of the host
+	 */
+	public HACTransport getTransport()
+	{
+		return transport;
+	}
+
+	/**
+	 * Returns the clock tasks are scheduled on
+	 * @return clock of the host's transport
+	 */
+	public HACClock getClock()
+	{
+		return clock;
+	}
+
+	/**
+	 * Returns the receive buffer shared by hosted nodes
+	 * @return receive buffer
+	 */
+	ByteBuffer getReceiveBuffer()
+	{
+		return receiveBuffer;
+	}
+
+	/**
+	 * Runs a task on the loop thread as soon as possible
+	 * @param task task to be run
+	 */
+	public void execute(Runnable task)
+	{
+		submitted.add(task);
+		poller.wakeup();
+	}
+
+	/**
+	 * Schedules a task to run on the loop thread
+	 * @param task task to be run
+	 * @param delay time to wait before the first run, in milliseconds
+	 * @param period time between runs in milliseconds, or zero to run once
+	 * @return scheduled task, which may be cancelled
+	 */
+	public ScheduledTask schedule(Runnable task, long delay, long period)
+	{
+		ScheduledTask scheduled = new ScheduledTask(task,
+				clock.currentTimeMillis() + delay, period);
+		execute(() ->
+		{
+			scheduled.sequence = nextSequence++;
+			tasks.add(scheduled);
+		});
+
+		return scheduled;
+	}
+
+	/**
+	 * Starts the loop on a new thread
+	 * @return thread running the loop
+	 */
+	public Thread start()
+	{
+		Thread thread = new Thread(this, "HACNodeHost");
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Stops the loop and closes the channels of all hosted nodes
+	 */
+	public void stop()
+	{
+		running = false;
+		poller.wakeup();
+	}
+
+	/**
+	 * Reports if the calling thread is the loop thread of this host
+	 * @return true if called from the loop
+	 */
+	public boolean inLoop()
+	{
+		return Thread.currentThread() == loopThread;
+	}
+
+	/**
+	 * Runs the loop on the calling thread until stopped
+	 */
+	public void run()
+	{
+		loopThread = Thread.currentThread();
+
+		try
+		{
+			while (running)
+			{
+				runOnce(Long.MAX_VALUE);
+			}
+
+			poller.closeRegistered();
+			poller.close();
+		}
+		catch (IOException ioe)
+		{
+			ioe.printStackTrace();
+		}
+	}
+
+	/**
+	 * Runs the loop on the calling thread for the given time of the
+	 * host's clock, or until stopped. On a simulated network this takes
+	 * only as long as handling the datagrams and tasks of that time
+	 * @param millis time to run for, in milliseconds
+	 */
+	public void runFor(long millis)
+	{
+		loopThread = Thread.currentThread();
+		long end = clock.currentTimeMillis() + millis;
+
+		try
+		{
+			while (running && clock.currentTimeMillis() < end)
+			{
+				runOnce(end);
+			}
+		}
+		catch (IOException ioe)
+		{
+			ioe.printStackTrace();
+		}
+	}
+
+	/**
+	 * Runs one pass of the loop: submitted work, then a wait for a datagram
+	 * or for the next scheduled task, then the datagrams received and the
+	 * tasks due
+	 * @param end time after which the wait ends even if nothing is due,
+	 *        Long.MAX_VALUE for none
+	 * @throws IOException if the poller fails
+	 */
+	private void runOnce(long end) throws IOException
+	{
+		runSubmitted();
+
+		// Wait for a datagram or for the next scheduled task
+		long wakeup = end;
+		ScheduledTask next = tasks.peek();
+		if (next != null)
+		{
+			wakeup = Math.min(wakeup, next.nextRun);
+		}
+		long timeout = 0;
+		if (wakeup != Long.MAX_VALUE)
+		{
+			timeout = Math.max(1, wakeup - clock.currentTimeMillis());
+		}
+		poller.select(timeout);
+
+		receiveReady();
+		runDue(clock.currentTimeMillis());
+	}
+
+	/**
+	 * Runs all work submitted since the last wakeup
+	 */
+	private void runSubmitted()
+	{
+		Runnable task;
+		while ((task = submitted.poll()) != null)
+		{
+			task.run();
+		}
+	}
+
+	/**
+	 * Drains datagrams from every readable endpoint into its node
+	 */
+	private void receiveReady()
+	{
+		HAC node;
+		while ((node = poller.nextReady()) != null)
+		{
+			try
+			{
+				node.receiveAvailable(MAX_DATAGRAMS_PER_WAKEUP);
+			}
+			catch (RuntimeException re)
+			{
+				re.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Runs every scheduled task that is due, rescheduling periodic tasks
+	 * @param now current time in milliseconds
+	 */
+	private void runDue(long now)
+	{
+		ScheduledTask next;
+		while ((next = tasks.peek()) != null && next.nextRun <= now)
+		{
+			tasks.poll();
+			if (next.cancelled)
+			{
+				continue;
+			}
+
+			try
+			{
+				next.task.run();
+			}
+			catch (RuntimeException re)
+			{
+				re.printStackTrace();
+			}
+
+			if (next.period > 0 && !next.cancelled)
+			{
+				next.nextRun += next.period;
+				next.sequence = nextSequence++;
+				tasks.add(next);
+			}
+		}
+	}
+
+	/**
+	 * Task scheduled on the loop of a host
+	 */
+	public static class ScheduledTask implements Comparable<ScheduledTask>
+	{
+		private Runnable task;
+		private long nextRun;
+		private long period;
+		private long sequence;
+		private volatile boolean cancelled;
+
+		private ScheduledTask(Runnable task, long nextRun, long period)
+		{
+			this.task = task;
+			this.nextRun = nextRun;
+			this.period = period;
+		}
+
+		/**
+		 * Stops the task from running again
+		 */
+		public void cancel()
+		{
+			cancelled = true;
+		}
+
+		/**
+		 * Orders tasks by the time of their next run
+		 * @param other task to compare with
+		 * @return negative, zero or positive as this task runs first, at the
+		 *         same time or after the other task
+		 */
+		public int compareTo(ScheduledTask other)
+		{
+			if (nextRun != other.nextRun)
+			{
+				return Long.compare(nextRun, other.nextRun);
+			}
+
+			return Long.compare(sequence, other.sequence);
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package hac_backbone;
+
+/**
+ * Observer of a HAC node, told when the states of the nodes it knows of
+ * change, when it switches roles and when it is terminated. Observers
+ * are called from the node's periodic task or from the thread switching
+ * its role, and must not block (see HACNodeWindow).
+ */
+public interface HACNodeObserver {
+
+	/**
+	 * Called when any node was added or changed state
+	 * @param node observed node
+	 */
+	void nodeListChanged(HAC node);
+
+	/**
+	 * Called when the node switched between the server and client/P2P roles
+	 * @param node observed node
+	 * @param configuration new configuration type (server or client/P2P)
+	 */
+	void configurationChanged(HAC node, int configuration);
+
+	/**
+	 * Called once the node has been terminated
+	 * @param node observed node
+	 */
+	void nodeTerminated(HAC node);
+}
@@ -0,0 +1,256 @@
+package hac_backbone;
+
+import java.awt.Dimension;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.swing.*;
+
+/**
+ * GUI-based table reporting all nodes known to a HAC node, and whether
+ * each is online, suspected or offline. The window is an observer of the
+ * node (see HACNodeObserver), attached unless the node runs headless,
+ * and is the only class of the protocol using Swing.
+ *
+ * Changes are reported from the node's own threads, which only take a
+ * snapshot of the nodes. Snapshots are handed to the event dispatch
+ * thread, where the latest one is merged into the table (see
+ * NodeTableModel) at most once per frame, however often the node
+ * reports changes.
+ */
+public class HACNodeWindow implements HACNodeObserver {
+
+	// Shortest time between two updates of the table, in milliseconds
+	private static final int FRAME_INTERVAL = 16;
+
+	// Elements for node reporting GUI, only used on the event dispatch thread
+	private NodeTableModel nodeModel;
+	private JTable nodeTable;
+	private JScrollPane nodeListScrollPane;
+	private JFrame nodeListWindow;
+
+	// Timer delaying an update of the table to the next frame
+	private Timer frameTimer;
+	private long lastUpdate;
+
+	// IP address of the observed node, shown in the window's header
+	private String localIP;
+
+	// Latest snapshot not yet merged into the table, null if none
+	private AtomicReference<Snapshot> pendingSnapshot;
+
+	/**
+	 * Generates a GUI-based table used to report all nodes connected
+	 * to the network, and reports their information and if they are
+	 * connected or not connected. The window is built on the event
+	 * dispatch thread
+	 * @param node node to be observed
+	 */
+	public HACNodeWindow(HAC node)
+	{
+		localIP = node.getLocalIP();
+		pendingSnapshot = new AtomicReference<>();
+
+		long localNode = node.getLocalNodeKey();
+		int configuration = node.getConfiguration();
+		SwingUtilities.invokeLater(() -> createWindow(localNode, configuration));
+	}
+
+	/**
+	 * Creates a window and attaches it to a node
+	 * @param node node to be observed
+	 * @return the attached window
+	 */
+	public static HACNodeWindow attach(HAC node)
+	{
+		HACNodeWindow window = new HACNodeWindow(node);
+		node.addObserver(window);
+		return window;
+	}
+
+	/**
+	 * Builds the window and places it on the screen
+	 * @param localNode key of the observed node
+	 * @param configuration configuration type of the observed node
+	 */
+	private void createWindow(long localNode, int configuration)
+	{
+		// Generate table model
+		nodeModel = new NodeTableModel(localNode);
+
+		// Generates table with current table model (empty table)
+		nodeTable = new JTable(nodeModel);
+		nodeTable.setPreferredScrollableViewportSize(new Dimension(500, 150));
+		nodeTable.setFillsViewportHeight(true);
+
+		// Place new table in frame component
+		nodeListScrollPane = new JScrollPane(nodeTable);
+
+		// Report nodes IP, and if it is a server, in the frame's header
+		nodeListWindow = new JFrame(titleOf(configuration));
+		nodeListWindow.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+
+		// Place GUI on the screen
+		nodeListScrollPane.setOpaque(true);
+		nodeListWindow.setContentPane(nodeListScrollPane);
+
+		nodeListWindow.pack();
+		nodeListWindow.setVisible(true);
+
+		frameTimer = new Timer(FRAME_INTERVAL, event -> updateTable());
+		frameTimer.setRepeats(false);
+	}
+
+	/**
+	 * Returns the window's header for a configuration
+	 * @param configuration configuration type of the observed node
+	 * @return window title
+	 */
+	private String titleOf(int configuration)
+	{
+		if (configuration == HAC.SERVER)
+		{
+			return "Active Nodes for Server: " + localIP;
+		}
+
+		return "Active Nodes for: " + localIP;
+	}
+
+	/**
+	 * Takes a snapshot of the nodes and their states (Online/Suspect/
+	 * Offline, as decided by the failure detector), to be shown in the
+	 * next frame, from the membership last published by the node.
+	 * Snapshots taken before that frame are replaced
+	 * @param node observed node
+	 */
+	public void nodeListChanged(HAC node)
+	{
+		MembershipSnapshot members = node.getMembershipSnapshot();
+		int count = members.size();
+		Snapshot snapshot = new Snapshot(count);
+		for (int member = 0; member < count; member++)
+		{
+			snapshot.keys[member] = members.getMember(member);
+			snapshot.states[member] = members.getState(member);
+		}
+
+		// Only the first snapshot of a frame schedules an update
+		if (pendingSnapshot.getAndSet(snapshot) == null)
+		{
+			SwingUtilities.invokeLater(this::scheduleUpdate);
+		}
+	}
+
+	/**
+	 * Updates the table now, or in the next frame if it was updated less
+	 * than a frame ago
+	 */
+	private void scheduleUpdate()
+	{
+		if (frameTimer == null)
+		{
+			return; // Terminated
+		}
+
+		long wait = lastUpdate + FRAME_INTERVAL - System.currentTimeMillis();
+		if (wait <= 0)
+		{
+			updateTable();
+		}
+		else if (!frameTimer.isRunning())
+		{
+			frameTimer.setInitialDelay((int) wait);
+			frameTimer.start();
+		}
+	}
+
+	/**
+	 * Merges the latest snapshot into the table
+	 */
+	private void updateTable()
+	{
+		Snapshot snapshot = pendingSnapshot.getAndSet(null);
+		if (snapshot == null || nodeModel == null)
+		{
+			return;
+		}
+
+		lastUpdate = System.currentTimeMillis();
+		nodeModel.apply(snapshot.keys, snapshot.states, snapshot.keys.length);
+	}
+
+	/**
+	 * Returns the status shown for a node
+	 * @param state state of the node (see MembershipTable)
+	 * @param local true if the node is the observed node
+	 * @return Online, Online - Local, Online - Suspect or Offline
+	 */
+	static String statusOf(int state, boolean local)
+	{
+		// If a node is NOT active, but is in total node list,
+		// report it as inactive
+		if (state == MembershipTable.DEAD)
+		{
+			return "Offline";
+		}
+		// If the current node is associated with the local machine,
+		// report as such
+		if (local)
+		{
+			return "Online - Local";
+		}
+		// If the node may have failed, report it as suspected
+		if (state == MembershipTable.SUSPECT)
+		{
+			return "Online - Suspect";
+		}
+
+		return "Online";
+	}
+
+	/**
+	 * Reports the new role of the node in the window's header
+	 * @param node observed node
+	 * @param configuration new configuration type (server or client/P2P)
+	 */
+	public void configurationChanged(HAC node, int configuration)
+	{
+		SwingUtilities.invokeLater(() -> nodeListWindow.setTitle(titleOf(configuration)));
+	}
+
+	/**
+	 * Removes all GUI components from screen
+	 * @param node observed node
+	 */
+	public void nodeTerminated(HAC node)
+	{
+		SwingUtilities.invokeLater(() ->
+		{
+			frameTimer.stop();
+			nodeListWindow.dispose();
+			frameTimer = null;
+			nodeModel = null;
+			nodeTable = null;
+			nodeListScrollPane = null;
+			nodeListWindow = null;
+		});
+	}
+
+	/**
+	 * Nodes known to the observed node, in ascending order of key, and
+	 * their states, at the time of a change
+	 */
+	private static class Snapshot
+	{
+		private long[] keys;
+		private int[] states;
+
+		/**
+		 * Creates an empty snapshot
+		 * @param count number of nodes
+		 */
+		private Snapshot(int count)
+		{
+			keys = new long[count];
+			states = new int[count];
+		}
+	}
+}
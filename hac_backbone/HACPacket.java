@@ -0,0 +1,1112 @@
+package hac_backbone;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary wire format for HAC update packets. A packet consists of a fixed
+ * header (magic, format version, message type, sender configuration, flags,
+ * packet length, total node count, active node count and membership
+ * versions) followed, for packets sent by a server, by either the full
+ * total and active node lists (UPDATE) or the changes made since a base
+ * version (DELTA). Addresses are written as 4-byte IPv4 integers and ports
+ * as unsigned 2-byte shorts. Both encoding and decoding operate directly
+ * on a ByteBuffer.
+ *
+ * Header layout (big endian, 42 bytes):
+ *   magic (2) | version (1) | type (1) | config (1) | flags (1) |
+ *   length (4) | totalNodes (4) | activeNodes (4) |
+ *   membershipVersion (8) | baseVersion (8) | term (8)
+ * Version 1 and 2 packets use a 2-byte length, and version 1 packets
+ * end the header after activeNodes (16 bytes, 32 bytes for version 2).
+ * Versions 3 to 5 end the header after baseVersion (34 bytes).
+ * Packets longer than a single datagram are sent as FRAGMENTs (see
+ * PacketFragmenter).
+ *
+ * Client packets carry the membership version they last applied in
+ * membershipVersion, acknowledging it to the server. A DELTA body is a
+ * sequence of entries of change kind (1), IPv4 address (4) and port (2).
+ * A GOSSIP packet (version 4 and later), sent between P2P nodes, has the
+ * same body, carrying the rumors piggybacked by the sender (see
+ * GossipDisseminator).
+ *
+ * PING, ACK and PING_REQ packets (version 5 and later) are health probes
+ * (see HealthProber). Their body is a probe sequence number (4) followed
+ * by the IPv4 address (4) and port (2) of the probed node.
+ *
+ * Every packet of version 6 and later carries the election term of the
+ * sender (see HAC.getTerm). LEADER packets announce the server of a term
+ * and ELECTION packets ask the receiver to take over from a lost server;
+ * their body is the IPv4 address (4) and port (2) of the announced
+ * server, or of the lost one.
+ *
+ * From version 7, the body of a server's UPDATE packet holds the total
+ * nodes in ascending order of key (see packNode), each written as its
+ * difference from the previous key (the first from zero) in a varint of
+ * 7 bits per byte, low bits first, followed by a bitmap of one bit per
+ * total node, in the same order, set for each active node (bit i of the
+ * bitmap is bit i % 8 of byte i / 8). Nodes on consecutive ports or
+ * addresses take 1 to 3 bytes rather than 6, and the active nodes of a
+ * 1,000 node network take 125 bytes rather than 6 kilobytes. Earlier
+ * versions send the addresses, then the ports, of the total nodes, then
+ * of the active nodes.
+ *
+ * DIGEST packets (version 8 and later) carry the membership of a region
+ * of a hierarchical network (see HAC.sendDigest) between the nodes of
+ * the tier above it. Their body is the IPv4 address (4) and port (2) of
+ * the node linking the region to that tier, followed by the region's
+ * nodes encoded as in an UPDATE; membershipVersion holds the digest's
+ * sequence number. LEADER packets of version 8 may end with the IPv4
+ * address (4) and port (2) of the server of the tier above the
+ * announced server's.
+ *
+ * Nodes advertise the highest version they speak: binary packets carry
+ * it as their version, and the text packets of nodes accepting binary
+ * ones end with TEXT_CAPABILITY_TOKEN, naming it, and their term. A node is sent the
+ * packets of the highest version both speak. From version 7 on, a
+ * version only adds message types and fields at the end of a packet,
+ * which older decoders skip, so a node speaking an older version, down
+ * to MIN_VERSION, is sent packets of the current version relabelled
+ * with its own (see setVersion), holding only the types it knows.
+ * Packets of newer versions are decoded as the current version, and of
+ * any version from 1. Nodes speaking a version older than MIN_VERSION
+ * are sent text packets.
+ */
+public class HACPacket {
+
+	// Identifies a binary HAC packet. Text packets always begin with an
+	// ASCII digit, so the first byte of the magic ('H') never collides
+	public static final short MAGIC = 0x4843;
+
+	// Current version of the binary format, and the oldest version whose
+	// nodes are sent binary packets, relabelled (see setVersion)
+	public static final byte VERSION = 8;
+	public static final byte MIN_VERSION = 7;
+
+	// Oldest version knowing DIGEST packets
+	public static final byte DIGEST_VERSION = 8;
+
+	// Offset of the version within the header of a packet or fragment
+	private static final int VERSION_OFFSET = 2;
+
+	// Length of the fixed header, in bytes, of the current and older versions
+	public static final int HEADER_LENGTH = 42;
+	public static final int V3_HEADER_LENGTH = 34;
+	public static final int V2_HEADER_LENGTH = 32;
+	public static final int V1_HEADER_LENGTH = 16;
+
+	// Message types. UPDATE carries full node lists, DELTA carries only the
+	// changes made between baseVersion and membershipVersion, GOSSIP carries
+	// membership rumors between P2P nodes. PING asks the receiver to ACK,
+	// PING_REQ asks the receiver to PING another node on the sender's behalf.
+	// LEADER announces the server of a term, ELECTION asks the receiver to
+	// become the server. DIGEST carries the membership of a region
+	public static final byte TYPE_UPDATE = 0;
+	public static final byte TYPE_DELTA = 1;
+	public static final byte TYPE_FRAGMENT = 2;
+	public static final byte TYPE_GOSSIP = 3;
+	public static final byte TYPE_PING = 4;
+	public static final byte TYPE_ACK = 5;
+	public static final byte TYPE_PING_REQ = 6;
+	public static final byte TYPE_LEADER = 7;
+	public static final byte TYPE_ELECTION = 8;
+	public static final byte TYPE_DIGEST = 9;
+
+	// Flag reporting that the sender accepts binary packets in return
+	public static final byte FLAG_BINARY_CAPABLE = 0x01;
+
+	// Flag reporting that the sender receives the server's multicast group,
+	// so it is only sent updates by unicast to resend versions it missed
+	public static final byte FLAG_MULTICAST_MEMBER = 0x02;
+
+	// Flag reporting that the sender, a client, has yet to hear from any
+	// server, so a node it reports to may announce its own server to it
+	public static final byte FLAG_SEEKING_SERVER = 0x04;
+
+	// Token appended to text packets by nodes that accept binary packets,
+	// naming the highest version they speak after its prefix, and followed
+	// by the election term of the sender. Older nodes stop tokenizing
+	// before reaching it, so it is ignored by them
+	public static final String TEXT_CAPABILITY_PREFIX = "HACB";
+	public static final String TEXT_CAPABILITY_TOKEN = TEXT_CAPABILITY_PREFIX + VERSION;
+
+	// Bytes used by a single node entry (IPv4 address and port)
+	private static final int ENTRY_LENGTH = 4 + 2;
+
+	// Most bytes used by a node key written as a varint (48 bits, 7 per byte)
+	private static final int MAX_VARINT_LENGTH = 7;
+
+	// Offset of the packet length within the header
+	private static final int LENGTH_OFFSET = 6;
+
+	// Bytes used by a single change entry (kind, IPv4 address and port)
+	static final int CHANGE_LENGTH = 1 + ENTRY_LENGTH;
+
+	// Length of a probe packet (sequence number and probed node), in bytes
+	public static final int PROBE_LENGTH = HEADER_LENGTH + 4 + ENTRY_LENGTH;
+
+	// Length of a LEADER or ELECTION packet (announced node), in bytes, and
+	// of a LEADER packet also naming the server of the tier above
+	public static final int ANNOUNCE_LENGTH = HEADER_LENGTH + ENTRY_LENGTH;
+	public static final int PARENT_ANNOUNCE_LENGTH = ANNOUNCE_LENGTH + ENTRY_LENGTH;
+
+	// Decoded header and node information
+	private int formatVersion;
+	private int type;
+	private int config;
+	private int flags;
+	private int length;
+	private int totalNodes;
+	private int activeNodes;
+	private long membershipVersion;
+	private long baseVersion;
+	private long term;
+	private long[] totalKeys = new long[0];
+	private long[] activeKeys = new long[0];
+	private byte[] activeBitmap = new byte[0];
+	private boolean bitmapEncoded;
+	private int changeCount;
+	private byte[] changeOps = new byte[0];
+	private long[] changeKeys = new long[0];
+	private int probeSequence;
+	private long probeTarget;
+	private long announcedNode;
+	private long parentNode;
+	private long digestOrigin;
+
+	public HACPacket() {}
+
+	/**
+	 * Returns true if the buffer, starting at its current position, holds
+	 * a binary HAC packet rather than a text packet
+	 * @param buffer buffer holding a received packet
+	 * @return true if the packet uses the binary format
+	 */
+	public static boolean isBinary(ByteBuffer buffer)
+	{
+		return buffer.remaining() >= V1_HEADER_LENGTH &&
+				buffer.getShort(buffer.position()) == MAGIC;
+	}
+
+	/**
+	 * Relabels an encoded packet, or fragment, with the version of the
+	 * node it is sent to (see the negotiation of versions above)
+	 * @param packet buffer holding the packet from index zero
+	 * @param version version from MIN_VERSION to VERSION
+	 */
+	public static void setVersion(ByteBuffer packet, int version)
+	{
+		packet.put(VERSION_OFFSET, (byte) version);
+	}
+
+	/**
+	 * Returns the highest version advertised by the last token of a text
+	 * packet (see TEXT_CAPABILITY_TOKEN)
+	 * @param token last token of the packet
+	 * @return advertised version, or 0 if the token advertises none
+	 */
+	public static int advertisedVersion(String token)
+	{
+		if (!token.startsWith(TEXT_CAPABILITY_PREFIX))
+		{
+			return 0;
+		}
+
+		try
+		{
+			return Math.max(0, Integer.parseInt(token.substring(TEXT_CAPABILITY_PREFIX.length())));
+		}
+		catch (NumberFormatException nfe)
+		{
+			return 0;
+		}
+	}
+
+	/**
+	 * Returns the most bytes needed to encode an update packet with the
+	 * given node counts. The keys of a server's packet are compressed, so
+	 * it is usually far shorter
+	 * @param config configuration of the sender (server or client/P2P)
+	 * @param totalNodes number of total nodes carried in the packet
+	 * @param activeNodes number of active nodes carried in the packet
+	 * @return largest encoded length in bytes
+	 */
+	public static int encodedLength(int config, int totalNodes, int activeNodes)
+	{
+		if (config != HAC.SERVER)
+		{
+			return HEADER_LENGTH;
+		}
+
+		return HEADER_LENGTH + totalNodes * MAX_VARINT_LENGTH + bitmapLength(totalNodes);
+	}
+
+	/**
+	 * Returns the length of the bitmap marking the active nodes
+	 * @param totalNodes number of total nodes
+	 * @return bitmap length in bytes
+	 */
+	private static int bitmapLength(int totalNodes)
+	{
+		return (totalNodes + 7) >>> 3;
+	}
+
+	/**
+	 * Encodes an update packet into the buffer at its current position.
+	 * Only server packets carry the node lists, matching the text format.
+	 * @param buffer buffer to write the packet into
+	 * @param config configuration of the sender (server or client/P2P)
+	 * @param flags packet flags
+	 * @param term election term of the sender
+	 * @param version membership version described by (or, for a client,
+	 *        last applied by) the sender
+	 * @param totalNodes number of total nodes
+	 * @param activeNodes number of active nodes
+	 * @param nodes snapshot of the membership holding the nodes to be
+	 *        sent, only used by servers (may be null otherwise)
+	 */
+	public static void encodeUpdate(ByteBuffer buffer, int config, int flags, long term,
+			long version, int totalNodes, int activeNodes, MembershipSnapshot nodes)
+	{
+		int start = buffer.position();
+		putHeader(buffer, TYPE_UPDATE, config, flags, term, HEADER_LENGTH,
+				totalNodes, activeNodes, version, 0);
+
+		if (config == HAC.SERVER)
+		{
+			putNodes(buffer, nodes, totalNodes);
+
+			// The length is only known once the keys are written
+			buffer.putInt(start + LENGTH_OFFSET, buffer.position() - start);
+		}
+	}
+
+	/**
+	 * Returns the most bytes needed to encode a digest of a region
+	 * @param totalNodes number of nodes of the region
+	 * @return largest encoded length in bytes
+	 */
+	public static int encodedDigestLength(int totalNodes)
+	{
+		return encodedLength(HAC.SERVER, totalNodes, 0) + ENTRY_LENGTH;
+	}
+
+	/**
+	 * Encodes a digest packet into the buffer at its current position
+	 * @param buffer buffer to write the packet into
+	 * @param config configuration of the sender
+	 * @param flags packet flags
+	 * @param term election term of the sender
+	 * @param sequence sequence number of the digest, raised by its origin
+	 *        each time the region changes
+	 * @param origin key of the node linking the region to the tier above
+	 * @param nodes snapshot of the region's membership
+	 */
+	public static void encodeDigest(ByteBuffer buffer, int config, int flags, long term,
+			long sequence, long origin, MembershipSnapshot nodes)
+	{
+		int start = buffer.position();
+		putHeader(buffer, TYPE_DIGEST, config, flags, term, HEADER_LENGTH,
+				nodes.size(), nodes.liveCount(), sequence, 0);
+		buffer.putInt(addressOf(origin));
+		buffer.putShort((short) portOf(origin));
+		putNodes(buffer, nodes, nodes.size());
+		buffer.putInt(start + LENGTH_OFFSET, buffer.position() - start);
+	}
+
+	/**
+	 * Writes the nodes of a snapshot as delta-encoded keys followed by
+	 * the bitmap of active nodes
+	 * @param buffer buffer to write the nodes into
+	 * @param nodes snapshot holding the nodes
+	 * @param totalNodes number of nodes to be written
+	 */
+	private static void putNodes(ByteBuffer buffer, MembershipSnapshot nodes, int totalNodes)
+	{
+		// Add the key of each node as its difference from the last
+		long previous = 0;
+		for (int node = 0; node < totalNodes; node++)
+		{
+			long key = nodes.getMember(node);
+			putVarint(buffer, key - previous);
+			previous = key;
+		}
+
+		// Add a bit for each node, set if the node is ACTIVE
+		int bits = 0;
+		for (int node = 0; node < totalNodes; node++)
+		{
+			if (nodes.getState(node) != MembershipTable.DEAD)
+			{
+				bits |= 1 << (node & 7);
+			}
+			if ((node & 7) == 7)
+			{
+				buffer.put((byte) bits);
+				bits = 0;
+			}
+		}
+		if ((totalNodes & 7) != 0)
+		{
+			buffer.put((byte) bits);
+		}
+	}
+
+	/**
+	 * Writes an unsigned value as a varint of 7 bits per byte, low bits
+	 * first, the top bit of each byte set if another follows
+	 * @param buffer buffer to write the value into
+	 * @param value value, at most 48 bits
+	 */
+	private static void putVarint(ByteBuffer buffer, long value)
+	{
+		while ((value & ~0x7FL) != 0)
+		{
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	/**
+	 * Returns the number of bytes needed to encode a delta packet carrying
+	 * the changes made after the given version
+	 * @param journal journal holding the changes
+	 * @param fromVersion version last acknowledged by the receiver
+	 * @return encoded length in bytes
+	 */
+	public static int encodedDeltaLength(MembershipJournal journal, long fromVersion)
+	{
+		int changes = 0;
+		for (int change = journal.getChangeCount() - 1; change >= 0; change--)
+		{
+			if (journal.getChangeVersion(change) <= fromVersion)
+			{
+				break;
+			}
+			changes++;
+		}
+
+		return HEADER_LENGTH + changes * CHANGE_LENGTH;
+	}
+
+	/**
+	 * Encodes a delta packet into the buffer at its current position,
+	 * carrying every change of the journal made after the given version
+	 * @param buffer buffer to write the packet into
+	 * @param config configuration of the sender
+	 * @param flags packet flags
+	 * @param term election term of the sender
+	 * @param journal journal holding the changes and current version
+	 * @param fromVersion version last acknowledged by the receiver
+	 */
+	public static void encodeDelta(ByteBuffer buffer, int config, int flags, long term,
+			MembershipJournal journal, long fromVersion)
+	{
+		putHeader(buffer, TYPE_DELTA, config, flags, term,
+				encodedDeltaLength(journal, fromVersion),
+				journal.getView().size(), journal.getView().liveCount(),
+				journal.getVersion(), fromVersion);
+
+		for (int change = 0; change < journal.getChangeCount(); change++)
+		{
+			if (journal.getChangeVersion(change) > fromVersion)
+			{
+				long node = journal.getChangeKey(change);
+				buffer.put(journal.getChangeOp(change));
+				buffer.putInt(addressOf(node));
+				buffer.putShort((short) portOf(node));
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of bytes needed to encode a gossip packet
+	 * carrying the given number of rumors
+	 * @param rumors number of rumors
+	 * @return encoded length in bytes
+	 */
+	public static int encodedGossipLength(int rumors)
+	{
+		return HEADER_LENGTH + rumors * CHANGE_LENGTH;
+	}
+
+	/**
+	 * Encodes a gossip packet into the buffer at its current position
+	 * @param buffer buffer to write the packet into
+	 * @param config configuration of the sender
+	 * @param flags packet flags
+	 * @param term election term of the sender
+	 * @param totalNodes number of total nodes known to the sender
+	 * @param activeNodes number of active nodes known to the sender
+	 * @param rumorOps kinds of the rumors (see MembershipJournal)
+	 * @param rumorKeys nodes the rumors are about
+	 * @param rumors number of rumors
+	 */
+	public static void encodeGossip(ByteBuffer buffer, int config, int flags, long term,
+			int totalNodes, int activeNodes, byte[] rumorOps, long[] rumorKeys, int rumors)
+	{
+		putHeader(buffer, TYPE_GOSSIP, config, flags, term, encodedGossipLength(rumors),
+				totalNodes, activeNodes, 0, 0);
+
+		for (int rumor = 0; rumor < rumors; rumor++)
+		{
+			buffer.put(rumorOps[rumor]);
+			buffer.putInt(addressOf(rumorKeys[rumor]));
+			buffer.putShort((short) portOf(rumorKeys[rumor]));
+		}
+	}
+
+	/**
+	 * Encodes a probe packet into the buffer at its current position
+	 * @param buffer buffer to write the packet into
+	 * @param type TYPE_PING, TYPE_ACK or TYPE_PING_REQ
+	 * @param config configuration of the sender
+	 * @param flags packet flags
+	 * @param term election term of the sender
+	 * @param sequence probe sequence number, echoed by the ACK
+	 * @param target key of the probed node
+	 */
+	public static void encodeProbe(ByteBuffer buffer, byte type, int config, int flags,
+			long term, int sequence, long target)
+	{
+		putHeader(buffer, type, config, flags, term, PROBE_LENGTH, 0, 0, 0, 0);
+		buffer.putInt(sequence);
+		buffer.putInt(addressOf(target));
+		buffer.putShort((short) portOf(target));
+	}
+
+	/**
+	 * Encodes a LEADER or ELECTION packet into the buffer at its current
+	 * position
+	 * @param buffer buffer to write the packet into
+	 * @param type TYPE_LEADER or TYPE_ELECTION
+	 * @param config configuration of the sender
+	 * @param flags packet flags
+	 * @param term term of the announced server, or of the election asked for
+	 * @param node key of the announced server, or of the lost one
+	 * @param parent key of the server of the tier above the announced
+	 *        server's, or -1 if there is none or it is unknown
+	 */
+	public static void encodeAnnouncement(ByteBuffer buffer, byte type, int config,
+			int flags, long term, long node, long parent)
+	{
+		putHeader(buffer, type, config, flags, term,
+				parent < 0 ? ANNOUNCE_LENGTH : PARENT_ANNOUNCE_LENGTH, 0, 0, 0, 0);
+		buffer.putInt(addressOf(node));
+		buffer.putShort((short) portOf(node));
+		if (parent >= 0)
+		{
+			buffer.putInt(addressOf(parent));
+			buffer.putShort((short) portOf(parent));
+		}
+	}
+
+	/**
+	 * Reports if a message type announces or asks for a server
+	 * @param type message type
+	 * @return true for LEADER and ELECTION
+	 */
+	public static boolean isAnnouncement(int type)
+	{
+		return type == TYPE_LEADER || type == TYPE_ELECTION;
+	}
+
+	/**
+	 * Reports if a message type is a health probe
+	 * @param type message type
+	 * @return true for PING, ACK and PING_REQ
+	 */
+	public static boolean isProbe(int type)
+	{
+		return type == TYPE_PING || type == TYPE_ACK || type == TYPE_PING_REQ;
+	}
+
+	/**
+	 * Writes the fixed header of the current version
+	 * @param buffer buffer to write the header into
+	 * @param type message type
+	 * @param config configuration of the sender
+	 * @param flags packet flags
+	 * @param term election term of the sender
+	 * @param length length of the whole packet, in bytes
+	 * @param totalNodes number of total nodes
+	 * @param activeNodes number of active nodes
+	 * @param version membership version of the packet
+	 * @param fromVersion base version of a delta packet, zero otherwise
+	 */
+	private static void putHeader(ByteBuffer buffer, byte type, int config, int flags,
+			long term, int length, int totalNodes, int activeNodes, long version,
+			long fromVersion)
+	{
+		buffer.putShort(MAGIC);
+		buffer.put(VERSION);
+		buffer.put(type);
+		buffer.put((byte) config);
+		buffer.put((byte) flags);
+		buffer.putInt(length);
+		buffer.putInt(totalNodes);
+		buffer.putInt(activeNodes);
+		buffer.putLong(version);
+		buffer.putLong(fromVersion);
+		buffer.putLong(term);
+	}
+
+	/**
+	 * Decodes a binary packet from the buffer at its current position
+	 * into this object
+	 * @param buffer buffer holding the received packet
+	 * @return true if the packet was well formed, false otherwise
+	 */
+	public boolean decode(ByteBuffer buffer)
+	{
+		if (!isBinary(buffer))
+		{
+			return false;
+		}
+
+		int start = buffer.position();
+		buffer.getShort(); // magic
+		formatVersion = buffer.get();
+		if (formatVersion < 1)
+		{
+			return false;
+		}
+		formatVersion = Math.min(formatVersion, VERSION);
+
+		// Types of newer versions are not known
+		type = buffer.get();
+		if (type < TYPE_UPDATE || type > TYPE_DIGEST)
+		{
+			return false;
+		}
+
+		config = buffer.get();
+		flags = buffer.get();
+		membershipVersion = 0;
+		baseVersion = 0;
+		term = -1;
+		changeCount = 0;
+		bitmapEncoded = false;
+
+		int headerLength;
+		switch (formatVersion)
+		{
+			case 1:
+				headerLength = V1_HEADER_LENGTH;
+				break;
+			case 2:
+				headerLength = V2_HEADER_LENGTH;
+				break;
+			case 3:
+			case 4:
+			case 5:
+				headerLength = V3_HEADER_LENGTH;
+				break;
+			default:
+				headerLength = HEADER_LENGTH;
+				break;
+		}
+
+		if (buffer.limit() - start < headerLength ||
+				type == TYPE_FRAGMENT)
+		{
+			return false;
+		}
+
+		length = formatVersion >= 3 ? buffer.getInt() : buffer.getShort() & 0xFFFF;
+		totalNodes = buffer.getInt();
+		activeNodes = buffer.getInt();
+		if (formatVersion >= 2)
+		{
+			membershipVersion = buffer.getLong();
+			baseVersion = buffer.getLong();
+		}
+		if (formatVersion >= 6)
+		{
+			term = buffer.getLong();
+		}
+
+		// Reject packets whose counts do not fit what was received
+		if (totalNodes < 0 || activeNodes < 0 || length < 0 ||
+				length > buffer.limit() - start ||
+				length < headerLength)
+		{
+			return false;
+		}
+
+		if (isProbe(type))
+		{
+			if (length < PROBE_LENGTH)
+			{
+				return false;
+			}
+
+			probeSequence = buffer.getInt();
+			int address = buffer.getInt();
+			probeTarget = packNode(address, buffer.getShort() & 0xFFFF);
+		}
+		else if (isAnnouncement(type))
+		{
+			if (length < ANNOUNCE_LENGTH)
+			{
+				return false;
+			}
+
+			int address = buffer.getInt();
+			announcedNode = packNode(address, buffer.getShort() & 0xFFFF);
+			parentNode = -1;
+			if (formatVersion >= 8 && length >= PARENT_ANNOUNCE_LENGTH)
+			{
+				address = buffer.getInt();
+				parentNode = packNode(address, buffer.getShort() & 0xFFFF);
+			}
+		}
+		else if (type == TYPE_DIGEST)
+		{
+			if (formatVersion < 8 || length < headerLength + ENTRY_LENGTH)
+			{
+				return false;
+			}
+
+			int address = buffer.getInt();
+			digestOrigin = packNode(address, buffer.getShort() & 0xFFFF);
+			if (!decodeBitmapUpdate(buffer, start + length))
+			{
+				return false;
+			}
+		}
+		else if (type == TYPE_DELTA || type == TYPE_GOSSIP)
+		{
+			changeCount = (length - headerLength) / CHANGE_LENGTH;
+			changeOps = ensureCapacity(changeOps, changeCount);
+			changeKeys = ensureCapacity(changeKeys, changeCount);
+
+			for (int change = 0; change < changeCount; change++)
+			{
+				changeOps[change] = buffer.get();
+				int address = buffer.getInt();
+				changeKeys[change] = packNode(address, buffer.getShort() & 0xFFFF);
+			}
+		}
+		else if (config == HAC.SERVER && formatVersion >= 7)
+		{
+			if (!decodeBitmapUpdate(buffer, start + length))
+			{
+				return false;
+			}
+		}
+		else if (config == HAC.SERVER)
+		{
+			if (length < headerLength + ((long) totalNodes + activeNodes) * ENTRY_LENGTH)
+			{
+				return false;
+			}
+
+			totalKeys = ensureCapacity(totalKeys, totalNodes);
+			activeKeys = ensureCapacity(activeKeys, activeNodes);
+
+			// Addresses are sent before ports, so keys are completed in two passes
+			for (int node = 0; node < totalNodes; node++)
+			{
+				totalKeys[node] = packNode(buffer.getInt(), 0);
+			}
+			for (int port = 0; port < totalNodes; port++)
+			{
+				totalKeys[port] |= buffer.getShort() & 0xFFFF;
+			}
+			for (int node = 0; node < activeNodes; node++)
+			{
+				activeKeys[node] = packNode(buffer.getInt(), 0);
+			}
+			for (int port = 0; port < activeNodes; port++)
+			{
+				activeKeys[port] |= buffer.getShort() & 0xFFFF;
+			}
+		}
+
+		buffer.position(start + length);
+		return true;
+	}
+
+	/**
+	 * Decodes the nodes of a version 7 server UPDATE packet, or of a
+	 * DIGEST packet: the total nodes, rebuilt from the differences between
+	 * their keys, and the bitmap of active nodes, which is kept as it is
+	 * (see isActive)
+	 * @param buffer buffer positioned at the body of the packet
+	 * @param end position of the end of the packet
+	 * @return true if the body was well formed
+	 */
+	private boolean decodeBitmapUpdate(ByteBuffer buffer, int end)
+	{
+		// Each key takes at least one byte
+		int bitmapBytes = bitmapLength(totalNodes);
+		if ((long) totalNodes + bitmapBytes > end - buffer.position())
+		{
+			return false;
+		}
+
+		totalKeys = ensureCapacity(totalKeys, totalNodes);
+		long key = 0;
+		for (int node = 0; node < totalNodes; node++)
+		{
+			long difference = 0;
+			int shift = 0;
+			byte current;
+			do
+			{
+				if (buffer.position() >= end || shift >= 49)
+				{
+					return false;
+				}
+				current = buffer.get();
+				difference |= (long) (current & 0x7F) << shift;
+				shift += 7;
+			}
+			while (current < 0);
+
+			// Keys are strictly ascending and fit in 48 bits
+			key += difference;
+			if ((difference == 0 && node > 0) || (key >>> 48) != 0)
+			{
+				return false;
+			}
+			totalKeys[node] = key;
+		}
+
+		if (end - buffer.position() < bitmapBytes)
+		{
+			return false;
+		}
+		activeBitmap = ensureCapacity(activeBitmap, bitmapBytes);
+		buffer.get(activeBitmap, 0, bitmapBytes);
+		bitmapEncoded = true;
+		return true;
+	}
+
+	/**
+	 * Packs an IPv4 address and port into a single node key. Keys order
+	 * numerically by address, then by port
+	 * @param address IPv4 address as a 32-bit integer
+	 * @param port port number
+	 * @return node key
+	 */
+	public static long packNode(int address, int port)
+	{
+		return ((address & 0xFFFFFFFFL) << 16) | (port & 0xFFFF);
+	}
+
+	/**
+	 * Returns the IPv4 address of a node key
+	 * @param node node key
+	 * @return IPv4 address as a 32-bit integer
+	 */
+	public static int addressOf(long node)
+	{
+		return (int) (node >>> 16);
+	}
+
+	/**
+	 * Returns the port of a node key
+	 * @param node node key
+	 * @return port number
+	 */
+	public static int portOf(long node)
+	{
+		return (int) (node & 0xFFFF);
+	}
+
+	/**
+	 * Converts a dotted-quad IPv4 address into its integer form
+	 * without performing any name resolution
+	 * @param ipAddress dotted-quad IPv4 address
+	 * @return address as a 32-bit integer
+	 */
+	public static int toAddress(String ipAddress)
+	{
+		int address = 0;
+		int octet = 0;
+		int octets = 0;
+
+		for (int index = 0; index < ipAddress.length(); index++)
+		{
+			char current = ipAddress.charAt(index);
+			if (current == '.')
+			{
+				address = (address << 8) | octet;
+				octet = 0;
+				octets++;
+			}
+			else if (current >= '0' && current <= '9')
+			{
+				octet = octet * 10 + (current - '0');
+			}
+			else
+			{
+				throw new IllegalArgumentException("Not an IPv4 address: " + ipAddress);
+			}
+
+			if (octet > 255)
+			{
+				throw new IllegalArgumentException("Not an IPv4 address: " + ipAddress);
+			}
+		}
+
+		if (octets != 3)
+		{
+			throw new IllegalArgumentException("Not an IPv4 address: " + ipAddress);
+		}
+
+		return (address << 8) | octet;
+	}
+
+	/**
+	 * Converts an integer IPv4 address into dotted-quad form
+	 * @param address address as a 32-bit integer
+	 * @return dotted-quad IPv4 address
+	 */
+	public static String toDottedQuad(int address)
+	{
+		return ((address >>> 24) & 0xFF) + "." +
+				((address >>> 16) & 0xFF) + "." +
+				((address >>> 8) & 0xFF) + "." +
+				(address & 0xFF);
+	}
+
+	/**
+	 * Grows an array if it cannot hold the requested number of elements
+	 * @param array current array
+	 * @param size number of elements required
+	 * @return array able to hold the requested elements
+	 */
+	private static long[] ensureCapacity(long[] array, int size)
+	{
+		if (array.length >= size)
+		{
+			return array;
+		}
+
+		return new long[Math.max(size, array.length * 2)];
+	}
+
+	/**
+	 * Grows an array if it cannot hold the requested number of elements
+	 * @param array current array
+	 * @param size number of elements required
+	 * @return array able to hold the requested elements
+	 */
+	private static byte[] ensureCapacity(byte[] array, int size)
+	{
+		if (array.length >= size)
+		{
+			return array;
+		}
+
+		return new byte[Math.max(size, array.length * 2)];
+	}
+
+	/**
+	 * Returns the format version of the decoded packet: the highest
+	 * version both its sender and this node speak
+	 * @return binary format version, at most VERSION
+	 */
+	public int getFormatVersion()
+	{
+		return formatVersion;
+	}
+
+	/**
+	 * Returns the message type of the decoded packet
+	 * @return message type
+	 */
+	public int getType()
+	{
+		return type;
+	}
+
+	/**
+	 * Returns the configuration of the node that sent the packet
+	 * @return sender configuration (server or client/P2P)
+	 */
+	public int getConfig()
+	{
+		return config;
+	}
+
+	/**
+	 * Returns the flags of the decoded packet
+	 * @return packet flags
+	 */
+	public int getFlags()
+	{
+		return flags;
+	}
+
+	/**
+	 * Returns the total node count carried in the packet
+	 * @return total node count
+	 */
+	public int getTotalNodes()
+	{
+		return totalNodes;
+	}
+
+	/**
+	 * Returns the active node count carried in the packet
+	 * @return active node count
+	 */
+	public int getActiveNodes()
+	{
+		return activeNodes;
+	}
+
+	/**
+	 * Returns the membership version carried in the packet. For server
+	 * packets this is the version described by the packet, for client
+	 * packets the version last applied by the client
+	 * @return membership version, zero for version 1 packets
+	 */
+	public long getMembershipVersion()
+	{
+		return membershipVersion;
+	}
+
+	/**
+	 * Returns the version a delta packet's changes were made after
+	 * @return base version of a delta packet
+	 */
+	public long getBaseVersion()
+	{
+		return baseVersion;
+	}
+
+	/**
+	 * Returns the election term of the sender of a decoded packet
+	 * @return term of the sender, or -1 for packets older than version 6
+	 */
+	public long getTerm()
+	{
+		return term;
+	}
+
+	/**
+	 * Returns the node named by a decoded LEADER or ELECTION packet
+	 * @return key of the announced server, or of the lost one
+	 */
+	public long getAnnouncedNode()
+	{
+		return announcedNode;
+	}
+
+	/**
+	 * Returns the server of the tier above the announced server's, named
+	 * by a decoded LEADER packet
+	 * @return key of the server of the tier above, or -1 if none is named
+	 */
+	public long getParentNode()
+	{
+		return parentNode;
+	}
+
+	/**
+	 * Returns the node linking the region of a decoded DIGEST packet to
+	 * the tier above. The region's nodes are read as those of an UPDATE
+	 * packet, and the digest's sequence number is the membership version
+	 * @return key of the origin of the digest
+	 */
+	public long getDigestOrigin()
+	{
+		return digestOrigin;
+	}
+
+	/**
+	 * Returns the sequence number of a decoded probe packet
+	 * @return probe sequence number
+	 */
+	public int getProbeSequence()
+	{
+		return probeSequence;
+	}
+
+	/**
+	 * Returns the node probed by a decoded probe packet
+	 * @return key of the probed node
+	 */
+	public long getProbeTarget()
+	{
+		return probeTarget;
+	}
+
+	/**
+	 * Returns the backing array of keys of all nodes, filled up to
+	 * getTotalNodes()
+	 * @return keys of all nodes
+	 */
+	public long[] getTotalKeys()
+	{
+		return totalKeys;
+	}
+
+	/**
+	 * Returns the backing array of keys of all active nodes, filled up to
+	 * getActiveNodes(). Only filled by server packets older than version
+	 * 7, which send the active nodes as a list (see hasActiveBitmap)
+	 * @return keys of all active nodes
+	 */
+	public long[] getActiveKeys()
+	{
+		return activeKeys;
+	}
+
+	/**
+	 * Reports if the decoded packet marks its active nodes in a bitmap
+	 * over its total nodes (server UPDATE packets of version 7 and later,
+	 * and DIGEST packets) rather than listing them
+	 * @return true if the active nodes are read through isActive
+	 */
+	public boolean hasActiveBitmap()
+	{
+		return bitmapEncoded;
+	}
+
+	/**
+	 * Reports if the requested total node of a packet with an active
+	 * bitmap is active
+	 * @param index index of the node, in the order of getTotalKeys()
+	 * @return true if the node is active
+	 */
+	public boolean isActive(int index)
+	{
+		return (activeBitmap[index >>> 3] & (1 << (index & 7))) != 0;
+	}
+
+	/**
+	 * Returns the number of changes carried by a delta packet, or of
+	 * rumors carried by a gossip packet
+	 * @return change count
+	 */
+	public int getChangeCount()
+	{
+		return changeCount;
+	}
+
+	/**
+	 * Returns the kind of the requested change (or rumor) of a packet
+	 * @param index index of the change
+	 * @return kind of change (see MembershipJournal)
+	 */
+	public byte getChangeOp(int index)
+	{
+		return changeOps[index];
+	}
+
+	/**
+	 * Returns the node of the requested change (or rumor) of a packet
+	 * @param index index of the change
+	 * @return node key
+	 */
+	public long getChangeKey(int index)
+	{
+		return changeKeys[index];
+	}
+}
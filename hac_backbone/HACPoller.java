@@ -0,0 +1,51 @@
+package hac_backbone;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Waits for datagrams on any of a number of endpoints of a transport,
+ * like a Selector. Used by a host to receive for all of its nodes on one
+ * thread, and by a standalone node to wait for its own datagrams with a
+ * timeout. The poller of a simulated network waits by advancing its
+ * virtual clock, delivering the datagrams due by then.
+ */
+public interface HACPoller extends Closeable {
+
+	/**
+	 * Registers an endpoint, whose datagrams are passed to a node. Must
+	 * not be called while another thread is waiting in select
+	 * @param endpoint endpoint of the transport
+	 * @param node node receiving the endpoint's datagrams
+	 * @throws IOException if the endpoint is closed
+	 */
+	void register(HACEndpoint endpoint, HAC node) throws IOException;
+
+	/**
+	 * Waits until a registered endpoint has datagrams waiting, the time
+	 * passes or wakeup is called
+	 * @param timeout longest time to wait in milliseconds, 0 to wait
+	 *        until an endpoint is ready or wakeup is called
+	 * @return number of ready endpoints
+	 * @throws IOException if the poller is closed
+	 */
+	int select(long timeout) throws IOException;
+
+	/**
+	 * Returns the next ready endpoint's node, as found by the last select
+	 * @return node with datagrams waiting, or null once every ready
+	 *         endpoint has been returned
+	 */
+	HAC nextReady();
+
+	/**
+	 * Makes a select in progress, or the next one, return at once
+	 */
+	void wakeup();
+
+	/**
+	 * Closes every endpoint registered on the poller
+	 * @throws IOException if an endpoint fails to close
+	 */
+	void closeRegistered() throws IOException;
+}
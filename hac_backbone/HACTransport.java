@@ -0,0 +1,61 @@
+package hac_backbone;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Network carrying the datagrams of HAC nodes, along with the clock and
+ * randomness the nodes run on. UdpTransport sends real UDP datagrams in
+ * real time. SimulatedNetwork carries them in memory, with configurable
+ * latency, loss, reordering and partitions, on a virtual clock, so a
+ * whole cluster runs deterministically in a single thread.
+ *
+ * Nodes use the transport of the host running them (see HACNodeHost);
+ * standalone nodes use UDP.
+ */
+public interface HACTransport {
+
+	/**
+	 * Opens an endpoint bound to a local address
+	 * @param localIP IP address of the node
+	 * @param localPort port of the node
+	 * @return endpoint sending and receiving the node's datagrams
+	 * @throws IOException if the address cannot be bound
+	 */
+	HACEndpoint open(String localIP, int localPort) throws IOException;
+
+	/**
+	 * Opens an endpoint receiving the datagrams sent to a multicast group.
+	 * Datagrams are sent to the group from a node's own endpoint, keyed by
+	 * the group's address and port, and reach every endpoint joined to it
+	 * @param groupIP IP address of the multicast group
+	 * @param groupPort port the group's datagrams are sent to
+	 * @param localIP IP address of the joining node, whose interface the
+	 *        group is joined on
+	 * @param localPort port of the joining node
+	 * @return endpoint receiving the group's datagrams
+	 * @throws IOException if the group cannot be joined
+	 */
+	HACEndpoint openGroup(String groupIP, int groupPort, String localIP, int localPort)
+			throws IOException;
+
+	/**
+	 * Opens a poller waiting for datagrams on endpoints of this transport
+	 * @return new poller
+	 * @throws IOException if the poller cannot be opened
+	 */
+	HACPoller openPoller() throws IOException;
+
+	/**
+	 * Returns the clock nodes on this transport run on
+	 * @return clock of the transport
+	 */
+	HACClock getClock();
+
+	/**
+	 * Returns a new source of randomness for a node, used for every random
+	 * choice it makes (update intervals, probe helpers, gossip targets)
+	 * @return random generator
+	 */
+	Random newRandom();
+}
@@ -0,0 +1,450 @@
+package hac_backbone;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Health probes sent over the node's own socket, rather than ICMP. A
+ * probe round sends a PING to every target at once, and each target
+ * answers with an ACK carrying the PING's sequence number. Targets that
+ * have not answered half way to the round's deadline are probed
+ * indirectly: a PING_REQ is sent to a few other live nodes, which PING
+ * the target on the prober's behalf and relay its ACK. A target is
+ * deemed reachable if a direct or relayed ACK arrives before the single
+ * deadline of the round, so a round takes at most its timeout however
+ * many nodes are probed, and a lossy link between two nodes does not
+ * make a reachable node look unreachable.
+ *
+ * Rounds are asynchronous. ACKs are recorded by the node's receive path
+ * (see HAC.handlePacket); a round may be awaited, or polled and read
+ * later. Rounds nobody awaits or polls are moved on by poll(), which the
+ * node's periodic task calls. Times are read from the node's clock.
+ */
+public class HealthProber {
+
+	// Number of nodes asked to probe an unanswering target indirectly
+	public static final int INDIRECT_PROBES = 3;
+
+	// Pings sent on behalf of other nodes that are remembered at once
+	private static final int RELAY_CAPACITY = 64;
+
+	// Longest time a node waits to relay an answer it pinged for
+	private static final long MAX_RELAY_TIME = 10 * 1000;
+
+	// Node sending the probes, whose published membership is read when
+	// choosing helpers for indirect probes
+	private HAC node;
+	private long localNode;
+	private Random random;
+
+	// Sequence number of the next probe sent
+	private int nextSequence;
+
+	// Rounds still waiting for answers
+	private List<ProbeRound> rounds;
+
+	// Pings sent on behalf of other nodes, indexed by sequence number
+	// modulo RELAY_CAPACITY: sequence of the relayed ping, node that asked
+	// for it, sequence number it asked with, and time after which the
+	// request is dropped
+	private int[] relaySequences;
+	private long[] relayRequesters;
+	private int[] relayRequesterSequences;
+	private long[] relayExpiry;
+
+	/**
+	 * Creates a prober for a node
+	 * @param node node sending the probes
+	 * @param localNode key of the node
+	 */
+	HealthProber(HAC node, long localNode)
+	{
+		this.node = node;
+		this.localNode = localNode;
+		random = node.getRandom();
+		rounds = new ArrayList<>();
+		relaySequences = new int[RELAY_CAPACITY];
+		relayRequesters = new long[RELAY_CAPACITY];
+		relayRequesterSequences = new int[RELAY_CAPACITY];
+		relayExpiry = new long[RELAY_CAPACITY];
+	}
+
+	/**
+	 * Starts a round probing every target at once
+	 * @param targets keys of the nodes to be probed. The local node is
+	 *        deemed reachable without being probed
+	 * @param count number of targets
+	 * @param timeout time, in milliseconds, after which targets that have
+	 *        not answered are deemed unreachable
+	 * @return the round, holding the results
+	 */
+	public synchronized ProbeRound probe(long[] targets, int count, long timeout)
+	{
+		long now = node.getClock().currentTimeMillis();
+		ProbeRound round = new ProbeRound(targets, count, nextSequence, now, timeout);
+		nextSequence += count;
+		rounds.add(round);
+
+		for (int target = 0; target < count; target++)
+		{
+			if (round.targets[target] == localNode)
+			{
+				round.acknowledge(target);
+			}
+			else
+			{
+				node.sendProbe(HACPacket.TYPE_PING, round.firstSequence + target,
+						round.targets[target], round.targets[target]);
+			}
+		}
+
+		return round;
+	}
+
+	/**
+	 * Handles a probe packet received by the node
+	 * @param type TYPE_PING, TYPE_ACK or TYPE_PING_REQ
+	 * @param sender key of the sending node
+	 * @param sequence sequence number of the probe
+	 * @param target key of the probed node
+	 * @param now current time in milliseconds
+	 */
+	synchronized void handle(int type, long sender, int sequence, long target, long now)
+	{
+		switch (type)
+		{
+			case HACPacket.TYPE_PING:
+				// Answer for the probed node, which is this node, echoing the
+				// key it was probed as
+				node.sendProbe(HACPacket.TYPE_ACK, sequence, target, sender);
+				break;
+
+			case HACPacket.TYPE_PING_REQ:
+				// Ping the target on the sender's behalf, remembering whom to
+				// relay its answer to
+				int relay = nextSequence++;
+				int slot = Math.floorMod(relay, RELAY_CAPACITY);
+				relaySequences[slot] = relay;
+				relayRequesters[slot] = sender;
+				relayRequesterSequences[slot] = sequence;
+				relayExpiry[slot] = now + MAX_RELAY_TIME;
+				node.sendProbe(HACPacket.TYPE_PING, relay, target, target);
+				break;
+
+			case HACPacket.TYPE_ACK:
+				acknowledge(sequence, target, now);
+				break;
+
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * Records an ACK, either answering a round of this node or to be
+	 * relayed to the node that asked for the ping
+	 * @param sequence sequence number of the answered ping
+	 * @param target key of the node that answered
+	 * @param now current time in milliseconds
+	 */
+	private void acknowledge(int sequence, long target, long now)
+	{
+		int slot = Math.floorMod(sequence, RELAY_CAPACITY);
+		if (relayRequesters[slot] != 0 && relaySequences[slot] == sequence &&
+				now <= relayExpiry[slot])
+		{
+			node.sendProbe(HACPacket.TYPE_ACK, relayRequesterSequences[slot], target,
+					relayRequesters[slot]);
+			relayRequesters[slot] = 0;
+			return;
+		}
+
+		for (int round = 0; round < rounds.size(); round++)
+		{
+			ProbeRound probeRound = rounds.get(round);
+			int index = sequence - probeRound.firstSequence;
+			if (index >= 0 && index < probeRound.count &&
+					probeRound.targets[index] == target)
+			{
+				probeRound.acknowledge(index);
+				notifyAll();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Moves every outstanding round on: sends the indirect probes of
+	 * rounds half way to their deadline, and ends rounds past it
+	 * @param now current time in milliseconds
+	 */
+	public synchronized void poll(long now)
+	{
+		for (int round = rounds.size() - 1; round >= 0; round--)
+		{
+			ProbeRound probeRound = rounds.get(round);
+			if (probeRound.isDone(now))
+			{
+				rounds.remove(round);
+			}
+			else if (!probeRound.indirectSent && now >= probeRound.indirectTime)
+			{
+				sendIndirectProbes(probeRound);
+			}
+		}
+	}
+
+	/**
+	 * Asks up to INDIRECT_PROBES live nodes to ping each target of a round
+	 * that has not answered yet
+	 * @param round round whose targets are probed indirectly
+	 */
+	private void sendIndirectProbes(ProbeRound round)
+	{
+		round.indirectSent = true;
+
+		MembershipSnapshot members = node.getMembershipSnapshot();
+		int live = members.liveCount();
+		if (live == 0)
+		{
+			return;
+		}
+
+		for (int target = 0; target < round.count; target++)
+		{
+			if (round.acked[target])
+			{
+				continue;
+			}
+
+			// Walk the live nodes from a random start, skipping this node
+			// and the target itself
+			int start = random.nextInt(live);
+			int sent = 0;
+			for (int step = 0; step < live && sent < INDIRECT_PROBES; step++)
+			{
+				long helper = members.getLiveMember((start + step) % live);
+				if (helper != localNode && helper != round.targets[target])
+				{
+					node.sendProbe(HACPacket.TYPE_PING_REQ, round.firstSequence + target,
+							round.targets[target], helper);
+					sent++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Waits until every target of a round has answered or its deadline
+	 * has passed, sending its indirect probes on time
+	 * @param round round to be awaited
+	 */
+	private synchronized void await(ProbeRound round)
+	{
+		try
+		{
+			long now = node.getClock().currentTimeMillis();
+			while (!round.isDone(now))
+			{
+				if (!round.indirectSent && now >= round.indirectTime)
+				{
+					sendIndirectProbes(round);
+				}
+
+				long wakeup = round.indirectSent ? round.deadline : round.indirectTime;
+				wait(Math.max(1, wakeup - now));
+				now = node.getClock().currentTimeMillis();
+			}
+		}
+		catch (InterruptedException ie)
+		{
+			ie.printStackTrace();
+		}
+		finally
+		{
+			rounds.remove(round);
+		}
+	}
+
+	/**
+	 * Moves a round on without waiting: sends its indirect probes once
+	 * due, and reports if it has ended
+	 * @param round round to be moved on
+	 * @return true if every target answered or the deadline passed
+	 */
+	private synchronized boolean poll(ProbeRound round)
+	{
+		long now = node.getClock().currentTimeMillis();
+		if (round.isDone(now))
+		{
+			rounds.remove(round);
+			return true;
+		}
+
+		if (!round.indirectSent && now >= round.indirectTime)
+		{
+			sendIndirectProbes(round);
+		}
+		return false;
+	}
+
+	/**
+	 * Drops every outstanding round and relayed ping
+	 */
+	public synchronized void clear()
+	{
+		rounds.clear();
+		for (int slot = 0; slot < RELAY_CAPACITY; slot++)
+		{
+			relayRequesters[slot] = 0;
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Results of a single probe round. Results may be read at any time;
+	 * targets are deemed unreachable until they answer
+	 */
+	public class ProbeRound
+	{
+		private long[] targets;
+		private boolean[] acked;
+		private int count;
+		private int ackCount;
+
+		// Sequence number of the first target; target i uses firstSequence + i
+		private int firstSequence;
+
+		// Time at which indirect probes are sent, and deadline of the round
+		private long indirectTime;
+		private long deadline;
+		private boolean indirectSent;
+
+		/**
+		 * Creates a round
+		 * @param targets keys of the nodes to be probed, copied
+		 * @param count number of targets
+		 * @param firstSequence sequence number of the first target
+		 * @param now current time in milliseconds
+		 * @param timeout time after which the round ends, in milliseconds
+		 */
+		private ProbeRound(long[] targets, int count, int firstSequence, long now,
+				long timeout)
+		{
+			this.targets = new long[count];
+			System.arraycopy(targets, 0, this.targets, 0, count);
+			this.acked = new boolean[count];
+			this.count = count;
+			this.firstSequence = firstSequence;
+			this.indirectTime = now + timeout / 2;
+			this.deadline = now + timeout;
+		}
+
+		/**
+		 * Records the answer of a target
+		 * @param target index of the target
+		 */
+		private void acknowledge(int target)
+		{
+			if (!acked[target])
+			{
+				acked[target] = true;
+				ackCount++;
+			}
+		}
+
+		/**
+		 * Reports if the round has ended
+		 * @param now current time in milliseconds
+		 * @return true if every target answered or the deadline passed
+		 */
+		private boolean isDone(long now)
+		{
+			return ackCount == count || now >= deadline;
+		}
+
+		/**
+		 * Waits until every target has answered or the deadline has passed
+		 * @return this round
+		 */
+		public ProbeRound await()
+		{
+			HealthProber.this.await(this);
+			return this;
+		}
+
+		/**
+		 * Moves the round on without waiting, for callers that must not
+		 * block (such as the roles of a hosted node), which call this
+		 * regularly until it returns true
+		 * @return true if every target answered or the deadline passed
+		 */
+		public boolean poll()
+		{
+			return HealthProber.this.poll(this);
+		}
+
+		/**
+		 * Returns the number of nodes probed
+		 * @return target count
+		 */
+		public int getTargetCount()
+		{
+			return count;
+		}
+
+		/**
+		 * Returns the key of a probed node
+		 * @param target index of the target, in the order given to probe
+		 * @return key of the node
+		 */
+		public long getTarget(int target)
+		{
+			return targets[target];
+		}
+
+		/**
+		 * Reports if a probed node answered
+		 * @param target index of the target, in the order given to probe
+		 * @return true if the node answered, directly or through another node
+		 */
+		public boolean isReachable(int target)
+		{
+			synchronized (HealthProber.this)
+			{
+				return acked[target];
+			}
+		}
+
+		/**
+		 * Reports if a node answered this round
+		 * @param node key of the node
+		 * @return true if the node was probed and answered
+		 */
+		public boolean isReachable(long node)
+		{
+			for (int target = 0; target < count; target++)
+			{
+				if (targets[target] == node)
+				{
+					return isReachable(target);
+				}
+			}
+
+			return false;
+		}
+
+		/**
+		 * Returns the number of probed nodes that answered
+		 * @return reachable node count
+		 */
+		public int getReachableCount()
+		{
+			synchronized (HealthProber.this)
+			{
+				return ackCount;
+			}
+		}
+	}
+}
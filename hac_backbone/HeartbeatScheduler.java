@@ -0,0 +1,293 @@
+package hac_backbone;
+
+import java.util.Random;
+
+/**
+ * Derives the heartbeat period of a node from a cluster-wide bandwidth
+ * budget, the bytes the cluster sends each round, and the loss rate
+ * observed on the network. Rather than sending at random
+ * intervals between 0 and 30 seconds, every node of a cluster sends once
+ * per period, with bounded jitter, so heartbeats are spread evenly and the
+ * time to detect a failure is predictable:
+ *
+ *   period = clamp(max(budget period, target detection time / missed),
+ *                  MIN_PERIOD, MAX_PERIOD)
+ *
+ * where the budget period is the time the cluster takes to send one round
+ * within the budget: every periodic datagram, at its encoded length with
+ * its fragment and IP/UDP headers (see datagramBytes), and one round of
+ * server announcements. Missed is the number of heartbeats
+ * in a row that must be lost before a node is deemed failed, so that a
+ * live node is wrongly deemed failed at most once in FALSE_DETECTION
+ * rounds at the observed loss rate. Nodes are deemed failed after missed
+ * periods (see getDetectionTimeout). A small, reliable cluster therefore
+ * sends about every target detection time / 3, and a large or lossy one
+ * as often as the budget allows.
+ *
+ * Every node using the same settings derives about the same period for
+ * the same membership, so a receiver can tell lost heartbeats from the
+ * gaps between the heartbeats it receives (see recordInterval).
+ *
+ * A server also announces itself between its updates, so clients notice
+ * its loss sooner, as often as the budget left by the rest of the round
+ * allows (see getAnnouncementInterval). As the period leaves room for at
+ * least one announcement round, the whole cluster stays within the
+ * budget unless the period is held at MAX_PERIOD.
+ */
+public class HeartbeatScheduler {
+
+	// System properties setting the default budget, in bytes per second,
+	// and target detection time, in milliseconds
+	public static final String BUDGET_PROPERTY = "hac.heartbeat.budget";
+	public static final String DETECTION_PROPERTY = "hac.heartbeat.detection";
+
+	// Defaults of the budget and target detection time
+	public static final long DEFAULT_BUDGET = 64 * 1024;
+	public static final long DEFAULT_DETECTION_TIME = 10 * 1000;
+
+	// Bounds of the period, in milliseconds
+	public static final long MIN_PERIOD = 1000;
+	public static final long MAX_PERIOD = 60 * 1000;
+
+	// Largest share of the period by which an interval may differ from it
+	public static final double JITTER = 0.1;
+
+	// Shortest interval between the announcements of a server, in
+	// milliseconds, which lets clients notice its loss within about a second
+	public static final long MIN_ANNOUNCEMENT_INTERVAL = 200;
+
+	// Fewest heartbeats in a row that must be missed before a node is
+	// deemed failed, and the largest probability of a live node missing
+	// that many through loss alone
+	private static final int MIN_MISSED = 3;
+	private static final double FALSE_DETECTION = 1e-3;
+
+	// Bytes of the IPv4 and UDP headers carrying each datagram
+	private static final int DATAGRAM_OVERHEAD = 20 + 8;
+
+	// Weight kept by past arrivals each time one is recorded, so the loss
+	// rate follows the last thousand or so arrivals
+	private static final double DECAY = 0.999;
+
+	private long budget;
+	private long detectionTime;
+
+	// Decayed counts of heartbeats lost and expected, and the loss rate
+	// they give
+	private double lostCount;
+	private double expectedCount;
+	private volatile double lossRate;
+
+	/**
+	 * Creates a scheduler with the budget and target detection time set
+	 * by the system properties, or the defaults
+	 */
+	public HeartbeatScheduler()
+	{
+		this(Long.getLong(BUDGET_PROPERTY, DEFAULT_BUDGET),
+				Long.getLong(DETECTION_PROPERTY, DEFAULT_DETECTION_TIME));
+	}
+
+	/**
+	 * Creates a scheduler
+	 * @param budget bytes per second the whole cluster may spend on
+	 *        heartbeats
+	 * @param detectionTime time, in milliseconds, in which a failure
+	 *        should be detected if the budget allows
+	 */
+	public HeartbeatScheduler(long budget, long detectionTime)
+	{
+		setBudget(budget);
+		setDetectionTime(detectionTime);
+	}
+
+	/**
+	 * Sets the bytes per second the whole cluster may spend on heartbeats
+	 * @param budget budget in bytes per second
+	 */
+	public void setBudget(long budget)
+	{
+		if (budget <= 0)
+		{
+			throw new IllegalArgumentException("Invalid heartbeat budget: " + budget);
+		}
+
+		this.budget = budget;
+	}
+
+	/**
+	 * Returns the bytes per second the whole cluster may spend on heartbeats
+	 * @return budget in bytes per second
+	 */
+	public long getBudget()
+	{
+		return budget;
+	}
+
+	/**
+	 * Sets the time in which a failure should be detected if the budget
+	 * allows
+	 * @param detectionTime target detection time in milliseconds
+	 */
+	public void setDetectionTime(long detectionTime)
+	{
+		if (detectionTime <= 0)
+		{
+			throw new IllegalArgumentException("Invalid detection time: " + detectionTime);
+		}
+
+		this.detectionTime = detectionTime;
+	}
+
+	/**
+	 * Returns the time in which a failure should be detected if the budget
+	 * allows
+	 * @return target detection time in milliseconds
+	 */
+	public long getDetectionTime()
+	{
+		return detectionTime;
+	}
+
+	/**
+	 * Records a heartbeat received from a node, along with the number of
+	 * its heartbeats lost since the previous one
+	 * @param lost heartbeats missed before this one
+	 */
+	public synchronized void recordArrival(int lost)
+	{
+		lostCount = lostCount * DECAY + lost;
+		expectedCount = expectedCount * DECAY + lost + 1;
+		lossRate = lostCount / expectedCount;
+	}
+
+	/**
+	 * Records a heartbeat received from a node, counting the heartbeats
+	 * lost since the previous one from the gap between them. The mean gap
+	 * is itself widened by the heartbeats lost, so losses are undercounted
+	 * once about a third are lost; the count is not corrected for this, as
+	 * a correction based on the estimate itself would feed on its errors
+	 * @param interval time since the previous heartbeat of the node, in
+	 *        milliseconds, or -1 if there was none
+	 * @param meanInterval mean time between heartbeats received from the
+	 *        node, 0 if none was measured
+	 */
+	public void recordInterval(long interval, double meanInterval)
+	{
+		if (interval >= 0 && meanInterval > 0)
+		{
+			recordArrival((int) Math.max(0, Math.round(interval / meanInterval) - 1));
+		}
+	}
+
+	/**
+	 * Returns the share of heartbeats observed lost
+	 * @return loss rate, from 0 to 1
+	 */
+	public double getLossRate()
+	{
+		return lossRate;
+	}
+
+	/**
+	 * Returns the number of heartbeats in a row a node must miss before it
+	 * is deemed failed, at the observed loss rate
+	 * @return missed heartbeats
+	 */
+	public int getMissedHeartbeats()
+	{
+		double loss = Math.min(lossRate, 0.5);
+		if (loss <= 0)
+		{
+			return MIN_MISSED;
+		}
+
+		return Math.max(MIN_MISSED, (int) Math.ceil(Math.log(FALSE_DETECTION) / Math.log(loss)));
+	}
+
+	/**
+	 * Returns the bytes a packet takes on the network: the packet itself,
+	 * the fragment header of each fragment it is split into (see
+	 * PacketFragmenter), and the IP and UDP headers of each datagram
+	 * @param packetLength encoded length of the packet, in bytes
+	 * @return bytes sent
+	 */
+	public static long datagramBytes(int packetLength)
+	{
+		int fragments = PacketFragmenter.fragmentCount(packetLength);
+		if (fragments == 1)
+		{
+			return packetLength + DATAGRAM_OVERHEAD;
+		}
+
+		return packetLength + (long) fragments *
+				(PacketFragmenter.FRAGMENT_HEADER_LENGTH + DATAGRAM_OVERHEAD);
+	}
+
+	/**
+	 * Returns the heartbeat period of a node
+	 * @param roundBytes bytes the whole cluster sends in a round of
+	 *        heartbeats and updates (see datagramBytes)
+	 * @param announcementBytes bytes a server sends to announce itself to
+	 *        every node once, 0 if none is sent
+	 * @return period in milliseconds
+	 */
+	public long getPeriod(long roundBytes, long announcementBytes)
+	{
+		long budgetPeriod = (roundBytes + announcementBytes) * 1000 / budget;
+		long detectionPeriod = detectionTime / getMissedHeartbeats();
+
+		return Math.min(MAX_PERIOD, Math.max(MIN_PERIOD, Math.max(budgetPeriod, detectionPeriod)));
+	}
+
+	/**
+	 * Returns the interval between the announcements of a server: the
+	 * shortest, down to MIN_ANNOUNCEMENT_INTERVAL, at which announcing to
+	 * every node fits in the budget left by the rest of the round, and at
+	 * most the heartbeat period
+	 * @param roundBytes bytes the whole cluster sends in a round of
+	 *        heartbeats and updates (see datagramBytes)
+	 * @param announcementBytes bytes the server sends to announce itself
+	 *        to every node once
+	 * @return interval in milliseconds
+	 */
+	public long getAnnouncementInterval(long roundBytes, long announcementBytes)
+	{
+		long period = getPeriod(roundBytes, announcementBytes);
+		double left = budget - (double) roundBytes * 1000 / period;
+		if (left <= 0)
+		{
+			return period;
+		}
+
+		double interval = announcementBytes * 1000 / left;
+		return Math.min(period, Math.max(MIN_ANNOUNCEMENT_INTERVAL, (long) Math.ceil(interval)));
+	}
+
+	/**
+	 * Returns the time until a node's next heartbeat: the period, moved
+	 * by up to JITTER of it either way so nodes do not send in step
+	 * @param roundBytes bytes the whole cluster sends in a round
+	 * @param announcementBytes bytes of a round of server announcements
+	 * @param random source of the jitter
+	 * @return interval in milliseconds
+	 */
+	public long nextInterval(long roundBytes, long announcementBytes, Random random)
+	{
+		long period = getPeriod(roundBytes, announcementBytes);
+		return period + (long) ((random.nextDouble() * 2 - 1) * JITTER * period);
+	}
+
+	/**
+	 * Returns the time without heartbeats after which a node should be
+	 * deemed failed: the missed heartbeats, each as late as jitter allows
+	 * @param roundBytes bytes the whole cluster sends in a round
+	 * @param announcementBytes bytes of a round of server announcements
+	 * @return timeout in milliseconds
+	 */
+	public long getDetectionTimeout(long roundBytes, long announcementBytes)
+	{
+		return (long) (getPeriod(roundBytes, announcementBytes) *
+				getMissedHeartbeats() * (1 + JITTER));
+	}
+}
@@ -0,0 +1,339 @@
+package hac_backbone;
+
+/**
+ * Versioned view of the membership of a network. On a server node, holds
+ * the last published total and active node sets along with a bounded log
+ * of the changes (joins, leaves and state changes) that produced each
+ * version, so that clients may be sent only the changes since the version
+ * they last acknowledged. On a client node, holds the view received from
+ * the server, which is updated by full snapshots or by those changes.
+ * Nodes are identified by keys packing their IPv4 address and port
+ * (see HACPacket.packNode). The view is held in a MembershipTable, so
+ * publishing and applying changes allocates nothing unless nodes join
+ * or leave. Once a version is published or received, the view publishes
+ * an immutable snapshot of itself, which other threads read (see
+ * getSnapshot).
+ */
+public class MembershipJournal {
+
+	// Kinds of changes recorded in the journal
+	public static final byte JOIN = 1;
+	public static final byte LEAVE = 2;
+	public static final byte ACTIVE = 3;
+	public static final byte INACTIVE = 4;
+
+	// Number of changes retained by default before the oldest are dropped
+	private static final int DEFAULT_CAPACITY = 1024;
+
+	// Current membership version. Zero means nothing has been published
+	private long version;
+
+	// Changes at or below this version are no longer retained in the log
+	private long evictedVersion;
+
+	// Circular log of changes, oldest change located at head
+	private long[] changeVersions;
+	private byte[] changeOps;
+	private long[] changeKeys;
+	private int head;
+	private int count;
+
+	// Published (or received) nodes, with published states ACTIVE or DEAD
+	private MembershipTable view;
+
+	/**
+	 * Creates an empty journal retaining the default number of changes
+	 */
+	public MembershipJournal()
+	{
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates an empty journal
+	 * @param capacity number of changes retained before the oldest are dropped
+	 */
+	public MembershipJournal(int capacity)
+	{
+		changeVersions = new long[capacity];
+		changeOps = new byte[capacity];
+		changeKeys = new long[capacity];
+		view = new MembershipTable();
+	}
+
+	/**
+	 * Compares the nodes of a membership table with the last published
+	 * view and records every difference as a change. If anything changed,
+	 * the membership version is incremented and the view is updated to
+	 * match the table.
+	 * @param table membership table holding all nodes and their states
+	 * @return true if a new version was published
+	 */
+	public boolean publish(MembershipTable table)
+	{
+		long newVersion = version + 1;
+		boolean changed = false;
+
+		// Nodes that left the network. A node that left is implicitly inactive
+		for (int member = view.size() - 1; member >= 0; member--)
+		{
+			long node = view.getMember(member);
+			if (!table.contains(node))
+			{
+				record(newVersion, LEAVE, node);
+				view.remove(node);
+				changed = true;
+			}
+		}
+
+		// Nodes that joined the network, or became active or inactive
+		for (int member = 0; member < table.size(); member++)
+		{
+			long node = table.getMember(member);
+			boolean live = table.stateOf(node) != MembershipTable.DEAD;
+			int publishedState = view.stateOf(node);
+
+			if (publishedState < 0)
+			{
+				record(newVersion, JOIN, node);
+				view.add(node);
+				publishedState = MembershipTable.DEAD;
+				changed = true;
+			}
+
+			if (live != (publishedState != MembershipTable.DEAD))
+			{
+				record(newVersion, live ? ACTIVE : INACTIVE, node);
+				view.setState(node, live ? MembershipTable.ACTIVE : MembershipTable.DEAD);
+				changed = true;
+			}
+		}
+
+		if (changed || version == 0)
+		{
+			version = newVersion;
+			view.publish();
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Reports if every change made after the given version is still
+	 * retained, meaning a node at that version may be sent a delta
+	 * rather than a full snapshot
+	 * @param baseVersion version last acknowledged by a node
+	 * @return true if a delta can be built from the given version
+	 */
+	public boolean canDeltaFrom(long baseVersion)
+	{
+		return baseVersion > 0 &&
+				baseVersion <= version &&
+				baseVersion >= evictedVersion;
+	}
+
+	/**
+	 * Replaces the view with a full snapshot received from a server
+	 * @param snapshotVersion version of the snapshot
+	 * @param totalKeys keys of all nodes
+	 * @param totalCount number of total keys
+	 * @param activeKeys keys of all active nodes
+	 * @param activeCount number of active keys
+	 */
+	public void applySnapshot(long snapshotVersion, long[] totalKeys, int totalCount,
+			long[] activeKeys, int activeCount)
+	{
+		view.clear();
+
+		for (int node = 0; node < totalCount; node++)
+		{
+			view.add(totalKeys[node]);
+		}
+		for (int node = 0; node < activeCount; node++)
+		{
+			view.add(activeKeys[node]);
+			view.setState(activeKeys[node], MembershipTable.ACTIVE);
+		}
+
+		version = snapshotVersion;
+		view.publish();
+	}
+
+	/**
+	 * Replaces the view with a full snapshot decoded from a server's
+	 * binary packet. A packet marking its active nodes in a bitmap is
+	 * applied in a single pass over its total nodes, adding each with its
+	 * state
+	 * @param snapshotVersion version of the snapshot
+	 * @param packet decoded UPDATE packet of a server
+	 */
+	public void applySnapshot(long snapshotVersion, HACPacket packet)
+	{
+		if (!packet.hasActiveBitmap())
+		{
+			applySnapshot(snapshotVersion, packet.getTotalKeys(), packet.getTotalNodes(),
+					packet.getActiveKeys(), packet.getActiveNodes());
+			return;
+		}
+
+		view.clear();
+
+		long[] totalKeys = packet.getTotalKeys();
+		for (int node = 0; node < packet.getTotalNodes(); node++)
+		{
+			view.add(totalKeys[node]);
+			if (packet.isActive(node))
+			{
+				view.setState(totalKeys[node], MembershipTable.ACTIVE);
+			}
+		}
+
+		version = snapshotVersion;
+		view.publish();
+	}
+
+	/**
+	 * Applies a single change received from a server to the view. The
+	 * snapshot of the view is published once the delta's version is set
+	 * (see setVersion)
+	 * @param op kind of change (JOIN, LEAVE, ACTIVE or INACTIVE)
+	 * @param node key of the node that changed
+	 */
+	public void applyChange(byte op, long node)
+	{
+		switch (op)
+		{
+			case JOIN:
+				view.add(node);
+				break;
+			case LEAVE:
+				view.remove(node);
+				break;
+			case ACTIVE:
+				view.add(node);
+				view.setState(node, MembershipTable.ACTIVE);
+				break;
+			case INACTIVE:
+				view.setState(node, MembershipTable.DEAD);
+				break;
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * Clears the view and the change log and resets the version
+	 */
+	public void clear()
+	{
+		version = 0;
+		evictedVersion = 0;
+		head = 0;
+		count = 0;
+		view.clear();
+		view.publish();
+	}
+
+	/**
+	 * Returns the current membership version
+	 * @return membership version, zero if nothing was published or received
+	 */
+	public long getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * Sets the current membership version, used once all changes of a
+	 * delta have been applied
+	 * @param newVersion new membership version
+	 */
+	public void setVersion(long newVersion)
+	{
+		version = newVersion;
+		view.publish();
+	}
+
+	/**
+	 * Returns the published (or received) view of the membership. Nodes
+	 * in the view are either ACTIVE or DEAD
+	 * @return membership view
+	 */
+	public MembershipTable getView()
+	{
+		return view;
+	}
+
+	/**
+	 * Returns the last published snapshot of the view. May be called from
+	 * any thread
+	 * @return snapshot of the membership view
+	 */
+	public MembershipSnapshot getSnapshot()
+	{
+		return view.getSnapshot();
+	}
+
+	/**
+	 * Returns the number of changes retained in the log
+	 * @return retained change count
+	 */
+	public int getChangeCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Returns the version of a retained change, oldest change first
+	 * @param index index of the change
+	 * @return version at which the change was published
+	 */
+	public long getChangeVersion(int index)
+	{
+		return changeVersions[(head + index) % changeVersions.length];
+	}
+
+	/**
+	 * Returns the kind of a retained change, oldest change first
+	 * @param index index of the change
+	 * @return kind of change
+	 */
+	public byte getChangeOp(int index)
+	{
+		return changeOps[(head + index) % changeOps.length];
+	}
+
+	/**
+	 * Returns the node of a retained change, oldest change first
+	 * @param index index of the change
+	 * @return key of the node that changed
+	 */
+	public long getChangeKey(int index)
+	{
+		return changeKeys[(head + index) % changeKeys.length];
+	}
+
+	/**
+	 * Appends a change to the log, dropping the oldest change if full
+	 * @param changeVersion version at which the change is published
+	 * @param op kind of change
+	 * @param node key of the node that changed
+	 */
+	private void record(long changeVersion, byte op, long node)
+	{
+		if (count == changeVersions.length)
+		{
+			// Nodes behind the dropped change must now receive a snapshot
+			evictedVersion = changeVersions[head];
+			head = (head + 1) % changeVersions.length;
+			count--;
+		}
+
+		int tail = (head + count) % changeVersions.length;
+		changeVersions[tail] = changeVersion;
+		changeOps[tail] = op;
+		changeKeys[tail] = node;
+		count++;
+	}
+}
@@ -0,0 +1,209 @@
+package hac_backbone;
+
+import java.util.Arrays;
+
+/**
+ * Immutable view of a membership table at the time it was published (see
+ * MembershipTable.publish). Holds the members in ascending order of key,
+ * with the entry id and state of each, and the online members in the
+ * same order. A snapshot never changes once published, so any number of
+ * threads may read and iterate it without locks while the table goes on
+ * changing: every count, index and state read from one snapshot agrees
+ * with the others.
+ *
+ * Snapshots published while no node joined or left share the arrays of
+ * keys and ids, so a snapshot after a change of state only copies the
+ * states. The online members are only listed once a reader asks for one.
+ */
+public final class MembershipSnapshot {
+
+	// Snapshot of an empty table
+	static final MembershipSnapshot EMPTY =
+			new MembershipSnapshot(new long[0], new int[0], new byte[0], 0);
+
+	// Members in ascending order of key, with the entry id and state of each
+	private final long[] members;
+	private final int[] ids;
+	private final byte[] states;
+
+	// Number of online (ACTIVE or SUSPECT) members, and those members in
+	// order, listed when first asked for
+	private final int liveCount;
+	private volatile long[] liveMembers;
+
+	/**
+	 * Creates a snapshot owning the given arrays, which must not be
+	 * changed afterwards
+	 * @param members node keys, in ascending order
+	 * @param ids entry id of each node
+	 * @param states state of each node
+	 * @param liveCount number of online nodes
+	 */
+	MembershipSnapshot(long[] members, int[] ids, byte[] states, int liveCount)
+	{
+		this.members = members;
+		this.ids = ids;
+		this.states = states;
+		this.liveCount = liveCount;
+	}
+
+	/**
+	 * Returns the number of nodes in the snapshot
+	 * @return node count
+	 */
+	public int size()
+	{
+		return members.length;
+	}
+
+	/**
+	 * Returns the number of online (ACTIVE or SUSPECT) nodes
+	 * @return online node count
+	 */
+	public int liveCount()
+	{
+		return liveCount;
+	}
+
+	/**
+	 * Returns the requested member, in order
+	 * @param index index of the member
+	 * @return node key
+	 */
+	public long getMember(int index)
+	{
+		return members[index];
+	}
+
+	/**
+	 * Returns the entry id of the requested member, in order. Ids of nodes
+	 * that left since the snapshot was published may have been reused
+	 * @param index index of the member
+	 * @return entry id
+	 */
+	public int getId(int index)
+	{
+		return ids[index];
+	}
+
+	/**
+	 * Returns the state of the requested member, in order
+	 * @param index index of the member
+	 * @return MembershipTable.ACTIVE, SUSPECT or DEAD
+	 */
+	public int getState(int index)
+	{
+		return states[index];
+	}
+
+	/**
+	 * Returns the requested online member, in order
+	 * @param index index of the online member
+	 * @return node key
+	 */
+	public long getLiveMember(int index)
+	{
+		long[] live = liveMembers;
+		if (live == null)
+		{
+			live = listLiveMembers();
+		}
+
+		return live[index];
+	}
+
+	/**
+	 * Lists the online members. Readers racing to list them each list the
+	 * same members, so no lock is needed
+	 * @return online members, in order
+	 */
+	private long[] listLiveMembers()
+	{
+		long[] live = new long[liveCount];
+		int count = 0;
+		for (int member = 0; member < members.length && count < liveCount; member++)
+		{
+			if (states[member] != MembershipTable.DEAD)
+			{
+				live[count++] = members[member];
+			}
+		}
+
+		liveMembers = live;
+		return live;
+	}
+
+	/**
+	 * Returns the IP address of the requested member, in order
+	 * @param index index of the member
+	 * @return dotted-quad IP address
+	 */
+	public String getAddress(int index)
+	{
+		return HACPacket.toDottedQuad(HACPacket.addressOf(members[index]));
+	}
+
+	/**
+	 * Returns the port number of the requested member, in order
+	 * @param index index of the member
+	 * @return port number
+	 */
+	public int getPort(int index)
+	{
+		return HACPacket.portOf(members[index]);
+	}
+
+	/**
+	 * Returns the index of a node, found by binary search of the keys
+	 * @param node node key
+	 * @return index of the node, or -1 if it is not in the snapshot
+	 */
+	public int indexOf(long node)
+	{
+		int index = Arrays.binarySearch(members, node);
+		return index < 0 ? -1 : index;
+	}
+
+	/**
+	 * Reports if a node is in the snapshot
+	 * @param node node key
+	 * @return true if the node is in the snapshot
+	 */
+	public boolean contains(long node)
+	{
+		return indexOf(node) >= 0;
+	}
+
+	/**
+	 * Returns the entry id of a node
+	 * @param node node key
+	 * @return entry id, or -1 if the node is not in the snapshot
+	 */
+	public int idOf(long node)
+	{
+		int index = indexOf(node);
+		return index < 0 ? -1 : ids[index];
+	}
+
+	/**
+	 * Reports if this snapshot shares its keys with another, as snapshots
+	 * published while no node joined or left do
+	 * @param other other snapshot
+	 * @return true if both snapshots hold the same members
+	 */
+	boolean sharesMembers(MembershipSnapshot other)
+	{
+		return members == other.members;
+	}
+
+	/**
+	 * Returns the state of a node
+	 * @param node node key
+	 * @return state of the node, or -1 if the node is not in the snapshot
+	 */
+	public int stateOf(long node)
+	{
+		int index = indexOf(node);
+		return index < 0 ? -1 : states[index];
+	}
+}
@@ -0,0 +1,421 @@
+package hac_backbone;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Persists the membership of a node, so that a restarting node recovers
+ * the nodes it knew, its last known server and its election term at once
+ * rather than waiting to hear from a server. The store is a snapshot
+ * file, written and read through a memory mapping, and an append-only
+ * journal of the changes committed since the snapshot was written:
+ * nodes joining or leaving, and changes of server or term. Each commit
+ * appends its changes with a single write; once the journal holds more
+ * records than the snapshot holds nodes (and at least
+ * MIN_COMPACT_RECORDS), it is compacted into a new snapshot and emptied.
+ *
+ * Snapshots alternate between two files, each holding a generation
+ * number and a checksum, so a compaction never overwrites the newest
+ * valid snapshot and a snapshot torn by a crash is ignored. The journal
+ * is only emptied once its snapshot is forced to disk, and replaying it
+ * again over that snapshot changes nothing, so a crash at any point
+ * recovers the last committed membership. Records written after the
+ * last compaction reach the operating system at each commit but are
+ * not forced to disk; changes lost by a crash of the host are learned
+ * again from the server.
+ *
+ * A store is not thread-safe; a node commits to it holding its
+ * membership table's lock.
+ */
+public class MembershipStore {
+
+	// Marks the files of a store, and the version of their format
+	private static final int SNAPSHOT_MAGIC = 0x4841434D; // "HACM"
+	private static final int JOURNAL_MAGIC = 0x4841434A; // "HACJ"
+	private static final int FORMAT_VERSION = 1;
+
+	// Layout of a snapshot: magic, format version, generation, checksum,
+	// then the checksummed term, server, node count and node keys
+	private static final int GENERATION_OFFSET = 8;
+	private static final int CHECKSUM_OFFSET = 16;
+	private static final int CHECKSUM_START = 24;
+	private static final int SNAPSHOT_HEADER_LENGTH = 44;
+
+	// Layout of the journal: magic and format version, then records of a
+	// kind and a value (a node key, server key or term)
+	private static final int JOURNAL_HEADER_LENGTH = 8;
+	private static final int RECORD_LENGTH = 9;
+
+	// Kinds of journal records other than joins and leaves, which use the
+	// kinds of MembershipJournal
+	private static final byte SERVER = 5;
+	private static final byte TERM = 6;
+
+	// Fewest records the journal holds before it is compacted
+	private static final int MIN_COMPACT_RECORDS = 1024;
+
+	// The two snapshot files, the one a compaction writes next, and the
+	// generation of the newest snapshot written
+	private Path[] snapshotFiles;
+	private int nextSnapshot;
+	private long generation;
+
+	// Journal, the number of records it holds, and the records of a
+	// commit not yet written
+	private FileChannel journal;
+	private int journalRecords;
+	private ByteBuffer pending;
+
+	// Membership, server (-1 if none) and term last committed
+	private MembershipSnapshot committed;
+	private long committedServer;
+	private long committedTerm;
+
+	/**
+	 * Opens a store, creating its files if they do not exist, and
+	 * recovers the membership it holds. The journal is then compacted
+	 * into a new snapshot
+	 * @param directory directory holding the files of the store
+	 * @param name name of the store, prefixing the names of its files
+	 * @throws IOException if the files cannot be read or written, or are
+	 *         not those of a store
+	 */
+	public MembershipStore(Path directory, String name) throws IOException
+	{
+		Files.createDirectories(directory);
+		snapshotFiles = new Path[] {directory.resolve(name + ".snapshot.0"),
+				directory.resolve(name + ".snapshot.1")};
+		pending = ByteBuffer.allocate(64 * RECORD_LENGTH);
+
+		MembershipTable recovered = new MembershipTable();
+		committedServer = -1;
+		generation = 0;
+		for (int file = 0; file < snapshotFiles.length; file++)
+		{
+			if (readSnapshot(snapshotFiles[file], recovered))
+			{
+				nextSnapshot = file ^ 1;
+			}
+		}
+
+		journal = FileChannel.open(directory.resolve(name + ".journal"),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try
+		{
+			replayJournal(recovered);
+			committed = recovered.publish();
+			compact();
+		}
+		catch (IOException ioe)
+		{
+			journal.close();
+			throw ioe;
+		}
+	}
+
+	/**
+	 * Reads a snapshot file through a memory mapping, replacing the
+	 * recovered membership if the snapshot is valid and newer than any
+	 * read before
+	 * @param file snapshot file
+	 * @param recovered membership recovered so far
+	 * @return true if the snapshot was read
+	 * @throws IOException if the file cannot be read, or is not a snapshot
+	 */
+	private boolean readSnapshot(Path file, MembershipTable recovered) throws IOException
+	{
+		if (!Files.exists(file))
+		{
+			return false;
+		}
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			long size = channel.size();
+			if (size < SNAPSHOT_HEADER_LENGTH)
+			{
+				return false; // Torn while first written
+			}
+
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			if (map.getInt(0) != SNAPSHOT_MAGIC)
+			{
+				throw new IOException("Not a membership snapshot: " + file);
+			}
+			if (map.getInt(4) != FORMAT_VERSION)
+			{
+				throw new IOException("Unsupported membership snapshot version " +
+						map.getInt(4) + ": " + file);
+			}
+
+			long snapshotGeneration = map.getLong(GENERATION_OFFSET);
+			int count = map.getInt(SNAPSHOT_HEADER_LENGTH - 4);
+			long length = SNAPSHOT_HEADER_LENGTH + (long) count * 8;
+			if (snapshotGeneration <= generation || count < 0 || length > size)
+			{
+				return false;
+			}
+
+			// Ignore a snapshot torn by a crash
+			ByteBuffer body = map.duplicate();
+			body.position(CHECKSUM_START).limit((int) length);
+			CRC32 checksum = new CRC32();
+			checksum.update(body);
+			if (checksum.getValue() != map.getLong(CHECKSUM_OFFSET))
+			{
+				return false;
+			}
+
+			recovered.clear();
+			map.position(CHECKSUM_START);
+			committedTerm = map.getLong();
+			committedServer = map.getLong();
+			map.getInt();
+			for (int member = 0; member < count; member++)
+			{
+				recovered.add(map.getLong());
+			}
+			generation = snapshotGeneration;
+			return true;
+		}
+	}
+
+	/**
+	 * Applies the records of the journal to the recovered membership,
+	 * ignoring a record torn by a crash
+	 * @param recovered membership recovered from the newest snapshot
+	 * @throws IOException if the journal cannot be read, or is not a journal
+	 */
+	private void replayJournal(MembershipTable recovered) throws IOException
+	{
+		long size = journal.size();
+		if (size < JOURNAL_HEADER_LENGTH)
+		{
+			return; // New journal, written by the first compaction
+		}
+
+		ByteBuffer records = ByteBuffer.allocate((int) size);
+		journal.read(records, 0);
+		records.flip();
+		if (records.getInt() != JOURNAL_MAGIC || records.getInt() != FORMAT_VERSION)
+		{
+			throw new IOException("Not a membership journal of this version");
+		}
+
+		while (records.remaining() >= RECORD_LENGTH)
+		{
+			byte kind = records.get();
+			long value = records.getLong();
+			switch (kind)
+			{
+				case MembershipJournal.JOIN:
+					recovered.add(value);
+					break;
+				case MembershipJournal.LEAVE:
+					recovered.remove(value);
+					break;
+				case SERVER:
+					committedServer = value;
+					break;
+				case TERM:
+					committedTerm = value;
+					break;
+				default:
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Returns the membership recovered when the store was opened, or last
+	 * committed since
+	 * @return snapshot of the nodes, whose ids and states are unspecified
+	 */
+	public MembershipSnapshot getMembers()
+	{
+		return committed;
+	}
+
+	/**
+	 * Returns the server recovered when the store was opened, or last
+	 * committed since
+	 * @return key of the server, or -1 if none is known
+	 */
+	public long getServer()
+	{
+		return committedServer;
+	}
+
+	/**
+	 * Returns the election term recovered when the store was opened, or
+	 * last committed since
+	 * @return election term
+	 */
+	public long getTerm()
+	{
+		return committedTerm;
+	}
+
+	/**
+	 * Appends the changes since the last commit to the journal: nodes
+	 * that joined or left, found by comparing the snapshots in order only
+	 * if any did, and the server and term if they changed. Compacts the
+	 * journal once it holds enough records
+	 * @param members snapshot of the node's membership
+	 * @param term election term of the node
+	 * @param server key of the node's server, or -1 if none is known
+	 * @throws IOException if the journal cannot be written
+	 */
+	public void commit(MembershipSnapshot members, long term, long server) throws IOException
+	{
+		pending.clear();
+		if (!members.sharesMembers(committed))
+		{
+			appendMemberChanges(members);
+		}
+		if (term != committedTerm)
+		{
+			append(TERM, term);
+		}
+		if (server != committedServer)
+		{
+			append(SERVER, server);
+		}
+
+		committed = members;
+		committedTerm = term;
+		committedServer = server;
+		if (pending.position() == 0)
+		{
+			return;
+		}
+
+		journalRecords += pending.position() / RECORD_LENGTH;
+		pending.flip();
+		while (pending.hasRemaining())
+		{
+			journal.write(pending);
+		}
+
+		if (journalRecords > Math.max(MIN_COMPACT_RECORDS, committed.size()))
+		{
+			compact();
+		}
+	}
+
+	/**
+	 * Appends a record of each node that joined or left since the last
+	 * commit, merging the ordered keys of both snapshots
+	 * @param members snapshot of the node's membership
+	 */
+	private void appendMemberChanges(MembershipSnapshot members)
+	{
+		int old = 0;
+		int current = 0;
+		while (old < committed.size() || current < members.size())
+		{
+			if (current == members.size() ||
+					(old < committed.size() && committed.getMember(old) < members.getMember(current)))
+			{
+				append(MembershipJournal.LEAVE, committed.getMember(old++));
+			}
+			else if (old == committed.size() || members.getMember(current) < committed.getMember(old))
+			{
+				append(MembershipJournal.JOIN, members.getMember(current++));
+			}
+			else
+			{
+				old++;
+				current++;
+			}
+		}
+	}
+
+	/**
+	 * Appends a record to the pending records, growing them if needed
+	 * @param kind kind of record
+	 * @param value node key, server key or term
+	 */
+	private void append(byte kind, long value)
+	{
+		if (pending.remaining() < RECORD_LENGTH)
+		{
+			ByteBuffer grown = ByteBuffer.allocate(pending.capacity() * 2);
+			pending.flip();
+			grown.put(pending);
+			pending = grown;
+		}
+
+		pending.put(kind).putLong(value);
+	}
+
+	/**
+	 * Writes the last committed membership, server and term to the older
+	 * snapshot file through a memory mapping, forces it to disk, then
+	 * empties the journal
+	 * @throws IOException if the snapshot or journal cannot be written
+	 */
+	public void compact() throws IOException
+	{
+		int count = committed.size();
+		int length = SNAPSHOT_HEADER_LENGTH + count * 8;
+		try (FileChannel channel = FileChannel.open(snapshotFiles[nextSnapshot],
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			// A longer file left by an earlier snapshot is not truncated, as
+			// a mapped file may not be on some platforms; the count bounds it
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+			map.position(CHECKSUM_START);
+			map.putLong(committedTerm);
+			map.putLong(committedServer);
+			map.putInt(count);
+			for (int member = 0; member < count; member++)
+			{
+				map.putLong(committed.getMember(member));
+			}
+
+			ByteBuffer body = map.duplicate();
+			body.position(CHECKSUM_START).limit(length);
+			CRC32 checksum = new CRC32();
+			checksum.update(body);
+
+			map.putInt(0, SNAPSHOT_MAGIC);
+			map.putInt(4, FORMAT_VERSION);
+			map.putLong(GENERATION_OFFSET, generation + 1);
+			map.putLong(CHECKSUM_OFFSET, checksum.getValue());
+			map.force();
+		}
+		generation++;
+		nextSnapshot ^= 1;
+
+		// Only empty the journal once its changes are in a forced snapshot
+		ByteBuffer header = ByteBuffer.allocate(JOURNAL_HEADER_LENGTH);
+		header.putInt(JOURNAL_MAGIC).putInt(FORMAT_VERSION).flip();
+		journal.truncate(JOURNAL_HEADER_LENGTH);
+		journal.write(header, 0);
+		journal.position(JOURNAL_HEADER_LENGTH);
+		journalRecords = 0;
+	}
+
+	/**
+	 * Compacts the journal and closes the store
+	 * @throws IOException if the store cannot be written
+	 */
+	public void close() throws IOException
+	{
+		try
+		{
+			compact();
+		}
+		finally
+		{
+			journal.close();
+		}
+	}
+}
@@ -0,0 +1,642 @@
+package hac_backbone;
+
+import java.util.Arrays;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * Membership table of a HAC node. Nodes are keyed by a primitive long
+ * packing their IPv4 address and port (see HACPacket.packNode) and are
+ * held in an open-addressing hash table with linear probing, so looking
+ * up the node a packet was received from takes constant time and
+ * allocates nothing. Each slot holds the key of a node along with its
+ * entry id and its state (ACTIVE, SUSPECT or DEAD).
+ *
+ * Entry ids are stable while a node remains in the table, so callers may
+ * keep additional per-node information in arrays indexed by id.
+ *
+ * Members are also held in an ordered index over their keys, so they are
+ * always in ascending numerical order of address, then port, without
+ * being re-sorted. Joining or leaving costs O(log n); the indexed views
+ * used by HAC's getters are rebuilt from the index only after a change.
+ *
+ * The table itself is not thread-safe: it is changed by one thread at a
+ * time, which publishes an immutable snapshot of it once a batch of
+ * changes is made (see publish). Other threads only read the last
+ * published snapshot (see getSnapshot), so they never lock the table or
+ * see it half changed. A publication copies the states of the members,
+ * and their keys only if a node joined or left, so a table of thousands
+ * of nodes may publish tens of thousands of times per second.
+ */
+public class MembershipTable {
+
+	// States of a node. ACTIVE and SUSPECT nodes are considered online
+	public static final int DEAD = 0;
+	public static final int SUSPECT = 1;
+	public static final int ACTIVE = 2;
+
+	// Marks an empty slot. Node keys use 48 bits, so are never negative
+	private static final long EMPTY = -1L;
+
+	// Number of low bits of a slot value holding the state of the node
+	private static final int STATE_BITS = 2;
+	private static final int STATE_MASK = (1 << STATE_BITS) - 1;
+
+	// Initial number of slots, always a power of two
+	private static final int INITIAL_SLOTS = 16;
+
+	// Most nodes joining or leaving between two builds of the arrays of
+	// members that are merged into the previous arrays; beyond this many,
+	// the arrays are built again from the ordered index
+	private static final int MAX_PENDING = 64;
+
+	// Hash table slots. Each value packs an entry id and a state
+	private long[] slotKeys;
+	private int[] slotValues;
+	private int mask;
+
+	// Number of nodes, and of those the number that are online
+	private int size;
+	private int liveCount;
+
+	// Ordered index of all members, and the same members as arrays for
+	// indexed access, with the entry id and state of each, rebuilt when
+	// requested after a node joins or leaves. The arrays of keys and ids
+	// are never changed once built, so published snapshots share them
+	private NavigableSet<Long> orderedMembers;
+	private long[] members;
+	private int[] memberIds;
+	private byte[] memberStates;
+	private boolean membersValid;
+
+	// Nodes that joined or left since the arrays of members were built
+	private long[] pendingNodes;
+	private int pendingCount;
+
+	// Entry ids released by removed nodes, reused by new nodes
+	private int[] freeIds;
+	private int freeCount;
+	private int nextId;
+
+	// Online members in order, rebuilt when requested after a change
+	private long[] liveMembers;
+	private boolean liveMembersValid;
+
+	// Last published snapshot, read by other threads, and whether the
+	// table changed since it was published
+	private volatile MembershipSnapshot snapshot;
+	private boolean snapshotValid;
+
+	public MembershipTable()
+	{
+		slotKeys = new long[INITIAL_SLOTS];
+		slotValues = new int[INITIAL_SLOTS];
+		Arrays.fill(slotKeys, EMPTY);
+		mask = INITIAL_SLOTS - 1;
+		orderedMembers = new TreeSet<>();
+		members = new long[0];
+		memberIds = new int[0];
+		memberStates = new byte[INITIAL_SLOTS];
+		membersValid = true;
+		pendingNodes = new long[MAX_PENDING];
+		freeIds = new int[INITIAL_SLOTS];
+		liveMembers = new long[INITIAL_SLOTS];
+		liveMembersValid = true;
+		snapshot = MembershipSnapshot.EMPTY;
+		snapshotValid = true;
+	}
+
+	/**
+	 * Returns the entry id of a node
+	 * @param node node key
+	 * @return entry id, or -1 if the node is not in the table
+	 */
+	public int idOf(long node)
+	{
+		int slot = slotOf(node);
+		return slot < 0 ? -1 : slotValues[slot] >>> STATE_BITS;
+	}
+
+	/**
+	 * Returns the state of a node
+	 * @param node node key
+	 * @return state of the node, or -1 if the node is not in the table
+	 */
+	public int stateOf(long node)
+	{
+		int slot = slotOf(node);
+		return slot < 0 ? -1 : slotValues[slot] & STATE_MASK;
+	}
+
+	/**
+	 * Reports if a node is in the table
+	 * @param node node key
+	 * @return true if the node is in the table
+	 */
+	public boolean contains(long node)
+	{
+		return slotOf(node) >= 0;
+	}
+
+	/**
+	 * Adds a node to the table as DEAD, if not already present
+	 * @param node node key
+	 * @return entry id of the node
+	 */
+	public int add(long node)
+	{
+		int slot = slotOf(node);
+		if (slot >= 0)
+		{
+			return slotValues[slot] >>> STATE_BITS;
+		}
+
+		// Keep the load factor at or below one half
+		if ((size + 1) * 2 > slotKeys.length)
+		{
+			resize(slotKeys.length * 2);
+		}
+
+		int id = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+
+		slot = emptySlotFor(node);
+		slotKeys[slot] = node;
+		slotValues[slot] = (id << STATE_BITS) | DEAD;
+		size++;
+
+		orderedMembers.add(node);
+		markPending(node);
+
+		return id;
+	}
+
+	/**
+	 * Sets the state of a node already in the table
+	 * @param node node key
+	 * @param state new state of the node
+	 * @return true if the state of the node changed
+	 */
+	public boolean setState(long node, int state)
+	{
+		int slot = slotOf(node);
+		if (slot < 0)
+		{
+			return false;
+		}
+
+		int oldState = slotValues[slot] & STATE_MASK;
+		if (oldState == state)
+		{
+			return false;
+		}
+
+		slotValues[slot] = (slotValues[slot] & ~STATE_MASK) | state;
+
+		// Keep the states of the arrays of members current, as they are
+		// merged into the next arrays after a node joins or leaves
+		int position = Arrays.binarySearch(members, node);
+		if (position >= 0)
+		{
+			memberStates[position] = (byte) state;
+		}
+		snapshotValid = false;
+		if (oldState == DEAD)
+		{
+			liveCount++;
+			liveMembersValid = false;
+		}
+		else if (state == DEAD)
+		{
+			liveCount--;
+			liveMembersValid = false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Sets the state of every node in the table to DEAD
+	 */
+	public void setAllDead()
+	{
+		for (int slot = 0; slot < slotKeys.length; slot++)
+		{
+			if (slotKeys[slot] != EMPTY)
+			{
+				slotValues[slot] &= ~STATE_MASK;
+			}
+		}
+
+		Arrays.fill(memberStates, (byte) DEAD);
+		liveCount = 0;
+		liveMembersValid = false;
+		snapshotValid = false;
+	}
+
+	/**
+	 * Removes a node from the table
+	 * @param node node key
+	 * @return true if the node was in the table
+	 */
+	public boolean remove(long node)
+	{
+		int slot = slotOf(node);
+		if (slot < 0)
+		{
+			return false;
+		}
+
+		int id = slotValues[slot] >>> STATE_BITS;
+		if ((slotValues[slot] & STATE_MASK) != DEAD)
+		{
+			liveCount--;
+		}
+
+		orderedMembers.remove(node);
+		markPending(node);
+		liveMembersValid = false;
+		size--;
+
+		if (freeCount == freeIds.length)
+		{
+			freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+		}
+		freeIds[freeCount++] = id;
+
+		deleteSlot(slot);
+		return true;
+	}
+
+	/**
+	 * Removes every node from the table
+	 */
+	public void clear()
+	{
+		Arrays.fill(slotKeys, EMPTY);
+		orderedMembers.clear();
+		size = 0;
+		liveCount = 0;
+		freeCount = 0;
+		nextId = 0;
+		members = new long[0];
+		memberIds = new int[0];
+		membersValid = true;
+		pendingCount = 0;
+		liveMembersValid = true;
+		snapshotValid = false;
+	}
+
+	/**
+	 * Returns the number of nodes in the table
+	 * @return node count
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Returns the number of online (ACTIVE or SUSPECT) nodes
+	 * @return online node count
+	 */
+	public int liveCount()
+	{
+		return liveCount;
+	}
+
+	/**
+	 * Returns one more than the largest entry id in use, for sizing
+	 * arrays indexed by entry id
+	 * @return entry id capacity
+	 */
+	public int idCapacity()
+	{
+		return nextId;
+	}
+
+	/**
+	 * Returns the member following a node in order, whether or not that
+	 * node is itself a member, wrapping around to the first member
+	 * @param node node key
+	 * @return key of the following member, or -1 if the table is empty
+	 */
+	public long nextMember(long node)
+	{
+		Long next = orderedMembers.higher(node);
+		if (next == null)
+		{
+			return orderedMembers.isEmpty() ? -1 : orderedMembers.first();
+		}
+
+		return next;
+	}
+
+	/**
+	 * Returns the requested member of the table, in order
+	 * @param index index of the member
+	 * @return node key
+	 */
+	public long getMember(int index)
+	{
+		if (index < 0 || index >= size)
+		{
+			throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+		}
+
+		if (!membersValid)
+		{
+			rebuildMembers();
+		}
+
+		return members[index];
+	}
+
+	/**
+	 * Returns the requested online member of the table, in order
+	 * @param index index of the online member
+	 * @return node key
+	 */
+	public long getLiveMember(int index)
+	{
+		if (index < 0 || index >= liveCount)
+		{
+			throw new IndexOutOfBoundsException("Index " + index + ", size " + liveCount);
+		}
+
+		if (!liveMembersValid)
+		{
+			rebuildLiveMembers();
+		}
+
+		return liveMembers[index];
+	}
+
+	/**
+	 * Publishes a snapshot of the table for readers on other threads, if
+	 * the table changed since the last one was published. Must be called
+	 * by the thread changing the table, once it has made a batch of
+	 * changes
+	 * @return the published snapshot
+	 */
+	public MembershipSnapshot publish()
+	{
+		if (!snapshotValid)
+		{
+			if (!membersValid)
+			{
+				rebuildMembers();
+			}
+
+			snapshot = new MembershipSnapshot(members, memberIds,
+					Arrays.copyOf(memberStates, size), liveCount);
+			snapshotValid = true;
+		}
+
+		return snapshot;
+	}
+
+	/**
+	 * Returns the last published snapshot of the table. May be called
+	 * from any thread
+	 * @return published snapshot
+	 */
+	public MembershipSnapshot getSnapshot()
+	{
+		return snapshot;
+	}
+
+	/**
+	 * Records a node that joined or left, to be merged into the arrays of
+	 * members when they are next built
+	 * @param node key of the node
+	 */
+	private void markPending(long node)
+	{
+		if (pendingCount < pendingNodes.length)
+		{
+			pendingNodes[pendingCount] = node;
+		}
+		pendingCount++;
+		membersValid = false;
+		snapshotValid = false;
+	}
+
+	/**
+	 * Rebuilds the arrays of members, their ids and their states, merging
+	 * the nodes that joined or left into the previous arrays, or from the
+	 * ordered index if too many did. The arrays of keys and ids may be
+	 * shared with published snapshots, so new ones are made
+	 */
+	private void rebuildMembers()
+	{
+		long[] oldMembers = members;
+		int[] oldIds = memberIds;
+		byte[] oldStates = memberStates;
+
+		members = new long[size];
+		memberIds = new int[size];
+		memberStates = new byte[Math.max(size, oldStates.length)];
+
+		int position = 0;
+		if (pendingCount > pendingNodes.length)
+		{
+			for (long node : orderedMembers)
+			{
+				position = copyMember(node, position);
+			}
+		}
+		else
+		{
+			Arrays.sort(pendingNodes, 0, pendingCount);
+			int old = 0;
+			int pending = 0;
+			while (pending < pendingCount)
+			{
+				long node = pendingNodes[pending];
+
+				// Members ordered before the node neither joined nor left,
+				// so they are copied as a run
+				int end = Arrays.binarySearch(oldMembers, old, oldMembers.length, node);
+				int runEnd = end < 0 ? -end - 1 : end;
+				position = copyRun(oldMembers, oldIds, oldStates, old, runEnd, position);
+				old = end < 0 ? runEnd : end + 1;
+
+				// Look up a node that joined or left, once
+				while (pending < pendingCount && pendingNodes[pending] == node)
+				{
+					pending++;
+				}
+				if (slotOf(node) >= 0)
+				{
+					position = copyMember(node, position);
+				}
+			}
+			copyRun(oldMembers, oldIds, oldStates, old, oldMembers.length, position);
+		}
+
+		pendingCount = 0;
+		membersValid = true;
+	}
+
+	/**
+	 * Copies a run of members, with their ids and states, from previous
+	 * arrays of members into the arrays of members
+	 * @param oldMembers previous node keys
+	 * @param oldIds previous entry ids
+	 * @param oldStates previous states
+	 * @param from index of the first member of the run
+	 * @param to index following the last member of the run
+	 * @param position index of the run in the arrays
+	 * @return index following the run
+	 */
+	private int copyRun(long[] oldMembers, int[] oldIds, byte[] oldStates,
+			int from, int to, int position)
+	{
+		int length = to - from;
+		System.arraycopy(oldMembers, from, members, position, length);
+		System.arraycopy(oldIds, from, memberIds, position, length);
+		System.arraycopy(oldStates, from, memberStates, position, length);
+		return position + length;
+	}
+
+	/**
+	 * Copies a node in the table, with its id and state, into the arrays
+	 * of members
+	 * @param node key of the node
+	 * @param position index of the node in the arrays
+	 * @return index following the node
+	 */
+	private int copyMember(long node, int position)
+	{
+		int value = slotValues[slotOf(node)];
+		members[position] = node;
+		memberIds[position] = value >>> STATE_BITS;
+		memberStates[position] = (byte) (value & STATE_MASK);
+		return position + 1;
+	}
+
+	/**
+	 * Rebuilds the array of online members from the array of all members
+	 */
+	private void rebuildLiveMembers()
+	{
+		if (!membersValid)
+		{
+			rebuildMembers();
+		}
+
+		if (liveMembers.length < liveCount)
+		{
+			liveMembers = new long[Math.max(liveCount, liveMembers.length * 2)];
+		}
+
+		int live = 0;
+		for (int position = 0; position < size; position++)
+		{
+			if (memberStates[position] != DEAD)
+			{
+				liveMembers[live++] = members[position];
+			}
+		}
+		liveMembersValid = true;
+	}
+
+	/**
+	 * Returns the slot holding a node
+	 * @param node node key
+	 * @return slot index, or -1 if the node is not in the table
+	 */
+	private int slotOf(long node)
+	{
+		int slot = hash(node) & mask;
+		while (slotKeys[slot] != EMPTY)
+		{
+			if (slotKeys[slot] == node)
+			{
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Returns the first empty slot on the probe sequence of a node
+	 * @param node node key
+	 * @return slot index
+	 */
+	private int emptySlotFor(long node)
+	{
+		int slot = hash(node) & mask;
+		while (slotKeys[slot] != EMPTY)
+		{
+			slot = (slot + 1) & mask;
+		}
+
+		return slot;
+	}
+
+	/**
+	 * Empties a slot, shifting back any following entries of the probe
+	 * sequence so that no lookup stops early at the emptied slot
+	 * @param slot slot to be emptied
+	 */
+	private void deleteSlot(int slot)
+	{
+		int empty = slot;
+		int next = (slot + 1) & mask;
+		while (slotKeys[next] != EMPTY)
+		{
+			int home = hash(slotKeys[next]) & mask;
+
+			// Move the entry back if its home slot is not between the
+			// emptied slot and its current slot
+			if (((next - home) & mask) >= ((next - empty) & mask))
+			{
+				slotKeys[empty] = slotKeys[next];
+				slotValues[empty] = slotValues[next];
+				empty = next;
+			}
+			next = (next + 1) & mask;
+		}
+
+		slotKeys[empty] = EMPTY;
+	}
+
+	/**
+	 * Rehashes every node into a table with the requested number of slots
+	 * @param slots new number of slots, a power of two
+	 */
+	private void resize(int slots)
+	{
+		long[] oldKeys = slotKeys;
+		int[] oldValues = slotValues;
+
+		slotKeys = new long[slots];
+		slotValues = new int[slots];
+		Arrays.fill(slotKeys, EMPTY);
+		mask = slots - 1;
+
+		for (int slot = 0; slot < oldKeys.length; slot++)
+		{
+			if (oldKeys[slot] != EMPTY)
+			{
+				int newSlot = emptySlotFor(oldKeys[slot]);
+				slotKeys[newSlot] = oldKeys[slot];
+				slotValues[newSlot] = oldValues[slot];
+			}
+		}
+	}
+
+	/**
+	 * Spreads the bits of a node key over the low bits used for indexing
+	 * @param node node key
+	 * @return hash of the key
+	 */
+	private static int hash(long node)
+	{
+		long mixed = node * 0x9E3779B97F4A7C15L;
+		return (int) (mixed ^ (mixed >>> 32));
+	}
+}
@@ -0,0 +1,101 @@
+package hac_backbone;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations, in milliseconds, with fixed cumulative buckets
+ * as exported to Prometheus. Every bucket, the sum and the count are
+ * striped counters (LongAdder), so threads recording at once never
+ * contend on a single value.
+ */
+public class MetricHistogram {
+
+	// Upper bounds of the buckets, in milliseconds. A last bucket holds
+	// every larger value
+	private static final long[] BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500,
+			1000, 2000, 5000, 10000, 30000, 60000};
+
+	private LongAdder[] buckets;
+	private LongAdder sum;
+	private LongAdder count;
+
+	public MetricHistogram()
+	{
+		buckets = new LongAdder[BOUNDS.length + 1];
+		for (int bucket = 0; bucket < buckets.length; bucket++)
+		{
+			buckets[bucket] = new LongAdder();
+		}
+		sum = new LongAdder();
+		count = new LongAdder();
+	}
+
+	/**
+	 * Records a duration
+	 * @param millis duration in milliseconds, at least zero
+	 */
+	public void record(long millis)
+	{
+		int bucket = 0;
+		while (bucket < BOUNDS.length && millis > BOUNDS[bucket])
+		{
+			bucket++;
+		}
+
+		buckets[bucket].increment();
+		sum.add(millis);
+		count.increment();
+	}
+
+	/**
+	 * Returns the number of durations recorded
+	 * @return count of durations
+	 */
+	public long getCount()
+	{
+		return count.sum();
+	}
+
+	/**
+	 * Returns the sum of the durations recorded
+	 * @return sum in milliseconds
+	 */
+	public long getSum()
+	{
+		return sum.sum();
+	}
+
+	/**
+	 * Returns the mean of the durations recorded
+	 * @return mean in milliseconds, 0 if none were recorded
+	 */
+	public double getMean()
+	{
+		long recorded = count.sum();
+		return recorded == 0 ? 0 : (double) sum.sum() / recorded;
+	}
+
+	/**
+	 * Appends the histogram in the Prometheus text format
+	 * @param out text being built
+	 * @param name metric name
+	 * @param labels labels of the series, such as node="10.0.0.1:9876"
+	 */
+	public void writePrometheus(StringBuilder out, String name, String labels)
+	{
+		long cumulative = 0;
+		for (int bucket = 0; bucket < BOUNDS.length; bucket++)
+		{
+			cumulative += buckets[bucket].sum();
+			out.append(name).append("_bucket{").append(labels).append(",le=\"")
+					.append(BOUNDS[bucket]).append("\"} ").append(cumulative).append('\n');
+		}
+		cumulative += buckets[BOUNDS.length].sum();
+		out.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ")
+				.append(cumulative).append('\n');
+		out.append(name).append("_sum{").append(labels).append("} ")
+				.append(sum.sum()).append('\n');
+		out.append(name).append("_count{").append(labels).append("} ")
+				.append(cumulative).append('\n');
+	}
+}
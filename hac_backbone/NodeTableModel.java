@@ -0,0 +1,232 @@
+package hac_backbone;
+
+import java.util.Arrays;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * Table model of the GUI-based node list, backed by a snapshot of the
+ * nodes known to a HAC node and their states. A new snapshot is merged
+ * into the rows in a single pass, as both are in ascending order of node
+ * key, and only the rows of nodes that were added, removed or changed
+ * state are reported to the table, in contiguous ranges. A snapshot
+ * changing too many ranges at once is reported as a single change of the
+ * whole table, which repaints faster than thousands of small events.
+ *
+ * Like every Swing model, it is only used on the event dispatch thread.
+ */
+public class NodeTableModel extends AbstractTableModel {
+
+	private static final long serialVersionUID = 1L;
+
+	// Most row ranges reported for a single snapshot before the whole
+	// table is reported changed instead
+	private static final int MAX_ROW_EVENTS = 64;
+
+	private static final String[] COLUMN_NAMES = {"IP Address",
+												  "Port Number",
+												  "Status"};
+
+	// Rows: node keys, in ascending order, and states
+	private long[] rowKeys;
+	private int[] rowStates;
+	private int rowCount;
+
+	// Key of the observed node, reported as local
+	private long localNode;
+
+	/**
+	 * Creates an empty model
+	 * @param localNode key of the observed node
+	 */
+	public NodeTableModel(long localNode)
+	{
+		this.localNode = localNode;
+		rowKeys = new long[16];
+		rowStates = new int[16];
+	}
+
+	/**
+	 * Returns the number of rows
+	 * @return number of nodes in the table
+	 */
+	public int getRowCount()
+	{
+		return rowCount;
+	}
+
+	/**
+	 * Returns the number of columns
+	 * @return number of columns
+	 */
+	public int getColumnCount()
+	{
+		return COLUMN_NAMES.length;
+	}
+
+	/**
+	 * Returns the name of a column
+	 * @param column index of the column
+	 * @return column name
+	 */
+	public String getColumnName(int column)
+	{
+		return COLUMN_NAMES[column];
+	}
+
+	/**
+	 * Returns the value of a cell. Addresses are formatted as the cell is
+	 * drawn, so only visible rows are ever formatted
+	 * @param row index of the row
+	 * @param column index of the column
+	 * @return IP address, port number or status of the row's node
+	 */
+	public Object getValueAt(int row, int column)
+	{
+		long node = rowKeys[row];
+		switch (column)
+		{
+			case 0:
+				return HACPacket.toDottedQuad(HACPacket.addressOf(node));
+			case 1:
+				return HACPacket.portOf(node);
+			default:
+				return HACNodeWindow.statusOf(rowStates[row], node == localNode);
+		}
+	}
+
+	/**
+	 * Merges a snapshot of the nodes into the rows, reporting only the
+	 * rows that changed
+	 * @param keys node keys, in ascending order
+	 * @param states state of each node (see MembershipTable)
+	 * @param count number of nodes in the snapshot
+	 */
+	public void apply(long[] keys, int[] states, int count)
+	{
+		if (countRowEvents(keys, states, count) > MAX_ROW_EVENTS)
+		{
+			rowKeys = Arrays.copyOf(keys, Math.max(count, 16));
+			rowStates = Arrays.copyOf(states, Math.max(count, 16));
+			rowCount = count;
+			fireTableDataChanged();
+			return;
+		}
+
+		int row = 0;
+		int next = 0;
+		while (row < rowCount || next < count)
+		{
+			if (next == count || (row < rowCount && rowKeys[row] < keys[next]))
+			{
+				// Remove the run of rows of nodes no longer known
+				int end = row + 1;
+				while (end < rowCount && (next == count || rowKeys[end] < keys[next]))
+				{
+					end++;
+				}
+				System.arraycopy(rowKeys, end, rowKeys, row, rowCount - end);
+				System.arraycopy(rowStates, end, rowStates, row, rowCount - end);
+				rowCount -= end - row;
+				fireTableRowsDeleted(row, end - 1);
+			}
+			else if (row == rowCount || keys[next] < rowKeys[row])
+			{
+				// Insert the run of newly known nodes
+				int end = next + 1;
+				while (end < count && (row == rowCount || keys[end] < rowKeys[row]))
+				{
+					end++;
+				}
+				int inserted = end - next;
+				ensureCapacity(rowCount + inserted);
+				System.arraycopy(rowKeys, row, rowKeys, row + inserted, rowCount - row);
+				System.arraycopy(rowStates, row, rowStates, row + inserted, rowCount - row);
+				System.arraycopy(keys, next, rowKeys, row, inserted);
+				System.arraycopy(states, next, rowStates, row, inserted);
+				rowCount += inserted;
+				fireTableRowsInserted(row, row + inserted - 1);
+				row += inserted;
+				next = end;
+			}
+			else
+			{
+				// Update the run of nodes whose state changed
+				int first = row;
+				while (row < rowCount && next < count && rowKeys[row] == keys[next] &&
+						rowStates[row] != states[next])
+				{
+					rowStates[row] = states[next];
+					row++;
+					next++;
+				}
+				if (row > first)
+				{
+					fireTableRowsUpdated(first, row - 1);
+				}
+				else
+				{
+					row++;
+					next++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Counts the row ranges a snapshot would report, stopping once the
+	 * count exceeds MAX_ROW_EVENTS
+	 * @param keys node keys, in ascending order
+	 * @param states state of each node
+	 * @param count number of nodes in the snapshot
+	 * @return number of row ranges, or more than MAX_ROW_EVENTS
+	 */
+	private int countRowEvents(long[] keys, int[] states, int count)
+	{
+		int events = 0;
+		int previous = 0; // Kind of the previous row: 0 same, 1 removed, 2 added, 3 changed
+		int row = 0;
+		int next = 0;
+		while ((row < rowCount || next < count) && events <= MAX_ROW_EVENTS)
+		{
+			int kind;
+			if (next == count || (row < rowCount && rowKeys[row] < keys[next]))
+			{
+				kind = 1;
+				row++;
+			}
+			else if (row == rowCount || keys[next] < rowKeys[row])
+			{
+				kind = 2;
+				next++;
+			}
+			else
+			{
+				kind = rowStates[row] != states[next] ? 3 : 0;
+				row++;
+				next++;
+			}
+
+			if (kind != 0 && kind != previous)
+			{
+				events++;
+			}
+			previous = kind;
+		}
+
+		return events;
+	}
+
+	/**
+	 * Grows the rows to hold the given number of nodes
+	 * @param capacity number of rows needed
+	 */
+	private void ensureCapacity(int capacity)
+	{
+		if (capacity > rowKeys.length)
+		{
+			int length = Math.max(capacity, rowKeys.length * 2);
+			rowKeys = Arrays.copyOf(rowKeys, length);
+			rowStates = Arrays.copyOf(rowStates, length);
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package hac_backbone;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Splits binary HAC packets that do not fit in a single datagram into
+ * fragments, and reassembles received fragments into whole packets.
+ * Each fragment stays under the path MTU and carries the id of the
+ * message it belongs to, its index and the number of fragments in the
+ * message. Partially received messages are held in a bounded cache,
+ * keyed by sender and message id so messages of a sender that overlap
+ * in flight are reassembled side by side, and discarded once they time
+ * out.
+ *
+ * Fragment layout (big endian, 12 byte header):
+ *   magic (2) | version (1) | type (1) | messageId (4) |
+ *   index (2) | count (2) | payload
+ */
+public class PacketFragmenter {
+
+	// Largest datagram sent, leaving room for IP/UDP headers (and any
+	// tunnel overhead) within a 1500 byte Ethernet MTU
+	public static final int MAX_DATAGRAM_LENGTH = 1400;
+
+	// Length of the fragment header, in bytes
+	public static final int FRAGMENT_HEADER_LENGTH = 12;
+
+	// Largest payload carried by a single fragment
+	public static final int MAX_PAYLOAD_LENGTH = MAX_DATAGRAM_LENGTH - FRAGMENT_HEADER_LENGTH;
+
+	// Largest number of fragments a message may be split into
+	public static final int MAX_FRAGMENTS = 1024;
+
+	// Largest number of messages reassembled at once
+	private static final int MAX_PENDING_MESSAGES = 16;
+
+	// Time after which a partially received message is discarded
+	private static final long REASSEMBLY_TIMEOUT = 5 * 1000;
+
+	// Messages being reassembled, keyed by sender and message id, least
+	// recently received from first
+	private Map<MessageKey, Reassembly> pending;
+
+	// Key reused to look messages up, so only new messages allocate one
+	private MessageKey lookupKey;
+
+	public PacketFragmenter()
+	{
+		pending = new LinkedHashMap<MessageKey, Reassembly>(MAX_PENDING_MESSAGES, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<MessageKey, Reassembly> eldest)
+			{
+				return size() > MAX_PENDING_MESSAGES;
+			}
+		};
+		lookupKey = new MessageKey(0, 0);
+	}
+
+	/**
+	 * Returns the number of fragments a packet of the given length is
+	 * split into, or 1 if it fits in a single datagram
+	 * @param packetLength length of the packet in bytes
+	 * @return fragment count
+	 */
+	public static int fragmentCount(int packetLength)
+	{
+		if (packetLength <= MAX_DATAGRAM_LENGTH)
+		{
+			return 1;
+		}
+
+		return (packetLength + MAX_PAYLOAD_LENGTH - 1) / MAX_PAYLOAD_LENGTH;
+	}
+
+	/**
+	 * Writes a single fragment of a packet into the buffer at its current
+	 * position
+	 * @param fragment buffer to write the fragment into
+	 * @param packet buffer holding the whole packet from index zero
+	 * @param packetLength length of the whole packet
+	 * @param messageId id shared by all fragments of the packet
+	 * @param index index of the fragment to write
+	 * @param count number of fragments of the packet
+	 */
+	public static void writeFragment(ByteBuffer fragment, ByteBuffer packet, int packetLength,
+			int messageId, int index, int count)
+	{
+		int offset = index * MAX_PAYLOAD_LENGTH;
+		int payloadLength = Math.min(MAX_PAYLOAD_LENGTH, packetLength - offset);
+
+		fragment.putShort(HACPacket.MAGIC);
+		fragment.put(HACPacket.VERSION);
+		fragment.put(HACPacket.TYPE_FRAGMENT);
+		fragment.putInt(messageId);
+		fragment.putShort((short) index);
+		fragment.putShort((short) count);
+		fragment.put(fragment.position(), packet, offset, payloadLength);
+		fragment.position(fragment.position() + payloadLength);
+	}
+
+	/**
+	 * Reports if the buffer, starting at its current position, holds a
+	 * fragment rather than a whole packet
+	 * @param buffer buffer holding a received datagram
+	 * @return true if the datagram is a fragment
+	 */
+	public static boolean isFragment(ByteBuffer buffer)
+	{
+		return buffer.remaining() >= FRAGMENT_HEADER_LENGTH &&
+				buffer.getShort(buffer.position()) == HACPacket.MAGIC &&
+				buffer.get(buffer.position() + 3) == HACPacket.TYPE_FRAGMENT;
+	}
+
+	/**
+	 * Adds a received fragment to the message it belongs to
+	 * @param sender key of the node that sent the fragment
+	 * @param fragment buffer holding the received fragment
+	 * @param now current time in milliseconds
+	 * @return buffer holding the whole packet once its final missing
+	 *         fragment is received, otherwise null
+	 */
+	public ByteBuffer accept(long sender, ByteBuffer fragment, long now)
+	{
+		discardExpired(now);
+
+		int start = fragment.position();
+		int messageId = fragment.getInt(start + 4);
+		int index = fragment.getShort(start + 8) & 0xFFFF;
+		int count = fragment.getShort(start + 10) & 0xFFFF;
+		int payloadLength = fragment.remaining() - FRAGMENT_HEADER_LENGTH;
+
+		// Drop fragments that could not belong to a valid message
+		if (count < 1 || count > MAX_FRAGMENTS || index >= count ||
+				payloadLength > MAX_PAYLOAD_LENGTH ||
+				(index < count - 1 && payloadLength != MAX_PAYLOAD_LENGTH))
+		{
+			return null;
+		}
+
+		lookupKey.sender = sender;
+		lookupKey.messageId = messageId;
+		Reassembly message = pending.get(lookupKey);
+		if (message == null || message.received.length != count)
+		{
+			message = new Reassembly(count, now);
+			pending.put(new MessageKey(sender, messageId), message);
+		}
+
+		if (!message.received[index])
+		{
+			fragment.position(start + FRAGMENT_HEADER_LENGTH);
+			fragment.get(message.data, index * MAX_PAYLOAD_LENGTH, payloadLength);
+			message.received[index] = true;
+			message.receivedCount++;
+
+			if (index == count - 1)
+			{
+				message.length = index * MAX_PAYLOAD_LENGTH + payloadLength;
+			}
+		}
+
+		if (message.receivedCount < count)
+		{
+			return null;
+		}
+
+		pending.remove(lookupKey);
+		return ByteBuffer.wrap(message.data, 0, message.length);
+	}
+
+	/**
+	 * Discards every partially received message that has timed out
+	 * @param now current time in milliseconds
+	 */
+	private void discardExpired(long now)
+	{
+		Iterator<Reassembly> messages = pending.values().iterator();
+		while (messages.hasNext())
+		{
+			if (now - messages.next().started > REASSEMBLY_TIMEOUT)
+			{
+				messages.remove();
+			}
+		}
+	}
+
+	/**
+	 * Holds the fragments of a single message as they are received
+	 */
+	private static class Reassembly
+	{
+		private long started;
+		private byte[] data;
+		private boolean[] received;
+		private int receivedCount;
+		private int length;
+
+		private Reassembly(int count, long started)
+		{
+			this.started = started;
+			this.data = new byte[count * MAX_PAYLOAD_LENGTH];
+			this.received = new boolean[count];
+		}
+	}
+
+	/**
+	 * Key of a message being reassembled: its sender and message id
+	 */
+	private static class MessageKey
+	{
+		private long sender;
+		private int messageId;
+
+		private MessageKey(long sender, int messageId)
+		{
+			this.sender = sender;
+			this.messageId = messageId;
+		}
+
+		public boolean equals(Object other)
+		{
+			return other instanceof MessageKey &&
+					((MessageKey) other).sender == sender &&
+					((MessageKey) other).messageId == messageId;
+		}
+
+		public int hashCode()
+		{
+			return Long.hashCode(sender) * 31 + messageId;
+		}
+	}
+}
@@ -0,0 +1,311 @@
+package hac_backbone;
+
+import java.util.Arrays;
+
+/**
+ * Phi-accrual failure detector (Hayashibara et al.). Rather than deciding
+ * a node is offline after a fixed time, the detector keeps the running
+ * mean and variance of the intervals between heartbeats received from
+ * each node and reports a continuous suspicion level, phi, for how
+ * unlikely it is that the next heartbeat is still to come given the time
+ * since the last one:
+ *
+ *   phi = -log10(P(interval > time since last heartbeat))
+ *
+ * where intervals are assumed normally distributed with that mean and
+ * standard deviation. The first WEIGHTED_INTERVALS intervals of a node
+ * weigh the same, and each later interval is given a weight of 1 in
+ * WEIGHTED_INTERVALS, older ones decaying exponentially, so the
+ * statistics follow a window of about that many intervals while only
+ * taking a few numbers per node. A phi of 1 means a 10% chance of
+ * a wrong suspicion, a phi of 8 about one in 10^8. Nodes whose heartbeats
+ * are regular are suspected sooner than nodes whose heartbeats vary, and
+ * a single lost packet only raises phi a little.
+ *
+ * Heartbeat statistics are kept in arrays indexed by the entry id of each
+ * node (see MembershipTable).
+ */
+public class PhiAccrualDetector {
+
+	// Default suspicion levels at which a node is suspected and deemed failed
+	public static final double DEFAULT_SUSPECT_THRESHOLD = 5.0;
+	public static final double DEFAULT_FAILURE_THRESHOLD = 8.0;
+
+	// Number of intervals the statistics of a node are weighted over
+	private static final int WEIGHTED_INTERVALS = 100;
+
+	// Default lower bound of the standard deviation, in milliseconds, so
+	// that very regular heartbeats do not make phi rise sharply on small delays
+	public static final double DEFAULT_MIN_STD_DEVIATION = 500;
+
+	private double suspectThreshold;
+	private double failureThreshold;
+	private double minStdDeviation;
+
+	// Interval assumed for a node before any interval has been measured
+	private long firstHeartbeatEstimate;
+
+	// Per entry id: time of the last heartbeat (0 if none), number of
+	// intervals measured, up to WEIGHTED_INTERVALS, and the running mean
+	// and variance of the intervals
+	private long[] lastHeartbeat;
+	private int[] sampleCount;
+	private double[] intervalMean;
+	private double[] intervalVariance;
+
+	/**
+	 * Creates a detector with the default thresholds
+	 * @param firstHeartbeatEstimate interval, in milliseconds, assumed for
+	 *        a node until intervals have been measured
+	 */
+	public PhiAccrualDetector(long firstHeartbeatEstimate)
+	{
+		this(firstHeartbeatEstimate, DEFAULT_MIN_STD_DEVIATION);
+	}
+
+	/**
+	 * Creates a detector with the default thresholds and the given lower
+	 * bound of the standard deviation. A lower bound lets nodes sending
+	 * frequent, regular heartbeats be deemed failed sooner
+	 * @param firstHeartbeatEstimate interval, in milliseconds, assumed for
+	 *        a node until intervals have been measured
+	 * @param minStdDeviation lower bound of the standard deviation of the
+	 *        intervals, in milliseconds
+	 */
+	public PhiAccrualDetector(long firstHeartbeatEstimate, double minStdDeviation)
+	{
+		this.firstHeartbeatEstimate = firstHeartbeatEstimate;
+		this.minStdDeviation = minStdDeviation;
+		suspectThreshold = DEFAULT_SUSPECT_THRESHOLD;
+		failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+
+		lastHeartbeat = new long[16];
+		sampleCount = new int[16];
+		intervalMean = new double[16];
+		intervalVariance = new double[16];
+	}
+
+	/**
+	 * Sets the suspicion levels at which a node is suspected and deemed
+	 * failed
+	 * @param suspect phi at which a node is suspected
+	 * @param failure phi at which a node is deemed failed
+	 */
+	public void setThresholds(double suspect, double failure)
+	{
+		if (suspect <= 0 || failure < suspect)
+		{
+			throw new IllegalArgumentException("Thresholds must satisfy 0 < suspect <= failure");
+		}
+
+		suspectThreshold = suspect;
+		failureThreshold = failure;
+	}
+
+	/**
+	 * Sets the interval assumed for a node until intervals have been
+	 * measured, such as when the heartbeat period changes
+	 * @param firstHeartbeatEstimate interval in milliseconds
+	 */
+	public void setFirstHeartbeatEstimate(long firstHeartbeatEstimate)
+	{
+		this.firstHeartbeatEstimate = firstHeartbeatEstimate;
+	}
+
+	/**
+	 * Returns the suspicion level at which a node is suspected
+	 * @return suspect threshold
+	 */
+	public double getSuspectThreshold()
+	{
+		return suspectThreshold;
+	}
+
+	/**
+	 * Returns the suspicion level at which a node is deemed failed
+	 * @return failure threshold
+	 */
+	public double getFailureThreshold()
+	{
+		return failureThreshold;
+	}
+
+	/**
+	 * Records a heartbeat (any packet) received from a node
+	 * @param id entry id of the node
+	 * @param now current time in milliseconds
+	 * @return interval since the previous heartbeat, -1 if none
+	 */
+	public long heartbeat(int id, long now)
+	{
+		ensureCapacity(id);
+
+		long interval = -1;
+		if (lastHeartbeat[id] > 0)
+		{
+			interval = Math.max(0, now - lastHeartbeat[id]);
+			if (sampleCount[id] < WEIGHTED_INTERVALS)
+			{
+				sampleCount[id]++;
+			}
+
+			// Weigh the interval as one of the intervals measured, or of
+			// the last WEIGHTED_INTERVALS. With equal weights, this is the
+			// exact mean and variance of the intervals
+			double weight = 1.0 / sampleCount[id];
+			double difference = interval - intervalMean[id];
+			double increment = weight * difference;
+			intervalMean[id] += increment;
+			intervalVariance[id] = (1 - weight) * (intervalVariance[id] + difference * increment);
+		}
+
+		lastHeartbeat[id] = now;
+		return interval;
+	}
+
+	/**
+	 * Starts watching a node that has not yet sent a heartbeat, as if one
+	 * had just been received, so that it is deemed failed if none follows
+	 * @param id entry id of the node
+	 * @param now current time in milliseconds
+	 */
+	public void expect(int id, long now)
+	{
+		ensureCapacity(id);
+
+		if (lastHeartbeat[id] == 0)
+		{
+			lastHeartbeat[id] = now;
+		}
+	}
+
+	/**
+	 * Reports if a node is being watched
+	 * @param id entry id of the node
+	 * @return true if a heartbeat was received from (or expected of) the node
+	 */
+	public boolean isWatched(int id)
+	{
+		return id < lastHeartbeat.length && lastHeartbeat[id] > 0;
+	}
+
+	/**
+	 * Returns the mean interval between the heartbeats of a node
+	 * @param id entry id of the node
+	 * @return mean interval in milliseconds, 0 if none was measured
+	 */
+	public double meanInterval(int id)
+	{
+		if (id >= lastHeartbeat.length || sampleCount[id] == 0)
+		{
+			return 0;
+		}
+
+		return intervalMean[id];
+	}
+
+	/**
+	 * Returns the suspicion level of a node
+	 * @param id entry id of the node
+	 * @param now current time in milliseconds
+	 * @return phi, 0 if the node is not being watched
+	 */
+	public double phi(int id, long now)
+	{
+		if (!isWatched(id))
+		{
+			return 0;
+		}
+
+		double mean;
+		double deviation;
+		if (sampleCount[id] == 0)
+		{
+			mean = firstHeartbeatEstimate;
+			deviation = firstHeartbeatEstimate / 4.0;
+		}
+		else
+		{
+			mean = intervalMean[id];
+			deviation = Math.sqrt(intervalVariance[id]);
+		}
+		deviation = Math.max(deviation, minStdDeviation);
+
+		// Logistic approximation of the normal distribution's tail
+		double elapsed = now - lastHeartbeat[id];
+		double y = (elapsed - mean) / deviation;
+		double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+		if (elapsed > mean)
+		{
+			return -Math.log10(e / (1.0 + e));
+		}
+
+		return -Math.log10(1.0 - 1.0 / (1.0 + e));
+	}
+
+	/**
+	 * Returns the state a node should be in given its suspicion level
+	 * @param id entry id of the node
+	 * @param now current time in milliseconds
+	 * @return MembershipTable.ACTIVE, SUSPECT or DEAD
+	 */
+	public int stateOf(int id, long now)
+	{
+		double phi = phi(id, now);
+		if (phi >= failureThreshold)
+		{
+			return MembershipTable.DEAD;
+		}
+		if (phi >= suspectThreshold)
+		{
+			return MembershipTable.SUSPECT;
+		}
+
+		return MembershipTable.ACTIVE;
+	}
+
+	/**
+	 * Stops watching a node and forgets its heartbeat statistics, such as
+	 * when its entry id is given to another node
+	 * @param id entry id of the node
+	 */
+	public void reset(int id)
+	{
+		if (id < lastHeartbeat.length)
+		{
+			lastHeartbeat[id] = 0;
+			sampleCount[id] = 0;
+			intervalMean[id] = 0;
+			intervalVariance[id] = 0;
+		}
+	}
+
+	/**
+	 * Stops watching every node
+	 */
+	public void clear()
+	{
+		Arrays.fill(lastHeartbeat, 0);
+		Arrays.fill(sampleCount, 0);
+		Arrays.fill(intervalMean, 0);
+		Arrays.fill(intervalVariance, 0);
+	}
+
+	/**
+	 * Grows the per-node arrays to hold the given entry id
+	 * @param id entry id
+	 */
+	private void ensureCapacity(int id)
+	{
+		if (id < lastHeartbeat.length)
+		{
+			return;
+		}
+
+		int capacity = Math.max(id + 1, lastHeartbeat.length * 2);
+		lastHeartbeat = Arrays.copyOf(lastHeartbeat, capacity);
+		sampleCount = Arrays.copyOf(sampleCount, capacity);
+		intervalMean = Arrays.copyOf(intervalMean, capacity);
+		intervalVariance = Arrays.copyOf(intervalVariance, capacity);
+	}
+}
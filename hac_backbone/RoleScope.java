@@ -0,0 +1,221 @@
+package hac_backbone;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scope owning the tasks of a single role (server or client) of a node.
+ * Tasks are forked into the scope and all of them finish before the
+ * scope is closed, so a role switch never leaves threads behind.
+ *
+ * Cancellation is cooperative: cancel() raises a flag that tasks check
+ * between steps, and wakes any task waiting in sleep(). Tasks never block
+ * for longer than a bounded step (such as a timed receive), so closing a
+ * scope takes at most about one step. Threads are never interrupted, as
+ * an interrupt would close the node's channel.
+ *
+ * Threads are made by a pluggable ThreadFactory. By default virtual
+ * threads are used where the runtime provides them, and daemon platform
+ * threads otherwise.
+ */
+public class RoleScope implements AutoCloseable {
+
+	// Longest time close() waits for tasks to finish after cancelling them
+	private static final long CLOSE_TIMEOUT = 5 * 1000;
+
+	private ExecutorService executor;
+	private List<Future<?>> tasks;
+
+	// Released once the scope is cancelled, waking sleeping tasks
+	private CountDownLatch cancelled;
+
+	// First failure of a task of the scope, null if none failed
+	private volatile RuntimeException failure;
+
+	/**
+	 * Creates a scope running its tasks on threads of the default factory
+	 */
+	public RoleScope()
+	{
+		this(defaultThreadFactory());
+	}
+
+	/**
+	 * Creates a scope running its tasks on threads of the given factory
+	 * @param threadFactory factory making a thread for each task
+	 */
+	public RoleScope(ThreadFactory threadFactory)
+	{
+		executor = Executors.newCachedThreadPool(threadFactory);
+		tasks = new ArrayList<>();
+		cancelled = new CountDownLatch(1);
+	}
+
+	/**
+	 * Starts a task in the scope. A task that fails cancels the scope, so
+	 * the rest of the role stops as well, and its failure is kept for the
+	 * role to report (see throwIfFailed)
+	 * @param task task to be run
+	 */
+	public synchronized void fork(Runnable task)
+	{
+		if (isCancelled())
+		{
+			return;
+		}
+
+		tasks.add(executor.submit(() ->
+		{
+			try
+			{
+				task.run();
+			}
+			catch (RuntimeException re)
+			{
+				re.printStackTrace();
+				if (failure == null)
+				{
+					failure = re;
+				}
+				cancel();
+			}
+		}));
+	}
+
+	/**
+	 * Requests every task of the scope to stop
+	 */
+	public void cancel()
+	{
+		cancelled.countDown();
+	}
+
+	/**
+	 * Reports if the scope has been cancelled
+	 * @return true if tasks should stop
+	 */
+	public boolean isCancelled()
+	{
+		return cancelled.getCount() == 0;
+	}
+
+	/**
+	 * Reports if a task of the scope failed, which cancelled the scope
+	 * @return true if a task failed
+	 */
+	public boolean hasFailed()
+	{
+		return failure != null;
+	}
+
+	/**
+	 * Throws the failure of a task of the scope, if one failed, so a role
+	 * cancelled by a failure is not taken to have ended normally
+	 * @throws IllegalStateException holding the task's failure
+	 */
+	public void throwIfFailed()
+	{
+		if (failure != null)
+		{
+			throw new IllegalStateException("A task of the role failed", failure);
+		}
+	}
+
+	/**
+	 * Waits for the given time, returning early if the scope is cancelled
+	 * @param millis time to wait, in milliseconds
+	 * @return true if the full time passed, false if the scope was cancelled
+	 */
+	public boolean sleep(long millis)
+	{
+		try
+		{
+			return !cancelled.await(millis, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException ie)
+		{
+			ie.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Waits until the scope is cancelled
+	 */
+	public void awaitCancellation()
+	{
+		try
+		{
+			cancelled.await();
+		}
+		catch (InterruptedException ie)
+		{
+			ie.printStackTrace();
+		}
+	}
+
+	/**
+	 * Cancels the scope and waits for every task to finish. Tasks still
+	 * running after a bounded time are reported and abandoned
+	 */
+	public synchronized void close()
+	{
+		cancel();
+		executor.shutdown();
+
+		long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+		for (Future<?> task : tasks)
+		{
+			try
+			{
+				task.get(Math.max(0, deadline - System.currentTimeMillis()),
+						TimeUnit.MILLISECONDS);
+			}
+			catch (TimeoutException te)
+			{
+				System.err.println("Task did not stop within " + CLOSE_TIMEOUT + " ms");
+			}
+			catch (InterruptedException | ExecutionException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Returns a factory making virtual threads if the runtime supports
+	 * them, otherwise daemon platform threads
+	 * @return thread factory
+	 */
+	public static ThreadFactory defaultThreadFactory()
+	{
+		try
+		{
+			// Thread.ofVirtual().name("hac-role-", 0).factory(), where available
+			Class<?> ofVirtual = Class.forName("java.lang.Thread$Builder$OfVirtual");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = ofVirtual.getMethod("name", String.class, long.class)
+					.invoke(builder, "hac-role-", 0L);
+			return (ThreadFactory) ofVirtual.getMethod("factory").invoke(builder);
+		}
+		catch (ReflectiveOperationException | RuntimeException e)
+		{
+			AtomicInteger count = new AtomicInteger();
+			return task ->
+			{
+				Thread thread = new Thread(task, "hac-role-" + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			};
+		}
+	}
+}
@@ -0,0 +1,681 @@
+package hac_backbone;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * In-memory network carrying the datagrams of HAC nodes on a virtual
+ * clock. Every datagram is delivered after a random latency, unless it is
+ * lost or its sender and receiver are partitioned from each other when it
+ * arrives. A share of the datagrams may be held back long enough to be
+ * overtaken by datagrams sent after them. A datagram sent to a multicast
+ * group is copied to every endpoint joined to it, each copy lost or
+ * delayed on its own.
+ *
+ * The network is driven by the loop of a single host (see HACNodeHost),
+ * whose poller advances the clock straight to the next delivery or
+ * scheduled task rather than waiting for it. A cluster of thousands of
+ * nodes therefore runs on one thread, faster than real time, and every
+ * random choice, of the network and of its nodes, comes from generators
+ * seeded from the network's seed, so a run with the same seed repeats
+ * exactly.
+ */
+public class SimulatedNetwork implements HACTransport {
+
+	// Group of nodes not assigned to any partition
+	public static final int DEFAULT_GROUP = 0;
+
+	private VirtualClock clock;
+	private Random random;
+
+	// Range of the latency of each datagram, in milliseconds
+	private long minLatency;
+	private long maxLatency;
+
+	// Share of datagrams lost, and of datagrams held back to be reordered
+	private double lossRate;
+	private double reorderRate;
+
+	// Open endpoints, by node key
+	private Map<Long, Endpoint> endpoints;
+
+	// Endpoints joined to each multicast group, by group key
+	private Map<Long, List<Endpoint>> multicastGroups;
+
+	// Partition group of each node placed in one; nodes of different
+	// groups cannot reach each other
+	private Map<Long, Integer> groups;
+	private int nextGroup;
+
+	// Datagrams in flight, next to arrive at the head
+	private PriorityQueue<Datagram> inFlight;
+	private long nextSequence;
+
+	// Counts of datagrams sent, delivered and dropped
+	private long sent;
+	private long delivered;
+	private long dropped;
+
+	/**
+	 * Creates a network delivering every datagram after 1 millisecond
+	 * @param seed seed of every random choice made on the network
+	 */
+	public SimulatedNetwork(long seed)
+	{
+		clock = new VirtualClock();
+		random = new Random(seed);
+		minLatency = 1;
+		maxLatency = 1;
+		endpoints = new HashMap<>();
+		multicastGroups = new HashMap<>();
+		groups = new HashMap<>();
+		nextGroup = DEFAULT_GROUP + 1;
+		inFlight = new PriorityQueue<>();
+	}
+
+	/**
+	 * Sets the range of the latency of each datagram. Datagrams sent
+	 * close together may arrive out of order if the range is wide
+	 * @param minLatency shortest latency in milliseconds
+	 * @param maxLatency longest latency in milliseconds
+	 */
+	public void setLatency(long minLatency, long maxLatency)
+	{
+		if (minLatency < 0 || maxLatency < minLatency)
+		{
+			throw new IllegalArgumentException("Invalid latency range: " +
+					minLatency + " to " + maxLatency);
+		}
+
+		this.minLatency = minLatency;
+		this.maxLatency = maxLatency;
+	}
+
+	/**
+	 * Sets the share of datagrams lost
+	 * @param lossRate probability, from 0 to 1, of a datagram being lost
+	 */
+	public void setLossRate(double lossRate)
+	{
+		this.lossRate = lossRate;
+	}
+
+	/**
+	 * Sets the share of datagrams held back for an extra longest latency,
+	 * so they arrive after datagrams sent later
+	 * @param reorderRate probability, from 0 to 1, of a datagram being
+	 *        reordered
+	 */
+	public void setReorderRate(double reorderRate)
+	{
+		this.reorderRate = reorderRate;
+	}
+
+	/**
+	 * Places a node in a partition group. Nodes only reach nodes of their
+	 * own group; every node starts in DEFAULT_GROUP
+	 * @param ipAddress IP address of the node
+	 * @param port port number of the node
+	 * @param group partition group
+	 */
+	public void setGroup(String ipAddress, int port, int group)
+	{
+		long node = HACPacket.packNode(HACPacket.toAddress(ipAddress), port);
+		if (group == DEFAULT_GROUP)
+		{
+			groups.remove(node);
+		}
+		else
+		{
+			groups.put(node, group);
+			nextGroup = Math.max(nextGroup, group + 1);
+		}
+	}
+
+	/**
+	 * Cuts a node off from every other node, as if it crashed or its link
+	 * failed. The node keeps running and may be reconnected
+	 * @param ipAddress IP address of the node
+	 * @param port port number of the node
+	 */
+	public void isolate(String ipAddress, int port)
+	{
+		setGroup(ipAddress, port, nextGroup++);
+	}
+
+	/**
+	 * Reconnects every node, returning all of them to DEFAULT_GROUP
+	 */
+	public void healPartitions()
+	{
+		groups.clear();
+	}
+
+	/**
+	 * Opens an endpoint for a node
+	 * @param localIP IP address of the node
+	 * @param localPort port of the node
+	 * @return endpoint of the node
+	 * @throws IOException if the address is already in use
+	 */
+	public HACEndpoint open(String localIP, int localPort) throws IOException
+	{
+		long node = HACPacket.packNode(HACPacket.toAddress(localIP), localPort);
+		if (endpoints.containsKey(node))
+		{
+			throw new BindException("Address already in use: " + localIP + ":" + localPort);
+		}
+
+		Endpoint endpoint = new Endpoint(node, -1);
+		endpoints.put(node, endpoint);
+		return endpoint;
+	}
+
+	/**
+	 * Opens an endpoint joined to a multicast group. The endpoint belongs
+	 * to the joining node, whose partition group it shares
+	 * @param groupIP IP address of the multicast group
+	 * @param groupPort port the group's datagrams are sent to
+	 * @param localIP IP address of the joining node
+	 * @param localPort port of the joining node
+	 * @return endpoint receiving the group's datagrams
+	 * @throws IOException if the address is not a multicast address
+	 */
+	public HACEndpoint openGroup(String groupIP, int groupPort, String localIP, int localPort)
+			throws IOException
+	{
+		int address = HACPacket.toAddress(groupIP);
+		if ((address >>> 28) != 0xE)
+		{
+			throw new IOException("Not a multicast address: " + groupIP);
+		}
+
+		long group = HACPacket.packNode(address, groupPort);
+		Endpoint endpoint = new Endpoint(HACPacket.packNode(HACPacket.toAddress(localIP), localPort),
+				group);
+		multicastGroups.computeIfAbsent(group, key -> new ArrayList<>()).add(endpoint);
+		return endpoint;
+	}
+
+	/**
+	 * Opens a poller advancing the network's clock
+	 * @return new poller
+	 */
+	public HACPoller openPoller()
+	{
+		return new Poller();
+	}
+
+	/**
+	 * Returns the virtual clock of the network
+	 * @return clock advanced as datagrams are delivered
+	 */
+	public VirtualClock getClock()
+	{
+		return clock;
+	}
+
+	/**
+	 * Returns a generator seeded from the network's own
+	 * @return random generator
+	 */
+	public Random newRandom()
+	{
+		return new Random(random.nextLong());
+	}
+
+	/**
+	 * Returns the number of datagrams sent on the network
+	 * @return datagrams sent
+	 */
+	public long getSentCount()
+	{
+		return sent;
+	}
+
+	/**
+	 * Returns the number of datagrams delivered to their receivers
+	 * @return datagrams delivered
+	 */
+	public long getDeliveredCount()
+	{
+		return delivered;
+	}
+
+	/**
+	 * Returns the number of datagrams lost, partitioned or sent to no one
+	 * @return datagrams dropped
+	 */
+	public long getDroppedCount()
+	{
+		return dropped;
+	}
+
+	/**
+	 * Puts a datagram in flight, unless it is lost. A datagram sent to a
+	 * multicast group is put in flight once for each joined endpoint
+	 * @param sender endpoint sending the datagram
+	 * @param packet buffer holding the datagram
+	 * @param receiver key of the receiving node or group
+	 * @return size of the datagram
+	 */
+	private int send(Endpoint sender, ByteBuffer packet, long receiver)
+	{
+		byte[] data = new byte[packet.remaining()];
+		packet.get(data);
+		sent++;
+
+		List<Endpoint> members = multicastGroups.get(receiver);
+		if (members == null)
+		{
+			putInFlight(sender, receiver, null, data);
+		}
+		else
+		{
+			for (Endpoint member : members)
+			{
+				putInFlight(sender, receiver, member, data);
+			}
+		}
+		return data.length;
+	}
+
+	/**
+	 * Puts a copy of a datagram in flight, unless it is lost
+	 * @param sender endpoint sending the datagram
+	 * @param receiver key of the receiving node or group
+	 * @param member endpoint joined to the receiving group, or null
+	 * @param data bytes of the datagram
+	 */
+	private void putInFlight(Endpoint sender, long receiver, Endpoint member, byte[] data)
+	{
+		if (lossRate > 0 && random.nextDouble() < lossRate)
+		{
+			dropped++;
+			return;
+		}
+
+		long latency = minLatency;
+		if (maxLatency > minLatency)
+		{
+			latency += (long) (random.nextDouble() * (maxLatency - minLatency + 1));
+		}
+		if (reorderRate > 0 && random.nextDouble() < reorderRate)
+		{
+			latency += maxLatency + 1;
+		}
+
+		inFlight.add(new Datagram(clock.currentTimeMillis() + latency, nextSequence++,
+				sender.node, receiver, member, data));
+	}
+
+	/**
+	 * Returns the arrival time of the next datagram in flight
+	 * @return time in milliseconds, or Long.MAX_VALUE if none is in flight
+	 */
+	private long nextArrival()
+	{
+		Datagram next = inFlight.peek();
+		return next == null ? Long.MAX_VALUE : next.arrival;
+	}
+
+	/**
+	 * Advances the clock to the given time, delivering every datagram
+	 * arriving by then
+	 * @param time time to advance to, in milliseconds
+	 */
+	private void advanceTo(long time)
+	{
+		Datagram next;
+		while ((next = inFlight.peek()) != null && next.arrival <= time)
+		{
+			inFlight.poll();
+			clock.advanceTo(next.arrival);
+
+			Endpoint receiver = next.member != null ? next.member : endpoints.get(next.receiver);
+			if (receiver == null || receiver.closed ||
+					groupOf(next.sender) != groupOf(receiver.node))
+			{
+				dropped++;
+				continue;
+			}
+
+			delivered++;
+			receiver.deliver(next);
+		}
+
+		clock.advanceTo(time);
+	}
+
+	/**
+	 * Returns the partition group of a node
+	 * @param node node key
+	 * @return group of the node
+	 */
+	private int groupOf(long node)
+	{
+		Integer group = groups.get(node);
+		return group == null ? DEFAULT_GROUP : group;
+	}
+
+	/**
+	 * Datagram in flight or waiting to be received, ordered by arrival
+	 */
+	private static class Datagram implements Comparable<Datagram>
+	{
+		private long arrival;
+		private long sequence;
+		private long sender;
+		private long receiver;
+		private Endpoint member;
+		private byte[] data;
+
+		/**
+		 * Creates a datagram
+		 * @param arrival time of arrival in milliseconds
+		 * @param sequence order of sending, breaking ties of arrival
+		 * @param sender key of the sending node
+		 * @param receiver key of the receiving node or group
+		 * @param member endpoint joined to the receiving group, or null
+		 * @param data bytes of the datagram
+		 */
+		private Datagram(long arrival, long sequence, long sender, long receiver,
+				Endpoint member, byte[] data)
+		{
+			this.arrival = arrival;
+			this.sequence = sequence;
+			this.sender = sender;
+			this.receiver = receiver;
+			this.member = member;
+			this.data = data;
+		}
+
+		/**
+		 * Orders datagrams by arrival, then by order of sending
+		 * @param other datagram to compare with
+		 * @return negative, zero or positive as this datagram arrives first,
+		 *         at the same time or after the other
+		 */
+		public int compareTo(Datagram other)
+		{
+			if (arrival != other.arrival)
+			{
+				return Long.compare(arrival, other.arrival);
+			}
+
+			return Long.compare(sequence, other.sequence);
+		}
+	}
+
+	/**
+	 * Endpoint of a node, holding the datagrams delivered to it
+	 */
+	private class Endpoint implements HACEndpoint
+	{
+		private long node;
+		// Key of the multicast group the endpoint is joined to, -1 if none
+		private long group;
+		private ArrayDeque<Datagram> received;
+		private boolean closed;
+
+		// Poller the endpoint is registered on and node it reports, and
+		// whether the endpoint is waiting in the poller's ready queue
+		private Poller poller;
+		private HAC owner;
+		private boolean queued;
+
+		/**
+		 * Creates an endpoint
+		 * @param node key of the node
+		 * @param group key of the joined multicast group, or -1
+		 */
+		private Endpoint(long node, long group)
+		{
+			this.node = node;
+			this.group = group;
+			received = new ArrayDeque<>();
+		}
+
+		/**
+		 * Sends a datagram over the network
+		 * @param packet buffer holding the datagram
+		 * @param receiver key of the receiving node
+		 * @return size of the datagram
+		 * @throws IOException if the endpoint is closed
+		 */
+		public int send(ByteBuffer packet, long receiver) throws IOException
+		{
+			if (closed)
+			{
+				throw new ClosedChannelException();
+			}
+
+			return SimulatedNetwork.this.send(this, packet, receiver);
+		}
+
+		/**
+		 * Receives the next delivered datagram
+		 * @param buffer buffer to receive the datagram into
+		 * @return key of the sender, or -1 if none was delivered
+		 * @throws IOException if the endpoint is closed
+		 */
+		public long receive(ByteBuffer buffer) throws IOException
+		{
+			if (closed)
+			{
+				throw new ClosedChannelException();
+			}
+
+			Datagram datagram = received.poll();
+			if (datagram == null)
+			{
+				return -1;
+			}
+
+			buffer.put(datagram.data, 0, Math.min(datagram.data.length, buffer.remaining()));
+			return datagram.sender;
+		}
+
+		/**
+		 * Holds a delivered datagram, reporting the endpoint ready
+		 * @param datagram delivered datagram
+		 */
+		private void deliver(Datagram datagram)
+		{
+			received.add(datagram);
+			if (poller != null && !queued)
+			{
+				queued = true;
+				poller.ready.add(this);
+			}
+		}
+
+		/**
+		 * Closes the endpoint, dropping datagrams sent to it from now on
+		 */
+		public void close()
+		{
+			if (!closed)
+			{
+				closed = true;
+				received.clear();
+				if (group < 0)
+				{
+					endpoints.remove(node);
+				}
+				else
+				{
+					List<Endpoint> members = multicastGroups.get(group);
+					members.remove(this);
+					if (members.isEmpty())
+					{
+						multicastGroups.remove(group);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Poller advancing the network's clock to the next delivery
+	 */
+	private class Poller implements HACPoller
+	{
+		private List<Endpoint> registered;
+
+		// Endpoints with datagrams delivered, in order of delivery
+		private ArrayDeque<Endpoint> ready;
+
+		// Endpoints returned by nextReady since the last select, queued
+		// again if their nodes left datagrams waiting
+		private List<Endpoint> returned;
+
+		private boolean wokenUp;
+
+		/**
+		 * Creates a poller
+		 */
+		private Poller()
+		{
+			registered = new ArrayList<>();
+			ready = new ArrayDeque<>();
+			returned = new ArrayList<>();
+		}
+
+		/**
+		 * Registers an endpoint of this network
+		 * @param endpoint endpoint to be registered
+		 * @param node node reported when the endpoint is ready
+		 * @throws IOException if the endpoint is closed
+		 */
+		public void register(HACEndpoint endpoint, HAC node) throws IOException
+		{
+			Endpoint simulated = (Endpoint) endpoint;
+			if (simulated.closed)
+			{
+				throw new ClosedChannelException();
+			}
+
+			simulated.poller = this;
+			simulated.owner = node;
+			registered.add(simulated);
+			if (!simulated.received.isEmpty() && !simulated.queued)
+			{
+				simulated.queued = true;
+				ready.add(simulated);
+			}
+		}
+
+		/**
+		 * Advances the clock until an endpoint of this poller is delivered a
+		 * datagram or the time passes. Without a timeout, returns at once if
+		 * nothing is in flight, as nothing could ever arrive
+		 * @param timeout longest time to advance by, 0 for no limit
+		 * @return number of ready endpoints
+		 */
+		public int select(long timeout)
+		{
+			requeueReturned();
+
+			if (wokenUp)
+			{
+				wokenUp = false;
+				return ready.size();
+			}
+
+			long deadline = timeout == 0 ? Long.MAX_VALUE :
+					clock.currentTimeMillis() + timeout;
+			while (ready.isEmpty())
+			{
+				long arrival = nextArrival();
+				if (arrival > deadline)
+				{
+					advanceTo(deadline);
+					break;
+				}
+				if (arrival == Long.MAX_VALUE)
+				{
+					break;
+				}
+				advanceTo(arrival);
+			}
+
+			return ready.size();
+		}
+
+		/**
+		 * Returns the node of the next endpoint with datagrams waiting
+		 * @return node, or null if no endpoint is ready
+		 */
+		public HAC nextReady()
+		{
+			Endpoint endpoint;
+			while ((endpoint = ready.poll()) != null)
+			{
+				endpoint.queued = false;
+				if (!endpoint.closed && !endpoint.received.isEmpty())
+				{
+					returned.add(endpoint);
+					return endpoint.owner;
+				}
+			}
+
+			return null;
+		}
+
+		/**
+		 * Queues the endpoints returned since the last select again if
+		 * datagrams are still waiting on them
+		 */
+		private void requeueReturned()
+		{
+			for (Endpoint endpoint : returned)
+			{
+				if (!endpoint.queued && !endpoint.closed && !endpoint.received.isEmpty())
+				{
+					endpoint.queued = true;
+					ready.add(endpoint);
+				}
+			}
+			returned.clear();
+		}
+
+		/**
+		 * Makes the next select return without advancing the clock
+		 */
+		public void wakeup()
+		{
+			wokenUp = true;
+		}
+
+		/**
+		 * Closes every registered endpoint
+		 */
+		public void closeRegistered()
+		{
+			for (Endpoint endpoint : registered)
+			{
+				endpoint.close();
+			}
+		}
+
+		/**
+		 * Closes the poller
+		 */
+		public void close()
+		{
+			registered.clear();
+			ready.clear();
+			returned.clear();
+		}
+	}
+}
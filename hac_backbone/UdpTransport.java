@@ -0,0 +1,486 @@
+package hac_backbone;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Transport sending real UDP datagrams, in real time. Each endpoint is a
+ * non-blocking DatagramChannel bound to the node's port on every local
+ * address, and pollers are Selectors. Endpoints cache the socket address
+ * of each receiver, so a server updating every node each round does not
+ * build an address per send. Multicast datagrams leave through the
+ * interface of the node's address, and by default stay on the local
+ * segment.
+ */
+public class UdpTransport implements HACTransport {
+
+	// Time-to-live of multicast datagrams unless set, keeping them on the
+	// local segment
+	public static final int DEFAULT_MULTICAST_TTL = 1;
+
+	// Time-to-live of multicast datagrams sent from endpoints opened from
+	// now on
+	private int multicastTtl;
+
+	public UdpTransport()
+	{
+		multicastTtl = DEFAULT_MULTICAST_TTL;
+	}
+
+	/**
+	 * Sets the time-to-live of multicast datagrams sent from endpoints
+	 * opened from now on, the number of routers they may cross
+	 * @param ttl time-to-live, from 0 to 255
+	 */
+	public void setMulticastTtl(int ttl)
+	{
+		if (ttl < 0 || ttl > 255)
+		{
+			throw new IllegalArgumentException("Invalid multicast time-to-live: " + ttl);
+		}
+
+		multicastTtl = ttl;
+	}
+
+	/**
+	 * Opens a non-blocking channel bound to the node's port. Multicast
+	 * datagrams sent from it leave through the interface of the node's
+	 * address, if it is local, and loop back to groups joined on this host
+	 * @param localIP IP address of the node, which receives on every
+	 *        local address
+	 * @param localPort port of the node
+	 * @return endpoint of the channel
+	 * @throws IOException if the port cannot be bound
+	 */
+	public HACEndpoint open(String localIP, int localPort) throws IOException
+	{
+		DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+		try
+		{
+			channel.bind(new InetSocketAddress(localPort));
+			setMulticastOptions(channel, localIP);
+			channel.configureBlocking(false);
+		}
+		catch (IOException ioe)
+		{
+			channel.close();
+			throw ioe;
+		}
+
+		return new Endpoint(channel);
+	}
+
+	/**
+	 * Opens a non-blocking channel bound to the group's port and joined to
+	 * the group. The port is shared, so every node on this host may join
+	 * the same group
+	 * @param groupIP IP address of the multicast group
+	 * @param groupPort port the group's datagrams are sent to
+	 * @param localIP IP address of the joining node. The group is joined on
+	 *        its interface, or on the first multicast interface if the
+	 *        address is not local
+	 * @param localPort port of the joining node, which the group's
+	 *        datagrams are not received on
+	 * @return endpoint of the channel
+	 * @throws IOException if the group cannot be joined
+	 */
+	public HACEndpoint openGroup(String groupIP, int groupPort, String localIP, int localPort)
+			throws IOException
+	{
+		InetAddress group = InetAddress.getByName(groupIP);
+		if (!group.isMulticastAddress())
+		{
+			throw new IOException("Not a multicast address: " + groupIP);
+		}
+
+		NetworkInterface joinedInterface = interfaceOf(localIP);
+		if (joinedInterface == null)
+		{
+			joinedInterface = firstMulticastInterface();
+		}
+
+		DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+		try
+		{
+			channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			channel.bind(new InetSocketAddress(groupPort));
+			setMulticastOptions(channel, localIP);
+			channel.join(group, joinedInterface);
+			channel.configureBlocking(false);
+		}
+		catch (IOException ioe)
+		{
+			channel.close();
+			throw ioe;
+		}
+
+		return new Endpoint(channel);
+	}
+
+	/**
+	 * Sets the multicast options of a channel: the time-to-live of its
+	 * datagrams, loopback to this host, and the interface of the node's
+	 * address as the outgoing interface if it is local
+	 * @param channel channel to be configured
+	 * @param localIP IP address of the node
+	 * @throws IOException if an option cannot be set
+	 */
+	private void setMulticastOptions(DatagramChannel channel, String localIP) throws IOException
+	{
+		channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, multicastTtl);
+		channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+
+		NetworkInterface outgoing = interfaceOf(localIP);
+		if (outgoing != null)
+		{
+			channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, outgoing);
+		}
+	}
+
+	/**
+	 * Returns the local network interface holding an address
+	 * @param localIP IP address of the node
+	 * @return interface, or null if the address is not local
+	 * @throws IOException if the interfaces cannot be listed
+	 */
+	private static NetworkInterface interfaceOf(String localIP) throws IOException
+	{
+		// Node addresses are IP literals, so no lookup is made
+		return NetworkInterface.getByInetAddress(InetAddress.getByName(localIP));
+	}
+
+	/**
+	 * Returns the first interface that is up and supports multicast,
+	 * preferring one other than loopback
+	 * @return interface
+	 * @throws IOException if no interface supports multicast
+	 */
+	private static NetworkInterface firstMulticastInterface() throws IOException
+	{
+		NetworkInterface loopback = null;
+		Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+		while (interfaces != null && interfaces.hasMoreElements())
+		{
+			NetworkInterface candidate = interfaces.nextElement();
+			if (!candidate.isUp() || !candidate.supportsMulticast())
+			{
+				continue;
+			}
+			if (!candidate.isLoopback())
+			{
+				return candidate;
+			}
+			loopback = candidate;
+		}
+
+		if (loopback == null)
+		{
+			throw new IOException("No network interface supports multicast");
+		}
+		return loopback;
+	}
+
+	/**
+	 * Opens a poller over a new Selector
+	 * @return new poller
+	 * @throws IOException if the selector cannot be opened
+	 */
+	public HACPoller openPoller() throws IOException
+	{
+		return new Poller(Selector.open());
+	}
+
+	/**
+	 * Returns the system clock
+	 * @return HACClock.SYSTEM
+	 */
+	public HACClock getClock()
+	{
+		return HACClock.SYSTEM;
+	}
+
+	/**
+	 * Returns an unseeded random generator
+	 * @return random generator
+	 */
+	public Random newRandom()
+	{
+		return new Random();
+	}
+
+	/**
+	 * Returns the IPv4 address of an InetAddress as an int, without
+	 * copying it out into a new array
+	 * @param address IPv4 address
+	 * @return address as an int
+	 */
+	private static int addressOf(InetAddress address)
+	{
+		// The hash code of an IPv4 address is the address itself
+		if (address instanceof Inet4Address)
+		{
+			return address.hashCode();
+		}
+
+		return HACPacket.toAddress(address.getHostAddress());
+	}
+
+	/**
+	 * Endpoint over a non-blocking DatagramChannel
+	 */
+	private static class Endpoint implements HACEndpoint
+	{
+		// Slots of the address cache when it is created, and the most
+		// addresses kept before it is cleared. A key is the address itself,
+		// so a cached address never goes stale, and clearing only bounds
+		// the memory held as the membership changes
+		private static final int INITIAL_SLOTS = 64;
+		private static final int MAX_CACHED_ADDRESSES = 1 << 16;
+
+		private DatagramChannel channel;
+
+		// Open-addressed cache of the socket address of each receiver key,
+		// kept at most half full (EMPTY marks a free slot)
+		private static final long EMPTY = -1L;
+		private long[] cachedKeys;
+		private InetSocketAddress[] cachedAddresses;
+		private int cachedCount;
+
+		/**
+		 * Creates an endpoint
+		 * @param channel bound, non-blocking channel
+		 */
+		private Endpoint(DatagramChannel channel)
+		{
+			this.channel = channel;
+			clearCache(INITIAL_SLOTS);
+		}
+
+		/**
+		 * Sends a datagram. Like the network itself, a non-blocking send
+		 * drops the datagram if the socket's buffer is full
+		 * @param packet buffer holding the datagram
+		 * @param receiver key of the receiving node
+		 * @return number of bytes sent
+		 * @throws IOException if the send fails
+		 */
+		public int send(ByteBuffer packet, long receiver) throws IOException
+		{
+			return channel.send(packet, socketAddressOf(receiver));
+		}
+
+		/**
+		 * Returns the socket address of a receiver, from the cache if it
+		 * was sent to before
+		 * @param receiver key of the receiving node
+		 * @return socket address of the receiver
+		 * @throws IOException if the address cannot be built
+		 */
+		private InetSocketAddress socketAddressOf(long receiver) throws IOException
+		{
+			int mask = cachedKeys.length - 1;
+			int slot = (int) ((receiver * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+			while (cachedKeys[slot] != EMPTY)
+			{
+				if (cachedKeys[slot] == receiver)
+				{
+					return cachedAddresses[slot];
+				}
+				slot = (slot + 1) & mask;
+			}
+
+			int address = HACPacket.addressOf(receiver);
+			InetSocketAddress remote = new InetSocketAddress(InetAddress.getByAddress(
+					new byte[] {(byte) (address >>> 24), (byte) (address >>> 16),
+							(byte) (address >>> 8), (byte) address}),
+					HACPacket.portOf(receiver));
+
+			// Grow the cache past half full, or start over once it is full
+			if ((cachedCount + 1) * 2 > cachedKeys.length)
+			{
+				int slots = cachedKeys.length * 2;
+				if (cachedCount >= MAX_CACHED_ADDRESSES)
+				{
+					clearCache(INITIAL_SLOTS);
+				}
+				else
+				{
+					long[] keys = cachedKeys;
+					InetSocketAddress[] addresses = cachedAddresses;
+					clearCache(slots);
+					for (int old = 0; old < keys.length; old++)
+					{
+						if (keys[old] != EMPTY)
+						{
+							cache(keys[old], addresses[old]);
+						}
+					}
+				}
+			}
+			cache(receiver, remote);
+
+			return remote;
+		}
+
+		/**
+		 * Adds an address to the cache, which must have a free slot
+		 * @param receiver key of the receiving node
+		 * @param remote socket address of the receiver
+		 */
+		private void cache(long receiver, InetSocketAddress remote)
+		{
+			int mask = cachedKeys.length - 1;
+			int slot = (int) ((receiver * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+			while (cachedKeys[slot] != EMPTY)
+			{
+				slot = (slot + 1) & mask;
+			}
+			cachedKeys[slot] = receiver;
+			cachedAddresses[slot] = remote;
+			cachedCount++;
+		}
+
+		/**
+		 * Empties the address cache
+		 * @param slots number of slots of the emptied cache, a power of two
+		 */
+		private void clearCache(int slots)
+		{
+			cachedKeys = new long[slots];
+			Arrays.fill(cachedKeys, EMPTY);
+			cachedAddresses = new InetSocketAddress[slots];
+			cachedCount = 0;
+		}
+
+		/**
+		 * Receives a waiting datagram
+		 * @param buffer buffer to receive the datagram into
+		 * @return key of the sender, or -1 if no datagram was waiting
+		 * @throws IOException if the receive fails
+		 */
+		public long receive(ByteBuffer buffer) throws IOException
+		{
+			InetSocketAddress sender = (InetSocketAddress) channel.receive(buffer);
+			if (sender == null)
+			{
+				return -1;
+			}
+
+			return HACPacket.packNode(addressOf(sender.getAddress()), sender.getPort());
+		}
+
+		/**
+		 * Closes the channel
+		 * @throws IOException if the channel fails to close
+		 */
+		public void close() throws IOException
+		{
+			channel.close();
+		}
+	}
+
+	/**
+	 * Poller over a Selector, keyed by channel with the node attached
+	 */
+	private static class Poller implements HACPoller
+	{
+		private Selector selector;
+		private Iterator<SelectionKey> readyKeys;
+
+		/**
+		 * Creates a poller
+		 * @param selector open selector
+		 */
+		private Poller(Selector selector)
+		{
+			this.selector = selector;
+		}
+
+		/**
+		 * Registers the endpoint's channel for reading
+		 * @param endpoint endpoint of this transport
+		 * @param node node attached to the channel's key
+		 * @throws IOException if the channel is closed
+		 */
+		public void register(HACEndpoint endpoint, HAC node) throws IOException
+		{
+			((Endpoint) endpoint).channel.register(selector, SelectionKey.OP_READ, node);
+		}
+
+		/**
+		 * Waits on the selector
+		 * @param timeout longest time to wait, 0 to wait indefinitely
+		 * @return number of ready channels
+		 * @throws IOException if the selector is closed
+		 */
+		public int select(long timeout) throws IOException
+		{
+			selector.selectedKeys().clear();
+			int ready = selector.select(timeout);
+			readyKeys = selector.selectedKeys().iterator();
+			return ready;
+		}
+
+		/**
+		 * Returns the node of the next readable channel
+		 * @return node, or null once every ready channel was returned
+		 */
+		public HAC nextReady()
+		{
+			while (readyKeys != null && readyKeys.hasNext())
+			{
+				SelectionKey key = readyKeys.next();
+				readyKeys.remove();
+
+				if (key.isValid() && key.isReadable())
+				{
+					return (HAC) key.attachment();
+				}
+			}
+
+			return null;
+		}
+
+		/**
+		 * Wakes up the selector
+		 */
+		public void wakeup()
+		{
+			selector.wakeup();
+		}
+
+		/**
+		 * Closes the channel of every registered key
+		 * @throws IOException if a channel fails to close
+		 */
+		public void closeRegistered() throws IOException
+		{
+			for (SelectionKey key : selector.keys())
+			{
+				key.channel().close();
+			}
+		}
+
+		/**
+		 * Closes the selector
+		 * @throws IOException if the selector fails to close
+		 */
+		public void close() throws IOException
+		{
+			selector.close();
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package hac_backbone;
+
+/**
+ * Clock whose time only moves when it is advanced, used by a simulated
+ * network. Time never moves backwards. The clock starts at a non-zero
+ * time, as the protocol uses a time of zero to mean "never".
+ */
+public class VirtualClock implements HACClock {
+
+	// Time at which a clock starts unless given
+	public static final long DEFAULT_START_TIME = 1000000000000L;
+
+	private volatile long now;
+
+	/**
+	 * Creates a clock starting at the default time
+	 */
+	public VirtualClock()
+	{
+		this(DEFAULT_START_TIME);
+	}
+
+	/**
+	 * Creates a clock
+	 * @param startTime time at which the clock starts, in milliseconds
+	 */
+	public VirtualClock(long startTime)
+	{
+		now = startTime;
+	}
+
+	/**
+	 * Returns the current virtual time
+	 * @return time in milliseconds
+	 */
+	public long currentTimeMillis()
+	{
+		return now;
+	}
+
+	/**
+	 * Returns the current virtual time in nanoseconds
+	 * @return time in nanoseconds
+	 */
+	public long nanoTime()
+	{
+		return now * 1000000;
+	}
+
+	/**
+	 * Moves the clock forward to the given time, if it is later
+	 * @param time new time in milliseconds
+	 */
+	public void advanceTo(long time)
+	{
+		if (time > now)
+		{
+			now = time;
+		}
+	}
+
+	/**
+	 * Moves the clock forward
+	 * @param millis time to move forward by, in milliseconds
+	 */
+	public void advanceBy(long millis)
+	{
+		advanceTo(now + millis);
+	}
+}
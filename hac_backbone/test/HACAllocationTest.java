@@ -0,0 +1,126 @@
+package hac_backbone;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that a server receiving the steady-state heartbeats of its
+ * clients allocates nothing. Each heartbeat is taken through the whole
+ * receive path of the node (see HAC.receivePacket): decoding, the failure
+ * detector's update, the snapshot published at the end of the batch and
+ * its commit to the node's store. The path is driven directly, without a
+ * socket, since the JDK's own DatagramChannel.receive allocates the
+ * sender's address.
+ */
+public class HACAllocationTest {
+
+	private static final int PORT = 9876;
+	private static final String SERVERIP = "10.0.0.1";
+
+	// Clients reporting to the server, a heartbeat period apart
+	private static final int CLIENTS = 100;
+	private static final int HEARTBEAT_PERIOD = 1000;
+
+	// Rounds of heartbeats from every client received before measuring,
+	// so every buffer has grown to size and the path is compiled. The
+	// virtual machine itself allocates on the thread now and then while
+	// it compiles, so up to MEASUREMENTS windows of MEASURED_ROUNDS are
+	// measured, and one of them must allocate nothing: garbage made by
+	// every heartbeat would show in all of them
+	private static final int WARMUP_ROUNDS = 200;
+	private static final int MEASURED_ROUNDS = 100;
+	private static final int MEASUREMENTS = 10;
+
+	@TempDir
+	Path storeDirectory;
+
+	private VirtualClock clock;
+	private HAC server;
+	private long[] clients;
+	private ByteBuffer heartbeat;
+
+	/**
+	 * Keeps the nodes created by the tests from opening a window
+	 */
+	@BeforeAll
+	static void setHeadless()
+	{
+		System.setProperty(HAC.HEADLESS_PROPERTY, "true");
+	}
+
+	/**
+	 * Receives heartbeats from clients the server already knows as active,
+	 * and checks that no bytes are allocated receiving them
+	 * @throws IOException if the node or its store cannot be created
+	 */
+	@Test
+	void steadyStateHeartbeatAllocatesNothing() throws IOException
+	{
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		// A persistent server, whose clients join on their first heartbeat
+		HACNodeHost host = new HACNodeHost(new SimulatedNetwork(1));
+		server = host.register(SERVERIP, PORT, HAC.SERVER);
+		server.enablePersistence(storeDirectory);
+		clock = (VirtualClock) host.getClock();
+
+		clients = new long[CLIENTS];
+		int firstAddress = HACPacket.toAddress("10.0.1.1");
+		for (int client = 0; client < CLIENTS; client++)
+		{
+			clients[client] = HACPacket.packNode(firstAddress + client, PORT);
+		}
+
+		heartbeat = ByteBuffer.allocateDirect(HACPacket.HEADER_LENGTH);
+		HACPacket.encodeUpdate(heartbeat, HAC.CLIENT_P2P, HACPacket.FLAG_BINARY_CAPABLE,
+				0, 0, 0, 0, null);
+		heartbeat.flip();
+
+		receiveRounds(1);
+		server.publishMembership();
+		receiveRounds(WARMUP_ROUNDS);
+		assertEquals(CLIENTS, server.getActiveNodeCount());
+
+		long leastAllocated = Long.MAX_VALUE;
+		for (int measurement = 0; measurement < MEASUREMENTS && leastAllocated > 0; measurement++)
+		{
+			long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+			receiveRounds(MEASURED_ROUNDS);
+			long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+			leastAllocated = Math.min(leastAllocated, allocated);
+		}
+
+		assertEquals(CLIENTS, server.getActiveNodeCount());
+		assertEquals(0, leastAllocated, "bytes allocated receiving "
+				+ CLIENTS * MEASURED_ROUNDS + " heartbeats");
+	}
+
+	/**
+	 * Receives rounds of heartbeats from every client, spread evenly over
+	 * each heartbeat period
+	 * @param rounds number of rounds
+	 */
+	private void receiveRounds(int rounds)
+	{
+		for (int round = 0; round < rounds; round++)
+		{
+			for (int client = 0; client < CLIENTS; client++)
+			{
+				clock.advanceBy(HEARTBEAT_PERIOD / CLIENTS);
+				heartbeat.rewind();
+				server.receivePacket(clients[client], heartbeat);
+			}
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package hac_benchmarks;
+
+import hac_backbone.HACPacket;
+import hac_backbone.MembershipJournal;
+import hac_backbone.MembershipTable;
+import java.util.Random;
+
+/**
+ * Cluster of nodes with random addresses and ports, most of them active,
+ * and a server's journal of it whose last version changed the states of
+ * a few nodes. Shared by the benchmarks as their data set
+ */
+class Cluster {
+
+	// Number of keys looked up in turn by the lookup benchmarks, a power
+	// of two so the next key is picked with a mask
+	static final int LOOKUP_KEYS = 4096;
+
+	// Nodes changing state between the two versions of a delta packet
+	static final int DELTA_CHANGES = 8;
+
+	// Share of the nodes that are active
+	private static final double LIVE_RATIO = 0.9;
+
+	int size;
+	MembershipTable table;
+	MembershipJournal journal;
+
+	// Keys of nodes in the table, and of nodes not in it, in random order
+	long[] knownKeys;
+	long[] unknownKeys;
+
+	/**
+	 * Generates a cluster, the same for the same size
+	 * @param size number of nodes
+	 */
+	Cluster(int size)
+	{
+		Random random = new Random(size);
+		this.size = size;
+		table = new MembershipTable();
+		while (table.size() < size)
+		{
+			long node = randomNode(random);
+			table.add(node);
+			table.setState(node, random.nextDouble() < LIVE_RATIO ?
+					MembershipTable.ACTIVE : MembershipTable.DEAD);
+		}
+
+		// Publish the cluster, then a version changing a few states
+		journal = new MembershipJournal();
+		journal.publish(table);
+		for (int change = 0; change < DELTA_CHANGES; change++)
+		{
+			long node = table.getMember(random.nextInt(size));
+			table.setState(node, table.stateOf(node) == MembershipTable.DEAD ?
+					MembershipTable.ACTIVE : MembershipTable.DEAD);
+		}
+		journal.publish(table);
+
+		knownKeys = new long[LOOKUP_KEYS];
+		unknownKeys = new long[LOOKUP_KEYS];
+		for (int key = 0; key < LOOKUP_KEYS; key++)
+		{
+			knownKeys[key] = table.getMember(random.nextInt(size));
+			long node;
+			do
+			{
+				node = randomNode(random);
+			}
+			while (table.contains(node));
+			unknownKeys[key] = node;
+		}
+	}
+
+	/**
+	 * Returns the key of a random node in 10.0.0.0/8
+	 * @param random source of the address and port
+	 * @return node key
+	 */
+	static long randomNode(Random random)
+	{
+		int address = 0x0A000000 | random.nextInt(1 << 24);
+		return HACPacket.packNode(address, 1024 + random.nextInt(64512));
+	}
+}
@@ -0,0 +1,127 @@
+package hac_benchmarks;
+
+import hac_backbone.MembershipTable;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the membership table, at cluster sizes from 10 to
+ * 100,000 nodes: the ordered index keeping the members in order in place
+ * of sorting them, as nodes join and leave, and lookups of ids, states
+ * and members in order. Each invocation looks up the next of a set of
+ * random keys, known or unknown to the table
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MembershipBenchmarks {
+
+	@Param({"10", "100", "1000", "10000", "100000"})
+	public int size;
+
+	// Table of the cluster, and a copy of it that nodes join and leave
+	private MembershipTable table;
+	private MembershipTable changed;
+	private long[] known;
+	private long[] unknown;
+	private int live;
+
+	// Number of invocations so far, picking the next key
+	private int invocation;
+
+	/**
+	 * Generates the cluster and copies its table
+	 */
+	@Setup
+	public void setUp()
+	{
+		Cluster cluster = new Cluster(size);
+		table = cluster.table;
+		known = cluster.knownKeys;
+		unknown = cluster.unknownKeys;
+		live = table.liveCount();
+
+		changed = new MembershipTable();
+		for (int member = 0; member < size; member++)
+		{
+			changed.add(table.getMember(member));
+		}
+	}
+
+	/**
+	 * Adds a node, reads the first member, then removes the node
+	 * @return keys of the first member with and without the node
+	 */
+	@Benchmark
+	public long orderedJoinLeave()
+	{
+		long node = unknown[invocation++ & (Cluster.LOOKUP_KEYS - 1)];
+		changed.add(node);
+		long first = changed.getMember(0);
+		changed.remove(node);
+		return first + changed.getMember(0);
+	}
+
+	/**
+	 * Looks up the member following a known node
+	 * @return key of the next member
+	 */
+	@Benchmark
+	public long nextMember()
+	{
+		return changed.nextMember(known[invocation++ & (Cluster.LOOKUP_KEYS - 1)]);
+	}
+
+	/**
+	 * Looks up the id of a known node
+	 * @return id of the node
+	 */
+	@Benchmark
+	public int lookupHit()
+	{
+		return table.idOf(known[invocation++ & (Cluster.LOOKUP_KEYS - 1)]);
+	}
+
+	/**
+	 * Looks up the id of an unknown node
+	 * @return -1
+	 */
+	@Benchmark
+	public int lookupMiss()
+	{
+		return table.idOf(unknown[invocation++ & (Cluster.LOOKUP_KEYS - 1)]);
+	}
+
+	/**
+	 * Looks up the state of a known node
+	 * @return state of the node
+	 */
+	@Benchmark
+	public int lookupState()
+	{
+		return table.stateOf(known[invocation++ & (Cluster.LOOKUP_KEYS - 1)]);
+	}
+
+	/**
+	 * Reads the live member at the next index
+	 * @return key of the member
+	 */
+	@Benchmark
+	public long liveMemberAt()
+	{
+		return table.getLiveMember(Integer.remainderUnsigned(invocation++, live));
+	}
+}
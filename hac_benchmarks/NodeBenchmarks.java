@@ -0,0 +1,281 @@
+package hac_benchmarks;
+
+import hac_backbone.HAC;
+import hac_backbone.HACNodeHost;
+import hac_backbone.HACPacket;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the entry points of a HAC node, at cluster sizes from 10
+ * to 100,000 nodes: a server sending an update to a node (HAC.updateNode)
+ * as a full snapshot and as a delta, a server receiving a client's
+ * heartbeat, and a client receiving its server's snapshot and, once up to
+ * date, the server's steady-state delta. Packets are received the way a
+ * hosted node receives them, through the host's loop into the node's
+ * receive path (see HACNodeHost), from datagrams replayed by a
+ * ReplayTransport, so the figures are those of the node alone.
+ *
+ * The server learns its members from their heartbeats, as on a network:
+ * every member acknowledges one version, and a few nodes join in the
+ * next, so a member is sent the delta of their joins and a node that
+ * joined is sent a snapshot. Received datagrams arrive a millisecond
+ * apart, so the node's periodic tasks run as they would at that rate
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NodeBenchmarks {
+
+	// Port of every node, and addresses of the benchmarked nodes, which
+	// are outside the cluster's 10.0.0.0/8
+	private static final int PORT = 9876;
+	private static final String SERVERIP = "172.16.0.1";
+	private static final String CLIENTIP = "172.16.0.2";
+	private static final String JOININGIP = "172.16.0.3";
+
+	// Heartbeats each member sends before the server is benchmarked, so
+	// the intervals between them are measured
+	private static final int WARMUP_ROUNDS = 2;
+
+	@Param({"10", "100", "1000", "10000", "100000"})
+	public int size;
+
+	private ReplayTransport transport;
+	private HACNodeHost host;
+	private HAC server;
+	private HAC client;
+	private ReplayTransport.Endpoint serverEndpoint;
+	private ReplayTransport.Endpoint clientEndpoint;
+	private long serverNode;
+
+	// Keys of the members, the address of the member sent deltas and of
+	// a node that joined in the last version, sent snapshots
+	private long[] members;
+	private String memberIP;
+	private int memberPort;
+	private String joinerIP;
+	private int joinerPort;
+
+	// Heartbeat of a member acknowledging the first version, and the
+	// packets the server sends a client joining and up to date
+	private ByteBuffer heartbeat;
+	private ByteBuffer[] snapshot;
+	private ByteBuffer delta;
+
+	// Number of invocations so far, picking the next member
+	private int invocation;
+
+	/**
+	 * Starts a server and a client on a replay transport, and brings the
+	 * server's membership to the state described above
+	 * @throws IOException if the host cannot be created
+	 */
+	@Setup
+	public void setUp() throws IOException
+	{
+		System.setProperty(HAC.HEADLESS_PROPERTY, "true");
+		transport = new ReplayTransport();
+		host = new HACNodeHost(transport);
+		server = host.register(SERVERIP, PORT, HAC.SERVER);
+		client = host.register(CLIENTIP, PORT, HAC.CLIENT_P2P);
+		HAC joining = host.register(JOININGIP, PORT, HAC.CLIENT_P2P);
+		host.runFor(1);
+		serverEndpoint = transport.getEndpoint(SERVERIP, PORT);
+		clientEndpoint = transport.getEndpoint(CLIENTIP, PORT);
+		serverNode = serverEndpoint.getNode();
+
+		Cluster cluster = new Cluster(size);
+		members = new long[size];
+		for (int member = 0; member < size; member++)
+		{
+			members[member] = cluster.table.getMember(member);
+		}
+
+		// Every member reports, and the server publishes their first
+		// version, which the client applies and acknowledges. Its
+		// heartbeat is then replayed for every member
+		ByteBuffer joinHeartbeat = record(client, SERVERIP)[0];
+		deliverToServer(joinHeartbeat, members);
+		deliver(serverEndpoint, joinHeartbeat, clientEndpoint.getNode());
+		host.runFor(1);
+		server.publishMembership();
+		deliverAll(clientEndpoint, record(server, CLIENTIP));
+		heartbeat = record(client, SERVERIP)[0];
+		for (int round = 0; round < WARMUP_ROUNDS; round++)
+		{
+			for (int member = 0; member < size; member++)
+			{
+				deliver(serverEndpoint, heartbeat, members[member]);
+			}
+		}
+		deliver(serverEndpoint, heartbeat, clientEndpoint.getNode());
+
+		// A few nodes join in the next version
+		deliverToServer(joinHeartbeat, cluster.unknownKeys, Cluster.DELTA_CHANGES);
+		server.publishMembership();
+
+		memberIP = HACPacket.toDottedQuad(HACPacket.addressOf(members[0]));
+		memberPort = HACPacket.portOf(members[0]);
+		joinerIP = HACPacket.toDottedQuad(HACPacket.addressOf(cluster.unknownKeys[0]));
+		joinerPort = HACPacket.portOf(cluster.unknownKeys[0]);
+
+		// The client is sent the delta to the new version, then reports
+		// it applied it. The node joining is sent a snapshot of it
+		deliverAll(clientEndpoint, record(server, CLIENTIP));
+		deliver(serverEndpoint, record(client, SERVERIP)[0], clientEndpoint.getNode());
+		delta = record(server, CLIENTIP)[0];
+		deliver(serverEndpoint, record(joining, SERVERIP)[0],
+				transport.getEndpoint(JOININGIP, PORT).getNode());
+		snapshot = record(server, JOININGIP);
+	}
+
+	/**
+	 * Sends a member the delta of the nodes that joined since the version
+	 * it acknowledged
+	 * @return datagrams sent by the server
+	 */
+	@Benchmark
+	public long updateNodeDelta()
+	{
+		server.updateNode(memberIP, memberPort);
+		return serverEndpoint.getSentCount();
+	}
+
+	/**
+	 * Sends a node that just joined a snapshot of the membership,
+	 * fragmented once it outgrows a datagram
+	 * @return datagrams sent by the server
+	 */
+	@Benchmark
+	public long updateNodeSnapshot()
+	{
+		server.updateNode(joinerIP, joinerPort);
+		return serverEndpoint.getSentCount();
+	}
+
+	/**
+	 * Receives the heartbeat of the next member on the server
+	 * @return active nodes known to the server
+	 */
+	@Benchmark
+	public int receiveHeartbeat()
+	{
+		int member = invocation++;
+		if (invocation == size)
+		{
+			invocation = 0;
+		}
+		deliver(serverEndpoint, heartbeat, members[member]);
+		return server.getActiveNodeCount();
+	}
+
+	/**
+	 * Receives the server's snapshot on a client, reassembling its
+	 * fragments once it outgrows a datagram
+	 * @return total nodes known to the client
+	 */
+	@Benchmark
+	public int receiveSnapshot()
+	{
+		deliverAll(clientEndpoint, snapshot);
+		return client.getTotalNodeCount();
+	}
+
+	/**
+	 * Receives the server's delta on a client that is up to date, as
+	 * sent in reply to each of its heartbeats
+	 * @return total nodes known to the client
+	 */
+	@Benchmark
+	public int receiveDelta()
+	{
+		deliver(clientEndpoint, delta, serverNode);
+		return client.getTotalNodeCount();
+	}
+
+	/**
+	 * Has a node send an update to a receiver, and returns the datagrams
+	 * it sent
+	 * @param sender node sending the update
+	 * @param receiverIP IP address of the receiver
+	 * @return datagrams sent, each from its first byte
+	 */
+	private ByteBuffer[] record(HAC sender, String receiverIP)
+	{
+		ReplayTransport.Endpoint endpoint = transport.getEndpoint(sender.getLocalIP(), PORT);
+		endpoint.record();
+		sender.updateNode(receiverIP, PORT);
+		return endpoint.stopRecording();
+	}
+
+	/**
+	 * Receives a datagram on the node of an endpoint, a millisecond after
+	 * the last
+	 * @param endpoint endpoint of the receiving node
+	 * @param datagram datagram to be received
+	 * @param sender key of the sending node
+	 */
+	private void deliver(ReplayTransport.Endpoint endpoint, ByteBuffer datagram, long sender)
+	{
+		endpoint.deliver(datagram, sender);
+		host.runFor(1);
+	}
+
+	/**
+	 * Receives the datagrams of a packet from the server on the node of an
+	 * endpoint, a millisecond after the last
+	 * @param endpoint endpoint of the receiving node
+	 * @param datagrams datagrams of the packet, in order
+	 */
+	private void deliverAll(ReplayTransport.Endpoint endpoint, ByteBuffer[] datagrams)
+	{
+		for (ByteBuffer datagram : datagrams)
+		{
+			endpoint.deliver(datagram, serverNode);
+		}
+		host.runFor(1);
+	}
+
+	/**
+	 * Receives the same heartbeat from every given node on the server, all
+	 * at once
+	 * @param heartbeat heartbeat to be received
+	 * @param nodes keys of the sending nodes
+	 */
+	private void deliverToServer(ByteBuffer heartbeat, long[] nodes)
+	{
+		deliverToServer(heartbeat, nodes, nodes.length);
+	}
+
+	/**
+	 * Receives the same heartbeat from the first of the given nodes on the
+	 * server, all at once
+	 * @param heartbeat heartbeat to be received
+	 * @param nodes keys of the sending nodes
+	 * @param count number of nodes sending
+	 */
+	private void deliverToServer(ByteBuffer heartbeat, long[] nodes, int count)
+	{
+		for (int node = 0; node < count; node++)
+		{
+			serverEndpoint.deliver(heartbeat, nodes[node]);
+		}
+		host.runFor(1);
+	}
+}
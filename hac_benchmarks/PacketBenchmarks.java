@@ -0,0 +1,139 @@
+package hac_benchmarks;
+
+import hac_backbone.HAC;
+import hac_backbone.HACPacket;
+import hac_backbone.MembershipSnapshot;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the packet codec alone, at cluster sizes from 10 to
+ * 100,000 nodes: encoding a server's full snapshot and delta, and
+ * decoding them along with a client's heartbeat. The node's own paths
+ * around the codec are benchmarked by NodeBenchmarks
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketBenchmarks {
+
+	@Param({"10", "100", "1000", "10000", "100000"})
+	public int size;
+
+	private Cluster cluster;
+	private MembershipSnapshot view;
+	private long fromVersion;
+	private HACPacket packet;
+
+	// Buffers encoded into, and packets decoded
+	private ByteBuffer snapshotBuffer;
+	private ByteBuffer deltaBuffer;
+	private ByteBuffer snapshot;
+	private ByteBuffer delta;
+	private ByteBuffer heartbeat;
+
+	/**
+	 * Generates the cluster and encodes the packets to be decoded
+	 */
+	@Setup
+	public void setUp()
+	{
+		cluster = new Cluster(size);
+		view = cluster.journal.getSnapshot();
+		fromVersion = cluster.journal.getVersion() - 1;
+		packet = new HACPacket();
+
+		int snapshotLength = HACPacket.encodedLength(HAC.SERVER, view.size(), view.liveCount());
+		int deltaLength = HACPacket.encodedDeltaLength(cluster.journal, fromVersion);
+		snapshotBuffer = ByteBuffer.allocateDirect(snapshotLength);
+		deltaBuffer = ByteBuffer.allocateDirect(deltaLength);
+
+		snapshot = ByteBuffer.allocateDirect(snapshotLength);
+		HACPacket.encodeUpdate(snapshot, HAC.SERVER, HACPacket.FLAG_BINARY_CAPABLE, 1,
+				cluster.journal.getVersion(), view.size(), view.liveCount(), view);
+		snapshot.flip();
+
+		delta = ByteBuffer.allocateDirect(deltaLength);
+		HACPacket.encodeDelta(delta, HAC.SERVER, HACPacket.FLAG_BINARY_CAPABLE, 1,
+				cluster.journal, fromVersion);
+		delta.flip();
+
+		heartbeat = ByteBuffer.allocateDirect(HACPacket.HEADER_LENGTH);
+		HACPacket.encodeUpdate(heartbeat, HAC.CLIENT_P2P, HACPacket.FLAG_BINARY_CAPABLE, 1,
+				cluster.journal.getVersion(), view.size(), view.liveCount(), null);
+		heartbeat.flip();
+	}
+
+	/**
+	 * Encodes a server's full snapshot of the membership
+	 * @return length of the packet
+	 */
+	@Benchmark
+	public int encodeUpdate()
+	{
+		snapshotBuffer.clear();
+		HACPacket.encodeUpdate(snapshotBuffer, HAC.SERVER, HACPacket.FLAG_BINARY_CAPABLE, 1,
+				cluster.journal.getVersion(), view.size(), view.liveCount(), view);
+		return snapshotBuffer.position();
+	}
+
+	/**
+	 * Encodes a server's delta carrying the changes of one version
+	 * @return length of the packet
+	 */
+	@Benchmark
+	public int encodeDelta()
+	{
+		deltaBuffer.clear();
+		HACPacket.encodeDelta(deltaBuffer, HAC.SERVER, HACPacket.FLAG_BINARY_CAPABLE, 1,
+				cluster.journal, fromVersion);
+		return deltaBuffer.position();
+	}
+
+	/**
+	 * Decodes a server's full snapshot
+	 * @return total nodes decoded
+	 */
+	@Benchmark
+	public int parseUpdate()
+	{
+		snapshot.position(0);
+		return packet.decode(snapshot) ? packet.getTotalNodes() : -1;
+	}
+
+	/**
+	 * Decodes a server's delta
+	 * @return changes decoded
+	 */
+	@Benchmark
+	public int parseDelta()
+	{
+		delta.position(0);
+		return packet.decode(delta) ? packet.getChangeCount() : -1;
+	}
+
+	/**
+	 * Decodes a client's heartbeat
+	 * @return total nodes decoded
+	 */
+	@Benchmark
+	public int parseHeartbeat()
+	{
+		heartbeat.position(0);
+		return packet.decode(heartbeat) ? packet.getTotalNodes() : -1;
+	}
+}
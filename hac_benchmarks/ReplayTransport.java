@@ -0,0 +1,382 @@
+package hac_benchmarks;
+
+import hac_backbone.HAC;
+import hac_backbone.HACEndpoint;
+import hac_backbone.HACPacket;
+import hac_backbone.HACPoller;
+import hac_backbone.HACTransport;
+import hac_backbone.VirtualClock;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Transport replaying prepared datagrams to the nodes of a host, so a
+ * benchmark drives a node through its own receive and send paths (see
+ * HACNodeHost) without a network or a simulated one, neither of which
+ * would leave the node's own time and allocation to be measured.
+ *
+ * Datagrams queued on an endpoint (see deliver) are received by its node
+ * on the host's next pass; the same buffers may be queued again and again
+ * without copying. Datagrams sent are counted and dropped, unless the
+ * endpoint records them (see record). The poller never waits: with no
+ * datagram queued, it moves the virtual clock by the time it was asked
+ * to wait, so host.runFor returns as soon as the queued datagrams and the
+ * tasks due are handled.
+ */
+public class ReplayTransport implements HACTransport {
+
+	private VirtualClock clock;
+
+	// Endpoints opened, by key of their node
+	private Map<Long, Endpoint> endpoints;
+
+	// Seed of the next node's random generator, so runs are repeatable
+	private long seed;
+
+	/**
+	 * Creates a transport whose clock starts at the virtual clock's
+	 * default time
+	 */
+	public ReplayTransport()
+	{
+		clock = new VirtualClock();
+		endpoints = new HashMap<>();
+	}
+
+	/**
+	 * Opens an endpoint for a node
+	 * @param localIP IP address of the node
+	 * @param localPort port of the node
+	 * @return endpoint of the node, an Endpoint
+	 */
+	public HACEndpoint open(String localIP, int localPort)
+	{
+		long node = HACPacket.packNode(HACPacket.toAddress(localIP), localPort);
+		Endpoint endpoint = new Endpoint(node);
+		endpoints.put(node, endpoint);
+		return endpoint;
+	}
+
+	/**
+	 * Returns the endpoint opened for a node
+	 * @param localIP IP address of the node
+	 * @param localPort port of the node
+	 * @return endpoint of the node, null if none was opened
+	 */
+	public Endpoint getEndpoint(String localIP, int localPort)
+	{
+		return endpoints.get(HACPacket.packNode(HACPacket.toAddress(localIP), localPort));
+	}
+
+	/**
+	 * Multicast groups are not replayed
+	 * @param groupIP IP address of the multicast group
+	 * @param groupPort port the group's datagrams are sent to
+	 * @param localIP IP address of the joining node
+	 * @param localPort port of the joining node
+	 * @return never
+	 * @throws IOException always
+	 */
+	public HACEndpoint openGroup(String groupIP, int groupPort, String localIP, int localPort)
+			throws IOException
+	{
+		throw new IOException("Multicast groups are not replayed");
+	}
+
+	/**
+	 * Opens a poller reporting the endpoints with datagrams queued
+	 * @return new poller
+	 */
+	public HACPoller openPoller()
+	{
+		return new Poller();
+	}
+
+	/**
+	 * Returns the virtual clock of the transport
+	 * @return clock advanced by the pollers' waits
+	 */
+	public VirtualClock getClock()
+	{
+		return clock;
+	}
+
+	/**
+	 * Returns a generator seeded by the number of generators returned
+	 * @return random generator
+	 */
+	public Random newRandom()
+	{
+		return new Random(seed++);
+	}
+
+	/**
+	 * Endpoint of a node, receiving the datagrams queued on it
+	 */
+	public class Endpoint implements HACEndpoint
+	{
+		private long node;
+
+		// Datagrams queued, and their senders, from head to head + count
+		// modulo the capacity
+		private ByteBuffer[] queued;
+		private long[] senders;
+		private int head;
+		private int count;
+
+		// Datagrams sent while recording, copied, and number sent
+		private ByteBuffer[] recorded;
+		private int recordedCount;
+		private boolean recording;
+		private long sentCount;
+
+		/**
+		 * Creates an endpoint
+		 * @param node key of the endpoint's node
+		 */
+		private Endpoint(long node)
+		{
+			this.node = node;
+			queued = new ByteBuffer[16];
+			senders = new long[16];
+			recorded = new ByteBuffer[0];
+		}
+
+		/**
+		 * Returns the key of the node this endpoint is bound to
+		 * @return node key
+		 */
+		public long getNode()
+		{
+			return node;
+		}
+
+		/**
+		 * Queues a datagram to be received by the endpoint's node. The
+		 * datagram is read from the buffer's position to its limit, which
+		 * are left unchanged
+		 * @param datagram buffer holding the datagram
+		 * @param sender key of the sending node
+		 */
+		public void deliver(ByteBuffer datagram, long sender)
+		{
+			if (count == queued.length)
+			{
+				ByteBuffer[] grownQueue = new ByteBuffer[count * 2];
+				long[] grownSenders = new long[count * 2];
+				for (int datagramIndex = 0; datagramIndex < count; datagramIndex++)
+				{
+					grownQueue[datagramIndex] = queued[(head + datagramIndex) % count];
+					grownSenders[datagramIndex] = senders[(head + datagramIndex) % count];
+				}
+				queued = grownQueue;
+				senders = grownSenders;
+				head = 0;
+			}
+
+			int tail = (head + count) % queued.length;
+			queued[tail] = datagram;
+			senders[tail] = sender;
+			count++;
+		}
+
+		/**
+		 * Starts keeping a copy of every datagram sent, dropping those
+		 * kept before
+		 */
+		public void record()
+		{
+			recording = true;
+			recordedCount = 0;
+		}
+
+		/**
+		 * Stops keeping the datagrams sent, and returns those kept since
+		 * record was called
+		 * @return datagrams sent, in order, each from its first byte
+		 */
+		public ByteBuffer[] stopRecording()
+		{
+			recording = false;
+			return Arrays.copyOf(recorded, recordedCount);
+		}
+
+		/**
+		 * Returns the number of datagrams sent from the endpoint
+		 * @return datagrams sent
+		 */
+		public long getSentCount()
+		{
+			return sentCount;
+		}
+
+		/**
+		 * Counts a datagram sent, and keeps a copy of it if recording
+		 * @param packet buffer holding the datagram
+		 * @param receiver key of the receiving node
+		 * @return size of the datagram
+		 */
+		public int send(ByteBuffer packet, long receiver)
+		{
+			int length = packet.remaining();
+			sentCount++;
+			if (recording)
+			{
+				if (recordedCount == recorded.length)
+				{
+					recorded = Arrays.copyOf(recorded, Math.max(16, recordedCount * 2));
+				}
+				ByteBuffer copy = ByteBuffer.allocateDirect(length);
+				copy.put(packet);
+				copy.flip();
+				recorded[recordedCount++] = copy;
+			}
+			else
+			{
+				packet.position(packet.limit());
+			}
+
+			return length;
+		}
+
+		/**
+		 * Receives the next queued datagram
+		 * @param buffer buffer to receive the datagram into
+		 * @return key of the sender, or -1 if none was queued
+		 */
+		public long receive(ByteBuffer buffer)
+		{
+			if (count == 0)
+			{
+				return -1;
+			}
+
+			ByteBuffer datagram = queued[head];
+			long sender = senders[head];
+			queued[head] = null;
+			head = (head + 1) % queued.length;
+			count--;
+
+			int position = datagram.position();
+			buffer.put(datagram);
+			datagram.position(position);
+			return sender;
+		}
+
+		/**
+		 * Nothing is held open by the endpoint
+		 */
+		public void close()
+		{
+		}
+	}
+
+	/**
+	 * Poller reporting the nodes whose endpoints have datagrams queued
+	 */
+	private class Poller implements HACPoller
+	{
+		private Endpoint[] endpoints;
+		private HAC[] nodes;
+		private int registered;
+
+		// Index of the next endpoint checked by nextReady
+		private int next;
+
+		/**
+		 * Creates a poller with no endpoints registered
+		 */
+		private Poller()
+		{
+			endpoints = new Endpoint[4];
+			nodes = new HAC[4];
+		}
+
+		/**
+		 * Registers an endpoint of this transport
+		 * @param endpoint endpoint of the transport
+		 * @param node node receiving the endpoint's datagrams
+		 */
+		public void register(HACEndpoint endpoint, HAC node)
+		{
+			if (registered == endpoints.length)
+			{
+				endpoints = Arrays.copyOf(endpoints, registered * 2);
+				nodes = Arrays.copyOf(nodes, registered * 2);
+			}
+			endpoints[registered] = (Endpoint) endpoint;
+			nodes[registered] = node;
+			registered++;
+		}
+
+		/**
+		 * Counts the endpoints with datagrams queued, moving the clock by
+		 * the timeout instead of waiting if there are none
+		 * @param timeout time to move the clock by in milliseconds, 0 not to
+		 *        move it
+		 * @return number of ready endpoints
+		 */
+		public int select(long timeout)
+		{
+			next = 0;
+			int ready = 0;
+			for (int endpoint = 0; endpoint < registered; endpoint++)
+			{
+				if (endpoints[endpoint].count > 0)
+				{
+					ready++;
+				}
+			}
+
+			if (ready == 0 && timeout > 0)
+			{
+				clock.advanceBy(timeout);
+			}
+			return ready;
+		}
+
+		/**
+		 * Returns the next ready endpoint's node
+		 * @return node with datagrams queued, or null once every ready
+		 *         endpoint has been returned
+		 */
+		public HAC nextReady()
+		{
+			while (next < registered)
+			{
+				int endpoint = next++;
+				if (endpoints[endpoint].count > 0)
+				{
+					return nodes[endpoint];
+				}
+			}
+
+			return null;
+		}
+
+		/**
+		 * Selects never wait, so there is nothing to wake up
+		 */
+		public void wakeup()
+		{
+		}
+
+		/**
+		 * Endpoints hold nothing open
+		 */
+		public void closeRegistered()
+		{
+		}
+
+		/**
+		 * The poller holds nothing open
+		 */
+		public void close()
+		{
+		}
+	}
+}
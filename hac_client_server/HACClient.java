@@ -1,17 +1,28 @@
 package hac_client_server;
 
 import hac_backbone.HAC;
-import java.io.IOException;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.util.Random;
-import java.util.Timer;
-import java.util.TimerTask;
+import hac_backbone.HACNodeHost;
+import hac_backbone.HealthProber;
+import hac_backbone.MembershipSnapshot;
+import hac_backbone.RoleScope;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Client service to connect to a server. Is repeatedly reported
  * to about the states of all other nodes connected to the network.
  * Reverts to a server node in case of server failure (Failover)
+ *
+ * Failover is an election: the first live node of the membership last
+ * received from the lost server takes over in a new term, and announces
+ * itself to every node, which re-point at it (see HAC.getTerm).
+ *
+ * The tasks of the client role run in a RoleScope and stop
+ * cooperatively, so a client is promoted to server in place,
+ * on the same socket, without leaving threads behind. A node
+ * hosted by a HACNodeHost instead runs each check of the client
+ * as a task on the host's loop, on the host's clock. Either way,
+ * the Failover process is a sequence of checks that never wait,
+ * moving from probing the nodes to waiting for the elected server.
  * @author Colby Bratton and Paul Ramberg
  *
  */
@@ -23,44 +34,78 @@ public class HACClient{
 	 * IP and port addresses
 	 */
 	private HAC clientNode;
-	private String localIP;
-	private int localPort;
 	private String serverIP;
 	private int serverPort;
-	private InetAddress serverNode;
-	
-	// Variables to control execution of sending and receiving threads
-	private boolean continueSending;
-	private boolean continueReceiving;
-	
-	// Timer and Task to check clients connection to server
-	// If server is unavailable, begin Failover process
-	private Timer checkConnections;
-	private TimerTask checkConnectionsTask;
-	
-	// Max interval to wait before updating server
-	private final static int MAXUPDATEINTERVAL = 30
-			* 1000;
-	
-	// Interval to wait before checking connection with the server
-	private final static int CHECKCONNECTIONSINTERVAL = 45
-			* 1000;
-	
-	// Interval to wait before a connection may be deemed unreachable
-	private final static int TIMEOUTINTERVAL = 10
-			* 1000;
-	
-	// Interval to wait for new server to come online (Failover)
-	private final static int WAITFORSERVER = 15
-			* 1000;
-	
-	public HACClient() {}
-	
+
+	// Makes the threads running the tasks of the client role
+	private ThreadFactory threadFactory;
+
+	// Time from which the connection to the current server is checked
+	private long connectedSince;
+
+	// Host running the checks of a hosted client, null otherwise, and the
+	// task running them
+	private HACNodeHost host;
+	private HACNodeHost.ScheduledTask checkTask;
+
+	// Time of the next update of the server, and whether the first update
+	// is yet to be sent
+	private long nextUpdate;
+	private boolean firstUpdate;
+
+	// Steps of the Failover process: connected to a server, probing every
+	// node, and waiting for the elected node to announce itself
+	private final static int CONNECTED = 0;
+	private final static int PROBING = 1;
+	private final static int ELECTING = 2;
+	private int failoverState;
+
+	// Failover in progress: time it began, term of the lost server, probe
+	// round of every node, node elected as the new server, and time given
+	// to it to announce itself
+	private long failoverStarted;
+	private long lostTerm;
+	private HealthProber.ProbeRound probeRound;
+	private String electedIP;
+	private int electedPort;
+	private long electionDeadline;
+
+	// A new server is deemed unavailable if it sends no packet within the
+	// node's detection timeout (see HAC.getDetectionTimeout). Once the
+	// server has been heard from, it is deemed unavailable when the
+	// failure detector's phi for it reaches the failure threshold, and
+	// the Failover process begins
+
+	// Longest time a receive lasts before checking for cancellation
+	private final static int RECEIVETIMEOUT = 500;
+
+	// Longest time a wait lasts before checking for the loss of the server
+	// or for the announcement of a new one
+	private final static int CHECKINTERVAL = 100;
+
+	// Time given to every node at once to answer a health probe during
+	// the Failover process
+	private final static int PROBETIMEOUT = 500;
+
+	// Time given to the elected node to announce itself as server
+	private final static int ELECTIONTIMEOUT = 1000;
+
+	public HACClient()
+	{
+		this(RoleScope.defaultThreadFactory());
+	}
+
 	/**
-	 * Sends update packets to server at random intervals between 0 and 30
-	 * seconds. If a server port is unknown, and server has the client
-	 * as a previously connected node, then server's IP and port is
-	 * received via HAC protocol
+	 * Creates a client whose tasks run on threads of the given factory
+	 * @param threadFactory factory making the threads of the client role
+	 */
+	public HACClient(ThreadFactory threadFactory)
+	{
+		this.threadFactory = threadFactory;
+	}
+
+	/**
+	 * Creates a client node and runs it (see run)
 	 * @param localIP local IP address of client node
 	 * @param localPort local port number of client node
 	 * @param serverIP IP address of connected server node
@@ -68,233 +113,445 @@ public class HACClient{
 	 */
 	public void begin(String localIP, int localPort, String serverIP, int serverPort)
 	{
-		try
+		// Create HAC node and configure it as a client connection
+		run(new HAC(localIP, localPort, HAC.CLIENT_P2P), serverIP, serverPort);
+	}
+
+	/**
+	 * Runs a node as a client, demoting it in place if it is a server.
+	 * Sends update packets to server once per heartbeat period, with
+	 * bounded jitter (see HAC.nextHeartbeatInterval). If a server port is unknown, and server has the client
+	 * as a previously connected node, then server's IP and port is
+	 * received via HAC protocol. Returns once the node is to become
+	 * the new server
+	 * @param node node to be run as a client
+	 * @param serverIP IP address of connected server node
+	 * @param serverPort port number of connected server node
+	 * @throws IllegalStateException if a task of the client role failed,
+	 *         rather than the node being elected
+	 */
+	public void run(HAC node, String serverIP, int serverPort)
+	{
+		clientNode = node;
+		clientNode.setConfiguration(HAC.CLIENT_P2P);
+
+		/*
+		 *  If a server's IP is not known, and client was once on the
+		 *  network, report to the server recovered from the node's store
+		 *  (see HAC.enablePersistence). Without one, wait for server to
+		 *  respond then retrieve its IP and port addresses from protocol
+		 */
+		if (serverIP == null)
 		{
-			this.localIP = localIP;
-			this.localPort = localPort;
-			
-			// Create HAC node and configure it as a client connection
-			clientNode = new HAC(this.localIP, localPort, HAC.CLIENT_P2P);
-			
-			/*
-			 *  If a server's IP is not known, and client was once on the
-			 *  network, wait for server to respond then retrieve its
-			 *  IP and port addresses from protocol
-			 */
-			if (serverIP == null)
+			if (clientNode.getRemoteIP() == null)
 			{
 				clientNode.receiveUpdatePacket();
-				this.serverIP = clientNode.getRemoteIP();
-				this.serverPort = clientNode.getRemotePort();
 			}
-			else
+			this.serverIP = clientNode.getRemoteIP();
+			this.serverPort = clientNode.getRemotePort();
+		}
+		else
+		{
+			this.serverIP = serverIP;
+			this.serverPort = serverPort;
+		}
+		startClient();
+
+		try (RoleScope scope = new RoleScope(threadFactory))
+		{
+			// Begin supporting task to receive packets
+			scope.fork(() -> receivePackets(scope));
+
+			while (!scope.isCancelled())
 			{
-				this.serverIP = serverIP;
-				this.serverPort = serverPort;
+				long now = clientNode.getClock().currentTimeMillis();
+				if (checkServer(now))
+				{
+					break; // This node is the new server
+				}
+
+				scope.sleep(Math.min(CHECKINTERVAL, Math.max(1, nextUpdate - now)));
 			}
-			
-			// Report that client may start sending and receiving packets
-			continueSending = true;
-			continueReceiving = true;
-			
-			// Begin supporting thread to receive packets
-			receivePackets.start();
-			
-			Random randomInterval = new Random();
-			while (continueSending)
+
+			// A failed task is no election
+			scope.throwIfFailed();
+		}
+	}
+
+	/**
+	 * Runs a node hosted by the given host as a client, demoting it in
+	 * place if it is a server, and returns at once. Each check runs as a
+	 * task on the host's loop. Once the node is to become the new server,
+	 * it is run as a server on the same host
+	 * @param host host of the node
+	 * @param node node to be run as a client
+	 * @param serverIP IP address of connected server node, or null to
+	 *        report to the server recovered from the node's store, or
+	 *        wait for a server to announce itself
+	 * @param serverPort port number of connected server node
+	 */
+	public void run(HACNodeHost host, HAC node, String serverIP, int serverPort)
+	{
+		this.host = host;
+		clientNode = node;
+		clientNode.setConfiguration(HAC.CLIENT_P2P);
+
+		this.serverIP = serverIP;
+		this.serverPort = serverPort;
+		startClient();
+
+		checkTask = host.schedule(this::hostedCheck, 0, CHECKINTERVAL);
+	}
+
+	/**
+	 * Runs one check of a hosted client, moving the node to the server
+	 * role once it is elected
+	 */
+	private void hostedCheck()
+	{
+		if (serverIP == null)
+		{
+			// Wait for a server to be heard from
+			if (clientNode.getRemoteIP() == null)
 			{
-				// Send packet to the server and then wait
-				clientNode.updateNode(this.serverIP, this.serverPort);
-				System.out.println("Sent packet");
-				Thread.sleep(randomInterval.nextInt(MAXUPDATEINTERVAL));
+				return;
 			}
+			serverIP = clientNode.getRemoteIP();
+			serverPort = clientNode.getRemotePort();
+			startClient();
 		}
-		catch (InterruptedException ie)
+
+		if (checkServer(clientNode.getClock().currentTimeMillis()))
 		{
-			ie.printStackTrace();
+			checkTask.cancel();
+			new HACServer(threadFactory).run(host, clientNode);
 		}
 	}
-	
+
 	/**
-	 * Supporting thread to run continuously to receive packets from
-	 * server node. Periodically calls a function to check the connection
-	 * to the server node, and starts the Failover process is server is
-	 * not reachable.
+	 * Resets the state of the client role as the node connects to a server
 	 */
-	private Thread receivePackets = new Thread() 
+	private void startClient()
 	{
-		public void run()
-		{	
-			while (continueReceiving)
-			{
-				// Create and begin timer to check connection to server
-				checkConnections = new Timer();
-				checkConnectionsTask = new Helper();
-				checkConnections.schedule(checkConnectionsTask,
-						CHECKCONNECTIONSINTERVAL);
-				
-				// If allowed, receive packet from server
-				if (continueReceiving)
-				{
-					clientNode.receiveUpdatePacket();
-					System.out.println("Received packet");
-				}
-				
-				checkConnections.cancel();
-				checkConnections.purge();
-					
-				// If a new server is found, get its IP and port addresses
-				// for HAC protocol 
-				if (!serverIP.equals(clientNode.getRemoteIP()))
-				{
-					serverIP = clientNode.getRemoteIP();
-					serverPort = clientNode.getRemotePort();
-				}
-			}
-		}
-	};
-	
+		connectedSince = clientNode.getClock().currentTimeMillis();
+		nextUpdate = 0;
+		firstUpdate = true;
+		failoverState = CONNECTED;
+		probeRound = null;
+	}
+
 	/**
-	 * If Failover handling begins, find and ping a new server
-	 * node and register it the NEW current server. If this
-	 * client is to become a server, stop the client's processes
-	 * and roll over to become a server. 
+	 * Checks the connection to the server, moving the Failover process
+	 * on if it is in progress, and updates the server once due
+	 * @param now current time in milliseconds
+	 * @return true once this node is to become the new server
 	 */
-	@SuppressWarnings("deprecation")
-	private void findAndPingNewServer()
+	private boolean checkServer(long now)
 	{
-		// Reports if a new server has been found
-		boolean foundServer = false;
-		int node = 0;
-		while (!foundServer)
-		{	
-			try
+		// If another client found this node to be the first live one,
+		// take over from the lost server
+		if (clientNode.takeElectionRequest())
+		{
+			clientNode.beginRoleSwitch();
+			return true;
+		}
+
+		// If the server has not updated the client in time, begin
+		// the failover process
+		if (failoverState == CONNECTED && serverLost(now))
+		{
+			// Record how long after its last packet the server was deemed lost
+			if (clientNode.getLastServerContact() > connectedSince)
 			{
-				serverNode = 
-						InetAddress.getByName(clientNode.getNodeAddress(node));
-				
-				// If the client node to be checked is reachable, mark it as the new server
-				if (serverNode.isReachable(TIMEOUTINTERVAL))
-				{
-					// Report that new server has been found
-					foundServer = true;
-					
-					// If this client node is slated to be the new server, stop all
-					// processes in this node
-					if (clientNode.getNodeAddress(node).compareTo(localIP) == 0 &&
-						clientNode.getNodePort(node) == localPort)
-					{
-						continueSending = false;
-						receivePackets.stop();
-						clientNode.terminateNode();
-						clientNode = null;
-					}
-					// Otherwise, ping new server and reset this node for new communication
-					else
-					{
-						System.out.println("found server");
-						
-						// Wait for new server to come online
-						Thread.sleep(WAITFORSERVER);
-						
-						// Retrieve new server's information and update it
-						serverIP = clientNode.getNodeAddress(node);
-						serverPort = 9876;
-						System.out.println("updating server");
-						clientNode.updateNode(this.serverIP, 9876);
-						
-						// Reset client to initial state for more communication
-						clientNode.clearAllNodes();
-						continueReceiving = true;
-						receivePackets.run();
-					}
-				}
-				
-				// If a client node is unreachable, check the next one
-				node++;
+				clientNode.getMetrics().recordDetection(
+						now - clientNode.getLastServerContact());
+			}
+			if (beginFailover(now))
+			{
+				return true;
 			}
-			catch (UnknownHostException uhe)
+		}
+
+		// Any server heard from since the Failover process began, such as
+		// one elected by other clients, ends it
+		if (failoverState != CONNECTED && serverHeard())
+		{
+			followNewServer(now);
+		}
+
+		// Wait for every node to answer, or for the probe round to end
+		if (failoverState == PROBING)
+		{
+			if (!probeRound.poll())
+			{
+				return false;
+			}
+			if (electServer(now))
 			{
-				uhe.printStackTrace();
+				return true;
 			}
-			catch (IOException ioe)
+		}
+
+		// Wait for the elected node to announce itself
+		if (failoverState == ELECTING)
+		{
+			if (now < electionDeadline)
 			{
-				ioe.printStackTrace();
+				return false;
 			}
-			catch (InterruptedException ie)
+			followNewServer(now);
+		}
+
+		// If a new server is found, get its IP and port addresses
+		// for HAC protocol, and report to it at once so it learns that
+		// this client accepts its announcements
+		String remoteIP = clientNode.getRemoteIP();
+		if (remoteIP != null && clientNode.getLastServerContact() > connectedSince &&
+				(!remoteIP.equals(this.serverIP) ||
+						clientNode.getRemotePort() != this.serverPort))
+		{
+			this.serverIP = remoteIP;
+			this.serverPort = clientNode.getRemotePort();
+			nextUpdate = now;
+		}
+
+		// If a server packet was dropped for a missed version, acknowledge
+		// the version held at once, so the server resends what is missing
+		if (clientNode.takeRepairRequest() && failoverState == CONNECTED)
+		{
+			nextUpdate = now;
+		}
+
+		if (now >= nextUpdate)
+		{
+			// Send packet to the server and then wait
+			clientNode.updateNode(this.serverIP, this.serverPort);
+			nextUpdate = now + clientNode.nextHeartbeatInterval();
+
+			// Report how long it took to move to the new server. Hosted
+			// clients only record it in the node's metrics
+			if (firstUpdate)
 			{
-				ie.printStackTrace();
+				long switchTime = clientNode.endRoleSwitch();
+				if (switchTime >= 0 && host == null)
+				{
+					System.out.println("Role switch took " + switchTime + " ms");
+				}
+				firstUpdate = false;
 			}
 		}
+
+		return false;
 	}
-	
+
 	/**
-	 * Supporting timer to periodically check the connection
-	 * of the client to the server, if necessary. If server is
-	 * not active, the Failover process begins.
-	 * @author Colby Bratton and Paul Ramberg
-	 *
+	 * Reports if the current server is deemed unavailable
+	 * @param now current time in milliseconds
+	 * @return true if the Failover process should begin
 	 */
-	private class Helper extends TimerTask
+	private boolean serverLost(long now)
 	{
-		public void run()
+		if (clientNode.getLastServerContact() > connectedSince)
 		{
-			// If the server has not updated the client in 30 seconds
-			// or less, begin the failover process
-			if (clientNode.getTotalNodeCount() > 0 &&
-					clientNode.getActiveNodeCount() == 0)
-			{
-				/*
-				 * Stop the client from receiving packets and 
-				 * cancel this time so it is not repeated during
-				 * this process. Then find a new server.
-				 */
-				continueReceiving = false;
-				receivePackets.interrupt();
-				checkConnections.cancel();
-				checkConnections.purge();
-				findAndPingNewServer();
-			}
+			return clientNode.getSuspicionLevel(serverIP, serverPort) >=
+					clientNode.getFailureThreshold();
+		}
+
+		return now - connectedSince > clientNode.getDetectionTimeout();
+	}
+
+	/**
+	 * Supporting task to run continuously to receive packets from
+	 * server node
+	 * @param scope scope of the client role
+	 */
+	private void receivePackets(RoleScope scope)
+	{
+		while (!scope.isCancelled())
+		{
+			clientNode.receiveUpdatePacket(RECEIVETIMEOUT);
+		}
+	}
+
+	/**
+	 * If Failover handling begins, elect a new server node and
+	 * register it the NEW current server. Every client picks the first
+	 * live node of the membership last received from the server (see
+	 * HAC.getFailoverNode). If that is this client, it takes over at
+	 * once. Otherwise every node is probed at once (see electServer).
+	 * @param now current time in milliseconds
+	 * @return true if this client is to become the new server
+	 */
+	private boolean beginFailover(long now)
+	{
+		clientNode.beginRoleSwitch();
+		failoverStarted = now;
+		lostTerm = clientNode.getTerm();
+
+		MembershipSnapshot members = clientNode.getMembershipSnapshot();
+		int node = clientNode.getFailoverNode(members, null);
+		if (node >= 0 && node == clientNode.getLocalNodeIndex(members))
+		{
+			return true;
 		}
+
+		// Report to this node if no server is heard from in time
+		electedIP = node < 0 ? null : members.getAddress(node);
+		electedPort = node < 0 ? 0 : members.getPort(node);
+
+		probeRound = clientNode.probeNodes(PROBETIMEOUT);
+		failoverState = PROBING;
+		return false;
 	}
-	
+
+	/**
+	 * Once every node was probed, nodes lost along with the server are
+	 * skipped, and the first node that answered is asked to take over.
+	 * The client then waits for the new server to announce itself in a
+	 * newer term (see followNewServer)
+	 * @param now current time in milliseconds
+	 * @return true if this client is to become the new server
+	 */
+	private boolean electServer(long now)
+	{
+		HealthProber.ProbeRound reachable = probeRound;
+		probeRound = null;
+
+		// A server that still answers is only slow to update this client
+		if (clientNode.isReachable(reachable, serverIP, serverPort))
+		{
+			endFailover(now);
+			return false;
+		}
+
+		MembershipSnapshot members = clientNode.getMembershipSnapshot();
+		int node = clientNode.getFailoverNode(members, reachable);
+		if (node < 0)
+		{
+			// No other node is known, keep waiting for the server
+			endFailover(now);
+			return false;
+		}
+
+		// If this client node is elected as the new server, stop all
+		// tasks of the client role
+		if (node == clientNode.getLocalNodeIndex(members))
+		{
+			return true;
+		}
+
+		// Otherwise, ask the elected node to take over, and wait for it
+		// to announce itself
+		electedIP = members.getAddress(node);
+		electedPort = members.getPort(node);
+		clientNode.requestElection(electedIP, electedPort);
+		electionDeadline = now + ELECTIONTIMEOUT;
+		failoverState = ELECTING;
+		return false;
+	}
+
+	/**
+	 * Reports if a server was heard from since the Failover process began:
+	 * a server announced in a newer term, or any server packet, as the
+	 * first packets of a new server may not carry its term
+	 * @return true if the node's remote node is the server to follow
+	 */
+	private boolean serverHeard()
+	{
+		return clientNode.getRemoteIP() != null &&
+				(clientNode.getTerm() > lostTerm ||
+						clientNode.getLastServerContact() > failoverStarted);
+	}
+
+	/**
+	 * Registers the new server: the server heard from since the Failover
+	 * process began, or the elected node if none was heard from in time.
+	 * The new server keeps its own port, taken from the membership
+	 * @param now current time in milliseconds
+	 */
+	private void followNewServer(long now)
+	{
+		if (serverHeard())
+		{
+			// Re-point at the announced server
+			serverIP = clientNode.getRemoteIP();
+			serverPort = clientNode.getRemotePort();
+		}
+		else if (electedIP != null)
+		{
+			// No announcement yet. Report to the elected node, which is
+			// deemed lost in turn if it never serves
+			serverIP = electedIP;
+			serverPort = electedPort;
+		}
+		if (host == null)
+		{
+			System.out.println("found server");
+		}
+		endFailover(now);
+	}
+
+	/**
+	 * Ends the Failover process, updating the server at once
+	 * @param now current time in milliseconds
+	 */
+	private void endFailover(long now)
+	{
+		failoverState = CONNECTED;
+		connectedSince = now;
+		nextUpdate = now;
+	}
+
 	public static void main(String[] args)
 	{
 		// Local IP of local machine
 		String localIP = "192.168.0.39";
-		// IP address of newly found server
-		String newServer;
-		
-		/*
-		 * Create a client and initialize it with the IP
-		 * and port of the local machine, as well as provide
-		 * the IP address of the server and its port
-		 */
-		HACClient client = new HACClient();
-		client.begin(localIP, 6789, "192.168.0.39", 9876);
-		client = null;
-		
+		// IP address and port of the current server
+		String serverIP = "192.168.0.39";
+		int serverPort = 9876;
+
 		/*
-		 * Failover begins
+		 * Create a client node and initialize it with the IP
+		 * and port of the local machine. The node keeps its
+		 * socket through every role switch
 		 */
+		HAC node = new HAC(localIP, 6789, HAC.CLIENT_P2P);
 		while (true)
 		{
-			System.out.println("Moving to server");
-			
+			HACClient client = new HACClient();
+			try
+			{
+				client.run(node, serverIP, serverPort);
+			}
+			catch (IllegalStateException ise)
+			{
+				// Not elected, stay a client of the same server
+				ise.printStackTrace();
+				continue;
+			}
+
 			/*
-			 * Create a server and initialize it with the IP
-			 * of the local machine and the standard port number
-			 * for servers (in this case, it is 9876)
+			 * Failover begins
 			 */
+			System.out.println("Moving to server");
+
 			HACServer failoverServer = new HACServer();
-			newServer = failoverServer.begin(localIP, 9876);
-			failoverServer = null;
-			
+			serverIP = null;
+			while (serverIP == null)
+			{
+				try
+				{
+					serverIP = failoverServer.run(node);
+				}
+				catch (IllegalStateException ise)
+				{
+					// No failover took place, keep serving
+					ise.printStackTrace();
+				}
+			}
+			serverPort = failoverServer.getNewServerPort();
+
 			System.out.println("Moving to client");
-			
-			client = new HACClient();
-			client.begin(localIP, 6789, newServer, 9876);
-			client = null;
 		}
 	}
 }
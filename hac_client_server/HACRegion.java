@@ -0,0 +1,265 @@
+package hac_client_server;
+
+import hac_backbone.HAC;
+import hac_backbone.HACNodeHost;
+import hac_backbone.HACPacket;
+import hac_backbone.MembershipSnapshot;
+import hac_backbone.MembershipTable;
+import hac_backbone.RoleScope;
+import java.util.ArrayList;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Node of a region of a hierarchical network. Each region is an
+ * ordinary Server-Client cluster with a server of its own, so no server
+ * sends to or probes more than the nodes of its tier. The server of a
+ * region also links the region to the tier above, made of a root server
+ * and the link of every region: it opens a second node, its uplink, on
+ * another port, which runs as a client of the root tier and sends the
+ * tier a digest of the region's membership (see HAC.sendDigest). The
+ * root relays each digest to every link, so every regional server, and
+ * the root, knows the nodes of every region (see getGlobalSnapshot).
+ *
+ * Each tier fails over on its own, as any cluster does. A regional
+ * server names the root to its clients (see HAC.setParent), so the
+ * client taking over from it links the region to the same root. The
+ * uplink of a server that steps down withdraws its digest and stays an
+ * idle member of the root tier. An uplink yet to hear from the root
+ * also knows the seed nodes of the root tier (see addRootSeed), which
+ * point it at their server.
+ *
+ * Regions only run on a HACNodeHost.
+ */
+public class HACRegion {
+
+	// Interval at which the link of the region is checked
+	private final static int LINKINTERVAL = 200;
+
+	// Host of the nodes, and the factory making the threads of their roles
+	private HACNodeHost host;
+	private ThreadFactory threadFactory;
+
+	// Node of the region, and the node linking the region to the root
+	// tier, null until this node first serves the region
+	private HAC regionNode;
+	private HAC uplink;
+	private int uplinkPort;
+
+	// Nodes of the root tier known before any root is announced, the
+	// first of them being reported to
+	private ArrayList<String> seedIPs;
+	private ArrayList<Integer> seedPorts;
+
+	// Snapshot of the region node the digest was last made from, and that
+	// digest, which also lists the serving node itself
+	private MembershipSnapshot regionView;
+	private MembershipSnapshot regionDigest;
+
+	// Digest last sent, null once withdrawn, and the time at which it is
+	// next sent again
+	private MembershipSnapshot sentDigest;
+	private long nextDigest;
+
+	/**
+	 * Creates a region node running on the given host
+	 * @param host host of the region's nodes
+	 */
+	public HACRegion(HACNodeHost host)
+	{
+		this(host, RoleScope.defaultThreadFactory());
+	}
+
+	/**
+	 * Creates a region node running on the given host, whose roles use
+	 * threads of the given factory
+	 * @param host host of the region's nodes
+	 * @param threadFactory factory making the threads of the node's roles
+	 */
+	public HACRegion(HACNodeHost host, ThreadFactory threadFactory)
+	{
+		this.host = host;
+		this.threadFactory = threadFactory;
+		seedIPs = new ArrayList<>();
+		seedPorts = new ArrayList<>();
+	}
+
+	/**
+	 * Adds a node of the root tier, such as the root server, to the nodes
+	 * an uplink knows before a root is announced to it. Seeds should be
+	 * nodes of the root tier that are not regional servers
+	 * @param seedIP IP address of the seed node
+	 * @param seedPort port number of the seed node
+	 */
+	public void addRootSeed(String seedIP, int seedPort)
+	{
+		seedIPs.add(seedIP);
+		seedPorts.add(seedPort);
+	}
+
+	/**
+	 * Runs a hosted node as a node of a region and returns at once: as the
+	 * region's server if it is configured as a server, otherwise as a
+	 * client of the given server. The node moves between roles as any
+	 * hosted node does, and links the region to the root tier while it
+	 * serves it
+	 * @param node node of the region
+	 * @param serverIP IP address of the region's server, or null (see
+	 *        HACClient.run)
+	 * @param serverPort port number of the region's server
+	 * @param uplinkPort port number of the node linking the region to the
+	 *        root tier, on the node's own IP address
+	 */
+	public void run(HAC node, String serverIP, int serverPort, int uplinkPort)
+	{
+		regionNode = node;
+		this.uplinkPort = uplinkPort;
+
+		if (node.getConfiguration() == HAC.SERVER)
+		{
+			new HACServer(threadFactory).run(host, node);
+		}
+		else
+		{
+			new HACClient(threadFactory).run(host, node, serverIP, serverPort);
+		}
+
+		host.schedule(this::checkLink, 0, LINKINTERVAL);
+	}
+
+	/**
+	 * Checks the link of the region to the root tier. A serving node
+	 * opens its uplink once, names the root to the region's clients, and
+	 * sends the region's digest whenever the region changes and once per
+	 * heartbeat period of the uplink. A node that stopped serving keeps
+	 * sending an empty digest instead, so the root tier forgets its
+	 * region even if a withdrawal is lost
+	 */
+	private void checkLink()
+	{
+		boolean serving = regionNode.getConfiguration() == HAC.SERVER;
+		if (uplink == null)
+		{
+			if (!serving)
+			{
+				return;
+			}
+			openUplink();
+		}
+
+		if (serving)
+		{
+			if (uplink.getConfiguration() == HAC.SERVER)
+			{
+				regionNode.setParent(uplink.getLocalIP(), uplinkPort);
+			}
+			else if (uplink.getRemoteIP() != null)
+			{
+				regionNode.setParent(uplink.getRemoteIP(), uplink.getRemotePort());
+			}
+		}
+
+		long now = host.getClock().currentTimeMillis();
+		MembershipSnapshot region = serving ? digestRegion() : null;
+		if (region == sentDigest && now < nextDigest)
+		{
+			return;
+		}
+
+		if (serving)
+		{
+			uplink.sendDigest(region);
+		}
+		else
+		{
+			uplink.withdrawDigest();
+		}
+		sentDigest = region;
+		nextDigest = now + uplink.getHeartbeatPeriod();
+	}
+
+	/**
+	 * Returns the digest of the region: the membership of the region
+	 * node, which a server does not list itself in, and the node itself.
+	 * The digest is only made anew once the region node publishes a new
+	 * snapshot
+	 * @return snapshot of the nodes of the region
+	 */
+	private MembershipSnapshot digestRegion()
+	{
+		MembershipSnapshot view = regionNode.getMembershipSnapshot();
+		if (view == regionView)
+		{
+			return regionDigest;
+		}
+
+		MembershipTable region = new MembershipTable();
+		for (int node = 0; node < view.size(); node++)
+		{
+			region.add(view.getMember(node));
+			region.setState(view.getMember(node), view.getState(node));
+		}
+		long local = HACPacket.packNode(HACPacket.toAddress(regionNode.getLocalIP()),
+				regionNode.getLocalPort());
+		region.add(local);
+		region.setState(local, MembershipTable.ACTIVE);
+
+		regionView = view;
+		regionDigest = region.publish();
+		return regionDigest;
+	}
+
+	/**
+	 * Opens the uplink of the region and runs it as a client of the root
+	 * announced by the region's former server, or of the first seed node
+	 * if none was announced. The seed nodes are added to the uplink's
+	 * membership, so an uplink that never hears from its root elects one
+	 * of them, which points it at the root (see HACClient)
+	 */
+	private void openUplink()
+	{
+		uplink = host.register(regionNode.getLocalIP(), uplinkPort, HAC.CLIENT_P2P);
+		for (int seed = 0; seed < seedIPs.size(); seed++)
+		{
+			uplink.addNodeToTotalNodes(seedIPs.get(seed), seedPorts.get(seed));
+		}
+
+		String rootIP = regionNode.getParentIP();
+		int rootPort = regionNode.getParentPort();
+		if (rootIP == null && !seedIPs.isEmpty())
+		{
+			rootIP = seedIPs.get(0);
+			rootPort = seedPorts.get(0);
+		}
+		new HACClient(threadFactory).run(host, uplink, rootIP, rootPort);
+	}
+
+	/**
+	 * Returns the node of the region
+	 * @return region node
+	 */
+	public HAC getRegionNode()
+	{
+		return regionNode;
+	}
+
+	/**
+	 * Returns the node linking the region to the root tier
+	 * @return uplink, null if this node never served the region
+	 */
+	public HAC getUplink()
+	{
+		return uplink;
+	}
+
+	/**
+	 * Returns the nodes of every region, as known to this node's uplink
+	 * (see HAC.getGlobalSnapshot)
+	 * @return snapshot of the nodes of every region, or of this region
+	 *         only if this node never served it
+	 */
+	public MembershipSnapshot getGlobalSnapshot()
+	{
+		return uplink == null ? regionNode.getMembershipSnapshot() :
+				uplink.getGlobalSnapshot();
+	}
+}
@@ -0,0 +1,293 @@
+package hac_client_server;
+
+import hac_backbone.HAC;
+import hac_backbone.HACNodeHost;
+import hac_backbone.HACPacket;
+import hac_backbone.MembershipSnapshot;
+import hac_backbone.MembershipTable;
+import hac_backbone.SimulatedNetwork;
+import java.io.IOException;
+
+/**
+ * Driver class to run a hierarchical network on a simulated network
+ * (see SimulatedNetwork and HACRegion). Two root nodes, the first of
+ * which serves the root tier, are the seeds of the root tier; every
+ * region is served by its first node. The network settles, and the
+ * driver reports the global view held by the root and how many
+ * datagrams the busiest servers sent. Then the server of the first
+ * region is cut off, and the driver reports how long, in virtual time,
+ * the region took to agree on a new server linked to the root; then the
+ * root is cut off, and how long the root tier took to agree on a new
+ * root.
+ *
+ * The root nodes have the lowest addresses, so the root tier elects the
+ * other root node rather than the link of a region.
+ *
+ * Run with: java hac_client_server.HACRegionSimulationDriver [regions] [nodes per region] [seed]
+ */
+public class HACRegionSimulationDriver {
+
+	// Port of every simulated node, and of the links of the regions
+	private final static int PORT = 9876;
+	private final static int UPLINKPORT = 9878;
+
+	// Number of root nodes
+	private final static int ROOTS = 2;
+
+	// Virtual time given to the network to settle before the failures
+	private final static int SETTLETIME = 60 * 1000;
+
+	// Longest virtual time given to a tier to agree on a new server
+	private final static int FAILOVERTIMEOUT = 90 * 1000;
+
+	// Virtual time run between two checks of the tiers' agreement
+	private final static int CHECKSTEP = 50;
+
+	public static void main(String[] args)
+	{
+		int regionCount = args.length > 0 ? Integer.parseInt(args[0]) : 12;
+		int regionSize = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+
+		// Simulated nodes have no window
+		System.setProperty(HAC.HEADLESS_PROPERTY, "true");
+
+		try
+		{
+			SimulatedNetwork network = new SimulatedNetwork(seed);
+			network.setLatency(1, 5);
+			network.setLossRate(0.01);
+			network.setReorderRate(0.01);
+			HACNodeHost host = new HACNodeHost(network);
+
+			// The first root node serves the root tier
+			HAC[] roots = new HAC[ROOTS];
+			for (int root = 0; root < ROOTS; root++)
+			{
+				roots[root] = host.register(rootAddressOf(root), PORT,
+						root == 0 ? HAC.SERVER : HAC.CLIENT_P2P);
+				if (root == 0)
+				{
+					new HACServer().run(host, roots[root]);
+				}
+				else
+				{
+					new HACClient().run(host, roots[root], rootAddressOf(0), PORT);
+				}
+			}
+
+			// The first node of each region serves it
+			HACRegion[][] regions = new HACRegion[regionCount][regionSize];
+			for (int region = 0; region < regionCount; region++)
+			{
+				String serverIP = addressOf(region, 0);
+				for (int node = 0; node < regionSize; node++)
+				{
+					HAC regionNode = host.register(addressOf(region, node), PORT,
+							node == 0 ? HAC.SERVER : HAC.CLIENT_P2P);
+					regions[region][node] = new HACRegion(host);
+					for (int root = 0; root < ROOTS; root++)
+					{
+						regions[region][node].addRootSeed(rootAddressOf(root), PORT);
+					}
+					regions[region][node].run(regionNode, serverIP, PORT, UPLINKPORT);
+				}
+			}
+
+			long started = System.currentTimeMillis();
+			host.runFor(SETTLETIME);
+			MembershipSnapshot global = roots[0].getGlobalSnapshot();
+			long busiestRegion = 0;
+			for (int region = 0; region < regionCount; region++)
+			{
+				busiestRegion = Math.max(busiestRegion, regions[region][0].getRegionNode()
+						.getMetrics().getPacketsSent());
+			}
+			System.out.println("Settled " + regionCount + " regions of " + regionSize +
+					" nodes in " + (System.currentTimeMillis() - started) +
+					" ms: root knows " + global.size() + " nodes, " +
+					global.liveCount() + " active, from " +
+					roots[0].getTotalNodeCount() + " root tier nodes");
+			System.out.println("Datagrams sent by the root: " +
+					roots[0].getMetrics().getPacketsSent() +
+					", by the busiest regional server: " + busiestRegion);
+
+			// Cut the server of the first region off, both its node and its
+			// link, and wait for the region to follow a new server linked
+			// to the root
+			String lostServer = addressOf(0, 0);
+			network.isolate(lostServer, PORT);
+			network.isolate(lostServer, UPLINKPORT);
+			long failed = network.getClock().currentTimeMillis();
+			String newServer = null;
+			while (network.getClock().currentTimeMillis() - failed < FAILOVERTIMEOUT &&
+					((newServer = agreedServer(regions[0], lostServer)) == null ||
+							!linked(roots[0], regions[0], newServer)))
+			{
+				host.runFor(CHECKSTEP);
+			}
+			report("Region", newServer, linked(roots[0], regions[0], newServer),
+					network.getClock().currentTimeMillis() - failed);
+
+			// Cut the root off, and wait for the other root node and the
+			// link of every region to follow the same new root
+			network.isolate(rootAddressOf(0), PORT);
+			failed = network.getClock().currentTimeMillis();
+			String newRoot = null;
+			while (network.getClock().currentTimeMillis() - failed < FAILOVERTIMEOUT &&
+					(newRoot = agreedRoot(roots, regions, lostServer)) == null)
+			{
+				host.runFor(CHECKSTEP);
+			}
+			report("Root tier", newRoot, newRoot != null,
+					network.getClock().currentTimeMillis() - failed);
+			if (rootAddressOf(1).equals(newRoot))
+			{
+				global = roots[1].getGlobalSnapshot();
+				System.out.println("New root knows " + global.size() + " nodes, " +
+						global.liveCount() + " active");
+			}
+
+			System.out.println("Datagrams sent: " + network.getSentCount() +
+					", delivered: " + network.getDeliveredCount() +
+					", dropped: " + network.getDroppedCount());
+			host.stop();
+		}
+		catch (IOException ioe)
+		{
+			ioe.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns the IP address of a simulated root node
+	 * @param root index of the root node
+	 * @return address in 10.0.0.0/24
+	 */
+	private static String rootAddressOf(int root)
+	{
+		return "10.0.0." + (root + 1);
+	}
+
+	/**
+	 * Returns the IP address of a simulated node of a region
+	 * @param region index of the region
+	 * @param node index of the node in its region
+	 * @return address in 10.(region + 1).0.0/16
+	 */
+	private static String addressOf(int region, int node)
+	{
+		return "10." + (region + 1) + "." + (node / 250) + "." + (node % 250 + 1);
+	}
+
+	/**
+	 * Reports the outcome of a failover
+	 * @param tier name of the tier
+	 * @param server IP address of the new server, null if none was agreed
+	 * @param linked true if the new server is linked to the root
+	 * @param elapsed virtual time since the failure, in milliseconds
+	 */
+	private static void report(String tier, String server, boolean linked, long elapsed)
+	{
+		if (server == null || !linked)
+		{
+			System.out.println(tier + " did not agree on a linked server within " +
+					FAILOVERTIMEOUT + " ms");
+		}
+		else
+		{
+			System.out.println(tier + " agreed on " + server + " after " + elapsed + " ms");
+		}
+	}
+
+	/**
+	 * Reports if the server of a region is linked to the root: its uplink
+	 * follows the root, which holds the uplink online
+	 * @param root server of the root tier
+	 * @param region every node of the region
+	 * @param server IP address of the region's server, may be null
+	 * @return true if the region's server is linked to the root
+	 */
+	private static boolean linked(HAC root, HACRegion[] region, String server)
+	{
+		for (HACRegion node : region)
+		{
+			HAC uplink = node.getUplink();
+			if (uplink != null && uplink.getLocalIP().equals(server))
+			{
+				return root.getLocalIP().equals(uplink.getRemoteIP()) &&
+						root.getMembershipSnapshot().stateOf(HACPacket.packNode(
+								HACPacket.toAddress(server), UPLINKPORT)) == MembershipTable.ACTIVE;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Reports the server every node of a region other than the lost server
+	 * follows, if they agree on one
+	 * @param region every node of the region, the lost server first
+	 * @param lostServer IP address of the lost server
+	 * @return IP address of the new server, or null if nodes disagree
+	 */
+	private static String agreedServer(HACRegion[] region, String lostServer)
+	{
+		String server = null;
+		for (int node = 1; node < region.length; node++)
+		{
+			String followed = followedBy(region[node].getRegionNode());
+			if (followed == null || followed.equals(lostServer) ||
+					(server != null && !server.equals(followed)))
+			{
+				return null;
+			}
+			server = followed;
+		}
+
+		return server;
+	}
+
+	/**
+	 * Reports the root every node of the root tier other than the lost
+	 * root follows, if they agree on one: the other root node and the
+	 * link of every region but the one cut off
+	 * @param roots root nodes, the lost root first
+	 * @param regions nodes of every region
+	 * @param lostServer IP address of the regional server cut off
+	 * @return IP address of the new root, or null if nodes disagree
+	 */
+	private static String agreedRoot(HAC[] roots, HACRegion[][] regions, String lostServer)
+	{
+		String root = followedBy(roots[1]);
+		if (root == null || root.equals(rootAddressOf(0)))
+		{
+			return null;
+		}
+
+		for (HACRegion[] region : regions)
+		{
+			for (HACRegion node : region)
+			{
+				HAC uplink = node.getUplink();
+				if (uplink != null && !uplink.getLocalIP().equals(lostServer) &&
+						!root.equals(followedBy(uplink)))
+				{
+					return null;
+				}
+			}
+		}
+
+		return root;
+	}
+
+	/**
+	 * Returns the server a node follows, or its own address if it serves
+	 * @param node node of a tier
+	 * @return IP address of the node's server, null if none is known
+	 */
+	private static String followedBy(HAC node)
+	{
+		return node.getConfiguration() == HAC.SERVER ? node.getLocalIP() : node.getRemoteIP();
+	}
+}
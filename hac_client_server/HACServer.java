@@ -1,10 +1,11 @@
 package hac_client_server;
 
 import hac_backbone.HAC;
-import java.io.IOException;
-import java.net.InetAddress;
-import java.net.SocketException;
-import java.net.UnknownHostException;
+import hac_backbone.HACNodeHost;
+import hac_backbone.HealthProber;
+import hac_backbone.MembershipSnapshot;
+import hac_backbone.RoleScope;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Server service utilizing HAC protocol to inform Client
@@ -12,253 +13,415 @@ import java.net.UnknownHostException;
  * which are currently active. Periodically checks if
  * server is connected to other nodes, and reverts to
  * a client if failover takes place.
+ *
+ * The tasks of the server role run in a RoleScope and stop
+ * cooperatively, so a node switches between the server and
+ * client roles in place, on the same socket, without leaving
+ * threads behind. A node hosted by a HACNodeHost instead runs
+ * each round of the server as a task on the host's loop, on the
+ * host's clock, and switches roles on the host.
  * @author Colby Bratton and Paul Ramberg
  *
  */
 public class HACServer{
-	
+
 	// HAC Protocol object
 	HAC serverNode;
-		
-	// Reports if server may remain active
-	private boolean continueAsServer;
+
+	// Makes the threads running the tasks of the server role
+	private ThreadFactory threadFactory;
+
+	// Host running the rounds of a hosted server, null otherwise, and the
+	// task running them
+	private HACNodeHost host;
+	private HACNodeHost.ScheduledTask roundTask;
+
 	// Reports if local server is the only active server
-	private boolean onlyServer;
-	// Used during failover, reports when a new server is located
-	private boolean foundNewServer;
-	// IP address of new found server, returned to main during failover
+	private volatile boolean onlyServer;
+	// Time at which the node began serving, in milliseconds
+	private volatile long servingSince;
+	// IP and port address of new found server, returned to main during failover
 	private String newServer;
-	
-	// Interval at which server updates all clients, in seconds
-	private final static int UPDATEINTERVAL = 30
-			* 1000;
+	private int newServerPort;
+
+	// Times of the next announcement to every node, of the next update of
+	// every node and of the next check of the server's connection, and
+	// whether the first round is yet to run
+	private long nextAnnouncement;
+	private long nextUpdate;
+	private long nextCheck;
+	private boolean firstRound;
+
+	// Probe round checking the server's connection, null if none is running
+	private HealthProber.ProbeRound connectionProbe;
+
+	// Interval at which the server runs its rounds: it announces itself
+	// once per announcement interval (see HAC.getAnnouncementInterval),
+	// and updates nodes that just reported
+	private final static int ROUNDINTERVAL = 200;
 	// Interval at which server checks its connection to the network
 	private final static int CHECKTIMEOUTINTERVAL = 10
 			* 1000;
-	// Timeout limit during connected node checks
-	private final static int TIMEOUTINTERVAL = 30
+	// Longest time a receive waits before checking for cancellation
+	private final static int RECEIVETIMEOUT = 500;
+	// Time given to every node at once to answer a health probe
+	private final static int PROBETIMEOUT = 2
 			* 1000;
-	
-	public HACServer() {}
-	
+
+	public HACServer()
+	{
+		this(RoleScope.defaultThreadFactory());
+	}
+
+	/**
+	 * Creates a server whose tasks run on threads of the given factory
+	 * @param threadFactory factory making the threads of the server role
+	 */
+	public HACServer(ThreadFactory threadFactory)
+	{
+		this.threadFactory = threadFactory;
+	}
+
 	/**
-	 * Sends node update packets to each node in the network
-	 * at constant intervals. Once failover occurs, checks for
-	 * another server and returns server IP to main to be 
-	 * intercepted by new client
+	 * Creates a server node and runs it (see run)
 	 * @param localIP IP address of the local server node
 	 * @param port port number of the local server node
 	 * @return IP address of new server
 	 */
 	public String begin(String localIP, int port)
 	{
-		try
+		// Create HAC node and initialize it as a server node
+		return run(new HAC(localIP, port, HAC.SERVER));
+	}
+
+	/**
+	 * Runs a node as a server, promoting it in place if it is a client.
+	 * Sends node update packets to each node in the network at constant
+	 * intervals. Once failover occurs, finds the new server and returns
+	 * its IP to main to be intercepted by the node as a client; its port
+	 * is returned by getNewServerPort
+	 * @param node node to be run as a server
+	 * @return IP address of new server
+	 * @throws IllegalStateException if a task of the server role failed,
+	 *         rather than failover taking place
+	 */
+	public String run(HAC node)
+	{
+		serverNode = node;
+		serverNode.setConfiguration(HAC.SERVER);
+
+		newServer = null;
+		while (newServer == null)
 		{
-			// Create HAC node and initialize it as a server node
-			serverNode = new HAC(localIP, port, HAC.SERVER);
-			
-			// Begin threads to receive packets and to periodically
-			// check server's connection to the network
-			receivePackets.start();
-			checkConnection.start();
-			
-			// Report that server may remain active
-			continueAsServer = true;
-			
-			while (continueAsServer)
+			serveUntilFailover();
+			findNewServer();
+		}
+
+		return newServer;
+	}
+
+	/**
+	 * Runs a node hosted by the given host as a server, promoting it in
+	 * place if it is a client, and returns at once. Each round runs as a
+	 * task on the host's loop. Once failover occurs, the node is run as a
+	 * client of the new server on the same host
+	 * @param host host of the node
+	 * @param node node to be run as a server
+	 */
+	public void run(HACNodeHost host, HAC node)
+	{
+		this.host = host;
+		serverNode = node;
+		serverNode.setConfiguration(HAC.SERVER);
+
+		startServing();
+		roundTask = host.schedule(this::hostedRound, 0, ROUNDINTERVAL);
+	}
+
+	/**
+	 * Runs one round of a hosted server, moving the node to its next role
+	 * once failover occurs
+	 */
+	private void hostedRound()
+	{
+		if (serveRound(serverNode.getClock().currentTimeMillis()))
+		{
+			return;
+		}
+
+		roundTask.cancel();
+		findNewServer();
+		if (newServer == null)
+		{
+			// No other node to hand over to, keep serving
+			startServing();
+			roundTask = host.schedule(this::hostedRound, ROUNDINTERVAL,
+					ROUNDINTERVAL);
+			return;
+		}
+
+		new HACClient(threadFactory).run(host, serverNode, newServer, newServerPort);
+	}
+
+	/**
+	 * Beginning of Failover Handler. Finds the server this node is to
+	 * become a client of, leaving newServer null if there is none
+	 */
+	private void findNewServer()
+	{
+		if (!onlyServer)
+		{
+			// Another server remains, become its client
+			newServer = serverNode.getRemoteIP();
+			newServerPort = serverNode.getRemotePort();
+		}
+		else
+		{
+			// Cut off from the network. Hand over to the first other
+			// node, in ascending numerical order
+			MembershipSnapshot members = serverNode.getMembershipSnapshot();
+			int local = serverNode.getLocalNodeIndex(members);
+			for (int other = 0; other < members.size(); other++)
 			{
-				Thread.sleep(UPDATEINTERVAL);
-				
-				// Update each node that has previously reported to the server
-				for (int node = 0; node < serverNode.getTotalNodeCount(); node++)
+				if (other != local)
 				{
-					serverNode.updateNode(serverNode.getNodeAddress(node),
-							serverNode.getNodePort(node));
-					System.out.println("Sent packet");
+					newServer = members.getAddress(other);
+					newServerPort = members.getPort(other);
+					break;
 				}
-				serverNode.sortNodeAndPortLists();
-				serverNode.reportActiveNodes();
-				serverNode.clearActiveNodes();
 			}
-			
-			/* 
-			 * Beginning of Failover Handler
-			 */
-			// Report that the new server has not yet been found
-			foundNewServer = false;
-			int nodesToPing = serverNode.getTotalNodeCount();
-			while (!foundNewServer)
+		}
+	}
+
+	/**
+	 * Runs the tasks of the server role until another server is found or
+	 * the server loses its connection to the network
+	 * @throws IllegalStateException if a task of the server role failed
+	 */
+	private void serveUntilFailover()
+	{
+		startServing();
+
+		try (RoleScope scope = new RoleScope(threadFactory))
+		{
+			// Begin task to receive packets
+			scope.fork(() -> receivePackets(scope));
+
+			do
 			{
-				/*
-				 *  For all nodes in network, check if they are available
-				 *  to become a new server. Checks nodes in ascending
-				 *  numerical order
-				 */
-				
-				newServer = null;
-				for (int node = 0; node < nodesToPing; node++)
+				if (!serveRound(serverNode.getClock().currentTimeMillis()))
 				{
-					InetAddress potentialServer =
-							InetAddress.getByName(serverNode.getNodeAddress(node));
-										
-					// If another server has been found and may be connected to
-					if (newServer == null &&
-							potentialServer.isReachable(TIMEOUTINTERVAL))
-					{
-						// Get new server address and report it as found (stop server execution)
-						newServer = serverNode.getNodeAddress(node);
-						foundNewServer = true;
-						
-						// Terminate the current server node
-						serverNode.terminateNode();
-						serverNode = null;
-					}
+					break;
 				}
 			}
-			
+			while (scope.sleep(ROUNDINTERVAL));
+
+			// A failed task is no failover
+			scope.throwIfFailed();
+		}
+	}
+
+	/**
+	 * Resets the state of the server role as the node begins serving
+	 */
+	private void startServing()
+	{
+		onlyServer = true;
+		servingSince = serverNode.getClock().currentTimeMillis();
+		nextAnnouncement = 0;
+		nextUpdate = 0;
+		nextCheck = servingSince + CHECKTIMEOUTINTERVAL;
+		firstRound = true;
+		connectionProbe = null;
+	}
+
+	/**
+	 * Runs one round of the server: announces the server to each node
+	 * once per announcement interval (see HAC.getAnnouncementInterval),
+	 * updates each node once per heartbeat period (see
+	 * HAC.getHeartbeatPeriod), updates nodes that just reported or missed
+	 * a version, and periodically checks the server's connection to the
+	 * network
+	 * @param now current time in milliseconds
+	 * @return false once failover occurs
+	 */
+	private boolean serveRound(long now)
+	{
+		// If another server is found, stop normal execution of the server
+		if (serverNode.takeExclusivityLost())
+		{
+			serverNode.beginRoleSwitch();
+			onlyServer = false;
+			return false;
+		}
+
+		// Announce this server and its term to each node, which also
+		// re-points clients at it right after an election, as often as
+		// the bandwidth budget allows
+		if (now >= nextAnnouncement)
+		{
+			serverNode.announceLeaderToAll();
+			nextAnnouncement = now + serverNode.getAnnouncementInterval();
 		}
-		catch (InterruptedException ie)
+
+		if (now >= nextUpdate)
 		{
-			ie.printStackTrace();
+			// Publish membership changes made during the last round, so
+			// every node is sent the same membership version
+			serverNode.publishMembership();
+
+			// Update each node that has previously reported to the server,
+			// encoding each packet once for the whole round
+			serverNode.updateAllNodes();
+			nextUpdate = now + serverNode.getHeartbeatPeriod();
 		}
-		catch(IOException ioe)
+
+		// Update clients that just reported, and resend what members of the
+		// multicast group missed
+		serverNode.updatePendingNodes();
+
+		// Report how long it took to take over as server. Hosted servers
+		// only record it in the node's metrics
+		if (firstRound)
 		{
-			ioe.printStackTrace();
+			long switchTime = serverNode.endRoleSwitch();
+			if (switchTime >= 0 && host == null)
+			{
+				System.out.println("Role switch took " + switchTime + " ms");
+			}
+			firstRound = false;
 		}
 
-		return newServer;
+		return checkConnection(now);
 	}
-	
+
 	/**
-	 * Thread to continuously receive packets from all active client nodes
+	 * Checks the connection of the server node to the network at
+	 * regular intervals. If the failure detector deems every node
+	 * failed, every node is probed at once (see HAC.probeNodes); if none
+	 * answers, directly or through another node, connection is deemed
+	 * lost and the Failover handling begins. The probe round is polled
+	 * on each round of the server, which never waits for it
+	 * @param now current time in milliseconds
+	 * @return false if the connection is lost
 	 */
-	private Thread receivePackets = new Thread() 
+	private boolean checkConnection(long now)
 	{
-		@SuppressWarnings("deprecation")
-		public void run()
+		if (connectionProbe == null)
 		{
-			while (continueAsServer)
+			if (now >= nextCheck)
 			{
-				// Receive packet from another node, ensure that it
-				// is NOT a server node
-				onlyServer = serverNode.receiveUpdatePacket();
-				System.out.println("Received packet");
-				
-				// If another server is found, stop normal execution of the
-				// server and its supporting threads
-				if (!onlyServer)
+				nextCheck = now + CHECKTIMEOUTINTERVAL;
+
+				/*
+				 *  If no nodes may be reached, assume that the server has lost
+				 *  connection to the network. Even if this isn't true, a reboot
+				 *  of the network nodes might be necessary anyways. After taking
+				 *  over, clients are given the time in which a failure is
+				 *  detected to report to the server
+				 */
+				MembershipSnapshot members = serverNode.getMembershipSnapshot();
+				if (members.size() > 0 &&
+						members.liveCount() == 0 &&
+						now - servingSince > serverNode.getDetectionTimeout())
 				{
-					continueAsServer = false;
-					receivePackets.stop();
-					checkConnection.stop();
+					connectionProbe = serverNode.probeNodes(PROBETIMEOUT);
 				}
 			}
+			return true;
+		}
+
+		if (!connectionProbe.poll())
+		{
+			return true;
+		}
+
+		// Answering nodes are reported online again by the server node
+		int local = serverNode.getLocalNodeIndex() >= 0 ? 1 : 0;
+		boolean reachable = connectionProbe.getReachableCount() > local;
+		connectionProbe = null;
+		if (!reachable)
+		{
+			// Stop normal server execution
+			serverNode.beginRoleSwitch();
+			return false;
 		}
-	};
-	
+
+		return true;
+	}
+
 	/**
-	 * Checks the connection of the server node to the network at
-	 * regular intervals. If connection is lost, begin the Failover
-	 * handling process (see main)
+	 * Task to continuously receive packets from all active client nodes.
+	 * A packet from a server outranking this one is reported to the next
+	 * round of the server (see HAC.takeExclusivityLost)
+	 * @param scope scope of the server role
 	 */
-	private Thread checkConnection = new Thread() 
+	private void receivePackets(RoleScope scope)
 	{
-		@SuppressWarnings("deprecation")
-		public void run()
-		{			
-			while (continueAsServer)
-			{
-				try
-				{
-					Thread.sleep(CHECKTIMEOUTINTERVAL);
-					
-					int currentNodeCount = serverNode.getTotalNodeCount();
-					int timeoutCounter = 0; // counter to keep track of the nodes that
-											// may not be reached by the server
-					
-					// Check all nodes that have been connected to the network
-					for (int node = 0; node < serverNode.getTotalNodeCount(); node++)
-					{
-						InetAddress currentNode = 
-								InetAddress.getByName(serverNode.getNodeAddress(node));
-						
-						// If the remote node cannot be reached, state as such
-						if (!currentNode.isReachable(TIMEOUTINTERVAL)) 
-						{
-							timeoutCounter++;
-						}
-					}
-					
-					/*
-					 *  If no nodes may be reached, assume that the server has lost
-					 *  connection to the network. Even if this isn't true, a reboot
-					 *  of the network nodes might be necessary anyways
-					 */
-					
-					if (timeoutCounter >= currentNodeCount &&
-							currentNodeCount > 0)
-					{
-						// Stop normal server execution and all supporting threads
-						continueAsServer = false;
-						receivePackets.stop();
-						checkConnection.stop();
-					}
-				}
-				catch (SocketException se)
-				{
-					se.printStackTrace();
-					
-					// Stop normal server execution and all supporting threads
-					continueAsServer = false;
-					receivePackets.stop();
-					checkConnection.stop();
-				}
-				catch (InterruptedException ie)
-				{
-					ie.printStackTrace();
-				}
-				catch (UnknownHostException uhe)
-				{
-					uhe.printStackTrace();
-				}
-				catch (IOException ioe)
-				{
-					ioe.printStackTrace();
-				}
-			}
+		while (!scope.isCancelled())
+		{
+			serverNode.receiveUpdatePacket(RECEIVETIMEOUT);
 		}
-	};	
-	
+	}
+
+	/**
+	 * Returns the port of the new server found during failover
+	 * @return port number of new server
+	 */
+	public int getNewServerPort()
+	{
+		return newServerPort;
+	}
+
 	public static void main(String[] args)
 	{
 		// IP address of the local machine
 		String localIP = "192.168.0.39";
-		// IP address of a newly found server, if applicable
+		// IP address and port of a newly found server, if applicable
 		String newServer;
+		int newServerPort;
+
+		/*
+		 * Create a server node and initialize it on the current IP.
+		 * The node keeps its socket through every role switch
+		 */
+		HAC node = new HAC(localIP, 9876, HAC.SERVER);
 		while (true)
-		{	
-			/*
-			 * Create a server node and initialize it on the current IP.
-			 * Server nodes will always use the same port number. In this
-			 * case, that is 9876 (see HACClient)
-			 */
+		{
 			HACServer server = new HACServer();
-			newServer = server.begin(localIP, 9876);
-			// If necessary, begin Failover migration
-			server = null;
-			
+			try
+			{
+				newServer = server.run(node);
+			}
+			catch (IllegalStateException ise)
+			{
+				// No failover took place, keep serving
+				ise.printStackTrace();
+				continue;
+			}
+			newServerPort = server.getNewServerPort();
+
 			System.out.println("Moving to client");
-			
+
 			/*
-			 * Create a client node and initialize it on the current IP
-			 * with an arbitrary port number. Provide the IP and port of
-			 * the new server node that was created.
+			 * Run the node as a client of the new server node
 			 */
 			HACClient rebootClient = new HACClient();
-			rebootClient.begin(localIP, 2345, newServer, 9876);
-			// If necessary, close client and turn back into server
-			rebootClient = null;
-			
+			boolean elected = false;
+			while (!elected)
+			{
+				try
+				{
+					rebootClient.run(node, newServer, newServerPort);
+					elected = true;
+				}
+				catch (IllegalStateException ise)
+				{
+					// Not elected, stay a client of the same server
+					ise.printStackTrace();
+				}
+			}
+
 			System.out.println("Moving to server");
 		}
 	}
@@ -0,0 +1,154 @@
+package hac_client_server;
+
+import hac_backbone.HAC;
+import hac_backbone.HACNodeHost;
+import hac_backbone.SimulatedNetwork;
+import java.io.IOException;
+
+/**
+ * Driver class to run a Server-Client cluster on a simulated network
+ * (see SimulatedNetwork). Every node is hosted by a single host, on the
+ * network's virtual clock, so the cluster never waits in real time and
+ * repeats exactly for a given seed. The cluster settles, then the server
+ * is cut off from the network, and the driver reports how long, in
+ * virtual time, the clients took to agree on a new server. With the
+ * multicast option, every node joins a multicast group, which servers
+ * publish their updates to.
+ *
+ * Run with: java hac_client_server.HACSimulationDriver [nodes] [seed] [multicast]
+ */
+public class HACSimulationDriver {
+
+	// Port of every simulated node
+	private final static int PORT = 9876;
+
+	// Multicast group joined by every node with the multicast option
+	private final static String GROUPIP = "239.192.0.1";
+	private final static int GROUPPORT = 9877;
+
+	// Virtual time given to the cluster to settle before the failure
+	private final static int SETTLETIME = 60 * 1000;
+
+	// Longest virtual time given to the clients to agree on a new server.
+	// Clients yet to hear from the server when it fails only deem it lost
+	// after their detection timeout (see HACClient)
+	private final static int FAILOVERTIMEOUT = 90 * 1000;
+
+	// Virtual time run between two checks of the clients' agreement
+	private final static int CHECKSTEP = 50;
+
+	public static void main(String[] args)
+	{
+		int nodeCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+		boolean multicast = args.length > 2 && args[2].equals("multicast");
+
+		// Simulated nodes have no window
+		System.setProperty(HAC.HEADLESS_PROPERTY, "true");
+
+		try
+		{
+			SimulatedNetwork network = new SimulatedNetwork(seed);
+			network.setLatency(1, 5);
+			network.setLossRate(0.01);
+			network.setReorderRate(0.01);
+			HACNodeHost host = new HACNodeHost(network);
+
+			// The first node serves, every other node is its client
+			HAC[] nodes = new HAC[nodeCount];
+			String serverIP = addressOf(0);
+			for (int node = 0; node < nodeCount; node++)
+			{
+				nodes[node] = host.register(addressOf(node), PORT,
+						node == 0 ? HAC.SERVER : HAC.CLIENT_P2P);
+				if (multicast)
+				{
+					nodes[node].joinMulticastGroup(GROUPIP, GROUPPORT);
+				}
+				if (node == 0)
+				{
+					new HACServer().run(host, nodes[node]);
+				}
+				else
+				{
+					new HACClient().run(host, nodes[node], serverIP, PORT);
+				}
+			}
+
+			long started = System.currentTimeMillis();
+			host.runFor(SETTLETIME);
+			System.out.println("Settled " + nodeCount + " nodes in " +
+					(System.currentTimeMillis() - started) + " ms: server knows " +
+					nodes[0].getTotalNodeCount() + " nodes, " +
+					nodes[0].getActiveNodeCount() + " active, sent " +
+					nodes[0].getMetrics().getPacketsSent() + " datagrams");
+
+			// Cut the server off, and wait for every client to follow the
+			// same new server
+			network.isolate(serverIP, PORT);
+			long failed = network.getClock().currentTimeMillis();
+			started = System.currentTimeMillis();
+			String newServer = null;
+			while (network.getClock().currentTimeMillis() - failed < FAILOVERTIMEOUT &&
+					(newServer = agreedServer(nodes, serverIP)) == null)
+			{
+				host.runFor(CHECKSTEP);
+			}
+
+			if (newServer == null)
+			{
+				System.out.println("Clients did not agree on a new server within " +
+						FAILOVERTIMEOUT + " ms");
+			}
+			else
+			{
+				System.out.println("Clients agreed on " + newServer + " after " +
+						(network.getClock().currentTimeMillis() - failed) + " ms (simulated in " +
+						(System.currentTimeMillis() - started) + " ms)");
+			}
+			System.out.println("Datagrams sent: " + network.getSentCount() +
+					", delivered: " + network.getDeliveredCount() +
+					", dropped: " + network.getDroppedCount());
+			host.stop();
+		}
+		catch (IOException ioe)
+		{
+			ioe.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns the IP address of a simulated node
+	 * @param node index of the node
+	 * @return address in 10.0.0.0/16
+	 */
+	private static String addressOf(int node)
+	{
+		return "10.0." + (node / 250) + "." + (node % 250 + 1);
+	}
+
+	/**
+	 * Reports the server every client other than the lost server follows,
+	 * if they agree on one that is serving
+	 * @param nodes every node of the cluster, the lost server first
+	 * @param lostServer IP address of the lost server
+	 * @return IP address of the new server, or null if clients disagree
+	 */
+	private static String agreedServer(HAC[] nodes, String lostServer)
+	{
+		String server = null;
+		for (int node = 1; node < nodes.length; node++)
+		{
+			String followed = nodes[node].getConfiguration() == HAC.SERVER ?
+					nodes[node].getLocalIP() : nodes[node].getRemoteIP();
+			if (followed == null || followed.equals(lostServer) ||
+					(server != null && !server.equals(followed)))
+			{
+				return null;
+			}
+			server = followed;
+		}
+
+		return server;
+	}
+}
@@ -1,34 +1,76 @@
 package hac_p2p;
 
 import hac_backbone.HAC;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.util.Random;
-import java.util.Scanner;
-import java.util.StringTokenizer;
+import hac_backbone.HACNodeHost;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 /**
  * P2P service using HAC protocol. Informs all nodes
  * provided in a configuration file of the nodes activity.
- * Provides this update at random intervals between 0 and
- * 30 seconds. Reports the activity of all subsequent nodes as well.
+ * Provides this update once per heartbeat period, derived
+ * from the size of the network (see HAC.nextHeartbeatInterval).
+ * Reports the activity of all subsequent nodes as well.
  * @author Colby Bratton and Paul Ramberg
  *
  * NOTE: The configuration file has a particular layout in order
  * to be used with this service. Each line must contain, first,
- * the IP address of a node and, second, its port number. These
- * must be separated by a single comma and must NOT contain spaces.
- * The next line will contain information for the next node, and so on.
- * See the provided P2Pclients.txt file for examples of this. Modify it
- * appropriately to work on your system.
+ * the IP address or host name of a node and, second, its port number,
+ * separated by a comma or spaces; '#' begins a comment (see
+ * PeerListFile). The file is P2Pclients.txt in the working directory,
+ * unless another is set (see setNodeFile). See the provided
+ * P2Pclients.txt file for examples of this. Modify it appropriately
+ * to work on your system. The file is watched while the peer runs,
+ * and nodes added to or removed from it are added to or removed from
+ * the peer without restarting it.
  */
 public class HACP2P{
 
 	private HAC P2PNode;
-		
-	private final static int MAXUPDATEINTERVAL = 30 * 1000;
 	
-	public HACP2P() {}
+	// Host running this peer, if it runs on a shared host
+	private HACNodeHost host;
+	
+	// Reports if the peer gossips with a random few nodes each round,
+	// rather than updating every node
+	private boolean gossip;
+	
+	// Configuration file listing the nodes of the network
+	private PeerListFile nodeFile;
+	
+	// System property setting the path of the configuration file
+	public static final String NODE_FILE_PROPERTY = "hac.p2p.nodes";
+	
+	// Interval at which the configuration file is checked for changes
+	private static final int RELOADINTERVAL = 1000;
+	
+	public HACP2P()
+	{
+		setNodeFile(Paths.get(System.getProperty(NODE_FILE_PROPERTY,
+				PeerListFile.DEFAULT_FILE)));
+	}
+	
+	/**
+	 * Selects gossip mode for this peer. Must be set before begin
+	 * @param gossip true to gossip with a random few nodes each round
+	 *        (see HAC.gossipRound), false to update every node
+	 */
+	public void setGossip(boolean gossip)
+	{
+		this.gossip = gossip;
+	}
+	
+	/**
+	 * Sets the configuration file listing the nodes of the network. Must
+	 * be set before begin
+	 * @param path path of the file, P2Pclients.txt in the working
+	 *        directory by default
+	 */
+	public void setNodeFile(Path path)
+	{
+		nodeFile = new PeerListFile(path);
+	}
 		
 	public void begin(String localIP, int port)
 	{
@@ -36,41 +78,129 @@ public class HACP2P{
 		{
 			// Initialize node
 			this.P2PNode = new HAC(localIP, port, HAC.CLIENT_P2P);
+			P2PNode.setGossipEnabled(gossip);
+			loadNodes();
 			
-			// Read info from the config file and add them to the list of nodes
-			File nodeFile = new File("P2Pclients.txt");
-			Scanner scanner = new Scanner(nodeFile);
-			while(scanner.hasNext()) {
-				String line = scanner.nextLine();
-				StringTokenizer tokenizer = new StringTokenizer(line, ",");
-				
-				String nodeIPAddress = tokenizer.nextToken();
-				int nodePort = Integer.parseInt(tokenizer.nextToken());
-				P2PNode.addNodeToTotalNodes(nodeIPAddress, nodePort);
-			}
-			scanner.close();
-			
-			// Start receiving packets
+			// Start receiving packets, and reloading the configuration
+			// file when it changes
 			this.receivePackets.start();
+			this.watchNodeFile.start();
 			
-			// At a random interval send a packet to all nodes in the list
-			Random randomInterval = new Random();
+			// Once per heartbeat period send a packet to all nodes in the list
 			while (true)
 			{
-				for (int index = 0; index < P2PNode.getTotalNodeCount(); index ++) {
-					P2PNode.updateNode(P2PNode.getNodeAddress(index), P2PNode.getNodePort(index));
-				}
+				sendUpdates();
 				
-				Thread.sleep(randomInterval.nextInt(MAXUPDATEINTERVAL));
+				Thread.sleep(P2PNode.nextHeartbeatInterval());
 			}
 			
 		}
-		catch (InterruptedException | FileNotFoundException ie)
+		catch (InterruptedException | IOException ie)
 		{
 			ie.printStackTrace();
 		}
 	}
 	
+	/**
+	 * Starts the peer on a shared host. Packets are received, and updates
+	 * sent once per heartbeat period, by the host's loop rather than by
+	 * threads of the peer's own
+	 * @param host host running the peer
+	 * @param localIP local IP address of the peer
+	 * @param port local port address of the peer
+	 */
+	public void begin(HACNodeHost host, String localIP, int port)
+	{
+		try
+		{
+			// Initialize node on the host
+			this.host = host;
+			this.P2PNode = host.register(localIP, port, HAC.CLIENT_P2P);
+			P2PNode.setGossipEnabled(gossip);
+			loadNodes();
+			
+			// Send the first update right away, then once per heartbeat
+			// period, jittered by the node's own generator, seeded by the
+			// host's transport
+			host.schedule(this::sendHostedUpdates, 0, 0);
+			
+			// Reload the configuration file when it changes
+			host.schedule(this::reloadNodes, RELOADINTERVAL, RELOADINTERVAL);
+		}
+		catch (IOException ioe)
+		{
+			ioe.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Sends a packet to all nodes in the list, then schedules the next
+	 * update on the host after a heartbeat interval
+	 */
+	private void sendHostedUpdates()
+	{
+		sendUpdates();
+		
+		host.schedule(this::sendHostedUpdates, P2PNode.nextHeartbeatInterval(), 0);
+	}
+	
+	/**
+	 * Sends a packet to a random few nodes if gossiping, otherwise
+	 * to all nodes in the list
+	 */
+	private void sendUpdates()
+	{
+		if (gossip)
+		{
+			P2PNode.gossipRound();
+			return;
+		}
+		
+		P2PNode.updateAllNodes();
+	}
+	
+	/**
+	 * Reads info from the config file and adds them to the list of
+	 * nodes, then watches the file for changes
+	 * @throws IOException if the config file cannot be read
+	 */
+	private void loadNodes() throws IOException
+	{
+		nodeFile.apply(P2PNode);
+		try
+		{
+			nodeFile.watch();
+		}
+		catch (IOException ioe)
+		{
+			// Run on with the nodes loaded, without reloading
+			ioe.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Reloads the config file if it changed, adding and removing the
+	 * nodes added to and removed from it (see PeerListFile.apply). The
+	 * peer keeps updating its other nodes while the file is edited
+	 */
+	private void reloadNodes()
+	{
+		if (!nodeFile.pollChange(P2PNode.getClock().currentTimeMillis()))
+		{
+			return;
+		}
+		
+		try
+		{
+			nodeFile.apply(P2PNode);
+		}
+		catch (IOException ioe)
+		{
+			// Keep the nodes of the last load until the file is readable
+			ioe.printStackTrace();
+		}
+	}
+	
 	/**
 	 * Supporting thread to continuously receive packets from
 	 * all other active P2P nodes on the network
@@ -85,4 +215,26 @@ public class HACP2P{
 			}
 		}
 	};
+	
+	/**
+	 * Supporting thread to reload the config file when it changes
+	 */
+	private Thread watchNodeFile = new Thread()
+	{
+		public void run()
+		{
+			try
+			{
+				while (true)
+				{
+					Thread.sleep(RELOADINTERVAL);
+					reloadNodes();
+				}
+			}
+			catch (InterruptedException ie)
+			{
+				ie.printStackTrace();
+			}
+		}
+	};
 }
\ No newline at end of file
@@ -1,39 +1,41 @@
 package hac_p2p;
 
+import hac_backbone.HACNodeHost;
+import java.io.IOException;
+
 /**
  * Driver class to demonstrate the abilities of P2P nodes.
- * Generates three threads to display one P2P node. In
- * order to make all nodes function separately (not to
- * call all at once), multiple mains must be utilized
- * to generate each node.
+ * Runs three P2P nodes on a single host, which receives
+ * packets for and sends updates from every node on one
+ * thread. The third node gossips rather than updating
+ * every node. In order to make all nodes function separately
+ * (not to call all at once), multiple mains must be
+ * utilized to generate each node.
  * @author Colby Bratton and Paul Ramberg
  *
  */
 public class HACP2PDriver {
 
 	public static void main(String[] args)
-	{		
-		p2.start();
-		p3.start();
-		HACP2P peer1 = new HACP2P();
-		peer1.begin("192.168.0.39", 9876);
-	}
-	
-	public static Thread p2 = new Thread()
 	{
-		public void run()
+		try
 		{
+			HACNodeHost host = new HACNodeHost();
+			
+			HACP2P peer1 = new HACP2P();
+			peer1.begin(host, "192.168.0.39", 9876);
 			HACP2P peer2 = new HACP2P();
-			peer2.begin("192.168.0.39", 9875);
+			peer2.begin(host, "192.168.0.39", 9875);
+			HACP2P peer3 = new HACP2P();
+			peer3.setGossip(true);
+			peer3.begin(host, "192.168.0.39", 9874);
+			
+			// Run all peers on the main thread
+			host.run();
 		}
-	};
-	
-	public static Thread p3 = new Thread()
-	{
-		public void run()
+		catch (IOException ioe)
 		{
-			HACP2P peer3 = new HACP2P();
-			peer3.begin("192.168.0.39", 9874);
+			ioe.printStackTrace();
 		}
-	};
+	}
 }
@@ -0,0 +1,409 @@
+package hac_p2p;
+
+import hac_backbone.HAC;
+import hac_backbone.HACPacket;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Configuration file listing the nodes of a P2P network, such as
+ * P2Pclients.txt. Each line holds the IP address or host name of a
+ * node and its port number, separated by a comma or by spaces:
+ *
+ *   # Seed nodes of the network
+ *   192.168.0.39,9876
+ *   node-2.example.org 9875   # comments may end any line
+ *
+ * Blank lines and anything following a '#' are ignored. A line that
+ * cannot be read is reported and skipped, rather than failing the file.
+ * The file is read line by line without splitting or tokenizing, so
+ * files of a hundred thousand nodes load in well under a second; host
+ * names are only resolved once per load, however many lines name them.
+ *
+ * The file may be watched for changes (see watch), in which case each
+ * reload is applied to a node as the nodes added and removed since the
+ * previous load (see apply), so the node keeps running, and keeps its
+ * other nodes and their states, as the file is edited.
+ */
+public class PeerListFile {
+
+	// Name of the configuration file read when no other is given
+	public static final String DEFAULT_FILE = "P2Pclients.txt";
+
+	// Time the file must go unchanged before a change is reloaded, so a
+	// file still being written is not read part way
+	private static final long SETTLE_TIME = 500;
+
+	private Path path;
+
+	// Nodes of the last load, in ascending order of key
+	private long[] nodes;
+
+	// Address each host name last resolved to, kept so a name failing to
+	// resolve on a reload does not remove its node, and the addresses of
+	// the names met during the current load, null for names that failed
+	private HashMap<String, Integer> resolvedHosts;
+	private HashMap<String, Integer> loadedHosts;
+
+	// Watches the directory of the file, null unless watched, and the time
+	// of the last change not yet reloaded, -1 if none
+	private WatchService watcher;
+	private long changedAt;
+
+	/**
+	 * Creates a configuration file at the given path. Nothing is read
+	 * until the file is loaded
+	 * @param path path of the file
+	 */
+	public PeerListFile(Path path)
+	{
+		this.path = path;
+		nodes = new long[0];
+		resolvedHosts = new HashMap<>();
+		loadedHosts = new HashMap<>();
+		changedAt = -1;
+	}
+
+	/**
+	 * Returns the path of the file
+	 * @return path of the file
+	 */
+	public Path getPath()
+	{
+		return path;
+	}
+
+	/**
+	 * Returns the nodes of the last load
+	 * @return node keys (see HACPacket.packNode), in ascending order
+	 */
+	public long[] getNodes()
+	{
+		return nodes.clone();
+	}
+
+	/**
+	 * Reads the file, skipping lines that cannot be read
+	 * @return node keys, in ascending order and without duplicates
+	 * @throws IOException if the file cannot be read
+	 */
+	public long[] load() throws IOException
+	{
+		long[] loaded = new long[1024];
+		int count = 0;
+		int lineNumber = 0;
+		loadedHosts.clear();
+
+		try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8))
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				lineNumber++;
+				long node;
+				try
+				{
+					node = parseLine(line);
+				}
+				catch (IllegalArgumentException | UnknownHostException e)
+				{
+					System.err.println(path + ":" + lineNumber + ": skipped, " + e.getMessage());
+					continue;
+				}
+
+				if (node < 0)
+				{
+					continue; // Blank or comment
+				}
+				if (count == loaded.length)
+				{
+					loaded = Arrays.copyOf(loaded, count * 2);
+				}
+				loaded[count++] = node;
+			}
+		}
+
+		// Sort, then drop nodes listed more than once
+		Arrays.sort(loaded, 0, count);
+		int unique = 0;
+		for (int node = 0; node < count; node++)
+		{
+			if (unique == 0 || loaded[node] != loaded[unique - 1])
+			{
+				loaded[unique++] = loaded[node];
+			}
+		}
+
+		return Arrays.copyOf(loaded, unique);
+	}
+
+	/**
+	 * Reads the node of a line of the file
+	 * @param line line of the file
+	 * @return node key, or -1 if the line holds no node
+	 * @throws IllegalArgumentException if the line is malformed
+	 * @throws UnknownHostException if the host name of the line cannot be
+	 *         resolved to an IPv4 address
+	 */
+	private long parseLine(String line) throws UnknownHostException
+	{
+		int end = line.indexOf('#');
+		if (end < 0)
+		{
+			end = line.length();
+		}
+		while (end > 0 && Character.isWhitespace(line.charAt(end - 1)))
+		{
+			end--;
+		}
+		int start = 0;
+		while (start < end && Character.isWhitespace(line.charAt(start)))
+		{
+			start++;
+		}
+		if (start == end)
+		{
+			return -1;
+		}
+
+		// The port follows the last comma, or the last run of spaces
+		int portStart = end;
+		while (portStart > start && Character.isDigit(line.charAt(portStart - 1)))
+		{
+			portStart--;
+		}
+		int hostEnd = portStart;
+		while (hostEnd > start && Character.isWhitespace(line.charAt(hostEnd - 1)))
+		{
+			hostEnd--;
+		}
+		boolean comma = hostEnd > start && line.charAt(hostEnd - 1) == ',';
+		if (comma)
+		{
+			hostEnd--;
+			while (hostEnd > start && Character.isWhitespace(line.charAt(hostEnd - 1)))
+			{
+				hostEnd--;
+			}
+		}
+		if (portStart == end || end - portStart > 5 || hostEnd == start ||
+				(!comma && hostEnd == portStart))
+		{
+			throw new IllegalArgumentException("expected \"address,port\": " + line.trim());
+		}
+
+		int port = Integer.parseInt(line, portStart, end, 10);
+		if (port > 0xFFFF)
+		{
+			throw new IllegalArgumentException("invalid port " + port);
+		}
+
+		return HACPacket.packNode(resolve(line.substring(start, hostEnd)), port);
+	}
+
+	/**
+	 * Returns the IPv4 address of a dotted-quad address or host name.
+	 * Names are resolved once per load; a name failing to resolve keeps
+	 * the address it last resolved to
+	 * @param host IP address or host name
+	 * @return address as a 32-bit integer
+	 * @throws UnknownHostException if a host name cannot be resolved, and
+	 *         never was before
+	 */
+	private int resolve(String host) throws UnknownHostException
+	{
+		if (isDottedQuad(host))
+		{
+			return HACPacket.toAddress(host);
+		}
+
+		if (loadedHosts.containsKey(host))
+		{
+			Integer address = loadedHosts.get(host);
+			if (address == null)
+			{
+				throw new UnknownHostException(host);
+			}
+			return address;
+		}
+
+		Integer address = resolvedHosts.get(host);
+		try
+		{
+			for (InetAddress candidate : InetAddress.getAllByName(host))
+			{
+				if (candidate instanceof Inet4Address)
+				{
+					byte[] bytes = candidate.getAddress();
+					address = ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) |
+							((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+					resolvedHosts.put(host, address);
+					break;
+				}
+			}
+		}
+		catch (UnknownHostException uhe)
+		{
+			// Fall back to the last address, if any
+		}
+
+		loadedHosts.put(host, address);
+		if (address == null)
+		{
+			throw new UnknownHostException(host);
+		}
+		return address;
+	}
+
+	/**
+	 * Reports if a host is written as a dotted-quad IPv4 address
+	 * @param host IP address or host name
+	 * @return true if the host holds only digits and dots
+	 */
+	private static boolean isDottedQuad(String host)
+	{
+		for (int index = 0; index < host.length(); index++)
+		{
+			char current = host.charAt(index);
+			if (current != '.' && (current < '0' || current > '9'))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Loads the file and applies it to a node: nodes added to the file
+	 * since the previous load are added to the node's total node list,
+	 * and nodes removed from it are removed, in a single batch (see
+	 * HAC.updateTotalNodes). The first load adds every node
+	 * @param node node the file configures
+	 * @throws IOException if the file cannot be read
+	 */
+	public void apply(HAC node) throws IOException
+	{
+		long[] loaded = load();
+
+		// Merge the ordered nodes of both loads
+		long[] added = new long[loaded.length];
+		long[] removed = new long[nodes.length];
+		int addedCount = 0;
+		int removedCount = 0;
+		int old = 0;
+		int current = 0;
+		while (old < nodes.length || current < loaded.length)
+		{
+			if (current == loaded.length || (old < nodes.length && nodes[old] < loaded[current]))
+			{
+				removed[removedCount++] = nodes[old++];
+			}
+			else if (old == nodes.length || loaded[current] < nodes[old])
+			{
+				added[addedCount++] = loaded[current++];
+			}
+			else
+			{
+				old++;
+				current++;
+			}
+		}
+
+		nodes = loaded;
+		if (addedCount > 0 || removedCount > 0)
+		{
+			node.updateTotalNodes(Arrays.copyOf(added, addedCount),
+					Arrays.copyOf(removed, removedCount));
+		}
+	}
+
+	/**
+	 * Starts watching the directory of the file for changes to the file
+	 * (see pollChange)
+	 * @throws IOException if the directory cannot be watched
+	 */
+	public void watch() throws IOException
+	{
+		if (watcher != null)
+		{
+			return;
+		}
+
+		Path directory = path.toAbsolutePath().getParent();
+		watcher = FileSystems.getDefault().newWatchService();
+		directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+	}
+
+	/**
+	 * Checks, without waiting, if the watched file changed. A change is
+	 * only reported once the file has gone unchanged for a short while,
+	 * so editors writing it in several steps cause a single reload
+	 * @param now current time in milliseconds
+	 * @return true if the file changed and should be reloaded
+	 */
+	public boolean pollChange(long now)
+	{
+		if (watcher == null)
+		{
+			return false;
+		}
+
+		WatchKey key;
+		while ((key = watcher.poll()) != null)
+		{
+			for (WatchEvent<?> event : key.pollEvents())
+			{
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW ||
+						path.getFileName().equals(event.context()))
+				{
+					changedAt = now;
+				}
+			}
+			key.reset();
+		}
+
+		if (changedAt < 0 || now - changedAt < SETTLE_TIME)
+		{
+			return false;
+		}
+
+		changedAt = -1;
+		return true;
+	}
+
+	/**
+	 * Stops watching the file
+	 */
+	public void close()
+	{
+		if (watcher == null)
+		{
+			return;
+		}
+
+		try
+		{
+			watcher.close();
+		}
+		catch (IOException ioe)
+		{
+			ioe.printStackTrace();
+		}
+		watcher = null;
+	}
+}